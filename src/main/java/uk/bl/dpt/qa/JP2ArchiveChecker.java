@@ -0,0 +1,345 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Checks the JP2 files inside ZIP and TAR (optionally gzipped) archives without extracting them.
+ *
+ * Each entry is read straight from the archive stream with JP2Header, so only the headers are
+ * inspected and jpylyzer is not run.  Results are reported against archive!/entry.
+ * @author wpalmer
+ */
+public class JP2ArchiveChecker {
+
+	/**
+	 * Separates the archive name from the entry name in results
+	 */
+	public static final String SEPARATOR = "!/";
+
+	private static final int BUFFER_SIZE = 64*1024;
+	private static final int TAR_BLOCK = 512;
+	//long names and pax headers are only a few hundred bytes, a larger size is a corrupt header
+	private static final int MAX_TAR_METADATA = 1024*1024;
+
+	/**
+	 * @param pFile file name
+	 * @return true if the file name looks like an archive we can read
+	 */
+	public static boolean isArchive(String pFile) {
+		String name = pFile.toLowerCase();
+		return name.endsWith(".zip")||name.endsWith(".tar")||name.endsWith(".tar.gz")||name.endsWith(".tgz");
+	}
+
+	/**
+	 * Check every JP2 in an archive
+	 * @param pArchive archive file
+	 * @param pJp2Profile profile to check against
+	 * @param pListener receives a result for each JP2 in the archive
+	 * @return number of JP2 files checked
+	 * @throws IOException if the archive could not be read
+	 */
+	public static long check(String pArchive, JP2Profile pJp2Profile, JP2ResultListener pListener) throws IOException {
+		InputStream in = new FileInputStream(pArchive);
+		try {
+			return check(pArchive, in, pJp2Profile, pListener);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Check every JP2 in an archive stream, the type of archive is detected from its contents
+	 * @param pArchive name of the archive, results are reported as pArchive!/entry
+	 * @param pIn archive stream, not closed
+	 * @param pJp2Profile profile to check against
+	 * @param pListener receives a result for each JP2 in the archive
+	 * @return number of JP2 files checked
+	 * @throws IOException if the archive could not be read
+	 */
+	public static long check(String pArchive, InputStream pIn, JP2Profile pJp2Profile, JP2ResultListener pListener) throws IOException {
+		BufferedInputStream in = new BufferedInputStream(pIn, BUFFER_SIZE);
+		byte[] magic = new byte[TAR_BLOCK];
+		in.mark(TAR_BLOCK);
+		int read = readFully(in, magic);
+		in.reset();
+
+		if(read>=2&&(magic[0]&0xFF)==0x1F&&(magic[1]&0xFF)==0x8B) {
+			//gzipped, most likely a tar
+			return check(pArchive, new GZIPInputStream(in, BUFFER_SIZE), pJp2Profile, pListener);
+		}
+		if(read>=4&&magic[0]=='P'&&magic[1]=='K'&&magic[2]==3&&magic[3]==4) {
+			return checkZip(pArchive, new ZipInputStream(in), pJp2Profile, pListener);
+		}
+		if(read==TAR_BLOCK&&new String(magic, 257, 5, StandardCharsets.US_ASCII).equals("ustar")) {
+			return checkTar(pArchive, new TarReader(in), pJp2Profile, pListener);
+		}
+		throw new IOException(pArchive+" is not a ZIP or TAR archive");
+	}
+
+	private static long checkZip(String pArchive, ZipInputStream pZip, JP2Profile pJp2Profile, JP2ResultListener pListener) throws IOException {
+		long count = 0;
+		ZipEntry entry;
+		while((entry=pZip.getNextEntry())!=null) {
+			if(entry.isDirectory()||!isJP2(entry.getName())) continue;
+			//getNextEntry() skips whatever is left of this entry
+			pListener.resultReady(checkEntry(pArchive+SEPARATOR+entry.getName(), pZip, pJp2Profile));
+			count++;
+		}
+		return count;
+	}
+
+	private static long checkTar(String pArchive, TarReader pTar, JP2Profile pJp2Profile, JP2ResultListener pListener) throws IOException {
+		long count = 0;
+		String name;
+		while((name=pTar.next())!=null) {
+			if(!isJP2(name)) continue;
+			pListener.resultReady(checkEntry(pArchive+SEPARATOR+name, pTar.entry(), pJp2Profile));
+			count++;
+		}
+		return count;
+	}
+
+	private static boolean isJP2(String pName) {
+		return pName.toLowerCase().endsWith(".jp2");
+	}
+
+	private static JP2CheckResult checkEntry(String pName, InputStream pEntry, JP2Profile pJp2Profile) {
+		JP2Header header;
+		try {
+			header = JP2Check.readHeader(pEntry);
+		} catch(IOException e) {
+			return new JP2CheckResult(pName).error(e.toString());
+		} catch(RuntimeException e) {
+			//a corrupt entry should not stop the rest of the archive being checked
+			return new JP2CheckResult(pName).error(e.toString());
+		}
+		try {
+			return JP2Check.checkJP2Header(pName, header, pJp2Profile);
+		} catch(RuntimeException e) {
+			return new JP2CheckResult(pName).error(e.toString());
+		}
+	}
+
+	private static int readFully(InputStream pIn, byte[] pBuffer) throws IOException {
+		int read = 0;
+		while(read<pBuffer.length) {
+			int count = pIn.read(pBuffer, read, pBuffer.length-read);
+			if(count<0) break;
+			read += count;
+		}
+		return read;
+	}
+
+	/**
+	 * A minimal reader for POSIX (ustar) tar files, including GNU long names and pax paths.
+	 * Only regular files are returned.
+	 */
+	static final class TarReader {
+		private final InputStream in;
+		private final byte[] block = new byte[TAR_BLOCK];
+		//bytes of the current entry not yet read, and the padding after it
+		private long remaining = 0;
+		private long padding = 0;
+
+		TarReader(InputStream pIn) {
+			in = pIn;
+		}
+
+		/**
+		 * Move to the next regular file, skipping anything left of the current one
+		 * @return name of the file, or null at the end of the archive
+		 * @throws IOException on error
+		 */
+		String next() throws IOException {
+			String longName = null;
+			while(true) {
+				skip(remaining+padding);
+				remaining = 0;
+				padding = 0;
+				if(readFully(in, block)<TAR_BLOCK) return null;
+				if(isZero(block)) return null;
+
+				String name = string(block, 0, 100);
+				long size = number(block, 124, 12);
+				byte type = block[156];
+				//only POSIX ustar has a prefix, GNU tar ("ustar ") uses that space for other things
+				if(new String(block, 257, 5, StandardCharsets.US_ASCII).equals("ustar")&&block[262]==0) {
+					String prefix = string(block, 345, 155);
+					if(!prefix.isEmpty()) name = prefix+"/"+name;
+				}
+				remaining = size;
+				padding = (TAR_BLOCK-size%TAR_BLOCK)%TAR_BLOCK;
+
+				switch(type) {
+				case 'L':
+					//GNU long name for the next entry
+					longName = trimNul(new String(readEntry(), StandardCharsets.UTF_8));
+					break;
+				case 'x':
+					//pax extended header for the next entry
+					String path = paxPath(readEntry());
+					if(path!=null) longName = path;
+					break;
+				case '0':
+				case 0:
+				case '7':
+					return longName!=null ? longName : name;
+				default:
+					//directories, links and so on
+					longName = null;
+				}
+			}
+		}
+
+		/**
+		 * @return stream over the current entry, closing it does nothing
+		 */
+		InputStream entry() {
+			return new FilterInputStream(in) {
+				@Override
+				public int read() throws IOException {
+					if(remaining<=0) return -1;
+					int b = in.read();
+					if(b<0) throw new EOFException("tar entry truncated");
+					remaining--;
+					return b;
+				}
+
+				@Override
+				public int read(byte[] pBuffer, int pOffset, int pLength) throws IOException {
+					if(remaining<=0) return -1;
+					int count = in.read(pBuffer, pOffset, (int)Math.min(pLength, remaining));
+					if(count<0) throw new EOFException("tar entry truncated");
+					remaining -= count;
+					return count;
+				}
+
+				@Override
+				public long skip(long pCount) throws IOException {
+					long skipped = in.skip(Math.min(pCount, remaining));
+					remaining -= skipped;
+					return skipped;
+				}
+
+				@Override
+				public int available() throws IOException {
+					return (int)Math.min(in.available(), remaining);
+				}
+
+				@Override
+				public boolean markSupported() {
+					return false;
+				}
+
+				@Override
+				public void close() {
+				}
+			};
+		}
+
+		private byte[] readEntry() throws IOException {
+			if(remaining>MAX_TAR_METADATA) throw new IOException("tar metadata entry too large: "+remaining+" bytes");
+			byte[] data = new byte[(int)remaining];
+			if(readFully(in, data)<data.length) throw new EOFException("tar entry truncated");
+			remaining = 0;
+			return data;
+		}
+
+		private void skip(long pCount) throws IOException {
+			long left = pCount;
+			while(left>0) {
+				long skipped = in.skip(left);
+				if(skipped<=0) {
+					if(in.read()<0) throw new EOFException("tar archive truncated");
+					skipped = 1;
+				}
+				left -= skipped;
+			}
+		}
+
+		private static boolean isZero(byte[] pBlock) {
+			for(byte b:pBlock) {
+				if(b!=0) return false;
+			}
+			return true;
+		}
+
+		private static String trimNul(String pValue) {
+			int end = pValue.indexOf(0);
+			return end<0 ? pValue : pValue.substring(0, end);
+		}
+
+		private static String string(byte[] pBlock, int pOffset, int pLength) {
+			return trimNul(new String(pBlock, pOffset, pLength, StandardCharsets.UTF_8));
+		}
+
+		private static long number(byte[] pBlock, int pOffset, int pLength) throws IOException {
+			//large sizes are stored as base-256 with the top bit set
+			if((pBlock[pOffset]&0x80)!=0) {
+				long value = pBlock[pOffset]&0x7F;
+				for(int i=1;i<pLength;i++) {
+					value = (value<<8)|(pBlock[pOffset+i]&0xFF);
+				}
+				return value;
+			}
+			String octal = string(pBlock, pOffset, pLength).trim();
+			if(octal.isEmpty()) return 0;
+			try {
+				return Long.parseLong(octal, 8);
+			} catch(NumberFormatException e) {
+				throw new IOException("bad number in tar header: "+octal);
+			}
+		}
+
+		/**
+		 * @return the path from a set of pax records ("length key=value\n", length in bytes), or null
+		 */
+		private static String paxPath(byte[] pRecords) {
+			int pos = 0;
+			while(pos<pRecords.length) {
+				int space = pos;
+				while(space<pRecords.length&&pRecords[space]!=' ') space++;
+				int length;
+				try {
+					length = Integer.parseInt(new String(pRecords, pos, space-pos, StandardCharsets.US_ASCII));
+				} catch(NumberFormatException e) {
+					break;
+				}
+				if(length<=0||pos+length>pRecords.length||space+1>pos+length-1) break;
+				String record = new String(pRecords, space+1, pos+length-space-2, StandardCharsets.UTF_8);
+				if(record.startsWith("path=")) {
+					return record.substring(5);
+				}
+				pos += length;
+			}
+			return null;
+		}
+	}
+
+}
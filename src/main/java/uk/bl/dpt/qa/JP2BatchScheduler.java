@@ -0,0 +1,720 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Schedules a batch of JP2 files for checking.
+ *
+ * Files are queued per storage device (mount point) and each device queue is read largest
+ * file first, so a few very large files are started early rather than holding up the end of a
+ * run.  The number of files being read from one device at a time is capped so that a single
+ * spindle or NFS mount is not thrashed.
+ *
+ * Running jpylyzer or reading the headers (blocking I/O and waiting on the subprocess) happens on
+ * one pool, the CPU-bound XML parsing and Schematron checks happen on a separate, fixed size, pool.
+ *
+ * Alternatively each file can be read and checked on its own virtual thread.  Then there are no
+ * device lanes or pools to size: a thread waiting on jpylyzer or on the disk costs a few KB, and
+ * the number of jpylyzer processes alive at once is capped by a semaphore instead.  Header reads
+ * are capped per device by a semaphore too, so a large batch does not open every file at once.
+ *
+ * In either mode the number of files being read at once can be left to a
+ * JP2ConcurrencyController, which tunes it to the node rather than to fixed settings.
+ *
+ * A run can be cancelled part way: files not yet started are dropped, jpylyzer processes are
+ * killed (their output is only renamed into place when complete, so no partial sidecars are
+ * left) and only files that finished are reported, so a later run can pick up the rest.
+ * @author wpalmer
+ */
+public class JP2BatchScheduler {
+
+	private static final Comparator<Job> LARGEST_FIRST = new Comparator<Job>() {
+		public int compare(Job pA, Job pB) {
+			return Long.compare(pB.size, pA.size);
+		}
+	};
+
+	private final JP2Profile profile;
+	private int readsPerDevice = 2;
+	private int cpuThreads = Runtime.getRuntime().availableProcessors();
+	private boolean headersOnly = false;
+	private boolean virtualThreads = false;
+	//0: only limited by the device lanes, or the number of processors with virtual threads
+	private int maxProcesses = 0;
+
+	private ExecutorService ioPool = null;
+	private ExecutorService cpuPool = null;
+	private ExecutorService taskPool = null;
+	private Semaphore processes = null;
+	private JP2ConcurrencyController controller = null;
+	private final AtomicInteger liveProcesses = new AtomicInteger(0);
+	private final AtomicInteger peakProcesses = new AtomicInteger(0);
+	private final AtomicInteger liveReads = new AtomicInteger(0);
+	private final AtomicInteger peakReads = new AtomicInteger(0);
+
+	private final ConcurrentHashMap<String, DeviceLane> lanes = new ConcurrentHashMap<String, DeviceLane>();
+	//device -> header reads allowed, with virtual threads where there are no lanes
+	private final ConcurrentHashMap<String, Semaphore> deviceReads = new ConcurrentHashMap<String, Semaphore>();
+	//directory -> device, so we only look up the file store once per directory
+	private final ConcurrentHashMap<String, String> devices = new ConcurrentHashMap<String, String>();
+	private final List<JP2ResultListener> listeners = new CopyOnWriteArrayList<JP2ResultListener>();
+
+	//number of files submitted but not yet completed
+	private int pending = 0;
+	private volatile boolean cancelled = false;
+	private final AtomicLong cancelledFiles = new AtomicLong(0);
+	private final Object pendingLock = new Object();
+
+	/**
+	 * A file waiting to be read
+	 */
+	private static final class Job {
+		final String file;
+		final long size;
+		//set once the file has been reported or dropped, so it is only counted off once
+		final AtomicBoolean done = new AtomicBoolean(false);
+		Job(String pFile, long pSize) {
+			file = pFile;
+			size = pSize;
+		}
+	}
+
+	/**
+	 * The queue of files for one device, and the number of readers currently working on it
+	 */
+	private static final class DeviceLane {
+		final PriorityBlockingQueue<Job> queue = new PriorityBlockingQueue<Job>(16, LARGEST_FIRST);
+		final AtomicInteger readers = new AtomicInteger(0);
+	}
+
+	/**
+	 * Name the pool threads so they can be told apart in a thread dump
+	 */
+	static final class NamedThreadFactory implements ThreadFactory {
+		private final String name;
+		private final AtomicInteger count = new AtomicInteger(0);
+		NamedThreadFactory(String pName) {
+			name = pName;
+		}
+		public Thread newThread(Runnable pRunnable) {
+			Thread thread = new Thread(pRunnable, name+"-"+count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	/**
+	 * Create a scheduler that checks files against the given profile
+	 * @param pProfile profile to check against
+	 */
+	public JP2BatchScheduler(JP2Profile pProfile) {
+		profile = pProfile;
+	}
+
+	/**
+	 * Sets the maximum number of files read at once from a single device
+	 * @param pReads maximum concurrent reads per device
+	 */
+	public void setReadsPerDevice(int pReads) {
+		if(pReads>0) readsPerDevice = pReads;
+	}
+
+	/**
+	 * Sets the number of threads used for parsing and checking jpylyzer output
+	 * @param pThreads number of threads
+	 */
+	public void setCpuThreads(int pThreads) {
+		if(pThreads>0) cpuThreads = pThreads;
+	}
+
+	/**
+	 * Check files by reading their headers rather than by running jpylyzer
+	 * @param pHeadersOnly true to only read the headers
+	 */
+	public void setHeadersOnly(boolean pHeadersOnly) {
+		headersOnly = pHeadersOnly;
+	}
+
+	/**
+	 * Read and check each file on its own virtual thread rather than on the io and cpu pools
+	 * @param pVirtualThreads true to use virtual threads
+	 */
+	public void setVirtualThreads(boolean pVirtualThreads) {
+		virtualThreads = pVirtualThreads;
+	}
+
+	/**
+	 * Sets the maximum number of jpylyzer processes running at once, set before the first submit
+	 * @param pProcesses maximum live processes
+	 */
+	public void setMaxProcesses(int pProcesses) {
+		if(pProcesses>0) maxProcesses = pProcesses;
+	}
+
+	/**
+	 * Let a JP2ConcurrencyController set how many files are read at once, from the latency and
+	 * throughput seen and the load on the node.  readsPerDevice still caps each device.
+	 * @param pAdaptive true to adjust the number of files read at once
+	 */
+	public synchronized void setAdaptive(boolean pAdaptive) {
+		if(pAdaptive&&controller==null) {
+			controller = new JP2ConcurrencyController();
+		} else if(!pAdaptive&&controller!=null) {
+			controller.stop();
+			controller = null;
+		}
+	}
+
+	/**
+	 * @return the controller setting the number of files read at once, or null if it is fixed
+	 */
+	public synchronized JP2ConcurrencyController getController() {
+		return controller;
+	}
+
+	/**
+	 * @return the most jpylyzer processes that have been running at once
+	 */
+	public int getPeakProcesses() {
+		return peakProcesses.get();
+	}
+
+	/**
+	 * @return the most files that have been open at once to read their headers
+	 */
+	public int getPeakReads() {
+		return peakReads.get();
+	}
+
+	/**
+	 * Adds a listener that is told about each result as it completes
+	 * @param pListener listener to add
+	 */
+	public void addListener(JP2ResultListener pListener) {
+		listeners.add(pListener);
+	}
+
+	/**
+	 * Check a collection of files and wait for them all to complete
+	 * @param pFiles files to check
+	 * @return results, in the order they completed
+	 */
+	public List<JP2CheckResult> check(Collection<String> pFiles) {
+		final List<JP2CheckResult> results = Collections.synchronizedList(new ArrayList<JP2CheckResult>(pFiles.size()));
+		JP2ResultListener collector = new JP2ResultListener() {
+			public void resultReady(JP2CheckResult pResult) {
+				results.add(pResult);
+			}
+		};
+		listeners.add(collector);
+		try {
+			//sort everything up front so the first reads on each device are the largest files
+			List<Job> jobs = new ArrayList<Job>(pFiles.size());
+			for(String file:pFiles) {
+				jobs.add(new Job(file, new File(file).length()));
+			}
+			Collections.sort(jobs, LARGEST_FIRST);
+			for(Job job:jobs) {
+				submit(job);
+			}
+			awaitCompletion();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			listeners.remove(collector);
+		}
+		return results;
+	}
+
+	/**
+	 * Queue a file for checking, results are passed to the listeners
+	 * @param pFile file to check
+	 */
+	public void submit(String pFile) {
+		submit(new Job(pFile, new File(pFile).length()));
+	}
+
+	private void submit(final Job pJob) {
+		if(cancelled) {
+			cancelledFiles.incrementAndGet();
+			return;
+		}
+		synchronized(pendingLock) {
+			pending++;
+		}
+		if(virtualThreads) {
+			try {
+				taskPool().execute(new Runnable() {
+					public void run() {
+						complete(pJob, checkControlled(pJob));
+					}
+				});
+			} catch(RejectedExecutionException e) {
+				drop(pJob);
+			}
+			return;
+		}
+		String device = deviceOf(pJob.file);
+		DeviceLane lane = lanes.get(device);
+		if(lane==null) {
+			DeviceLane newLane = new DeviceLane();
+			lane = lanes.putIfAbsent(device, newLane);
+			if(lane==null) lane = newLane;
+		}
+		lane.queue.add(pJob);
+		startReaders(lane);
+	}
+
+	/**
+	 * Wait until all submitted files have been checked
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void awaitCompletion() throws InterruptedException {
+		synchronized(pendingLock) {
+			while(pending>0) {
+				pendingLock.wait();
+			}
+		}
+	}
+
+	/**
+	 * Cancel the run.  Files that have not been started are dropped, running jpylyzer processes
+	 * are killed and their partial output deleted, and threads reading or checking files are
+	 * interrupted.  Files that finish anyway are still reported, errors caused by the cancel are
+	 * not.  Later submits are ignored.
+	 * @param pTimeoutMillis how long to wait for files in progress to stop
+	 * @return true if every file stopped within the timeout
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean cancel(long pTimeoutMillis) throws InterruptedException {
+		cancelled = true;
+		int dropped = 0;
+		for(DeviceLane lane:lanes.values()) {
+			while(lane.queue.poll()!=null) dropped++;
+		}
+		synchronized(this) {
+			//queued tasks on these pools are files that will now never complete
+			if(ioPool!=null) ioPool.shutdownNow();
+			if(cpuPool!=null) dropped += cpuPool.shutdownNow().size();
+			if(taskPool!=null) dropped += taskPool.shutdownNow().size();
+			if(controller!=null) controller.stop();
+		}
+		drop(dropped);
+		JP2Check.killJpylyzers();
+		long end = System.currentTimeMillis()+pTimeoutMillis;
+		synchronized(pendingLock) {
+			while(pending>0) {
+				long wait = end-System.currentTimeMillis();
+				if(wait<=0) return false;
+				pendingLock.wait(wait);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the run has been cancelled
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @return number of files submitted that were not checked because the run was cancelled
+	 */
+	public long getCancelled() {
+		return cancelledFiles.get();
+	}
+
+	/**
+	 * Stop the thread pools, call after the last file has completed
+	 */
+	public synchronized void shutdown() {
+		if(ioPool!=null) ioPool.shutdown();
+		if(cpuPool!=null) cpuPool.shutdown();
+		if(taskPool!=null) taskPool.shutdown();
+		if(controller!=null) controller.stop();
+		ioPool = null;
+		cpuPool = null;
+		taskPool = null;
+	}
+
+	private synchronized ExecutorService ioPool() {
+		if(cancelled) throw new RejectedExecutionException("cancelled");
+		//readers are limited per device by the lanes, so this pool does not need a bound
+		if(ioPool==null) ioPool = Executors.newCachedThreadPool(new NamedThreadFactory("jp2check-io"));
+		return ioPool;
+	}
+
+	private synchronized ExecutorService cpuPool() {
+		if(cancelled) throw new RejectedExecutionException("cancelled");
+		if(cpuPool==null) cpuPool = Executors.newFixedThreadPool(cpuThreads, new NamedThreadFactory("jp2check-cpu"));
+		return cpuPool;
+	}
+
+	private synchronized ExecutorService taskPool() {
+		if(cancelled) throw new RejectedExecutionException("cancelled");
+		if(taskPool==null) taskPool = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("jp2check-task-", 1).factory());
+		return taskPool;
+	}
+
+	private synchronized Semaphore processes() {
+		if(processes==null) {
+			int permits = maxProcesses;
+			if(permits==0) permits = virtualThreads ? Runtime.getRuntime().availableProcessors() : Integer.MAX_VALUE;
+			processes = new Semaphore(permits);
+		}
+		return processes;
+	}
+
+	/**
+	 * Start another reader on a lane if there is work waiting and the device is not at its limit
+	 */
+	private void startReaders(final DeviceLane pLane) {
+		while(!pLane.queue.isEmpty()) {
+			int readers = pLane.readers.get();
+			if(readers>=readsPerDevice) return;
+			if(pLane.readers.compareAndSet(readers, readers+1)) {
+				try {
+					ioPool().execute(new Runnable() {
+						public void run() {
+							try {
+								Job job;
+								while((job=pLane.queue.poll())!=null) {
+									//anything the reader did not handle still completes the file, so awaitCompletion() cannot hang
+									try {
+										readControlled(job);
+									} catch(RuntimeException e) {
+										e.printStackTrace();
+										complete(job, new JP2CheckResult(job.file).error(e.toString()));
+									} catch(Error e) {
+										e.printStackTrace();
+										complete(job, new JP2CheckResult(job.file).error(e.toString()));
+									}
+								}
+							} finally {
+								pLane.readers.decrementAndGet();
+							}
+							//something may have been queued between the last poll and the decrement
+							startReaders(pLane);
+						}
+					});
+				} catch(RejectedExecutionException e) {
+					//cancelled, anything still queued will not be read
+					pLane.readers.decrementAndGet();
+					int dropped = 0;
+					while(pLane.queue.poll()!=null) dropped++;
+					drop(dropped);
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wait for the controller, if there is one, then read and check a file on the calling thread
+	 */
+	private JP2CheckResult checkControlled(Job pJob) {
+		JP2ConcurrencyController limit = startController();
+		if(limit==null) return checkNow(pJob);
+		try {
+			limit.acquire();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return new JP2CheckResult(pJob.file).error("interrupted");
+		}
+		long start = System.nanoTime();
+		try {
+			return checkNow(pJob);
+		} finally {
+			limit.release(System.nanoTime()-start);
+		}
+	}
+
+	/**
+	 * Wait for the controller, if there is one, then read a file, only the read is timed as the
+	 * checks are on the cpu pool
+	 */
+	private void readControlled(Job pJob) {
+		JP2ConcurrencyController limit = startController();
+		if(limit==null) {
+			read(pJob);
+			return;
+		}
+		try {
+			limit.acquire();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			complete(pJob, new JP2CheckResult(pJob.file).error("interrupted"));
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			read(pJob);
+		} finally {
+			limit.release(System.nanoTime()-start);
+		}
+	}
+
+	private synchronized JP2ConcurrencyController startController() {
+		if(controller!=null) controller.start();
+		return controller;
+	}
+
+	/**
+	 * Read and check a file on the calling thread
+	 */
+	private JP2CheckResult checkNow(Job pJob) {
+		try {
+			if(headersOnly) {
+				return JP2Check.checkJP2Header(pJob.file, readHeader(pJob), profile);
+			}
+			runJpylyzer(pJob);
+			return JP2Check.checkJpylyzerXML(pJob.file, profile);
+		} catch(JpylyzerTimeoutException e) {
+			return new JP2CheckResult(pJob.file).timedOut(e.getMessage());
+		} catch(IOException e) {
+			return new JP2CheckResult(pJob.file).error(e.toString());
+		} catch(RuntimeException e) {
+			return new JP2CheckResult(pJob.file).error(e.toString());
+		}
+	}
+
+	/**
+	 * Read a file's header, waiting for a read slot on its device first if there are no lanes
+	 */
+	private JP2Header readHeader(Job pJob) throws IOException {
+		Semaphore slots = null;
+		if(virtualThreads) {
+			String device = deviceOf(pJob.file);
+			slots = deviceReads.get(device);
+			if(slots==null) {
+				Semaphore newSlots = new Semaphore(readsPerDevice);
+				slots = deviceReads.putIfAbsent(device, newSlots);
+				if(slots==null) slots = newSlots;
+			}
+			try {
+				slots.acquire();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted waiting to read "+pJob.file);
+			}
+		}
+		try {
+			int live = liveReads.incrementAndGet();
+			peakReads.accumulateAndGet(live, Math::max);
+			JP2FileSource source = new JP2FileSource(pJob.file);
+			try {
+				return JP2Check.readHeader(new JP2RangeInputStream(source));
+			} finally {
+				try {
+					source.close();
+				} catch(IOException e) {
+				}
+			}
+		} finally {
+			liveReads.decrementAndGet();
+			if(slots!=null) slots.release();
+		}
+	}
+
+	/**
+	 * Run jpylyzer, waiting for a process slot first
+	 */
+	private void runJpylyzer(Job pJob) throws IOException {
+		Semaphore slots = processes();
+		try {
+			slots.acquire();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted waiting to run jpylyzer on "+pJob.file);
+		}
+		try {
+			int live = liveProcesses.incrementAndGet();
+			peakProcesses.accumulateAndGet(live, Math::max);
+			JP2Check.runJpylyzer(pJob.file);
+		} finally {
+			liveProcesses.decrementAndGet();
+			slots.release();
+		}
+	}
+
+	/**
+	 * Run jpylyzer on a file, then hand it over to the cpu pool for checking
+	 */
+	private void read(final Job pJob) {
+		if(headersOnly) {
+			final JP2Header header;
+			try {
+				header = readHeader(pJob);
+			} catch(IOException e) {
+				complete(pJob, new JP2CheckResult(pJob.file).error(e.toString()));
+				return;
+			} catch(RuntimeException e) {
+				complete(pJob, new JP2CheckResult(pJob.file).error(e.toString()));
+				return;
+			}
+			try {
+				cpuPool().execute(new Runnable() {
+					public void run() {
+						JP2CheckResult result;
+						try {
+							result = JP2Check.checkJP2Header(pJob.file, header, profile);
+						} catch(RuntimeException e) {
+							result = new JP2CheckResult(pJob.file).error(e.toString());
+						}
+						complete(pJob, result);
+					}
+				});
+			} catch(RejectedExecutionException e) {
+				drop(pJob);
+			}
+			return;
+		}
+		try {
+			runJpylyzer(pJob);
+		} catch(JpylyzerTimeoutException e) {
+			complete(pJob, new JP2CheckResult(pJob.file).timedOut(e.getMessage()));
+			return;
+		} catch(IOException e) {
+			complete(pJob, new JP2CheckResult(pJob.file).error(e.toString()));
+			return;
+		} catch(RuntimeException e) {
+			complete(pJob, new JP2CheckResult(pJob.file).error(e.toString()));
+			return;
+		}
+		try {
+			cpuPool().execute(new Runnable() {
+				public void run() {
+					JP2CheckResult result;
+					try {
+						result = JP2Check.checkJpylyzerXML(pJob.file, profile);
+					} catch(RuntimeException e) {
+						result = new JP2CheckResult(pJob.file).error(e.toString());
+					}
+					complete(pJob, result);
+				}
+			});
+		} catch(RejectedExecutionException e) {
+			drop(pJob);
+		}
+	}
+
+	/**
+	 * Report a file's result, unless it has already been reported or dropped
+	 */
+	private void complete(Job pJob, JP2CheckResult pResult) {
+		if(pJob.done.compareAndSet(false, true)) complete(pResult);
+	}
+
+	private void drop(Job pJob) {
+		if(pJob.done.compareAndSet(false, true)) drop(1);
+	}
+
+	private void complete(JP2CheckResult pResult) {
+		try {
+			if(cancelled&&pResult.status!=JP2CheckResult.Status.PASSED&&pResult.status!=JP2CheckResult.Status.FAILED) {
+				//most likely the interrupt, the file will be checked again when the run is resumed
+				cancelledFiles.incrementAndGet();
+				return;
+			}
+			for(JP2ResultListener listener:listeners) {
+				listener.resultReady(pResult);
+			}
+		} finally {
+			synchronized(pendingLock) {
+				pending--;
+				if(pending==0) pendingLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Pass a result that is not for a submitted file (e.g. a folder that could not be read) to
+	 * the listeners
+	 * @param pResult result to report
+	 */
+	void report(JP2CheckResult pResult) {
+		for(JP2ResultListener listener:listeners) {
+			listener.resultReady(pResult);
+		}
+	}
+
+	/**
+	 * Forget files that will never complete because the run was cancelled
+	 */
+	private void drop(int pFiles) {
+		if(pFiles==0) return;
+		cancelledFiles.addAndGet(pFiles);
+		synchronized(pendingLock) {
+			pending -= pFiles;
+			if(pending<=0) pendingLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Works out which storage device (mount point) a file is on
+	 * @param pFile file to look up
+	 * @return a name for the device
+	 */
+	String deviceOf(String pFile) {
+		Path dir;
+		try {
+			dir = Paths.get(pFile).toAbsolutePath().getParent();
+		} catch(InvalidPathException e) {
+			//the read will fail and report it
+			return "";
+		}
+		if(dir==null) return "";
+		String device = devices.get(dir.toString());
+		if(device==null) {
+			try {
+				device = Files.getFileStore(dir).toString();
+			} catch(IOException e) {
+				//fall back to the filesystem root
+				device = String.valueOf(dir.getRoot());
+			}
+			devices.put(dir.toString(), device);
+		}
+		return device;
+	}
+
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Somewhere that ranges of bytes of a file can be read from, e.g. a local file or a URL.
+ * Read through a JP2RangeInputStream so that small reads are coalesced into larger ranges.
+ * @author wpalmer
+ */
+public interface JP2ByteSource extends Closeable {
+
+	/**
+	 * @return name to report results against
+	 */
+	String getName();
+
+	/**
+	 * @return length of the file, or -1 if not yet known
+	 * @throws IOException on error
+	 */
+	long length() throws IOException;
+
+	/**
+	 * Read a range of bytes, this may return fewer bytes than asked for
+	 * @param pPosition offset in the file to read from
+	 * @param pBuffer buffer to read in to
+	 * @param pOffset offset in the buffer
+	 * @param pLength most bytes to read
+	 * @return number of bytes read, or -1 if pPosition is at or past the end of the file
+	 * @throws IOException on error
+	 */
+	int read(long pPosition, byte[] pBuffer, int pOffset, int pLength) throws IOException;
+
+}
@@ -17,28 +17,32 @@
 
 package uk.bl.dpt.qa;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.InvalidPropertiesFormatException;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.xml.sax.SAXException;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This class implements a manual check of Jpylyzer outputs
@@ -53,6 +57,24 @@ public class JP2Check {
 	//private static final String gJpylyzer = "/home/will/local/bin/jpylyzer";
 	private static String gJpylyzer = "c:/bin/jpylyzer/jpylyzer.exe";
 	private static final String JPYLYZER_EXT = ".jpylyzer.xml";
+	//how long to wait for a single jpylyzer run, in milliseconds (0 waits forever)
+	private static long gJpylyzerTimeout = 10*60*1000;
+	//how many times to rerun jpylyzer after it has timed out
+	private static int gJpylyzerRetries = 1;
+	//how long to wait for the output streams to be closed once jpylyzer has exited
+	private static final long PUMP_JOIN_TIMEOUT = 10*1000;
+	//jpylyzer is written here first and renamed once it has finished, so a sidecar is never partial
+	private static final String PARTIAL_EXT = ".part";
+	//jpylyzer processes that are running, and the partial output each is writing
+	private static final Map<Process, File> gRunning = new ConcurrentHashMap<Process, File>();
+	//how long a cancelled run waits for files in progress to stop, in milliseconds
+	private static final long CANCEL_TIMEOUT = 10*1000;
+	//whether to run the Schematron checks, the XSLT stack is not loaded if not
+	private static boolean gSchematron = true;
+	//whether to decode the first layer of the lowest resolution of each file
+	private static boolean gDecode = false;
+	//whether to check the size of each quality layer against the compression rates
+	private static boolean gLayerBudget = false;
 
 	/**
 	 * Sets the location of the Jpylyzer binary
@@ -64,6 +86,92 @@ public class JP2Check {
 		}
 	}
 	
+	/**
+	 * Sets how long a single jpylyzer run may take before it is killed
+	 * @param pMillis timeout in milliseconds, 0 to wait forever
+	 */
+	public static void setJpylyzerTimeout(long pMillis) {
+		if(pMillis>=0) {
+			gJpylyzerTimeout = pMillis;
+		}
+	}
+
+	/**
+	 * Sets how many times jpylyzer is rerun on a file after timing out
+	 * @param pRetries number of retries
+	 */
+	public static void setJpylyzerRetries(int pRetries) {
+		if(pRetries>=0) {
+			gJpylyzerRetries = pRetries;
+		}
+	}
+	
+	/**
+	 * Sets whether the Schematron checks are run, if not schematronValid is left as null
+	 * @param pSchematron true to run the Schematron checks
+	 */
+	public static void setSchematron(boolean pSchematron) {
+		gSchematron = pSchematron;
+	}
+
+	/**
+	 * @return true if the Schematron checks are run
+	 */
+	static boolean isSchematron() {
+		return gSchematron;
+	}
+
+	/**
+	 * Sets whether the first layer of the lowest resolution is decoded, if not decodeValid is left as null
+	 * @param pDecode true to run the decode check
+	 */
+	public static void setDecodeCheck(boolean pDecode) {
+		gDecode = pDecode;
+	}
+
+	/**
+	 * Sets whether the bytes in each quality layer are checked against the profile's compression
+	 * rates.  Every packet is read, taking the lengths from PLT markers unless the decode check is
+	 * also on.  Layers out of budget are reported as profile mismatches.
+	 * @param pLayerBudget true to run the layer size check
+	 */
+	public static void setLayerBudgetCheck(boolean pLayerBudget) {
+		gLayerBudget = pLayerBudget;
+	}
+
+	/**
+	 * Read the header of a JP2 file, and read the packets if the decode or layer size checks are on
+	 * @param pIn stream positioned at the start of the file, not closed
+	 * @return the header
+	 * @throws IOException on a read error
+	 */
+	static JP2Header readHeader(InputStream pIn) throws IOException {
+		JP2Header header = JP2Header.read(pIn);
+		if(gLayerBudget) {
+			header.decoded = JP2PacketDecoder.measureLayers(header, pIn, !gDecode);
+		} else if(gDecode) {
+			header.decoded = JP2PacketDecoder.decode(header, pIn);
+		}
+		return header;
+	}
+
+	private static void checkPackets(JP2CheckResult pResult, JP2Header pHeader, JP2Profile pJp2Profile) {
+		JP2PacketDecoder decoded = pHeader.decoded;
+		//left as null if the codestream uses something the decoder does not support
+		if(decoded==null||!decoded.isChecked()) return;
+		//packets that do not decode are reported whichever check read them
+		if(gDecode||!decoded.isValid()) {
+			pResult.decodeValid = decoded.isValid();
+		}
+		if(!decoded.isValid()) {
+			pResult.message = (pResult.message==null ? "" : pResult.message+" ")+decoded.errors;
+		}
+		if(decoded.layerBytes!=null&&pResult.mismatches!=null) {
+			pResult.mismatches.putAll(JP2LayerBudget.compare(pHeader, decoded.layerBytes, pJp2Profile));
+			pResult.profileMatch = pResult.mismatches.isEmpty();
+		}
+	}
+
 	/**
 	 * Class containing the keys for the jpylyzer XML
 	 */
@@ -90,6 +198,9 @@ public class JP2Check {
 		 public final static String TILEDIM = "tileDim";
 		 public final static String CODEBLOCKSIZE = "codeBlockSize";
 		 public final static String COMPRESSIONRATES = "compressionRates";
+		 //these are informational only, they are not checked against the profile
+		 public final static String TOOL = "toolInfo";
+		 public final static String ENCODER = "comment";
 
 		 private Keys() {}
 	 }
@@ -103,10 +214,24 @@ public class JP2Check {
 	 */
 	public static JP2Profile loadProfile(String pProfileFile) throws InvalidPropertiesFormatException, IOException {
 		
-		JP2Profile jp2Profile = new JP2Profile();
 		Properties profile = new Properties();
-		profile.loadFromXML(new FileInputStream(pProfileFile));
-		
+		InputStream in = new FileInputStream(pProfileFile);
+		try {
+			profile.loadFromXML(in);
+		} finally {
+			in.close();
+		}
+		return profileFromProperties(profile);
+	}
+
+	/**
+	 * Read a j2k profile from properties, as loaded by loadProfile
+	 * @param profile properties to read
+	 * @return JP2Profile read profile
+	 */
+	static JP2Profile profileFromProperties(Properties profile) {
+
+		JP2Profile jp2Profile = new JP2Profile();
 		jp2Profile.progressionOrder = profile.getProperty(Keys.ORDER);
 		if(profile.getProperty(Keys.SOP).equals("yes")) {
 			jp2Profile.SOP=true; 
@@ -154,81 +279,73 @@ public class JP2Check {
 	
 		return jp2Profile;
 	}
+
+	/**
+	 * Convert a j2k profile to the properties that loadProfile reads
+	 * @param pJp2Profile profile to convert
+	 * @return properties for the profile
+	 */
+	static Properties profileToProperties(JP2Profile pJp2Profile) {
+		Properties profile = new Properties();
+		profile.setProperty(Keys.TILED, pJp2Profile.tiled ? "yes" : "no");
+		if(pJp2Profile.tiled) {
+			profile.setProperty(Keys.TILEDIM, Integer.toString(pJp2Profile.tileDim));
+		}
+		profile.setProperty(Keys.ORDER, pJp2Profile.progressionOrder);
+		profile.setProperty(Keys.CODEBLOCKSIZE, Integer.toString(pJp2Profile.codeblockSize));
+		profile.setProperty(Keys.EPH, pJp2Profile.EPH ? "yes" : "no");
+		StringBuilder precincts = new StringBuilder();
+		for(int precinct:pJp2Profile.precincts) {
+			if(precincts.length()>0) precincts.append(",");
+			precincts.append(precinct);
+		}
+		profile.setProperty(Keys.PRECINCTS, precincts.length()>0 ? precincts.toString() : "no");
+		profile.setProperty(Keys.SOP, pJp2Profile.SOP ? "yes" : "no");
+		profile.setProperty(Keys.TRANSFORMATION, pJp2Profile.irreversible ? "irreversible" : "reversible");
+		profile.setProperty(Keys.CODINGBYPASS, pJp2Profile.coderBypass ? "yes" : "no");
+		profile.setProperty(Keys.LEVELS, Integer.toString(pJp2Profile.levels));
+		StringBuilder rates = new StringBuilder();
+		for(double rate:pJp2Profile.compressionRates) {
+			if(rates.length()>0) rates.append(",");
+			rates.append(rate);
+		}
+		profile.setProperty(Keys.COMPRESSIONRATES, rates.toString());
+		return profile;
+	}
+
+	/**
+	 * Save a j2k profile as an XML properties file that loadProfile can read
+	 * @param pJp2Profile profile to save
+	 * @param pProfileFile file to write
+	 * @param pComment comment to write in the file
+	 * @throws IOException on error
+	 */
+	public static void saveProfile(JP2Profile pJp2Profile, String pProfileFile, String pComment) throws IOException {
+		OutputStream out = new FileOutputStream(pProfileFile);
+		try {
+			profileToProperties(pJp2Profile).storeToXML(out, pComment, "UTF-8");
+		} finally {
+			out.close();
+		}
+	}
 	
 	/**
 	 * Loads jpylyzer XML output from a file
 	 * @return Pairs of relevant key/values as read  
 	 */
-	private static HashMap<String, String> loadJpylyzerXML(String pFileName) {
-		//parse the values returned
-		DocumentBuilder docB = null;
-		Document doc = null;
-		
-		try {
-			docB = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-		} catch(ParserConfigurationException pce) {
-			return new HashMap<String, String>();
-		}
+	static HashMap<String, String> loadJpylyzerXML(String pFileName) {
+		JpylyzerOutputParser parser = new JpylyzerOutputParser(null);
 		try {
-			doc = docB.parse(pFileName);
+			InputStream in = new FileInputStream(pFileName);
+			try {
+				parser.parse(in);
+			} finally {
+				in.close();
+			}
 		} catch(IOException ioe) {
 			ioe.printStackTrace();
-		} catch(SAXException se) {
-			se.printStackTrace();
-		}
-		
-		Node root = doc.getFirstChild();
-		HashMap<String, String> items = new HashMap<String, String>();
-		
-		XPath xpath = XPathFactory.newInstance().newXPath();
-		String pathCCB = "/jpylyzer/properties/contiguousCodestreamBox/";
-		String path = pathCCB+"cod/";
-
-		try {
-
-			items.put(Keys.ISVALID, xpath.evaluate("/jpylyzer/isValidJP2", root));
-			items.put(Keys.ORDER, xpath.evaluate(path+Keys.ORDER, root));
-			items.put(Keys.PRECINCTS, xpath.evaluate(path+Keys.PRECINCTS, root));
-			items.put(Keys.SOP, xpath.evaluate(path+Keys.SOP, root));
-			items.put(Keys.EPH, xpath.evaluate(path+Keys.EPH, root));
-			items.put(Keys.LAYERS, xpath.evaluate(path+Keys.LAYERS, root));
-			items.put(Keys.LEVELS, xpath.evaluate(path+Keys.LEVELS, root));
-			items.put(Keys.CODEBLOCKWIDTH, xpath.evaluate(path+Keys.CODEBLOCKWIDTH, root));
-			items.put(Keys.CODEBLOCKHEIGHT, xpath.evaluate(path+Keys.CODEBLOCKHEIGHT, root));
-			items.put(Keys.CODINGBYPASS, xpath.evaluate(path+Keys.CODINGBYPASS, root));
-			items.put(Keys.TRANSFORMATION, xpath.evaluate(path+Keys.TRANSFORMATION, root));
-
-			if(items.get(Keys.PRECINCTS).toLowerCase().equals("yes")) {
-				int x = 0;
-				int y = 0;
-				int count = new Integer(xpath.evaluate("count("+path+Keys.PRECINCTSIZE+"X)", root));
-				items.put(Keys.PRECINCTSIZE, new Integer(count).toString());
-				for(int i=0;i<count;i++) {
-					//note xpath array references are 1-based, not 0-based
-					x = new Integer(xpath.evaluate(path+Keys.PRECINCTSIZE+"X["+(i+1)+"]", root));
-					y = new Integer(xpath.evaluate(path+Keys.PRECINCTSIZE+"Y["+(i+1)+"]", root));
-					//HACK: this is a slightly funny way of saving this data, but it works
-					if (x==y) items.put(Keys.PRECINCTSIZE+i,new Integer(x).toString()); 
-					else System.out.println("ERROR in precinctSize parsing");
-				}
-			}
-
-			path = pathCCB+"siz/";
-			items.put(Keys.NUMBEROFTILES, xpath.evaluate(path+Keys.NUMBEROFTILES, root));
-			if(new Integer(items.get(Keys.NUMBEROFTILES))>1) {
-				items.put(Keys.TILEXDIM, xpath.evaluate(path+Keys.TILEXDIM, root));
-				items.put(Keys.TILEYDIM, xpath.evaluate(path+Keys.TILEYDIM, root));
-			}
-
-		} catch(XPathExpressionException xpee) {
-			System.out.println("Only loaded the following:");
-			//print all the loaded data
-			for(String s:items.keySet())System.out.println(s+": "+items.get(s));
-			xpee.printStackTrace();
 		}
-
-		return items;
-
+		return parser.getItems();
 	}
 	
 	/**
@@ -254,20 +371,38 @@ public class JP2Check {
 	 */
 	public static boolean checkJpylyzerProfile(String pFileName, JP2Profile pJp2Profile) {
 		
-		HashMap<String, String> items = loadJpylyzerXML(pFileName);
+		HashMap<String, String> mismatchItems = compareJpylyzerProfile(loadJpylyzerXML(pFileName), pJp2Profile);
+		boolean matchesSettings = mismatchItems.isEmpty();
+
+		if(matchesSettings) {
+			//System.out.println("matches settings: true");
+		} else {
+			System.out.println("Settings in jpylyzer xml that don't match loaded j2k profile:");
+			for(String k : mismatchItems.keySet()) System.out.println(k+": "+mismatchItems.get(k));
+		}
+		
+		return matchesSettings;
+	}
+
+	/**
+	 * Compares values loaded from jpylyzer xml against a profile
+	 * @param pItems values as loaded by loadJpylyzerXML (not modified)
+	 * @param pJp2Profile profile to check against
+	 * @return the items that don't match the profile, empty if it matches
+	 */
+	static HashMap<String, String> compareJpylyzerProfile(Map<String, String> pItems, JP2Profile pJp2Profile) {
+
+		HashMap<String, String> items = new HashMap<String, String>(pItems);
 		//somewhere to store what doesn't match
 		HashMap<String, String> mismatchItems = new HashMap<String, String>();
-		//assume we have a match unless we get a false
-		boolean matchesSettings = true;
 		
-		if(items.get(Keys.ISVALID).toLowerCase().equals("true")) {
-		} else {
-		}
+		//these are not part of the profile
 		items.remove(Keys.ISVALID);
+		items.remove(Keys.TOOL);
+		items.remove(Keys.ENCODER);
 
 		//progression order
 		if(!items.get(Keys.ORDER).toLowerCase().equals(pJp2Profile.progressionOrder.toLowerCase())) {
-			matchesSettings = false;
 			mismatchItems.put(Keys.ORDER, items.get(Keys.ORDER));
 		}
 		items.remove(Keys.ORDER);
@@ -279,21 +414,18 @@ public class JP2Check {
 		 * A file encoded with Kakadu will cause Jpylyzer to report n levels, given n on the command line
 		 */
 		if(!new Integer(items.get(Keys.LEVELS)).equals(pJp2Profile.levels)) {
-			matchesSettings = false;
 			mismatchItems.put(Keys.LEVELS, items.get(Keys.LEVELS));
 		}
 		items.remove(Keys.LEVELS);
 
 		//sop
 		if(!(pJp2Profile.SOP==items.get(Keys.SOP).toLowerCase().equals("yes"))) {
-			matchesSettings = false;
 			mismatchItems.put(Keys.SOP, items.get(Keys.SOP));
 		}
 		items.remove(Keys.SOP);
 		
 		//eph
 		if(!(pJp2Profile.EPH==items.get(Keys.EPH).toLowerCase().equals("yes"))) {
-			matchesSettings = false;
 			mismatchItems.put(Keys.EPH, items.get(Keys.EPH));
 		}
 		items.remove(Keys.EPH);
@@ -302,9 +434,10 @@ public class JP2Check {
 		if(items.get(Keys.PRECINCTS).toLowerCase().equals("yes")) {
 			LinkedList<Integer> precinctVals = new LinkedList<Integer>();
 			//add all the precinct values to a new list
-			for(int i=new Integer(items.get(Keys.PRECINCTSIZE));i>0;i--) {
-				precinctVals.add(new Integer(items.get(Keys.PRECINCTSIZE+""+(i-1))));			
-				items.remove(Keys.PRECINCTSIZE+(i-1));		
+			for(int i=Integer.parseInt(items.get(Keys.PRECINCTSIZE));i>0;i--) {
+				//sizes that could not be read are in the result message, and are not matched
+				String size = items.remove(Keys.PRECINCTSIZE+(i-1));
+				if(size!=null) precinctVals.add(Integer.valueOf(size));
 			}
 			//for each of the specified precinct values check if it is in the 
 			//jpylyzer output, if so ok, if not then fail comparison
@@ -313,7 +446,6 @@ public class JP2Check {
 					precinctVals.removeFirstOccurrence(pJp2Profile.precincts[i]);
 				} else {
 					//this precinct value is not in the precincts in the jpylyzer file
-					matchesSettings = false;
 					mismatchItems.put(Keys.PRECINCTSIZE,new Integer(pJp2Profile.precincts[i]).toString());
 				}
 			}
@@ -326,28 +458,24 @@ public class JP2Check {
 		
 		//precincts
 		if(!(items.get(Keys.PRECINCTS).toLowerCase().equals("yes")==(pJp2Profile.precincts.length>0))) {
-			matchesSettings = false;
 			mismatchItems.put(Keys.PRECINCTS, items.get(Keys.PRECINCTS));
 		}
 		items.remove(Keys.PRECINCTS);
 
 		//layers
 		if(!new Integer(items.get(Keys.LAYERS)).equals(pJp2Profile.compressionRates.length)) {
-			matchesSettings = false;
 			mismatchItems.put(Keys.LAYERS, items.get(Keys.LAYERS));
 		}
 		items.remove(Keys.LAYERS);
 				
 		//codeblockwidth
 		if(!new Integer(items.get(Keys.CODEBLOCKWIDTH)).equals(pJp2Profile.codeblockSize)) {
-			matchesSettings = false;
 			mismatchItems.put(Keys.CODEBLOCKWIDTH, items.get(Keys.CODEBLOCKWIDTH));
 		}
 		items.remove(Keys.CODEBLOCKWIDTH);
 		
 		//codeblockheight
 		if(!new Integer(items.get(Keys.CODEBLOCKHEIGHT)).equals(pJp2Profile.codeblockSize)) {
-			matchesSettings = false;
 			mismatchItems.put(Keys.CODEBLOCKHEIGHT, items.get(Keys.CODEBLOCKHEIGHT));
 		}
 		items.remove(Keys.CODEBLOCKHEIGHT);
@@ -355,34 +483,29 @@ public class JP2Check {
 		//number of tiles
 		if(new Integer(items.get(Keys.NUMBEROFTILES))>1) {
 			if(!new Integer(items.get(Keys.TILEXDIM)).equals(pJp2Profile.tileDim)) {
-				matchesSettings = false;
 				mismatchItems.put(Keys.TILEXDIM, items.get(Keys.TILEXDIM));
 			}
 			items.remove(Keys.TILEXDIM);
 
 			if(!new Integer(items.get(Keys.TILEYDIM)).equals(pJp2Profile.tileDim)) {
-				matchesSettings = false;
 				mismatchItems.put(Keys.TILEYDIM, items.get(Keys.TILEYDIM));
 			}
 			items.remove(Keys.TILEYDIM);
 		}
 		
 		if(!(new Integer(items.get(Keys.NUMBEROFTILES))>1==pJp2Profile.tiled)) {
-			matchesSettings = false;
 			mismatchItems.put(Keys.NUMBEROFTILES, items.get(Keys.NUMBEROFTILES));
 		}
 		items.remove(Keys.NUMBEROFTILES);
 
 		//codingbypass
 		if(!(items.get(Keys.CODINGBYPASS).toLowerCase().equals("yes")==pJp2Profile.coderBypass)) {
-			matchesSettings = false;
 			mismatchItems.put(Keys.CODINGBYPASS, items.get(Keys.CODINGBYPASS));
 		}
 		items.remove(Keys.CODINGBYPASS);
 		
 		//transformation
 		if(!(items.get(Keys.TRANSFORMATION).toLowerCase().equals("9-7 irreversible")==pJp2Profile.irreversible)) {
-			matchesSettings = false;
 			mismatchItems.put(Keys.TRANSFORMATION, items.get(Keys.TRANSFORMATION));
 		}
 		items.remove(Keys.TRANSFORMATION);
@@ -395,51 +518,317 @@ public class JP2Check {
 			}
 		}
 
-		if(matchesSettings) {
-			//System.out.println("matches settings: true");
-		} else {
-			System.out.println("Settings in jpylyzer xml that don't match loaded j2k profile:");
-			for(String k : mismatchItems.keySet()) System.out.println(k+": "+mismatchItems.get(k));
-		}
-		
-		return matchesSettings;
+		return mismatchItems;
 	}
 	
+	/**
+	 * Runs all the checks on the jpylyzer output for a file, runJpylyzer must have been called first
+	 * @param pJp2File JP2 file that jpylyzer has been run on
+	 * @param pJp2Profile profile to check against
+	 * @return result of the checks
+	 */
+	public static JP2CheckResult checkJpylyzerXML(String pJp2File, JP2Profile pJp2Profile) {
+		JP2CheckResult result = new JP2CheckResult(pJp2File);
+		String xml = pJp2File+JPYLYZER_EXT;
+		//only parse the jpylyzer output once for the valid, profile and compiled Schematron checks
+		JP2SchematronRules rules = gSchematron ? JpylyzerSchematron.defaultRules() : null;
+		JP2SchematronRules.Checker checker = rules!=null ? rules.newChecker() : null;
+		JpylyzerOutputParser parser = new JpylyzerOutputParser(checker);
+		boolean parsed = false;
+		try {
+			InputStream in = new FileInputStream(xml);
+			try {
+				parsed = parser.parse(in);
+			} finally {
+				in.close();
+			}
+		} catch(IOException ioe) {
+			ioe.printStackTrace();
+		}
+		result.properties = parser.getItems();
+		if(!parser.getErrors().isEmpty()) result.message = parser.getErrors().toString();
+		result.jpylyzerValid = "true".equalsIgnoreCase(result.properties.get(Keys.ISVALID));
+		result.mismatches = compareJpylyzerProfile(result.properties, pJp2Profile);
+		result.profileMatch = result.mismatches.isEmpty();
+		if(checker!=null) {
+			//only the patterns that could not be compiled need another pass
+			result.schematronValid = parsed&&checker.passed()&&(rules.isComplete()||validateResidual(rules, xml));
+		} else if(gSchematron) {
+			result.schematronValid = JpylyzerSchematron.checkJpylyzerOutput(xml);
+		}
+		if(gDecode||gLayerBudget) {
+			try {
+				InputStream in = new BufferedInputStream(new FileInputStream(pJp2File));
+				try {
+					checkPackets(result, readHeader(in), pJp2Profile);
+				} finally {
+					in.close();
+				}
+			} catch(IOException e) {
+				result.decodeValid = false;
+				result.message = e.toString();
+			}
+		}
+		result.updateStatus();
+		return result;
+	}
+
+	private static boolean validateResidual(JP2SchematronRules pRules, String pJpylyzerOutput) {
+		try {
+			InputStream in = new FileInputStream(pJpylyzerOutput);
+			try {
+				return pRules.validateResidual(in);
+			} finally {
+				in.close();
+			}
+		} catch(IOException ioe) {
+			return false;
+		}
+	}
+
+	/**
+	 * Check a header read directly from the file rather than from jpylyzer output.
+	 * jpylyzerValid holds the structural check made by JP2Header and Schematron is run
+	 * against a jpylyzer style document built from the header.
+	 * @param pJp2File name to report the result against
+	 * @param pHeader header read from the file
+	 * @param pJp2Profile profile to check against
+	 * @return result of the checks
+	 */
+	public static JP2CheckResult checkJP2Header(String pJp2File, JP2Header pHeader, JP2Profile pJp2Profile) {
+		JP2CheckResult result = new JP2CheckResult(pJp2File);
+		if(!pHeader.hasCodestreamHeader()) {
+			return result.error("could not read codestream header: "+pHeader.errors);
+		}
+		result.properties = pHeader.toProperties();
+		result.jpylyzerValid = pHeader.isValid();
+		if(!pHeader.isValid()) result.message = pHeader.errors.toString();
+		result.mismatches = compareJpylyzerProfile(result.properties, pJp2Profile);
+		result.profileMatch = result.mismatches.isEmpty();
+		if(gSchematron) {
+			byte[] xml = pHeader.toJpylyzerXML(pJp2File).getBytes(StandardCharsets.UTF_8);
+			result.schematronValid = JpylyzerSchematron.checkJpylyzerOutput(new ByteArrayInputStream(xml));
+		}
+		checkPackets(result, pHeader, pJp2Profile);
+		result.updateStatus();
+		return result;
+	}
+
+	/**
+	 * Check a file from its header alone, reading only the byte ranges needed from the source
+	 * @param pSource source to read from, e.g. a local file or a URL
+	 * @param pJp2Profile profile to check against
+	 * @return result of the checks
+	 */
+	public static JP2CheckResult checkJP2Source(JP2ByteSource pSource, JP2Profile pJp2Profile) {
+		JP2Header header;
+		try {
+			header = readHeader(new JP2RangeInputStream(pSource));
+		} catch(IOException e) {
+			return new JP2CheckResult(pSource.getName()).error(e.toString());
+		}
+		return checkJP2Header(pSource.getName(), header, pJp2Profile);
+	}
+
 	/**
 	 * Executes Jpylyzer, stores output in jp2File+".jpylyzer.xml"
-	 * @param commandLine command line to run
+	 * The output is written to a ".part" file first and only renamed once jpylyzer has finished, so
+	 * a killed run never leaves a partial sidecar under the real name
+	 * If jpylyzer has not finished within the timeout it is killed and retried, up to the retry limit
+	 * @param pJp2File file to run jpylyzer on
 	 * @return exit code from execution of the command line
-	 * @throws IOException
+	 * @throws JpylyzerTimeoutException if every attempt timed out
+	 * @throws InterruptedIOException if interrupted while waiting for jpylyzer (jpylyzer is killed)
+	 * @throws IOException on error
 	 */
-	private static int runJpylyzer(String pJp2File) throws IOException {
+	static int runJpylyzer(String pJp2File) throws IOException {
+		JpylyzerTimeoutException timeout = null;
+		for(int attempt=0;attempt<=gJpylyzerRetries;attempt++) {
+			try {
+				return runJpylyzerOnce(pJp2File);
+			} catch(JpylyzerTimeoutException e) {
+				timeout = e;
+			}
+		}
+		throw timeout;
+	}
+
+	private static int runJpylyzerOnce(String pJp2File) throws IOException {
 		String commandLine = gJpylyzer + " " + pJp2File;
 		ProcessBuilder pb = new ProcessBuilder(commandLine.split(" "));
 		//don't redirect stderr to stdout as our output XML is in stdout
 		pb.redirectErrorStream(false);		
+		File output = new File(pJp2File+JPYLYZER_EXT);
+		File partial = new File(pJp2File+JPYLYZER_EXT+PARTIAL_EXT);
 		//start the executable
 		Process proc = pb.start();
-		//create a log of the console output, this is the XML
-		BufferedReader stdout = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-		BufferedWriter outputFile = new BufferedWriter(new FileWriter(pJp2File+JPYLYZER_EXT));
-
+		gRunning.put(proc, partial);
 		try {
-			String line;
-			while((line=stdout.readLine())!=null) {
-				outputFile.write(line);
+			//create a log of the console output, this is the XML
+			//both streams are read on their own threads: stderr must be drained or jpylyzer can block
+			//on a full pipe, and reading stdout here would stop us timing out a hung process
+			OutputStream outputFile = new BufferedOutputStream(new FileOutputStream(partial));
+			StreamPump stdout = new StreamPump(proc.getInputStream(), outputFile, "jpylyzer-stdout");
+			StreamPump stderr = new StreamPump(proc.getErrorStream(), null, "jpylyzer-stderr");
+
+			try {
+				boolean finished = true;
+				if(gJpylyzerTimeout>0) {
+					finished = proc.waitFor(gJpylyzerTimeout, TimeUnit.MILLISECONDS);
+				} else {
+					proc.waitFor();
+				}
+				if(!finished) {
+					kill(proc);
+					stdout.join(PUMP_JOIN_TIMEOUT);
+					partial.delete();
+					throw new JpylyzerTimeoutException(pJp2File, gJpylyzerTimeout);
+				}
+				//wait for the last of the output to be written
+				stdout.join(PUMP_JOIN_TIMEOUT);
+				stderr.join(PUMP_JOIN_TIMEOUT);
+			} catch(InterruptedException e) {
+				kill(proc);
+				partial.delete();
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while running jpylyzer on "+pJp2File);
 			}
-			outputFile.close();			
-			proc.waitFor();
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+			if(stdout.isAlive()) {
+				//something jpylyzer started still holds the pipe, so the output may be incomplete
+				try {
+					proc.getInputStream().close();
+				} catch(IOException e) {
+				}
+				partial.delete();
+				throw new IOException("jpylyzer output still open "+PUMP_JOIN_TIMEOUT+"ms after it exited on "+pJp2File);
+			}
+			if(stdout.error!=null) {
+				partial.delete();
+				throw stdout.error;
+			}
+			//claim the output, unless killJpylyzers got there first
+			if(gRunning.remove(proc)==null) {
+				partial.delete();
+				throw new InterruptedIOException("jpylyzer was killed while running on "+pJp2File);
+			}
+			try {
+				Files.move(partial.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch(AtomicMoveNotSupportedException e) {
+				Files.move(partial.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			gRunning.remove(proc);
 		}
-		stdout.close();
 
 		return proc.exitValue();
 	}
+
+	/**
+	 * Kill a jpylyzer process and anything it started
+	 */
+	private static void kill(Process pProcess) {
+		pProcess.descendants().forEach(ProcessHandle::destroyForcibly);
+		pProcess.destroyForcibly();
+	}
+
+	/**
+	 * Kill every running jpylyzer process and delete its partial output, e.g. when shutting down
+	 * @return number of processes killed
+	 */
+	static int killJpylyzers() {
+		int killed = 0;
+		for(Process proc:gRunning.keySet()) {
+			//whoever removes the entry owns the output
+			File partial = gRunning.remove(proc);
+			if(partial==null) continue;
+			kill(proc);
+			partial.delete();
+			killed++;
+		}
+		return killed;
+	}
+
+	/**
+	 * Copies (or, without an output, discards) a process stream on its own thread
+	 */
+	private static final class StreamPump extends Thread {
+		private final InputStream in;
+		private final OutputStream out;
+		volatile IOException error = null;
+
+		StreamPump(InputStream pIn, OutputStream pOut, String pName) {
+			super(pName);
+			in = pIn;
+			out = pOut;
+			setDaemon(true);
+			start();
+		}
+
+		@Override
+		public void run() {
+			byte[] buffer = new byte[8192];
+			try {
+				int read;
+				while((read=in.read(buffer))!=-1) {
+					if(out!=null) out.write(buffer, 0, read);
+				}
+			} catch(IOException e) {
+				error = e;
+			} finally {
+				try {
+					in.close();
+				} catch(IOException e) {
+					if(error==null) error = e;
+				}
+				if(out!=null) {
+					try {
+						out.close();
+					} catch(IOException e) {
+						if(error==null) error = e;
+					}
+				}
+			}
+		}
+	}
 	
+	private static void writeInferredProfiles(JP2ProfileInference pInference, String pDirectory) {
+		pInference.printReport(System.out);
+		try {
+			for(String file:pInference.writeProfiles(pDirectory)) {
+				System.out.println("Wrote "+file);
+			}
+		} catch(IOException e) {
+			System.out.println("Error writing profiles to "+pDirectory+": "+e);
+		}
+	}
+
 	/**
 	 * Test main method, use jpylyzer and check all files on the command line
-	 * @param args list of JPEG2000 files
+	 * @param args list of JPEG2000 files, ZIP/TAR archives of them and directories to search for them,
+	 * optionally preceded by options:
+	 * -profile file.xml      check against a profile file rather than the built-in profile
+	 * -store file            append the extracted properties to a property store
+	 * -resume                skip files already in the store, e.g. after a cancelled run
+	 * -reprofile file        evaluate the profile against a property store instead of running jpylyzer
+	 * -infer dir             group the files by encoding parameters and write a profile per group to dir
+	 * -headers               check local files from their headers alone rather than with jpylyzer
+	 * -report file.xml       check the results in an existing (possibly multi-file) jpylyzer report
+	 * -noSchematron          skip the Schematron checks
+	 * -decode                also decode the packets of the lowest resolution in the first layer
+	 * -layerBytes            also check the bytes in each quality layer against the compression rates
+	 *                        (-layerTolerance over,under as fractions of each layer's budget, default 0.05,0.25)
+	 * -sample manifest       estimate failure rates from a random sample of the files listed in a manifest
+	 *                        (-strata none|directory|size|date, -precision 0.01, -seed n, -maxSample n)
+	 * -include glob          only check files in directories that match (repeatable, default *.jp2)
+	 * -exclude glob          skip files and directories that match (repeatable)
+	 * -watch dir             keep checking JP2 files as they arrive in a hot folder, until killed
+	 *                        (-settle seconds, -poll seconds to rescan rather than use notifications,
+	 *                        -state file to remember checked files between runs)
+	 * http(s) URLs are always checked from their headers, using range requests
+	 * -readsPerDevice n, -cpuThreads n, -timeout seconds, -retries n
+	 * -virtualThreads        read and check each file on its own virtual thread instead of the pools
+	 * -processes n           most jpylyzer processes to run at once (default with -virtualThreads: one per processor)
+	 * -adaptive              tune the number of files read at once to the latency, throughput and load seen
 	 */
 	public static void main(String[] args) {
 
@@ -447,20 +836,337 @@ public class JP2Check {
 		System.out.println("Warning: jpylyzer xml output will be (over)written to file.jp2.jpylyzer.xml");
 		
 		JP2Profile jp2Profile = new JP2Profile();
+		int readsPerDevice = 0;
+		int cpuThreads = 0;
+		int processes = 0;
+		boolean virtualThreads = false;
+		boolean adaptive = false;
+		String store = null;
+		boolean resume = false;
+		String reprofile = null;
+		String infer = null;
+		LinkedList<String> files = new LinkedList<String>();
+		LinkedList<String> archives = new LinkedList<String>();
+		LinkedList<String> sources = new LinkedList<String>();
+		LinkedList<String> directories = new LinkedList<String>();
+		LinkedList<String> reports = new LinkedList<String>();
+		JP2DirectoryWalker walker = new JP2DirectoryWalker();
+		String sample = null;
+		JP2Sampler.Strata strata = JP2Sampler.Strata.NONE;
+		double precision = 0;
+		long seed = System.currentTimeMillis();
+		int maxSample = 0;
+		boolean headersOnly = false;
+		String watch = null;
+		long pollSeconds = 0;
+		long settleSeconds = 5;
+		String state = null;
 		
-		for(String arg:args) {
-			if(arg.toLowerCase().endsWith(".jp2")) {
+		try {
+			for(int i=0;i<args.length;i++) {
+				if(args[i].equals("-readsPerDevice")&&i+1<args.length) {
+					readsPerDevice = Integer.parseInt(args[++i]);
+				} else if(args[i].equals("-cpuThreads")&&i+1<args.length) {
+					cpuThreads = Integer.parseInt(args[++i]);
+				} else if(args[i].equals("-processes")&&i+1<args.length) {
+					processes = Integer.parseInt(args[++i]);
+				} else if(args[i].equals("-adaptive")) {
+					adaptive = true;
+				} else if(args[i].equals("-virtualThreads")) {
+					virtualThreads = true;
+				} else if(args[i].equals("-timeout")&&i+1<args.length) {
+					setJpylyzerTimeout(Long.parseLong(args[++i])*1000);
+				} else if(args[i].equals("-retries")&&i+1<args.length) {
+					setJpylyzerRetries(Integer.parseInt(args[++i]));
+				} else if(args[i].equals("-profile")&&i+1<args.length) {
+					jp2Profile = loadProfile(args[++i]);
+				} else if(args[i].equals("-store")&&i+1<args.length) {
+					store = args[++i];
+				} else if(args[i].equals("-resume")) {
+					resume = true;
+				} else if(args[i].equals("-reprofile")&&i+1<args.length) {
+					reprofile = args[++i];
+				} else if(args[i].equals("-infer")&&i+1<args.length) {
+					infer = args[++i];
+				} else if(args[i].equals("-decode")) {
+					setDecodeCheck(true);
+				} else if(args[i].equals("-layerBytes")) {
+					setLayerBudgetCheck(true);
+				} else if(args[i].equals("-layerTolerance")&&i+1<args.length) {
+					String[] tolerance = args[++i].split(",");
+					JP2LayerBudget.setTolerance(Double.parseDouble(tolerance[0]), Double.parseDouble(tolerance[tolerance.length-1]));
+				} else if(args[i].equals("-noSchematron")) {
+					setSchematron(false);
+				} else if(args[i].equals("-report")&&i+1<args.length) {
+					reports.add(args[++i]);
+				} else if(args[i].equals("-headers")) {
+					headersOnly = true;
+				} else if(args[i].equals("-watch")&&i+1<args.length) {
+					watch = args[++i];
+				} else if(args[i].equals("-poll")&&i+1<args.length) {
+					pollSeconds = Long.parseLong(args[++i]);
+				} else if(args[i].equals("-settle")&&i+1<args.length) {
+					settleSeconds = Long.parseLong(args[++i]);
+				} else if(args[i].equals("-state")&&i+1<args.length) {
+					state = args[++i];
+				} else if(args[i].equals("-sample")&&i+1<args.length) {
+					sample = args[++i];
+				} else if(args[i].equals("-strata")&&i+1<args.length) {
+					strata = JP2Sampler.Strata.valueOf(args[++i].toUpperCase());
+				} else if(args[i].equals("-precision")&&i+1<args.length) {
+					precision = Double.parseDouble(args[++i]);
+				} else if(args[i].equals("-seed")&&i+1<args.length) {
+					seed = Long.parseLong(args[++i]);
+				} else if(args[i].equals("-maxSample")&&i+1<args.length) {
+					maxSample = Integer.parseInt(args[++i]);
+				} else if(args[i].equals("-include")&&i+1<args.length) {
+					walker.addInclude(args[++i]);
+				} else if(args[i].equals("-exclude")&&i+1<args.length) {
+					walker.addExclude(args[++i]);
+				} else if(args[i].startsWith("http://")||args[i].startsWith("https://")) {
+					sources.add(args[i]);
+				} else if(args[i].toLowerCase().endsWith(".jp2")) {
+					files.add(args[i]);
+				} else if(JP2ArchiveChecker.isArchive(args[i])) {
+					archives.add(args[i]);
+				} else if(new File(args[i]).isDirectory()) {
+					directories.add(args[i]);
+				}
+			}
+		} catch(IOException e) {
+			System.out.println("Error loading profile: "+e);
+			return;
+		}
+
+		final JP2CheckStatistics statistics = new JP2CheckStatistics();
+		final JP2ProfileInference inference = infer!=null ? new JP2ProfileInference(jp2Profile) : null;
+
+		if(reprofile!=null) {
+			try {
+				long count = JP2PropertyStore.reprofile(reprofile, jp2Profile, new JP2ResultListener() {
+					public void resultReady(JP2CheckResult pResult) {
+						statistics.resultReady(pResult);
+						if(inference!=null) inference.resultReady(pResult);
+					}
+				});
+				System.out.println("Re-profiled "+count+" files from "+reprofile);
+				statistics.printSummary(System.out);
+				if(inference!=null) writeInferredProfiles(inference, infer);
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+
+		//files already in the store were checked by a run that was cancelled or killed
+		final Set<String> done = new HashSet<String>();
+		if(resume) {
+			if(store==null) {
+				System.out.println("-resume needs -store");
+				return;
+			}
+			if(new File(store).exists()) {
+				try {
+					JP2PropertyStore.read(store, new JP2PropertyStore.RowVisitor() {
+						public void row(String pFile, HashMap<String, String> pProperties) {
+							done.add(pFile);
+						}
+					});
+				} catch(IOException e) {
+					System.out.println("Error reading "+store+": "+e);
+					return;
+				}
+				files.removeAll(done);
+				System.out.println("Resuming: "+done.size()+" files already checked");
+			}
+		}
+
+		final JP2BatchScheduler scheduler = new JP2BatchScheduler(jp2Profile);
+		scheduler.setReadsPerDevice(readsPerDevice);
+		scheduler.setCpuThreads(cpuThreads);
+		scheduler.setVirtualThreads(virtualThreads);
+		scheduler.setMaxProcesses(processes);
+		scheduler.setAdaptive(adaptive);
+		final List<JP2ResultListener> listeners = new LinkedList<JP2ResultListener>();
+		listeners.add(new JP2ResultListener() {
+			public void resultReady(JP2CheckResult pResult) {
+				//print each result as a block so output from different files is not interleaved
+				synchronized(System.out) {
+					System.out.println("Checked: "+pResult.file);
+					if(pResult.status==JP2CheckResult.Status.ERROR) {
+						System.out.println("Error: "+pResult.message);
+					} else if(pResult.status==JP2CheckResult.Status.TIMEOUT) {
+						System.out.println("Timed out: "+pResult.message);
+					} else {
+						System.out.println("Jpylyzer says valid: "+pResult.jpylyzerValid);
+						System.out.println("Matches profile: "+pResult.profileMatch);
+						if(pResult.mismatches!=null) {
+							for(String k : pResult.mismatches.keySet()) System.out.println("  "+k+": "+pResult.mismatches.get(k));
+						}
+						System.out.println("Schematron comparison: "+pResult.schematronValid);
+						if(pResult.decodeValid!=null) System.out.println("Lowest resolution decodes: "+pResult.decodeValid);
+					}
+				}
+			}
+		});
+		listeners.add(statistics);
+		if(inference!=null) listeners.add(inference);
+
+		//on ctrl-c or kill, stop the run and let main flush the store and print the summary
+		final Thread mainThread = Thread.currentThread();
+		final AtomicBoolean finished = new AtomicBoolean(false);
+		Thread shutdownHook = new Thread("jp2check-shutdown") {
+			public void run() {
+				if(finished.get()) return;
+				try {
+					if(!scheduler.cancel(CANCEL_TIMEOUT)) {
+						System.out.println("Warning: files still in progress after "+CANCEL_TIMEOUT/1000+"s");
+					}
+					mainThread.interrupt();
+					mainThread.join(CANCEL_TIMEOUT);
+				} catch(InterruptedException e) {
+				}
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+		JP2PropertyStore.Writer storeWriter = null;
+		try {
+			if(store!=null) {
+				storeWriter = new JP2PropertyStore.Writer(store);
+				listeners.add(storeWriter);
+			}
+			for(JP2ResultListener listener:listeners) {
+				scheduler.addListener(listener);
+			}
+			JP2ResultListener all = new JP2ResultListener() {
+				public void resultReady(JP2CheckResult pResult) {
+					for(JP2ResultListener listener:listeners) {
+						listener.resultReady(pResult);
+					}
+				}
+			};
+			if(sample!=null) {
+				scheduler.setHeadersOnly(headersOnly);
+				JP2Sampler sampler = new JP2Sampler(scheduler);
+				sampler.setStrata(strata);
+				sampler.setPrecision(precision);
+				sampler.setSeed(seed);
+				sampler.setMaxSample(maxSample);
+				System.out.println("Sampling "+sample+" (seed "+seed+")");
+				JP2Sampler.Estimate estimate = sampler.sample(sample);
+				//the per-file statistics below are for the sample only
+				estimate.printReport(System.out);
+			} else if(watch!=null) {
+				scheduler.setHeadersOnly(headersOnly);
+				JP2FolderWatcher watcher = new JP2FolderWatcher(watch, scheduler);
+				watcher.setPollInterval(pollSeconds*1000);
+				watcher.setSettleTime(settleSeconds*1000);
+				watcher.setStateFile(state);
+				watcher.start();
+				System.out.println("Watching "+watch+(watcher.isPolling() ? " (polling)" : ""));
+				//runs until killed, results are printed as they arrive and the store is written out periodically
+				while(true) {
+					try {
+						Thread.sleep(10000);
+					} catch(InterruptedException e) {
+						break;
+					}
+					if(storeWriter!=null) storeWriter.flush();
+				}
+				watcher.close();
+			} else {
+				scheduler.setHeadersOnly(headersOnly);
+				scheduler.check(files);
+				//files are checked as they are found, while the rest of the tree is still being walked
 				try {
-					System.out.println("Checking: "+arg);
-					runJpylyzer(arg);
-					System.out.println("Jpylyzer says valid: "+jpylyzerSaysValid(arg+JPYLYZER_EXT));
-					System.out.println("Matches profile: "+checkJpylyzerProfile(arg+JPYLYZER_EXT, jp2Profile));
-					System.out.println("Schematron comparison: "+JpylyzerSchematron.checkJpylyzerOutput(arg+JPYLYZER_EXT));
-				} catch (IOException e) {
+					for(String directory:directories) {
+						walker.walk(directory, new JP2DirectoryWalker.Visitor() {
+							public void file(String pFile) {
+								//stop walking once cancelled
+								if(scheduler.isCancelled()) throw new CancellationException();
+								if(!done.contains(pFile)) scheduler.submit(pFile);
+							}
+						});
+					}
+				} catch(CancellationException e) {
+				}
+				for(String error:walker.getErrors()) {
+					System.out.println("Error reading "+error);
+				}
+				try {
+					scheduler.awaitCompletion();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			//archives are streamed, only the headers of each entry are read
+			if(scheduler.isCancelled()) {
+				archives.clear();
+				reports.clear();
+				sources.clear();
+			}
+			for(String archive:archives) {
+				try {
+					JP2ArchiveChecker.check(archive, jp2Profile, all);
+				} catch(IOException e) {
+					System.out.println("Error reading "+archive+": "+e);
+				}
+			}
+			//reports are streamed, results are checked as they are read
+			for(String report:reports) {
+				try {
+					JP2ReportReader.check(report, jp2Profile, all);
+				} catch(IOException e) {
+					System.out.println("Error reading "+e.getMessage());
+				}
+			}
+			for(String source:sources) {
+				JP2ByteSource byteSource = null;
+				try {
+					if(source.startsWith("http://")||source.startsWith("https://")) {
+						byteSource = new JP2HttpSource(source);
+					} else {
+						byteSource = new JP2FileSource(source);
+					}
+					all.resultReady(checkJP2Source(byteSource, jp2Profile));
+				} catch(IOException e) {
+					all.resultReady(new JP2CheckResult(source).error(e.toString()));
+				} finally {
+					if(byteSource!=null) byteSource.close();
+				}
+			}
+		} catch(IOException e) {
+			e.printStackTrace();
+		} finally {
+			scheduler.shutdown();
+			if(storeWriter!=null) {
+				try {
+					storeWriter.close();
+				} catch(IOException e) {
 					e.printStackTrace();
 				}
 			}
 		}
+		if(statistics.getFiles()>1) {
+			statistics.printSummary(System.out);
+		}
+		if(scheduler.getController()!=null) {
+			System.out.println("Concurrency: "+scheduler.getController());
+		}
+		if(inference!=null) {
+			writeInferredProfiles(inference, infer);
+		}
+		if(scheduler.isCancelled()) {
+			System.out.println("Cancelled: "+scheduler.getCancelled()+" files not checked"+
+					(store!=null ? ", rerun with -resume to check them" : ""));
+		}
+		finished.set(true);
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch(IllegalStateException e) {
+			//already shutting down
+		}
 		
 	}
 
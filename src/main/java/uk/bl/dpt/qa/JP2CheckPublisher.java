@@ -0,0 +1,196 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes a result for each path from a source as a reactive stream.
+ *
+ * A check (and so a jpylyzer run) is only started when the subscriber has asked for a result
+ * that is not already on its way, so a slow subscriber throttles the checking rather than
+ * letting results pile up in memory.  Up to maxInFlight checks run at once when there is
+ * enough demand.  Results are published in the order they complete, not the source order.
+ *
+ * Each subscriber gets its own iterator over the source and so its own run of checks.
+ * @author wpalmer
+ */
+public class JP2CheckPublisher implements Flow.Publisher<JP2CheckResult> {
+
+	private final JP2Checker checker;
+	private final Iterable<String> source;
+	private final int maxInFlight;
+
+	/**
+	 * @param pChecker checker to run the checks with
+	 * @param pSource paths of the files to check
+	 * @param pMaxInFlight most checks to run at once
+	 */
+	public JP2CheckPublisher(JP2Checker pChecker, Iterable<String> pSource, int pMaxInFlight) {
+		checker = pChecker;
+		source = pSource;
+		maxInFlight = Math.max(1, pMaxInFlight);
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super JP2CheckResult> pSubscriber) {
+		if(pSubscriber==null) throw new NullPointerException("subscriber");
+		Iterator<String> paths;
+		try {
+			paths = source.iterator();
+		} catch(RuntimeException e) {
+			pSubscriber.onSubscribe(new Flow.Subscription() {
+				public void request(long pCount) {}
+				public void cancel() {}
+			});
+			pSubscriber.onError(e);
+			return;
+		}
+		CheckSubscription subscription = new CheckSubscription(pSubscriber, paths);
+		pSubscriber.onSubscribe(subscription);
+		subscription.drain();
+	}
+
+	/**
+	 * All state other than the queue of finished results and the request count is only touched
+	 * inside drain(), which is never run by two threads at once
+	 */
+	private final class CheckSubscription implements Flow.Subscription {
+		private final Flow.Subscriber<? super JP2CheckResult> subscriber;
+		private final Iterator<String> paths;
+		private final ConcurrentLinkedQueue<JP2CheckResult> ready = new ConcurrentLinkedQueue<JP2CheckResult>();
+		private final Set<CompletableFuture<JP2CheckResult>> running = ConcurrentHashMap.newKeySet();
+		private final AtomicInteger wip = new AtomicInteger(0);
+		private final AtomicInteger inFlight = new AtomicInteger(0);
+		//requested but not yet delivered
+		private long requested = 0;
+		private long pendingRequests = 0;
+		private final Object requestLock = new Object();
+		private volatile boolean cancelled = false;
+		private boolean done = false;
+		private Throwable requestError = null;
+
+		CheckSubscription(Flow.Subscriber<? super JP2CheckResult> pSubscriber, Iterator<String> pPaths) {
+			subscriber = pSubscriber;
+			paths = pPaths;
+		}
+
+		@Override
+		public void request(long pCount) {
+			synchronized(requestLock) {
+				if(pCount<=0) {
+					requestError = new IllegalArgumentException("non-positive request: "+pCount);
+				} else {
+					pendingRequests += pCount;
+					if(pendingRequests<0) pendingRequests = Long.MAX_VALUE;
+				}
+			}
+			drain();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			for(CompletableFuture<JP2CheckResult> future:running) {
+				future.cancel(true);
+			}
+			drain();
+		}
+
+		void drain() {
+			if(wip.getAndIncrement()!=0) return;
+			int missed = 1;
+			do {
+				if(!done) step();
+				missed = wip.addAndGet(-missed);
+			} while(missed!=0);
+		}
+
+		private void step() {
+			if(cancelled) {
+				done = true;
+				ready.clear();
+				return;
+			}
+			Throwable error;
+			synchronized(requestLock) {
+				error = requestError;
+				requested += pendingRequests;
+				if(requested<0) requested = Long.MAX_VALUE;
+				pendingRequests = 0;
+			}
+			if(error!=null) {
+				fail(error);
+				return;
+			}
+
+			//deliver what has finished
+			JP2CheckResult result;
+			while(requested>0&&(result=ready.poll())!=null) {
+				requested--;
+				subscriber.onNext(result);
+				if(cancelled) return;
+			}
+
+			//only start checks for demand that isn't already covered
+			try {
+				while(inFlight.get()+ready.size()<Math.min(requested, maxInFlight)&&paths.hasNext()) {
+					start(paths.next());
+				}
+				if(!paths.hasNext()&&inFlight.get()==0&&ready.isEmpty()) {
+					done = true;
+					subscriber.onComplete();
+				}
+			} catch(RuntimeException e) {
+				fail(e);
+			}
+		}
+
+		private void start(String pPath) {
+			inFlight.incrementAndGet();
+			final CompletableFuture<JP2CheckResult> future = checker.checkAsync(pPath);
+			running.add(future);
+			future.whenComplete((result, error) -> {
+				running.remove(future);
+				if(error==null) {
+					ready.add(result);
+				} else if(!future.isCancelled()) {
+					ready.add(new JP2CheckResult(pPath).error(error.toString()));
+				}
+				inFlight.decrementAndGet();
+				drain();
+			});
+		}
+
+		private void fail(Throwable pError) {
+			done = true;
+			cancelled = true;
+			for(CompletableFuture<JP2CheckResult> future:running) {
+				future.cancel(true);
+			}
+			subscriber.onError(pError);
+		}
+	}
+
+}
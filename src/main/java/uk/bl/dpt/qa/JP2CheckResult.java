@@ -0,0 +1,85 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import java.util.HashMap;
+
+/**
+ * The outcome of checking a single JP2 file
+ * A check that was not run is left as null
+ * @author wpalmer
+ */
+@SuppressWarnings("javadoc")
+public class JP2CheckResult {
+
+	public enum Status { PASSED, FAILED, ERROR, TIMEOUT }
+
+	public String file;
+	public Status status = Status.ERROR;
+	public Boolean jpylyzerValid = null;
+	public Boolean profileMatch = null;
+	public Boolean schematronValid = null;
+	//the first layer of the lowest resolution decodes
+	public Boolean decodeValid = null;
+	//reason for an ERROR or TIMEOUT status
+	public String message = null;
+	//values loaded from the jpylyzer output, and those that don't match the profile
+	public HashMap<String, String> properties = null;
+	public HashMap<String, String> mismatches = null;
+
+	public JP2CheckResult(String pFile) {
+		file = pFile;
+	}
+
+	/**
+	 * Sets the status from the checks that were run
+	 * @return the new status
+	 */
+	public Status updateStatus() {
+		if(Boolean.FALSE.equals(jpylyzerValid)||Boolean.FALSE.equals(profileMatch)||Boolean.FALSE.equals(schematronValid)||
+				Boolean.FALSE.equals(decodeValid)) {
+			status = Status.FAILED;
+		} else {
+			status = Status.PASSED;
+		}
+		return status;
+	}
+
+	/**
+	 * Marks this result as an error
+	 * @param pMessage reason for the error
+	 * @return this result
+	 */
+	public JP2CheckResult error(String pMessage) {
+		status = Status.ERROR;
+		message = pMessage;
+		return this;
+	}
+
+	/**
+	 * Marks this result as timed out
+	 * @param pMessage details of the timeout
+	 * @return this result
+	 */
+	public JP2CheckResult timedOut(String pMessage) {
+		status = Status.TIMEOUT;
+		message = pMessage;
+		return this;
+	}
+
+}
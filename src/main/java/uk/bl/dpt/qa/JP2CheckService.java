@@ -0,0 +1,350 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A checker shared between interactive callers ("is this file OK?") and bulk jobs.
+ *
+ * Work is queued in two lanes on one set of workers.  A free worker always takes interactive
+ * work first, and some workers are reserved for it: bulk work never runs on them, so an
+ * interactive check only waits for other interactive checks, never for a bulk file that is
+ * part way through jpylyzer.  Running checks are not interrupted.
+ *
+ * Each lane's queue is bounded.  When it is full a check is rejected at once, with an estimate
+ * of when to retry from the lane's queue length and recent service times, rather than left to
+ * wait.  Each lane keeps counts and the latencies (queued to done) of its recent checks.
+ * @author wpalmer
+ */
+public class JP2CheckService {
+
+	/**
+	 * The priority lanes, highest first
+	 */
+	public enum Lane { INTERACTIVE, BULK }
+
+	//how many recent latencies each lane keeps for its percentiles
+	private static final int LATENCIES = 1024;
+
+	private final Thread[] workers;
+	private int reservedWorkers = 1;
+	private final EnumMap<Lane, LaneState> lanes = new EnumMap<Lane, LaneState>(Lane.class);
+	private final EnumMap<Lane, JP2Checker> checkers = new EnumMap<Lane, JP2Checker>(Lane.class);
+	private final Object lock = new Object();
+	private boolean shutdown = false;
+
+	/**
+	 * A check was rejected because its lane's queue is full
+	 */
+	public static final class RejectedException extends RejectedExecutionException {
+		private static final long serialVersionUID = 1L;
+		private final Lane lane;
+		private final long retryAfterMillis;
+
+		RejectedException(Lane pLane, long pRetryAfterMillis) {
+			super(pLane+" queue is full, retry after "+pRetryAfterMillis+"ms");
+			lane = pLane;
+			retryAfterMillis = pRetryAfterMillis;
+		}
+
+		/**
+		 * @return the lane that was full
+		 */
+		public Lane getLane() {
+			return lane;
+		}
+
+		/**
+		 * @return how long to wait before trying again
+		 */
+		public long getRetryAfterMillis() {
+			return retryAfterMillis;
+		}
+	}
+
+	/**
+	 * Counts and latencies for one lane
+	 */
+	@SuppressWarnings("javadoc")
+	public static final class LaneStats {
+		public long submitted;
+		public long rejected;
+		public long completed;
+		public int queued;
+		public int running;
+		public double meanMillis;
+		public double p50Millis;
+		public double p99Millis;
+	}
+
+	/**
+	 * A queued task and when it was queued
+	 */
+	private static final class Entry {
+		final Runnable task;
+		final long queued = System.nanoTime();
+		Entry(Runnable pTask) {
+			task = pTask;
+		}
+	}
+
+	/**
+	 * Queue and measurements for one lane, guarded by the service lock
+	 */
+	private static final class LaneState {
+		final ArrayDeque<Entry> queue = new ArrayDeque<Entry>();
+		int capacity;
+		int running = 0;
+		long submitted = 0;
+		long rejected = 0;
+		long completed = 0;
+		//the most recent latencies, and the mean time spent running
+		final long[] latencies = new long[LATENCIES];
+		double serviceNanos = 0;
+
+		LaneState(int pCapacity) {
+			capacity = pCapacity;
+		}
+
+		void record(long pLatency, long pService) {
+			latencies[(int)(completed%LATENCIES)] = pLatency;
+			completed++;
+			//moving average, so the estimate follows the files being checked now
+			serviceNanos = serviceNanos==0 ? pService : serviceNanos*0.9+pService*0.1;
+		}
+	}
+
+	/**
+	 * Create a service with its own workers
+	 * @param pProfile profile to check against
+	 * @param pWorkers number of checks run at once, across both lanes
+	 */
+	public JP2CheckService(JP2Profile pProfile, int pWorkers) {
+		lanes.put(Lane.INTERACTIVE, new LaneState(100));
+		lanes.put(Lane.BULK, new LaneState(10000));
+		for(final Lane lane:Lane.values()) {
+			checkers.put(lane, new JP2Checker(pProfile, new Executor() {
+				public void execute(Runnable pTask) {
+					enqueue(lane, pTask);
+				}
+			}));
+		}
+		workers = new Thread[Math.max(pWorkers, 1)];
+		if(workers.length==1) reservedWorkers = 0;
+		JP2BatchScheduler.NamedThreadFactory factory = new JP2BatchScheduler.NamedThreadFactory("jp2service");
+		for(int i=0;i<workers.length;i++) {
+			workers[i] = factory.newThread(new Runnable() {
+				public void run() {
+					work();
+				}
+			});
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Sets the most checks that can wait in a lane before more are rejected
+	 * @param pLane lane to set
+	 * @param pCapacity queue length
+	 */
+	public void setQueueCapacity(Lane pLane, int pCapacity) {
+		synchronized(lock) {
+			if(pCapacity>=0) lanes.get(pLane).capacity = pCapacity;
+		}
+	}
+
+	/**
+	 * Sets the number of workers bulk checks may not use, at least one is always left to bulk
+	 * @param pReserved workers kept for interactive checks
+	 */
+	public void setReservedWorkers(int pReserved) {
+		synchronized(lock) {
+			reservedWorkers = Math.max(0, Math.min(pReserved, workers.length-1));
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Run jpylyzer on a file and check its output
+	 * @param pJp2File file to check
+	 * @param pLane lane to queue the check in
+	 * @return future result of the checks, completed with a RejectedException if the lane is full
+	 */
+	public CompletableFuture<JP2CheckResult> check(String pJp2File, Lane pLane) {
+		return checkers.get(pLane).checkAsync(pJp2File);
+	}
+
+	/**
+	 * @param pLane lane to run on
+	 * @return a checker whose async methods queue their work in the lane
+	 */
+	public JP2Checker getChecker(Lane pLane) {
+		return checkers.get(pLane);
+	}
+
+	private void enqueue(Lane pLane, Runnable pTask) {
+		synchronized(lock) {
+			LaneState state = lanes.get(pLane);
+			if(shutdown) throw new RejectedExecutionException("service has been shut down");
+			if(state.queue.size()>=state.capacity) {
+				state.rejected++;
+				throw new RejectedException(pLane, retryAfter(pLane, state));
+			}
+			state.submitted++;
+			state.queue.add(new Entry(pTask));
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * @return roughly how long until the lane's queue has drained, at least a second
+	 */
+	private long retryAfter(Lane pLane, LaneState pState) {
+		int laneWorkers = pLane==Lane.BULK ? workers.length-reservedWorkers : workers.length;
+		double nanos = pState.serviceNanos*pState.queue.size()/Math.max(laneWorkers, 1);
+		return Math.max(1000, (long)Math.ceil(nanos/1e6));
+	}
+
+	/**
+	 * @return the lane a free worker should take from, interactive first, or null if none
+	 */
+	private Lane next() {
+		if(!lanes.get(Lane.INTERACTIVE).queue.isEmpty()) return Lane.INTERACTIVE;
+		LaneState bulk = lanes.get(Lane.BULK);
+		if(!bulk.queue.isEmpty()&&bulk.running<workers.length-reservedWorkers) return Lane.BULK;
+		return null;
+	}
+
+	private void work() {
+		while(true) {
+			final Lane lane;
+			Entry entry;
+			synchronized(lock) {
+				Lane ready = null;
+				while(!shutdown&&(ready = next())==null) {
+					try {
+						lock.wait();
+					} catch(InterruptedException e) {
+						//only interrupted on shutdown
+					}
+				}
+				if(shutdown) return;
+				lane = ready;
+				LaneState state = lanes.get(lane);
+				entry = state.queue.poll();
+				state.running++;
+			}
+			long start = System.nanoTime();
+			try {
+				entry.task.run();
+			} finally {
+				long end = System.nanoTime();
+				synchronized(lock) {
+					LaneState state = lanes.get(lane);
+					state.running--;
+					state.record(end-entry.queued, end-start);
+					//a bulk slot may have come free
+					lock.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param pLane lane to report on
+	 * @return counts and recent latencies for the lane
+	 */
+	public LaneStats getStats(Lane pLane) {
+		LaneStats stats = new LaneStats();
+		long[] latencies;
+		synchronized(lock) {
+			LaneState state = lanes.get(pLane);
+			stats.submitted = state.submitted;
+			stats.rejected = state.rejected;
+			stats.completed = state.completed;
+			stats.queued = state.queue.size();
+			stats.running = state.running;
+			latencies = Arrays.copyOf(state.latencies, (int)Math.min(state.completed, LATENCIES));
+		}
+		if(latencies.length>0) {
+			Arrays.sort(latencies);
+			double total = 0;
+			for(long latency:latencies) {
+				total += latency;
+			}
+			stats.meanMillis = total/latencies.length/1e6;
+			stats.p50Millis = percentile(latencies, 0.5)/1e6;
+			stats.p99Millis = percentile(latencies, 0.99)/1e6;
+		}
+		return stats;
+	}
+
+	private static long percentile(long[] pSorted, double pFraction) {
+		return pSorted[(int)Math.min(pSorted.length-1, Math.ceil(pFraction*pSorted.length)-1)];
+	}
+
+	/**
+	 * Print the counts and latencies of each lane
+	 * @param pOut stream to print to
+	 */
+	public void printStats(PrintStream pOut) {
+		for(Lane lane:Lane.values()) {
+			LaneStats stats = getStats(lane);
+			pOut.println(String.format("%s: %d submitted, %d rejected, %d completed, %d queued, %d running, latency mean %.0fms p50 %.0fms p99 %.0fms",
+					lane, stats.submitted, stats.rejected, stats.completed, stats.queued, stats.running,
+					stats.meanMillis, stats.p50Millis, stats.p99Millis));
+		}
+	}
+
+	/**
+	 * Stop the workers: queued checks are cancelled and running checks interrupted, which kills
+	 * their jpylyzer processes
+	 * @param pTimeout how long to wait for the workers to stop
+	 * @param pUnit unit of pTimeout
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void shutdown(long pTimeout, TimeUnit pUnit) throws InterruptedException {
+		synchronized(lock) {
+			shutdown = true;
+			for(LaneState state:lanes.values()) {
+				for(Entry entry:state.queue) {
+					if(entry.task instanceof Future) ((Future<?>)entry.task).cancel(false);
+				}
+				state.queue.clear();
+			}
+			lock.notifyAll();
+		}
+		for(Thread worker:workers) {
+			worker.interrupt();
+		}
+		long deadline = System.nanoTime()+pUnit.toNanos(pTimeout);
+		for(Thread worker:workers) {
+			worker.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline-System.nanoTime())));
+		}
+	}
+
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import java.io.PrintStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import uk.bl.dpt.qa.JP2Check.Keys;
+import uk.bl.dpt.qa.JP2CheckResult.Status;
+
+/**
+ * Collection level statistics, built up as results arrive.
+ *
+ * For each jpylyzer key this keeps a histogram of the values reported, how many files did not
+ * match the profile and the values those files had, plus a breakdown of failures by encoder
+ * and by characterisation tool.  All counters are LongAdders so many checker threads can
+ * report at once without contending, and every histogram is capped at a fixed number of
+ * distinct values so memory use does not depend on the size of the collection.
+ * @author wpalmer
+ */
+public class JP2CheckStatistics implements JP2ResultListener {
+
+	//most distinct values kept in any one histogram, the rest are counted together
+	private static final int MAX_VALUES = 64;
+	private static final String OTHER = "(other)";
+	private static final String UNKNOWN = "(unknown)";
+	//how many values to list per key in the summary
+	private static final int SUMMARY_VALUES = 5;
+
+	private final LongAdder files = new LongAdder();
+	//files where the jpylyzer output was loaded and compared to the profile
+	private final LongAdder checked = new LongAdder();
+	private final EnumMap<Status, LongAdder> statuses = new EnumMap<Status, LongAdder>(Status.class);
+	private final ConcurrentHashMap<String, KeyStats> keys = new ConcurrentHashMap<String, KeyStats>();
+	private final ConcurrentHashMap<String, GroupStats> encoders = new ConcurrentHashMap<String, GroupStats>();
+	private final ConcurrentHashMap<String, GroupStats> tools = new ConcurrentHashMap<String, GroupStats>();
+
+	/**
+	 * A bounded count of values
+	 */
+	static final class Histogram {
+		private final ConcurrentHashMap<String, LongAdder> counts = new ConcurrentHashMap<String, LongAdder>();
+
+		void add(String pValue) {
+			LongAdder count = counts.get(pValue);
+			if(count==null) {
+				//once full, new values go in to the catch-all
+				count = counts.computeIfAbsent(counts.size()<MAX_VALUES ? pValue : OTHER, k -> new LongAdder());
+			}
+			count.increment();
+		}
+
+		/**
+		 * @return the values and their counts, most frequent first
+		 */
+		LinkedHashMap<String, Long> snapshot() {
+			List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>();
+			for(Map.Entry<String, LongAdder> e:counts.entrySet()) {
+				entries.add(new AbstractMap.SimpleEntry<String, Long>(e.getKey(), e.getValue().sum()));
+			}
+			Collections.sort(entries, (a, b) -> Long.compare(b.getValue(), a.getValue()));
+			LinkedHashMap<String, Long> sorted = new LinkedHashMap<String, Long>();
+			for(Map.Entry<String, Long> e:entries) {
+				sorted.put(e.getKey(), e.getValue());
+			}
+			return sorted;
+		}
+	}
+
+	/**
+	 * Statistics for one jpylyzer key
+	 */
+	static final class KeyStats {
+		final Histogram values = new Histogram();
+		final Histogram mismatchedValues = new Histogram();
+		final LongAdder mismatches = new LongAdder();
+	}
+
+	/**
+	 * Statistics for one encoder or tool
+	 */
+	static final class GroupStats {
+		final LongAdder files = new LongAdder();
+		final LongAdder failed = new LongAdder();
+		final Histogram mismatchedKeys = new Histogram();
+	}
+
+	/**
+	 * Create an empty set of statistics
+	 */
+	public JP2CheckStatistics() {
+		for(Status status:Status.values()) {
+			statuses.put(status, new LongAdder());
+		}
+	}
+
+	@Override
+	public void resultReady(JP2CheckResult pResult) {
+		files.increment();
+		statuses.get(pResult.status).increment();
+		if(pResult.properties==null) return;
+
+		checked.increment();
+		for(Map.Entry<String, String> e:pResult.properties.entrySet()) {
+			if(e.getKey().equals(Keys.ISVALID)||e.getKey().equals(Keys.TOOL)||e.getKey().equals(Keys.ENCODER)) continue;
+			keyStats(e.getKey()).values.add(e.getValue());
+		}
+		if(pResult.mismatches!=null) {
+			for(Map.Entry<String, String> e:pResult.mismatches.entrySet()) {
+				KeyStats stats = keyStats(e.getKey());
+				stats.mismatches.increment();
+				stats.mismatchedValues.add(e.getValue());
+			}
+		}
+		group(encoders, pResult.properties.get(Keys.ENCODER), pResult);
+		group(tools, pResult.properties.get(Keys.TOOL), pResult);
+	}
+
+	private KeyStats keyStats(String pKey) {
+		KeyStats stats = keys.get(pKey);
+		if(stats==null) stats = keys.computeIfAbsent(pKey, k -> new KeyStats());
+		return stats;
+	}
+
+	private static void group(ConcurrentHashMap<String, GroupStats> pGroups, String pName, JP2CheckResult pResult) {
+		String name = (pName==null||pName.isEmpty()) ? UNKNOWN : pName;
+		GroupStats stats = pGroups.get(name);
+		if(stats==null) {
+			stats = pGroups.computeIfAbsent(pGroups.size()<MAX_VALUES ? name : OTHER, k -> new GroupStats());
+		}
+		stats.files.increment();
+		if(pResult.status!=Status.PASSED) stats.failed.increment();
+		if(pResult.mismatches!=null) {
+			for(String key:pResult.mismatches.keySet()) {
+				stats.mismatchedKeys.add(key);
+			}
+		}
+	}
+
+	/**
+	 * @return number of results seen
+	 */
+	public long getFiles() {
+		return files.sum();
+	}
+
+	/**
+	 * @param pStatus status to count
+	 * @return number of results with that status
+	 */
+	public long getCount(Status pStatus) {
+		return statuses.get(pStatus).sum();
+	}
+
+	/**
+	 * @param pKey jpylyzer key
+	 * @return number of files where this key did not match the profile
+	 */
+	public long getMismatches(String pKey) {
+		KeyStats stats = keys.get(pKey);
+		return stats==null ? 0 : stats.mismatches.sum();
+	}
+
+	/**
+	 * @param pKey jpylyzer key
+	 * @return fraction of the checked files where this key did not match the profile
+	 */
+	public double getMismatchRate(String pKey) {
+		long total = checked.sum();
+		return total==0 ? 0 : (double)getMismatches(pKey)/total;
+	}
+
+	/**
+	 * @param pKey jpylyzer key
+	 * @return values reported for this key and how often, most frequent first
+	 */
+	public Map<String, Long> getValues(String pKey) {
+		KeyStats stats = keys.get(pKey);
+		return stats==null ? new LinkedHashMap<String, Long>() : stats.values.snapshot();
+	}
+
+	/**
+	 * @param pKey jpylyzer key
+	 * @return values reported for this key by files that did not match the profile, most frequent first
+	 */
+	public Map<String, Long> getMismatchedValues(String pKey) {
+		KeyStats stats = keys.get(pKey);
+		return stats==null ? new LinkedHashMap<String, Long>() : stats.mismatchedValues.snapshot();
+	}
+
+	/**
+	 * Print a summary of the collection
+	 * @param pOut stream to print to
+	 */
+	public void printSummary(PrintStream pOut) {
+		long total = checked.sum();
+		pOut.println("Files: "+files.sum());
+		for(Status status:Status.values()) {
+			pOut.println("  "+status+": "+statuses.get(status).sum());
+		}
+
+		TreeMap<String, KeyStats> sorted = new TreeMap<String, KeyStats>(keys);
+		pOut.println("Profile mismatches (of "+total+" files checked):");
+		for(Map.Entry<String, KeyStats> e:sorted.entrySet()) {
+			long mismatches = e.getValue().mismatches.sum();
+			if(mismatches==0) continue;
+			pOut.println("  "+e.getKey()+": "+mismatches+" ("+percent(mismatches, total)+"), values: "+
+					top(e.getValue().mismatchedValues.snapshot()));
+		}
+
+		pOut.println("Values reported:");
+		for(Map.Entry<String, KeyStats> e:sorted.entrySet()) {
+			pOut.println("  "+e.getKey()+": "+top(e.getValue().values.snapshot()));
+		}
+
+		printGroups(pOut, "Encoders:", encoders);
+		printGroups(pOut, "Tools:", tools);
+	}
+
+	private static void printGroups(PrintStream pOut, String pTitle, Map<String, GroupStats> pGroups) {
+		pOut.println(pTitle);
+		for(Map.Entry<String, GroupStats> e:new TreeMap<String, GroupStats>(pGroups).entrySet()) {
+			long groupFiles = e.getValue().files.sum();
+			long failed = e.getValue().failed.sum();
+			pOut.println("  "+e.getKey()+": "+groupFiles+" files, "+failed+" failed ("+percent(failed, groupFiles)+")"+
+					(failed>0 ? ", mismatches: "+top(e.getValue().mismatchedKeys.snapshot()) : ""));
+		}
+	}
+
+	private static String percent(long pCount, long pTotal) {
+		return pTotal==0 ? "-" : String.format("%.2f%%", 100.0*pCount/pTotal);
+	}
+
+	private static String top(LinkedHashMap<String, Long> pCounts) {
+		StringBuilder out = new StringBuilder();
+		int i = 0;
+		for(Map.Entry<String, Long> e:pCounts.entrySet()) {
+			if(i++==SUMMARY_VALUES) {
+				out.append(", ...");
+				break;
+			}
+			if(out.length()>0) out.append(", ");
+			out.append(e.getKey()).append(" x").append(e.getValue());
+		}
+		return out.toString();
+	}
+
+}
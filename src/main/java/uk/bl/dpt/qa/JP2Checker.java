@@ -0,0 +1,206 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * An instance based checker for embedding in other Java code.
+ *
+ * The async methods run on the configured executor and return CompletableFutures of structured
+ * results, so callers can start many checks without blocking their own threads.  Cancelling a
+ * future with cancel(true) interrupts the check, which kills jpylyzer if it is running.
+ * @author wpalmer
+ */
+public class JP2Checker {
+
+	private final JP2Profile profile;
+	private final Executor executor;
+	//only set if we created the executor, and so must shut it down
+	private final ExecutorService ownExecutor;
+
+	/**
+	 * A future that runs a task and can interrupt it when cancelled
+	 * (cancelling a plain CompletableFuture does not stop the work)
+	 */
+	private static final class Task<T> extends CompletableFuture<T> implements Runnable {
+		private final Callable<T> work;
+		private Thread runner = null;
+
+		Task(Callable<T> pWork) {
+			work = pWork;
+		}
+
+		public void run() {
+			if(isDone()) return;
+			synchronized(this) {
+				runner = Thread.currentThread();
+			}
+			try {
+				complete(work.call());
+			} catch(Throwable t) {
+				completeExceptionally(t);
+			} finally {
+				synchronized(this) {
+					runner = null;
+				}
+				//don't leave a cancellation interrupt set on a pool thread
+				Thread.interrupted();
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean pMayInterruptIfRunning) {
+			boolean cancelled = super.cancel(pMayInterruptIfRunning);
+			if(cancelled&&pMayInterruptIfRunning) {
+				synchronized(this) {
+					if(runner!=null) runner.interrupt();
+				}
+			}
+			return cancelled;
+		}
+	}
+
+	/**
+	 * Create a checker with its own thread pool
+	 * @param pProfile profile to check against
+	 */
+	public JP2Checker(JP2Profile pProfile) {
+		profile = pProfile;
+		//the work is mostly waiting on jpylyzer so the pool is not bounded by the number of cpus
+		ownExecutor = Executors.newCachedThreadPool(new JP2BatchScheduler.NamedThreadFactory("jp2checker"));
+		executor = ownExecutor;
+	}
+
+	/**
+	 * Create a checker that runs checks on the given executor
+	 * @param pProfile profile to check against
+	 * @param pExecutor executor to run checks on
+	 */
+	public JP2Checker(JP2Profile pProfile, Executor pExecutor) {
+		profile = pProfile;
+		ownExecutor = null;
+		executor = pExecutor;
+	}
+
+	/**
+	 * Run jpylyzer on a file and check its output, blocking until done
+	 * @param pJp2File file to check
+	 * @return result of the checks
+	 */
+	public JP2CheckResult check(String pJp2File) {
+		try {
+			JP2Check.runJpylyzer(pJp2File);
+		} catch(JpylyzerTimeoutException e) {
+			return new JP2CheckResult(pJp2File).timedOut(e.getMessage());
+		} catch(IOException e) {
+			return new JP2CheckResult(pJp2File).error(e.toString());
+		}
+		return checkJpylyzerXML(pJp2File);
+	}
+
+	/**
+	 * Check the existing jpylyzer output for a file, blocking until done
+	 * @param pJp2File file that jpylyzer has already been run on
+	 * @return result of the checks
+	 */
+	public JP2CheckResult checkJpylyzerXML(String pJp2File) {
+		try {
+			return JP2Check.checkJpylyzerXML(pJp2File, profile);
+		} catch(RuntimeException e) {
+			return new JP2CheckResult(pJp2File).error(e.toString());
+		}
+	}
+
+	/**
+	 * Run jpylyzer on a file and check its output
+	 * @param pJp2File file to check
+	 * @return future result of the checks
+	 */
+	public CompletableFuture<JP2CheckResult> checkAsync(final String pJp2File) {
+		return submit(new Callable<JP2CheckResult>() {
+			public JP2CheckResult call() {
+				return check(pJp2File);
+			}
+		});
+	}
+
+	/**
+	 * Check the existing jpylyzer output for a file
+	 * @param pJp2File file that jpylyzer has already been run on
+	 * @return future result of the checks
+	 */
+	public CompletableFuture<JP2CheckResult> checkJpylyzerXMLAsync(final String pJp2File) {
+		return submit(new Callable<JP2CheckResult>() {
+			public JP2CheckResult call() {
+				return checkJpylyzerXML(pJp2File);
+			}
+		});
+	}
+
+	/**
+	 * Compare a jpylyzer output with the profile
+	 * @param pJpylyzerOutput file containing jpylyzer xml
+	 * @return future of the items that don't match the profile, empty if it matches
+	 */
+	public CompletableFuture<HashMap<String, String>> compareProfileAsync(final String pJpylyzerOutput) {
+		return submit(new Callable<HashMap<String, String>>() {
+			public HashMap<String, String> call() {
+				return JP2Check.compareJpylyzerProfile(JP2Check.loadJpylyzerXML(pJpylyzerOutput), profile);
+			}
+		});
+	}
+
+	/**
+	 * Check a jpylyzer output against the default Schematron
+	 * @param pJpylyzerOutput file containing jpylyzer xml
+	 * @return future of true if it passes, false if not
+	 */
+	public CompletableFuture<Boolean> checkSchematronAsync(final String pJpylyzerOutput) {
+		return submit(new Callable<Boolean>() {
+			public Boolean call() {
+				return JpylyzerSchematron.checkJpylyzerOutput(pJpylyzerOutput);
+			}
+		});
+	}
+
+	private <T> CompletableFuture<T> submit(Callable<T> pWork) {
+		Task<T> task = new Task<T>(pWork);
+		try {
+			executor.execute(task);
+		} catch(RejectedExecutionException e) {
+			task.completeExceptionally(e);
+		}
+		return task;
+	}
+
+	/**
+	 * Shut down the thread pool, if this checker created it
+	 */
+	public void shutdown() {
+		if(ownExecutor!=null) ownExecutor.shutdown();
+	}
+
+}
@@ -0,0 +1,442 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits how many files are worked on at once, and moves the limit to where throughput peaks.
+ *
+ * Every interval the files completed, their mean latency, the CPU time the container used
+ * against the CPUs it may use, the free heap and the time spent in GC are sampled.  CPU time
+ * comes from this process's cgroup, so it covers the jpylyzer processes and ignores the rest of
+ * the host; without a cgroup, jpylyzer runs are counted as they exit.
+ * The limit backs off by a quarter when the container is overloaded (CPU use above cpuLimit
+ * of the quota, GC above gcLimit of the interval, less than heapLimit of the heap free) or when
+ * latency has climbed to latencyFactor times the best seen.  Otherwise it hill climbs: it keeps moving one
+ * step in the same direction while throughput improves, and turns round when it falls.
+ *
+ * Waiting is done with a ReentrantLock rather than a monitor so that waiting virtual threads do
+ * not pin their carriers.
+ * @author wpalmer
+ */
+public class JP2ConcurrencyController {
+
+	private int minLimit = 1;
+	private int maxLimit = 8*Runtime.getRuntime().availableProcessors();
+	private long intervalMillis = 2000;
+	private double cpuLimit = 0.95;
+	private double gcLimit = 0.1;
+	private double heapLimit = 0.1;
+	private double latencyFactor = 2.0;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+	private int limit;
+	private int inFlight = 0;
+
+	//completions since the last sample
+	private long completed = 0;
+	private long latencyNanos = 0;
+
+	//state of the hill climb
+	private int direction = 1;
+	private double lastThroughput = -1;
+	private double bestLatency = Double.MAX_VALUE;
+	private long lastGcMillis = -1;
+	private long lastCpuNanos = -1;
+	private volatile int adjustments = 0;
+
+	private Thread tuner = null;
+
+	/**
+	 * One interval's measurements
+	 */
+	@SuppressWarnings("javadoc")
+	static final class Sample {
+		double throughput;
+		double latencyMillis;
+		//CPUs busy over the interval, -1 if not known
+		double cpuUsed;
+		double cpus;
+		double gcFraction;
+		double heapFree;
+	}
+
+	/**
+	 * Create a controller starting at one file per processor
+	 */
+	public JP2ConcurrencyController() {
+		limit = Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Sets the range the limit is kept within
+	 * @param pMin lowest limit
+	 * @param pMax highest limit
+	 */
+	public void setRange(int pMin, int pMax) {
+		if(pMin<1||pMax<pMin) return;
+		lock.lock();
+		try {
+			minLimit = pMin;
+			maxLimit = pMax;
+			setLimit(Math.max(pMin, Math.min(pMax, limit)));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sets how often the limit is adjusted
+	 * @param pMillis interval in milliseconds
+	 */
+	public void setInterval(long pMillis) {
+		if(pMillis>0) intervalMillis = pMillis;
+	}
+
+	/**
+	 * @return the current limit
+	 */
+	public int getLimit() {
+		lock.lock();
+		try {
+			return limit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of times the limit has been changed
+	 */
+	public int getAdjustments() {
+		return adjustments;
+	}
+
+	/**
+	 * Wait until there is room for another file
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void acquire() throws InterruptedException {
+		lock.lock();
+		try {
+			while(inFlight>=limit) {
+				available.await();
+			}
+			inFlight++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Finish a file
+	 * @param pLatencyNanos how long the file took, since acquire returned
+	 */
+	public void release(long pLatencyNanos) {
+		lock.lock();
+		try {
+			inFlight--;
+			completed++;
+			latencyNanos += pLatencyNanos;
+			available.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void setLimit(int pLimit) {
+		if(pLimit==limit) return;
+		adjustments++;
+		boolean grew = pLimit>limit;
+		limit = pLimit;
+		if(grew) available.signalAll();
+	}
+
+	/**
+	 * Start adjusting the limit on a background thread
+	 */
+	public synchronized void start() {
+		if(tuner!=null) return;
+		tuner = new JP2BatchScheduler.NamedThreadFactory("jp2check-tune").newThread(new Runnable() {
+			public void run() {
+				long last = System.nanoTime();
+				while(!Thread.currentThread().isInterrupted()) {
+					try {
+						Thread.sleep(intervalMillis);
+					} catch(InterruptedException e) {
+						break;
+					}
+					long now = System.nanoTime();
+					tick(now-last);
+					last = now;
+				}
+			}
+		});
+		tuner.start();
+	}
+
+	/**
+	 * Stop adjusting the limit
+	 */
+	public synchronized void stop() {
+		if(tuner!=null) tuner.interrupt();
+		tuner = null;
+	}
+
+	private void tick(long pElapsedNanos) {
+		Sample sample = new Sample();
+		long files;
+		long nanos;
+		lock.lock();
+		try {
+			files = completed;
+			nanos = latencyNanos;
+			completed = 0;
+			latencyNanos = 0;
+		} finally {
+			lock.unlock();
+		}
+		double seconds = pElapsedNanos/1e9;
+		sample.throughput = files/seconds;
+		sample.latencyMillis = files==0 ? 0 : nanos/1e6/files;
+		long cpu = cpuNanos();
+		sample.cpuUsed = lastCpuNanos<0||cpu<0 ? -1 : (cpu-lastCpuNanos)/(double)pElapsedNanos;
+		lastCpuNanos = cpu;
+		sample.cpus = cpuQuota();
+		long gc = gcMillis();
+		sample.gcFraction = lastGcMillis<0 ? 0 : (gc-lastGcMillis)/(seconds*1000);
+		lastGcMillis = gc;
+		Runtime runtime = Runtime.getRuntime();
+		long used = runtime.totalMemory()-runtime.freeMemory();
+		sample.heapFree = 1-(double)used/runtime.maxMemory();
+		if(files>0) apply(sample);
+	}
+
+	/**
+	 * Adjust the limit from a sample
+	 * @param pSample measurements over the last interval, with at least one file completed
+	 */
+	void apply(Sample pSample) {
+		lock.lock();
+		try {
+			setLimit(adjust(pSample));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private int adjust(Sample pSample) {
+		//let the best latency drift up, in case the files have just got bigger
+		bestLatency = Math.min(bestLatency*1.02, pSample.latencyMillis);
+		boolean overloaded = pSample.gcFraction>gcLimit||pSample.heapFree<heapLimit||
+				(pSample.cpuUsed>=0&&pSample.cpuUsed>pSample.cpus*cpuLimit);
+		int next;
+		if(overloaded||pSample.latencyMillis>bestLatency*latencyFactor) {
+			next = (int)(limit*0.75);
+			direction = 1;
+			//start the climb again from here
+			lastThroughput = -1;
+		} else {
+			if(lastThroughput>=0&&pSample.throughput<lastThroughput*0.95) {
+				direction = -direction;
+			}
+			next = limit+direction;
+			lastThroughput = pSample.throughput;
+		}
+		return Math.max(minLimit, Math.min(maxLimit, next));
+	}
+
+	private static long gcMillis() {
+		long total = 0;
+		for(GarbageCollectorMXBean gc:ManagementFactory.getGarbageCollectorMXBeans()) {
+			if(gc.getCollectionTime()>0) total += gc.getCollectionTime();
+		}
+		return total;
+	}
+
+	/**
+	 * CPU time used by this process's cgroup, or by this JVM and the children it has waited for if
+	 * there is no cgroup
+	 * @return nanoseconds, -1 if not known
+	 */
+	static long cpuNanos() {
+		try {
+			//cgroup v2: "usage_usec n" in cpu.stat
+			Path v2 = cgroupDir(null);
+			if(v2!=null&&Files.isReadable(v2.resolve("cpu.stat"))) {
+				for(String line:Files.readAllLines(v2.resolve("cpu.stat"), StandardCharsets.US_ASCII)) {
+					String[] stat = line.trim().split("\\s+");
+					if(stat.length==2&&stat[0].equals("usage_usec")) return Long.parseLong(stat[1])*1000;
+				}
+			}
+			//cgroup v1: nanoseconds
+			Path v1 = cgroupDir("cpuacct");
+			if(v1!=null&&Files.isReadable(v1.resolve("cpuacct.usage"))) {
+				return Long.parseLong(read(v1.resolve("cpuacct.usage")));
+			}
+		} catch(IOException e) {
+		} catch(NumberFormatException e) {
+		}
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if(os instanceof com.sun.management.OperatingSystemMXBean) {
+			long cpu = ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime();
+			if(cpu<0) return -1;
+			//jpylyzer runs in child processes, which count once they have exited
+			return cpu+childCpuNanos();
+		}
+		return -1;
+	}
+
+	/**
+	 * CPU time of the child processes that have exited and been waited for, from /proc/self/stat
+	 * @return nanoseconds, 0 if not known
+	 */
+	private static long childCpuNanos() {
+		try {
+			String stat = read(Paths.get("/proc/self/stat"));
+			//the command name is in brackets and may hold spaces: fields 16 and 17 are cutime and cstime
+			String[] fields = stat.substring(stat.lastIndexOf(')')+2).split(" ");
+			if(fields.length<15) return 0;
+			//clock ticks, which are 1/100s on Linux
+			return (Long.parseLong(fields[13])+Long.parseLong(fields[14]))*10000000L;
+		} catch(IOException e) {
+		} catch(NumberFormatException e) {
+		} catch(StringIndexOutOfBoundsException e) {
+		}
+		return 0;
+	}
+
+	/**
+	 * The CPUs this process may use: the lowest cgroup quota on the way up from its own cgroup,
+	 * otherwise the processors
+	 * @return number of CPUs, possibly fractional
+	 */
+	static double cpuQuota() {
+		double processors = Runtime.getRuntime().availableProcessors();
+		double cpus = processors;
+		try {
+			//cgroup v2: "quota period" or "max period"; the root cgroup has no cpu.max
+			Path v2 = cgroupDir(null);
+			if(v2!=null&&Files.isReadable(v2.resolve("cpu.max"))) {
+				for(Path dir=v2;dir!=null&&Files.isReadable(dir.resolve("cpu.max"));dir=dir.getParent()) {
+					String[] max = read(dir.resolve("cpu.max")).split("\\s+");
+					if(max.length==2&&!max[0].equals("max")) {
+						cpus = Math.min(cpus, Double.parseDouble(max[0])/Double.parseDouble(max[1]));
+					}
+				}
+				return cpus;
+			}
+			//cgroup v1: quota of -1 means none
+			Path v1 = cgroupDir("cpu");
+			for(Path dir=v1;dir!=null&&Files.isReadable(dir.resolve("cpu.cfs_quota_us"));dir=dir.getParent()) {
+				double q = Double.parseDouble(read(dir.resolve("cpu.cfs_quota_us")));
+				double p = Double.parseDouble(read(dir.resolve("cpu.cfs_period_us")));
+				if(q>0&&p>0) cpus = Math.min(cpus, q/p);
+			}
+		} catch(IOException e) {
+		} catch(NumberFormatException e) {
+		}
+		return cpus;
+	}
+
+	private static String read(Path pFile) throws IOException {
+		return new String(Files.readAllBytes(pFile), StandardCharsets.US_ASCII).trim();
+	}
+
+	/**
+	 * The directory of this process's cgroup
+	 * @param pController cgroup v1 controller, or null for the cgroup v2 hierarchy
+	 * @return the directory, or null if there is none
+	 */
+	static Path cgroupDir(String pController) {
+		try {
+			return cgroupDir(Files.readAllLines(Paths.get("/proc/self/cgroup"), StandardCharsets.US_ASCII),
+					Files.readAllLines(Paths.get("/proc/self/mountinfo"), StandardCharsets.US_ASCII), pController);
+		} catch(IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Find this process's cgroup directory from /proc/self/cgroup and /proc/self/mountinfo
+	 * @param pCgroups lines of /proc/self/cgroup: "0::/path" for v2, "n:controller,...:/path" for v1
+	 * @param pMounts lines of /proc/self/mountinfo
+	 * @param pController cgroup v1 controller, or null for the cgroup v2 hierarchy
+	 * @return the directory, or null if there is none
+	 */
+	static Path cgroupDir(List<String> pCgroups, List<String> pMounts, String pController) {
+		String path = null;
+		for(String line:pCgroups) {
+			String[] fields = line.split(":", 3);
+			if(fields.length!=3) continue;
+			if(pController==null ? fields[0].equals("0")&&fields[1].isEmpty() :
+					Arrays.asList(fields[1].split(",")).contains(pController)) {
+				path = fields[2];
+			}
+		}
+		if(path==null) return null;
+		for(String line:pMounts) {
+			//"id parent major:minor root mount-point options... - type source super-options"
+			List<String> fields = Arrays.asList(line.split(" "));
+			int dash = fields.indexOf("-");
+			if(dash<5||dash+3>=fields.size()) continue;
+			String type = fields.get(dash+1);
+			if(pController==null ? !type.equals("cgroup2") :
+					!type.equals("cgroup")||!Arrays.asList(fields.get(dash+3).split(",")).contains(pController)) {
+				continue;
+			}
+			//the mount may show only part of the hierarchy, as it does in a container
+			String root = fields.get(3);
+			Path mount = Paths.get(fields.get(4));
+			String relative = "";
+			if(root.equals("/")) {
+				relative = path;
+			} else if(path.startsWith(root+"/")) {
+				relative = path.substring(root.length());
+			}
+			Path dir = mount.resolve(relative.replaceFirst("^/+", ""));
+			//a cgroup outside the mount, seen from a container without its own cgroup namespace
+			return Files.isDirectory(dir) ? dir : mount;
+		}
+		return null;
+	}
+
+	/**
+	 * @return a description of the current state, for logging
+	 */
+	@Override
+	public String toString() {
+		return "limit "+getLimit()+" ("+minLimit+"-"+maxLimit+"), "+adjustments+" adjustments, interval "+
+				TimeUnit.MILLISECONDS.toSeconds(intervalMillis)+"s";
+	}
+
+}
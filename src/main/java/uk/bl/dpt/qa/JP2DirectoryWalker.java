@@ -0,0 +1,207 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds the files to check under a directory.
+ *
+ * Each directory is listed by its own fork/join task, so wide trees are walked by several threads
+ * at once, and files are handed to the visitor as soon as they are found rather than after the
+ * walk has finished.  Symbolic links are not followed.
+ *
+ * Include and exclude patterns are globs.  A pattern containing a '/' is matched against the
+ * path relative to the directory being walked, otherwise against the file or directory name.
+ * A directory matching an exclude pattern is not walked.  With no include patterns, files
+ * ending .jp2 (any case) are included.
+ * @author wpalmer
+ */
+public class JP2DirectoryWalker {
+
+	/**
+	 * Called for each file found, from several threads at once
+	 */
+	public interface Visitor {
+		/**
+		 * @param pFile file found
+		 */
+		void file(String pFile);
+	}
+
+	private final List<PathMatcher> includeNames = new ArrayList<PathMatcher>();
+	private final List<PathMatcher> includePaths = new ArrayList<PathMatcher>();
+	private final List<PathMatcher> excludeNames = new ArrayList<PathMatcher>();
+	private final List<PathMatcher> excludePaths = new ArrayList<PathMatcher>();
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	private final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+	private final AtomicLong directories = new AtomicLong(0);
+	private final AtomicLong files = new AtomicLong(0);
+
+	/**
+	 * Only include files matching a glob
+	 * @param pGlob pattern to include
+	 */
+	public void addInclude(String pGlob) {
+		add(pGlob, includeNames, includePaths);
+	}
+
+	/**
+	 * Skip files and directories matching a glob
+	 * @param pGlob pattern to exclude
+	 */
+	public void addExclude(String pGlob) {
+		add(pGlob, excludeNames, excludePaths);
+	}
+
+	private static void add(String pGlob, List<PathMatcher> pNames, List<PathMatcher> pPaths) {
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:"+pGlob);
+		if(pGlob.indexOf('/')>=0) {
+			pPaths.add(matcher);
+		} else {
+			pNames.add(matcher);
+		}
+	}
+
+	/**
+	 * Sets the number of threads listing directories
+	 * @param pThreads number of threads
+	 */
+	public void setThreads(int pThreads) {
+		if(pThreads>0) threads = pThreads;
+	}
+
+	/**
+	 * @return directories that could not be listed, and why
+	 */
+	public List<String> getErrors() {
+		return errors;
+	}
+
+	/**
+	 * @return number of directories listed
+	 */
+	public long getDirectories() {
+		return directories.get();
+	}
+
+	/**
+	 * @return number of files passed to the visitor
+	 */
+	public long getFiles() {
+		return files.get();
+	}
+
+	/**
+	 * Walk a directory, returning when every file has been passed to the visitor
+	 * @param pDirectory directory to walk
+	 * @param pVisitor called for each file found
+	 */
+	public void walk(String pDirectory, Visitor pVisitor) {
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			Path root = Paths.get(pDirectory);
+			pool.invoke(new Listing(root, root, pVisitor));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static boolean matches(List<PathMatcher> pMatchers, Path pPath) {
+		for(PathMatcher matcher:pMatchers) {
+			if(matcher.matches(pPath)) return true;
+		}
+		return false;
+	}
+
+	private boolean excluded(Path pRelative) {
+		return matches(excludeNames, pRelative.getFileName())||matches(excludePaths, pRelative);
+	}
+
+	private boolean included(Path pRelative) {
+		if(includeNames.isEmpty()&&includePaths.isEmpty()) {
+			return pRelative.getFileName().toString().toLowerCase().endsWith(".jp2");
+		}
+		return matches(includeNames, pRelative.getFileName())||matches(includePaths, pRelative);
+	}
+
+	/**
+	 * Lists one directory, forking a task for each directory in it
+	 */
+	private final class Listing extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Path root;
+		private final Path directory;
+		private final Visitor visitor;
+
+		Listing(Path pRoot, Path pDirectory, Visitor pVisitor) {
+			root = pRoot;
+			directory = pDirectory;
+			visitor = pVisitor;
+		}
+
+		@Override
+		protected void compute() {
+			List<Listing> children = new ArrayList<Listing>();
+			directories.incrementAndGet();
+			try {
+				DirectoryStream<Path> entries = Files.newDirectoryStream(directory);
+				try {
+					for(Path entry:entries) {
+						Path relative = root.relativize(entry);
+						if(excluded(relative)) continue;
+						if(Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+							Listing child = new Listing(root, entry, visitor);
+							child.fork();
+							children.add(child);
+						} else if(included(relative)&&Files.isRegularFile(entry, LinkOption.NOFOLLOW_LINKS)) {
+							files.incrementAndGet();
+							visitor.file(entry.toString());
+						}
+					}
+				} finally {
+					entries.close();
+				}
+			} catch(IOException e) {
+				errors.add(directory+": "+e);
+			} catch(DirectoryIteratorException e) {
+				errors.add(directory+": "+e.getCause());
+			}
+			for(Listing child:children) {
+				child.join();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads ranges of a local file
+ * @author wpalmer
+ */
+public class JP2FileSource implements JP2ByteSource {
+
+	private final String file;
+	private final FileChannel channel;
+
+	/**
+	 * Open a file for reading
+	 * @param pFile file to read
+	 * @throws IOException on error
+	 */
+	public JP2FileSource(String pFile) throws IOException {
+		file = pFile;
+		channel = FileChannel.open(Paths.get(pFile), StandardOpenOption.READ);
+	}
+
+	@Override
+	public String getName() {
+		return file;
+	}
+
+	@Override
+	public long length() throws IOException {
+		return channel.size();
+	}
+
+	@Override
+	public int read(long pPosition, byte[] pBuffer, int pOffset, int pLength) throws IOException {
+		//positional reads so the source can be shared between streams
+		return channel.read(ByteBuffer.wrap(pBuffer, pOffset, pLength), pPosition);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Watches a hot folder (and the folders below it) and checks JP2 files as they arrive.
+ *
+ * A new or changed file is only submitted once its size and modification time have stopped
+ * changing for the settle time, so files that are still being written are not checked.  Files
+ * that have already been checked, and not changed since, are not checked again.  When a state
+ * file is given the size and modification time of each checked file is appended to it as its
+ * result arrives, so a restarted watcher carries on where it left off rather than rechecking
+ * the whole folder.  The state file is rewritten on start with one line per file still present,
+ * so it does not grow without bound.
+ *
+ * Change notifications come from a WatchService.  Network filesystems (NFS, SMB) do not report
+ * changes made by other machines, so on those, or if asked to, the folder is rescanned
+ * periodically instead; a rescan only stats the files and submits the ones that differ from
+ * what was checked.
+ * @author wpalmer
+ */
+public class JP2FolderWatcher implements Closeable, JP2ResultListener {
+
+	//filesystems that do not deliver change notifications for remote writes
+	private static final List<String> REMOTE_FILESYSTEMS = Arrays.asList("nfs", "nfs4", "cifs", "smbfs", "smb2",
+			"afs", "fuse.sshfs", "9p");
+
+	private final File directory;
+	private final JP2BatchScheduler scheduler;
+	private long settleMillis = 5000;
+	private long pollMillis = 0;
+	private String stateFile = null;
+
+	//file -> {size, modified} when it was last checked
+	private final ConcurrentHashMap<String, long[]> checked = new ConcurrentHashMap<String, long[]>();
+	//file -> {size, modified} when it was submitted, until its result arrives
+	private final ConcurrentHashMap<String, long[]> inFlight = new ConcurrentHashMap<String, long[]>();
+	//file -> {size, modified, time it was first seen with that size and time}
+	private final HashMap<String, long[]> candidates = new HashMap<String, long[]>();
+	private final AtomicInteger submitted = new AtomicInteger(0);
+
+	private Writer state = null;
+	private WatchService watcher = null;
+	private final Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+	private volatile boolean running = false;
+	private Thread thread = null;
+
+	/**
+	 * Create a watcher that submits files to a scheduler, the watcher adds itself as a listener
+	 * @param pDirectory hot folder to watch
+	 * @param pScheduler scheduler to check files with
+	 */
+	public JP2FolderWatcher(String pDirectory, JP2BatchScheduler pScheduler) {
+		directory = new File(pDirectory);
+		scheduler = pScheduler;
+	}
+
+	/**
+	 * Sets how long a file's size and modification time must stay the same before it is checked
+	 * @param pMillis settle time in milliseconds
+	 */
+	public void setSettleTime(long pMillis) {
+		if(pMillis>=0) settleMillis = pMillis;
+	}
+
+	/**
+	 * Rescan the folder periodically rather than using change notifications
+	 * @param pMillis time between scans in milliseconds, 0 to use notifications where possible
+	 */
+	public void setPollInterval(long pMillis) {
+		if(pMillis>=0) pollMillis = pMillis;
+	}
+
+	/**
+	 * Record checked files in a state file, and skip files already recorded there
+	 * @param pStateFile state file
+	 */
+	public void setStateFile(String pStateFile) {
+		stateFile = pStateFile;
+	}
+
+	/**
+	 * @return true if the folder is being rescanned rather than watched
+	 */
+	public boolean isPolling() {
+		return watcher==null;
+	}
+
+	/**
+	 * @return number of files submitted for checking so far
+	 */
+	public int getSubmitted() {
+		return submitted.get();
+	}
+
+	/**
+	 * Start watching, files already in the folder that have not been checked are checked first
+	 * @throws IOException on error
+	 */
+	public synchronized void start() throws IOException {
+		if(running) return;
+		if(!directory.isDirectory()) throw new IOException("Not a directory: "+directory);
+		if(stateFile!=null) {
+			loadState();
+			writeState();
+			state = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(stateFile, true), StandardCharsets.UTF_8));
+		}
+		if(pollMillis==0&&!REMOTE_FILESYSTEMS.contains(Files.getFileStore(directory.toPath()).type().toLowerCase())) {
+			try {
+				watcher = FileSystems.getDefault().newWatchService();
+			} catch(UnsupportedOperationException e) {
+				watcher = null;
+			}
+		}
+		if(watcher==null&&pollMillis==0) pollMillis = 60000;
+		scheduler.addListener(this);
+		running = true;
+		thread = new JP2BatchScheduler.NamedThreadFactory("jp2check-watch").newThread(new Runnable() {
+			public void run() {
+				try {
+					watch();
+				} catch(InterruptedException e) {
+					//closed
+				} catch(ClosedWatchServiceException e) {
+					//closed
+				}
+			}
+		});
+		thread.start();
+	}
+
+	private void loadState() throws IOException {
+		if(!new File(stateFile).exists()) return;
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(stateFile), StandardCharsets.UTF_8));
+		try {
+			String line;
+			while((line=in.readLine())!=null) {
+				//size, modified, file; later lines replace earlier ones
+				String[] fields = line.split("\t", 3);
+				if(fields.length<3) continue;
+				try {
+					checked.put(fields[2], new long[] { Long.parseLong(fields[0]), Long.parseLong(fields[1]) });
+				} catch(NumberFormatException e) {
+					//a partly written last line
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Replace the state file with the latest entry for each checked file that still exists
+	 */
+	private void writeState() throws IOException {
+		File temp = new File(stateFile+".tmp");
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8));
+		try {
+			Iterator<Map.Entry<String, long[]>> i = checked.entrySet().iterator();
+			while(i.hasNext()) {
+				Map.Entry<String, long[]> e = i.next();
+				if(!new File(e.getKey()).exists()) {
+					//moved out of the hot folder
+					i.remove();
+					continue;
+				}
+				out.write(e.getValue()[0]+"\t"+e.getValue()[1]+"\t"+e.getKey()+"\n");
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), new File(stateFile).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void watch() throws InterruptedException {
+		//how often candidates are looked at to see if they have settled
+		long tick = Math.max(10, Math.min(1000, settleMillis/2));
+		try {
+			scan(directory.toPath());
+		} catch(RuntimeException e) {
+			failed(e);
+		}
+		long nextScan = System.currentTimeMillis()+pollMillis;
+		while(running) {
+			try {
+				if(watcher!=null) {
+					WatchKey key = watcher.poll(candidates.isEmpty() ? 60000 : tick, TimeUnit.MILLISECONDS);
+					while(key!=null) {
+						events(key);
+						key = watcher.poll();
+					}
+				} else {
+					long now = System.currentTimeMillis();
+					if(now>=nextScan) {
+						scan(directory.toPath());
+						nextScan = now+pollMillis;
+					}
+					long wait = Math.max(1, nextScan-now);
+					if(!candidates.isEmpty()) wait = Math.min(wait, tick);
+					Thread.sleep(wait);
+				}
+				settle();
+			} catch(ClosedWatchServiceException e) {
+				throw e;
+			} catch(RuntimeException e) {
+				//keep watching, one bad event or file should not stop the watcher
+				failed(e);
+				Thread.sleep(tick);
+			}
+		}
+	}
+
+	private void failed(RuntimeException pException) {
+		pException.printStackTrace();
+		scheduler.report(new JP2CheckResult(directory.toString()).error("error while watching: "+pException));
+	}
+
+	/**
+	 * Walk a folder, registering folders with the watcher and noting files that need checking
+	 */
+	private void scan(Path pDirectory) {
+		try {
+			walk(pDirectory);
+		} catch(IOException e) {
+			//keep watching, the next event or scan will try again
+			scheduler.report(new JP2CheckResult(pDirectory.toString()).error("could not scan folder: "+e));
+		}
+	}
+
+	private void walk(Path pDirectory) throws IOException {
+		Files.walkFileTree(pDirectory, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path pDir, BasicFileAttributes pAttrs) {
+				if(watcher!=null&&!keys.containsValue(pDir)) {
+					try {
+						keys.put(pDir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+								StandardWatchEventKinds.ENTRY_MODIFY), pDir);
+					} catch(IOException e) {
+						//deleted while we were scanning
+						return FileVisitResult.SKIP_SUBTREE;
+					}
+				}
+				return FileVisitResult.CONTINUE;
+			}
+			@Override
+			public FileVisitResult visitFile(Path pFile, BasicFileAttributes pAttrs) {
+				if(pAttrs.isRegularFile()) {
+					changed(pFile.toString(), pAttrs.size(), pAttrs.lastModifiedTime().toMillis());
+				}
+				return FileVisitResult.CONTINUE;
+			}
+			@Override
+			public FileVisitResult visitFileFailed(Path pFile, IOException pException) {
+				//deleted while we were scanning
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private void events(WatchKey pKey) {
+		Path dir = keys.get(pKey);
+		for(WatchEvent<?> event:pKey.pollEvents()) {
+			if(event.kind()==StandardWatchEventKinds.OVERFLOW) {
+				//events were lost
+				scan(directory.toPath());
+				continue;
+			}
+			if(dir==null) continue;
+			Path path = dir.resolve((Path)event.context());
+			if(Files.isDirectory(path)) {
+				//a new folder, which may already have files in it
+				if(event.kind()==StandardWatchEventKinds.ENTRY_CREATE) scan(path);
+			} else {
+				File file = path.toFile();
+				changed(path.toString(), file.length(), file.lastModified());
+			}
+		}
+		if(!pKey.reset()) keys.remove(pKey);
+	}
+
+	/**
+	 * Note that a file may need checking
+	 */
+	private void changed(String pFile, long pSize, long pModified) {
+		if(!pFile.toLowerCase().endsWith(".jp2")) return;
+		if(same(checked.get(pFile), pSize, pModified)||same(inFlight.get(pFile), pSize, pModified)) return;
+		long[] candidate = candidates.get(pFile);
+		if(!same(candidate, pSize, pModified)) {
+			candidates.put(pFile, new long[] { pSize, pModified, System.currentTimeMillis() });
+		}
+	}
+
+	private static boolean same(long[] pSeen, long pSize, long pModified) {
+		return pSeen!=null&&pSeen[0]==pSize&&pSeen[1]==pModified;
+	}
+
+	/**
+	 * Submit the candidates that have stopped changing
+	 */
+	private void settle() {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<String, long[]>> i = candidates.entrySet().iterator();
+		while(i.hasNext()) {
+			Map.Entry<String, long[]> e = i.next();
+			File file = new File(e.getKey());
+			long size = file.length();
+			long modified = file.lastModified();
+			if(modified==0) {
+				//gone
+				i.remove();
+				continue;
+			}
+			long[] candidate = e.getValue();
+			if(!same(candidate, size, modified)) {
+				//still being written
+				e.setValue(new long[] { size, modified, now });
+				continue;
+			}
+			if(now-candidate[2]<settleMillis) continue;
+			//a file that is still changing when its result arrives will be seen again by the next event or scan
+			if(same(inFlight.get(e.getKey()), size, modified)) continue;
+			i.remove();
+			inFlight.put(e.getKey(), new long[] { size, modified });
+			submitted.incrementAndGet();
+			scheduler.submit(e.getKey());
+		}
+	}
+
+	@Override
+	public void resultReady(JP2CheckResult pResult) {
+		long[] seen = inFlight.get(pResult.file);
+		if(seen==null) return;
+		//recorded before it leaves inFlight, so a rescan in between does not submit it again
+		checked.put(pResult.file, seen);
+		inFlight.remove(pResult.file);
+		IOException error = null;
+		synchronized(this) {
+			if(state==null) return;
+			try {
+				state.write(seen[0]+"\t"+seen[1]+"\t"+pResult.file+"\n");
+				state.flush();
+			} catch(IOException e) {
+				error = e;
+			}
+		}
+		//the file is not checked again by this watcher, only after a restart
+		if(error!=null) scheduler.report(new JP2CheckResult(stateFile).error("could not record "+pResult.file+": "+error));
+	}
+
+	/**
+	 * Stop watching, files already submitted are still checked
+	 */
+	public synchronized void close() throws IOException {
+		if(!running) return;
+		running = false;
+		if(watcher!=null) watcher.close();
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if(state!=null) state.close();
+		state = null;
+	}
+
+}
@@ -0,0 +1,1007 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes synthetic JP2 files for scale and load testing.
+ *
+ * The SIZ and COD parameters come from a JP2Profile and every packet in the codestream is
+ * empty, so the files are structurally valid (and decode to a flat image) but are only a few KB.
+ * With setCodeBlockData the packets carry code-blocks instead: the packet headers are fully
+ * coded (tag trees, coding passes, lengths) but the code-block bytes are random, so the files
+ * only make sense to a packet header parser.
+ * A Defect can be injected to make a file that doesn't match the profile, or that is corrupt.
+ * @author wpalmer
+ */
+public class JP2Generator {
+
+	/**
+	 * Something to get wrong in a generated file.  The first group don't match the profile,
+	 * the second group are corrupt.
+	 */
+	public enum Defect {
+		NONE,
+		ORDER, LEVELS, LAYERS, PRECINCTS, CODEBLOCK, BYPASS, TRANSFORMATION, TILING, SOP, EPH,
+		TRUNCATED, BAD_SIGNATURE, NO_COD, IHDR_MISMATCH, CORRUPT_PACKETS;
+
+		/**
+		 * @return true if this defect makes the file corrupt rather than just mismatched
+		 */
+		public boolean isCorruption() {
+			return ordinal()>=TRUNCATED.ordinal();
+		}
+	}
+
+	//tile size used when a TILING defect is injected into an untiled profile
+	private static final int DEFECT_TILE = 1024;
+
+	private final JP2Profile profile;
+	private int width = 4480;
+	private int height = 6016;
+	private int components = 1;
+	private int bitDepth = 8;
+	private String comment = "jp2check JP2Generator";
+	private boolean packetLengths = false;
+	private boolean codeBlockData = false;
+	private final Random random;
+
+	/**
+	 * Writes packet header bits, a byte after 0xFF has only 7 (B.10.1)
+	 */
+	private static final class BitWriter {
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		private int buffer = 0;
+		private int count = 0;
+		private int size = 8;
+
+		void bit(int pBit) {
+			buffer = (buffer<<1)|pBit;
+			if(++count==size) {
+				out.write(buffer);
+				size = buffer==0xFF ? 7 : 8;
+				buffer = 0;
+				count = 0;
+			}
+		}
+
+		void bits(int pValue, int pCount) {
+			for(int i=pCount-1;i>=0;i--) {
+				bit((pValue>>i)&1);
+			}
+		}
+
+		/**
+		 * @return the header, padded to a byte and with a zero byte if it ends in 0xFF
+		 */
+		byte[] finish() {
+			while(count>0) bit(0);
+			if(size==7) out.write(0);
+			return out.toByteArray();
+		}
+	}
+
+	/**
+	 * A tag tree over the code-blocks of a precinct band, encoding side (B.10.2)
+	 */
+	private static final class TagTree {
+		private final int[] value;
+		private final int[] low;
+		private final boolean[] known;
+		//node index of each level's first node, and the width of each level
+		private final int[] offsets;
+		private final int[] widths;
+
+		TagTree(int pWidth, int pHeight, int[] pLeaves) {
+			List<int[]> levels = new ArrayList<int[]>();
+			int w = pWidth;
+			int h = pHeight;
+			int nodes = 0;
+			while(true) {
+				levels.add(new int[] { nodes, w, h });
+				nodes += w*h;
+				if(w<=1&&h<=1) break;
+				w = (w+1)/2;
+				h = (h+1)/2;
+			}
+			offsets = new int[levels.size()];
+			widths = new int[levels.size()];
+			value = new int[nodes];
+			low = new int[nodes];
+			known = new boolean[nodes];
+			Arrays.fill(value, Integer.MAX_VALUE);
+			System.arraycopy(pLeaves, 0, value, 0, pLeaves.length);
+			for(int i=0;i<offsets.length;i++) {
+				offsets[i] = levels.get(i)[0];
+				widths[i] = levels.get(i)[1];
+				if(i==0) continue;
+				//each node holds the smallest value below it
+				for(int y=0;y<levels.get(i-1)[2];y++) {
+					for(int x=0;x<widths[i-1];x++) {
+						int parent = offsets[i]+(y/2)*widths[i]+x/2;
+						value[parent] = Math.min(value[parent], value[offsets[i-1]+y*widths[i-1]+x]);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Encode whether the leaf's value is less than the threshold, and the value if it is
+		 */
+		void encode(BitWriter pBits, int pLeaf, int pThreshold) {
+			int x = pLeaf%widths[0];
+			int y = pLeaf/widths[0];
+			int[] path = new int[offsets.length];
+			for(int level=0;level<offsets.length;level++) {
+				path[level] = offsets[level]+y*widths[level]+x;
+				x /= 2;
+				y /= 2;
+			}
+			int floor = 0;
+			for(int level=offsets.length-1;level>=0;level--) {
+				int node = path[level];
+				if(floor>low[node]) low[node] = floor;
+				else floor = low[node];
+				while(floor<pThreshold) {
+					if(floor>=value[node]) {
+						if(!known[node]) pBits.bit(1);
+						known[node] = true;
+						break;
+					}
+					pBits.bit(0);
+					floor++;
+				}
+				low[node] = floor;
+			}
+		}
+	}
+
+	/**
+	 * The code-blocks of one subband within a precinct, and what each puts in each layer
+	 */
+	private static final class Band {
+		int[] zero;
+		//coding passes of each code-block in each layer
+		int[][] passes;
+		int[] passesSoFar;
+		int[] lblock;
+		boolean[] included;
+		TagTree inclusion;
+		TagTree zeroBitPlanes;
+	}
+
+	/**
+	 * @param pJp2Profile profile to take the coding parameters from
+	 */
+	public JP2Generator(JP2Profile pJp2Profile) {
+		this(pJp2Profile, 0);
+	}
+
+	/**
+	 * @param pJp2Profile profile to take the coding parameters from
+	 * @param pSeed seed for the random bytes in corrupt files
+	 */
+	public JP2Generator(JP2Profile pJp2Profile, long pSeed) {
+		profile = pJp2Profile;
+		random = new Random(pSeed);
+	}
+
+	/**
+	 * @param pWidth image width
+	 * @param pHeight image height
+	 */
+	public void setImageSize(int pWidth, int pHeight) {
+		width = pWidth;
+		height = pHeight;
+	}
+
+	/**
+	 * @param pComponents number of components (1 or 3)
+	 * @param pBitDepth bits per component
+	 */
+	public void setComponents(int pComponents, int pBitDepth) {
+		components = pComponents;
+		bitDepth = pBitDepth;
+	}
+
+	/**
+	 * @param pComment comment written to the codestream (reported as the encoder)
+	 */
+	public void setComment(String pComment) {
+		comment = pComment;
+	}
+
+	/**
+	 * @param pPacketLengths true to write PLT markers in each tile-part header
+	 */
+	public void setPacketLengths(boolean pPacketLengths) {
+		packetLengths = pPacketLengths;
+	}
+
+	/**
+	 * @param pCodeBlockData true to write packets with code-blocks in them rather than empty ones
+	 */
+	public void setCodeBlockData(boolean pCodeBlockData) {
+		codeBlockData = pCodeBlockData;
+	}
+
+	private static int log2(int pValue) {
+		return 31-Integer.numberOfLeadingZeros(pValue);
+	}
+
+	/**
+	 * @return the parameters a file encoded to the profile would have
+	 */
+	JP2Header parameters() {
+		JP2Header h = new JP2Header();
+		h.signatureBox = true;
+		h.fileTypeBox = true;
+		h.jp2Compatible = true;
+		h.headerBox = true;
+		h.imageHeaderBox = true;
+		h.colourBox = true;
+		h.codestreamBox = true;
+		h.width = width;
+		h.height = height;
+		h.nC = components;
+		h.bPC = bitDepth-1;
+
+		h.siz = true;
+		h.xsiz = width;
+		h.ysiz = height;
+		h.xTsiz = profile.tiled ? profile.tileDim : width;
+		h.yTsiz = profile.tiled ? profile.tileDim : height;
+		h.csiz = components;
+		h.ssiz = new int[components];
+		h.xRsiz = new int[components];
+		h.yRsiz = new int[components];
+		for(int c=0;c<components;c++) {
+			h.ssiz[c] = bitDepth-1;
+			h.xRsiz[c] = 1;
+			h.yRsiz[c] = 1;
+		}
+
+		h.cod = true;
+		h.order = Arrays.asList(JP2Header.ORDERS).indexOf(profile.progressionOrder.toUpperCase());
+		if(h.order<0) throw new IllegalArgumentException("unknown progression order: "+profile.progressionOrder);
+		h.scod = (profile.precincts.length>0 ? 1 : 0)|(profile.SOP ? 2 : 0)|(profile.EPH ? 4 : 0);
+		h.layers = profile.compressionRates.length;
+		h.mct = components==3 ? 1 : 0;
+		h.levels = profile.levels;
+		h.xcb = log2(profile.codeblockSize)-2;
+		h.ycb = h.xcb;
+		h.cbStyle = profile.coderBypass ? 1 : 0;
+		h.transformation = profile.irreversible ? 0 : 1;
+		if(profile.precincts.length>0) setPrecincts(h, profile.precincts);
+		setQuantization(h);
+		h.comments.add(comment);
+		return h;
+	}
+
+	/**
+	 * @param pPrecincts precinct sizes, highest resolution first as in the profile
+	 */
+	private static void setPrecincts(JP2Header pHeader, int[] pPrecincts) {
+		pHeader.precinctX = new int[pHeader.levels+1];
+		pHeader.precinctY = new int[pHeader.levels+1];
+		for(int r=0;r<=pHeader.levels;r++) {
+			//profiles may list fewer sizes than resolutions, the smallest applies to the rest
+			int size = pPrecincts[Math.min(pHeader.levels-r, pPrecincts.length-1)];
+			pHeader.precinctX[r] = log2(size);
+			pHeader.precinctY[r] = log2(size);
+		}
+	}
+
+	private void setQuantization(JP2Header pHeader) {
+		int bands = 3*pHeader.levels+1;
+		pHeader.qcd = true;
+		pHeader.guardBits = 2;
+		pHeader.qcdExponents = new int[bands];
+		pHeader.qcdMantissas = new int[bands];
+		//no quantization for 5-3, otherwise expounded step sizes
+		pHeader.qcdStyle = pHeader.transformation==1 ? 0 : 2;
+		for(int b=0;b<bands;b++) {
+			//gain of the subband: LL 0, HL and LH 1, HH 2
+			int gain = b==0 ? 0 : ((b-1)%3==2 ? 2 : 1);
+			pHeader.qcdExponents[b] = bitDepth+gain;
+		}
+	}
+
+	/**
+	 * Change the parameters so they no longer match the profile
+	 */
+	private void mismatch(JP2Header pHeader, Defect pDefect) {
+		switch(pDefect) {
+		case ORDER:
+			pHeader.order = (pHeader.order+1)%JP2Header.ORDERS.length;
+			break;
+		case LEVELS:
+			int[] precincts = new int[pHeader.precinctX.length];
+			for(int r=0;r<precincts.length;r++) precincts[r] = 1<<pHeader.precinctX[precincts.length-1-r];
+			pHeader.levels = pHeader.levels>1 ? pHeader.levels-1 : pHeader.levels+1;
+			if(precincts.length>0) setPrecincts(pHeader, precincts);
+			setQuantization(pHeader);
+			break;
+		case LAYERS:
+			pHeader.layers++;
+			break;
+		case PRECINCTS:
+			if((pHeader.scod&1)!=0) {
+				//precincts half the size
+				for(int r=0;r<pHeader.precinctX.length;r++) {
+					pHeader.precinctX[r] = Math.max(r==0 ? 0 : 1, pHeader.precinctX[r]-1);
+					pHeader.precinctY[r] = pHeader.precinctX[r];
+				}
+			} else {
+				pHeader.scod |= 1;
+				setPrecincts(pHeader, new int[] { 256 });
+			}
+			break;
+		case CODEBLOCK:
+			pHeader.xcb = pHeader.xcb>0 ? pHeader.xcb-1 : pHeader.xcb+1;
+			pHeader.ycb = pHeader.xcb;
+			break;
+		case BYPASS:
+			pHeader.cbStyle ^= 1;
+			break;
+		case TRANSFORMATION:
+			pHeader.transformation ^= 1;
+			setQuantization(pHeader);
+			break;
+		case TILING:
+			if(profile.tiled) {
+				pHeader.xTsiz = width;
+				pHeader.yTsiz = height;
+			} else {
+				pHeader.xTsiz = DEFECT_TILE;
+				pHeader.yTsiz = DEFECT_TILE;
+			}
+			break;
+		case SOP:
+			pHeader.scod ^= 2;
+			break;
+		case EPH:
+			pHeader.scod ^= 4;
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Generate a file
+	 * @param pDefect defect to inject, or NONE
+	 * @return contents of the file
+	 */
+	public byte[] generate(Defect pDefect) {
+		JP2Header header = parameters();
+		mismatch(header, pDefect);
+		if(pDefect==Defect.IHDR_MISMATCH) header.width++;
+		byte[] file;
+		try {
+			file = write(header, pDefect!=Defect.NO_COD, pDefect==Defect.CORRUPT_PACKETS);
+		} catch(IOException e) {
+			//only writing to memory
+			throw new IllegalStateException(e);
+		}
+		if(pDefect==Defect.BAD_SIGNATURE) {
+			file[8] = (byte)(file[8]^0xFF);
+		} else if(pDefect==Defect.TRUNCATED) {
+			//part way through SIZ
+			file = Arrays.copyOf(file, (int)header.codestreamOffset+20);
+		}
+		return file;
+	}
+
+	/**
+	 * Generate a file and write it to disk
+	 * @param pFile file to write
+	 * @param pDefect defect to inject, or NONE
+	 * @throws IOException on error
+	 */
+	public void write(String pFile, Defect pDefect) throws IOException {
+		Files.write(new File(pFile).toPath(), generate(pDefect));
+	}
+
+	private byte[] write(JP2Header pHeader, boolean pWriteCod, boolean pCorruptPackets) throws IOException {
+		ByteArrayOutputStream codestream = new ByteArrayOutputStream();
+		DataOutputStream cs = new DataOutputStream(codestream);
+		cs.writeShort(JP2Header.SOC);
+
+		cs.writeShort(JP2Header.SIZ);
+		cs.writeShort(38+3*pHeader.csiz);
+		cs.writeShort(pHeader.rsiz);
+		for(long v:new long[] { pHeader.xsiz, pHeader.ysiz, pHeader.xOsiz, pHeader.yOsiz,
+				pHeader.xTsiz, pHeader.yTsiz, pHeader.xTOsiz, pHeader.yTOsiz }) {
+			cs.writeInt((int)v);
+		}
+		cs.writeShort(pHeader.csiz);
+		for(int c=0;c<pHeader.csiz;c++) {
+			cs.writeByte(pHeader.ssiz[c]);
+			cs.writeByte(pHeader.xRsiz[c]);
+			cs.writeByte(pHeader.yRsiz[c]);
+		}
+
+		if(pWriteCod) {
+			cs.writeShort(JP2Header.COD);
+			cs.writeShort(12+pHeader.precinctX.length);
+			cs.writeByte(pHeader.scod);
+			cs.writeByte(pHeader.order);
+			cs.writeShort(pHeader.layers);
+			cs.writeByte(pHeader.mct);
+			cs.writeByte(pHeader.levels);
+			cs.writeByte(pHeader.xcb);
+			cs.writeByte(pHeader.ycb);
+			cs.writeByte(pHeader.cbStyle);
+			cs.writeByte(pHeader.transformation);
+			for(int r=0;r<pHeader.precinctX.length;r++) {
+				cs.writeByte((pHeader.precinctY[r]<<4)|pHeader.precinctX[r]);
+			}
+		}
+
+		cs.writeShort(JP2Header.QCD);
+		boolean reversible = pHeader.qcdStyle==0;
+		cs.writeShort(3+pHeader.qcdExponents.length*(reversible ? 1 : 2));
+		cs.writeByte((pHeader.guardBits<<5)|pHeader.qcdStyle);
+		for(int b=0;b<pHeader.qcdExponents.length;b++) {
+			if(reversible) cs.writeByte(pHeader.qcdExponents[b]<<3);
+			else cs.writeShort((pHeader.qcdExponents[b]<<11)|pHeader.qcdMantissas[b]);
+		}
+
+		for(String text:pHeader.comments) {
+			byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+			cs.writeShort(JP2Header.COM);
+			cs.writeShort(4+bytes.length);
+			cs.writeShort(1);
+			cs.write(bytes);
+		}
+
+		long tiles = pHeader.numberOfTiles();
+		for(int t=0;t<tiles;t++) {
+			//one tile-part per tile
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			List<Integer> lengths = writePackets(pHeader, t, pCorruptPackets, new DataOutputStream(body));
+			ByteArrayOutputStream plt = new ByteArrayOutputStream();
+			if(packetLengths) writePacketLengths(lengths, new DataOutputStream(plt));
+			cs.writeShort(JP2Header.SOT);
+			cs.writeShort(10);
+			cs.writeShort(t);
+			cs.writeInt(12+plt.size()+2+body.size());
+			cs.writeByte(0);
+			cs.writeByte(1);
+			plt.writeTo(cs);
+			cs.writeShort(JP2Header.SOD);
+			body.writeTo(cs);
+		}
+		cs.writeShort(JP2Header.EOC);
+
+		ByteArrayOutputStream file = new ByteArrayOutputStream(codestream.size()+128);
+		DataOutputStream out = new DataOutputStream(file);
+		out.writeInt(12);
+		out.writeInt(JP2Header.BOX_SIGNATURE);
+		out.writeInt(JP2Header.SIGNATURE);
+		out.writeInt(20);
+		out.writeInt(JP2Header.BOX_FILETYPE);
+		out.writeInt(JP2Header.BRAND_JP2);
+		out.writeInt(0);
+		out.writeInt(JP2Header.BRAND_JP2);
+		out.writeInt(8+22+15);
+		out.writeInt(JP2Header.BOX_HEADER);
+		out.writeInt(22);
+		out.writeInt(JP2Header.BOX_IMAGEHEADER);
+		out.writeInt((int)pHeader.height);
+		out.writeInt((int)pHeader.width);
+		out.writeShort(pHeader.nC);
+		out.writeByte(pHeader.bPC);
+		out.writeByte(7);//compression type, always 7
+		out.writeByte(0);//colourspace known
+		out.writeByte(0);//no intellectual property box
+		out.writeInt(15);
+		out.writeInt(JP2Header.BOX_COLOUR);
+		out.writeByte(1);//enumerated
+		out.writeByte(0);
+		out.writeByte(0);
+		out.writeInt(pHeader.nC==3 ? 16 : 17);//sRGB or greyscale
+		out.writeInt(8+codestream.size());
+		out.writeInt(JP2Header.BOX_CODESTREAM);
+		pHeader.codestreamOffset = file.size();
+		out.write(codestream.toByteArray());
+		return file.toByteArray();
+	}
+
+	/**
+	 * Write the packets of a tile, in progression order
+	 * @return the length of each packet
+	 */
+	private List<Integer> writePackets(JP2Header pHeader, int pTile, boolean pCorruptPackets, DataOutputStream pOut) throws IOException {
+		boolean sop = (pHeader.scod&2)!=0;
+		boolean eph = (pHeader.scod&4)!=0;
+		List<int[]> progression = progression(pHeader, pTile);
+		int packets = progression.size();
+		HashMap<Long, Band[]> precincts = new HashMap<Long, Band[]>();
+		List<Integer> lengths = new ArrayList<Integer>();
+		for(int p=0;p<packets;p++) {
+			int start = pOut.size();
+			if(sop) {
+				pOut.writeShort(JP2Header.SOP);
+				pOut.writeShort(4);
+				pOut.writeShort(p&0xFFFF);
+			}
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			if(pCorruptPackets) {
+				//anything but 0xFF so no marker is made by accident
+				pOut.writeByte(random.nextInt(0xFF));
+			} else if(codeBlockData) {
+				int[] packet = progression.get(p);
+				long id = ((long)packet[2]*(pHeader.levels+1)+packet[1])*Integer.MAX_VALUE+packet[3];
+				Band[] bands = precincts.get(id);
+				if(bands==null) {
+					bands = precinct(pHeader, pTile, packet[2], packet[1], packet[3]);
+					precincts.put(id, bands);
+				}
+				pOut.write(packetHeader(pHeader, bands, packet[0], data));
+			} else {
+				//an empty packet is a single zero bit
+				pOut.writeByte(0);
+			}
+			if(eph) pOut.writeShort(JP2Header.EPH);
+			data.writeTo(pOut);
+			lengths.add(pOut.size()-start);
+		}
+		return lengths;
+	}
+
+	/**
+	 * Write PLT marker segments, a segment holds up to 65532 bytes of lengths (A.7.3)
+	 */
+	private static void writePacketLengths(List<Integer> pLengths, DataOutputStream pOut) throws IOException {
+		ByteArrayOutputStream segment = new ByteArrayOutputStream();
+		int z = 0;
+		for(int i=0;i<=pLengths.size();i++) {
+			byte[] iplt = new byte[0];
+			if(i<pLengths.size()) {
+				//7 bits a byte, most significant first, the top bit set on all but the last
+				int length = pLengths.get(i);
+				iplt = new byte[Math.max(1, (38-Integer.numberOfLeadingZeros(length))/7)];
+				for(int j=iplt.length-1;j>=0;j--) {
+					iplt[j] = (byte)((length&0x7F)|(j==iplt.length-1 ? 0 : 0x80));
+					length >>>= 7;
+				}
+			}
+			if(segment.size()>0&&(i==pLengths.size()||segment.size()+iplt.length>65532)) {
+				pOut.writeShort(JP2Header.PLT);
+				pOut.writeShort(3+segment.size());
+				pOut.writeByte(z++);
+				segment.writeTo(pOut);
+				segment.reset();
+			}
+			segment.write(iplt);
+		}
+	}
+
+	/*
+	 * The progression and geometry below follow the standard directly and do not use the
+	 * decoder's code, so a mistake in one shows up as a difference between the two in the tests.
+	 */
+
+	private static long ceilDiv(long pValue, long pDivisor) {
+		return -Math.floorDiv(-pValue, pDivisor);
+	}
+
+	/**
+	 * @return x0, y0, x1, y1 of a tile on the reference grid (B-7)
+	 */
+	private static long[] tileArea(JP2Header pHeader, int pTile) {
+		long across = ceilDiv(pHeader.xsiz-pHeader.xTOsiz, pHeader.xTsiz);
+		long tx = pTile%across;
+		long ty = pTile/across;
+		return new long[] { Math.max(pHeader.xTOsiz+tx*pHeader.xTsiz, pHeader.xOsiz),
+				Math.max(pHeader.yTOsiz+ty*pHeader.yTsiz, pHeader.yOsiz),
+				Math.min(pHeader.xTOsiz+(tx+1)*pHeader.xTsiz, pHeader.xsiz),
+				Math.min(pHeader.yTOsiz+(ty+1)*pHeader.yTsiz, pHeader.ysiz) };
+	}
+
+	/**
+	 * @return x0, y0, x1, y1 of a resolution of a tile-component (B-12, B-14)
+	 */
+	private static long[] resolutionArea(JP2Header pHeader, long[] pTile, int pComponent, int pResolution) {
+		long dx = (long)pHeader.xRsiz[pComponent]<<(pHeader.levels-pResolution);
+		long dy = (long)pHeader.yRsiz[pComponent]<<(pHeader.levels-pResolution);
+		return new long[] { ceilDiv(pTile[0], dx), ceilDiv(pTile[1], dy), ceilDiv(pTile[2], dx), ceilDiv(pTile[3], dy) };
+	}
+
+	private static int precinctWidth(JP2Header pHeader, int pResolution) {
+		return (pHeader.scod&1)!=0 ? pHeader.precinctX[pResolution] : 15;
+	}
+
+	private static int precinctHeight(JP2Header pHeader, int pResolution) {
+		return (pHeader.scod&1)!=0 ? pHeader.precinctY[pResolution] : 15;
+	}
+
+	/**
+	 * @return how many cells of size 2^pExponent the range [pStart, pEnd) touches
+	 */
+	private static long cells(long pStart, long pEnd, int pExponent) {
+		return pEnd>pStart ? ((pEnd-1)>>pExponent)-(pStart>>pExponent)+1 : 0;
+	}
+
+	/**
+	 * The packets of a tile in progression order, by stepping through the layers, resolutions,
+	 * components and positions of the tile in the order set out in B.12.1
+	 * @return layer, resolution, component and precinct of each packet
+	 */
+	private static List<int[]> progression(JP2Header pHeader, int pTile) {
+		long[] tile = tileArea(pHeader, pTile);
+		int levels = pHeader.levels;
+		List<int[]> packets = new ArrayList<int[]>();
+		String order = JP2Header.ORDERS[pHeader.order];
+		if(order.equals("LRCP")||order.equals("RLCP")) {
+			boolean layerFirst = order.equals("LRCP");
+			for(int i=0;i<(layerFirst ? pHeader.layers : levels+1);i++) {
+				for(int j=0;j<(layerFirst ? levels+1 : pHeader.layers);j++) {
+					int l = layerFirst ? i : j;
+					int r = layerFirst ? j : i;
+					for(int c=0;c<pHeader.csiz;c++) {
+						long[] res = resolutionArea(pHeader, tile, c, r);
+						long count = cells(res[0], res[2], precinctWidth(pHeader, r))*cells(res[1], res[3], precinctHeight(pHeader, r));
+						for(int p=0;p<count;p++) {
+							packets.add(new int[] { l, r, c, p });
+						}
+					}
+				}
+			}
+			return packets;
+		}
+
+		//the position orders step over the tile in the smallest precinct step of any resolution
+		long stepX = Long.MAX_VALUE;
+		long stepY = Long.MAX_VALUE;
+		for(int c=0;c<pHeader.csiz;c++) {
+			for(int r=0;r<=levels;r++) {
+				stepX = Math.min(stepX, (long)pHeader.xRsiz[c]<<(precinctWidth(pHeader, r)+levels-r));
+				stepY = Math.min(stepY, (long)pHeader.yRsiz[c]<<(precinctHeight(pHeader, r)+levels-r));
+			}
+		}
+		List<long[]> positions = new ArrayList<long[]>();
+		for(long y=tile[1];y<tile[3];y+=stepY-y%stepY) {
+			for(long x=tile[0];x<tile[2];x+=stepX-x%stepX) {
+				positions.add(new long[] { x, y });
+			}
+		}
+		if(order.equals("RPCL")) {
+			for(int r=0;r<=levels;r++) {
+				for(long[] position:positions) {
+					for(int c=0;c<pHeader.csiz;c++) {
+						addLayers(pHeader, tile, c, r, position, packets);
+					}
+				}
+			}
+		} else if(order.equals("PCRL")) {
+			for(long[] position:positions) {
+				for(int c=0;c<pHeader.csiz;c++) {
+					for(int r=0;r<=levels;r++) {
+						addLayers(pHeader, tile, c, r, position, packets);
+					}
+				}
+			}
+		} else {
+			for(int c=0;c<pHeader.csiz;c++) {
+				for(long[] position:positions) {
+					for(int r=0;r<=levels;r++) {
+						addLayers(pHeader, tile, c, r, position, packets);
+					}
+				}
+			}
+		}
+		return packets;
+	}
+
+	/**
+	 * Add the packets of every layer for the precinct of a resolution that starts at a position
+	 */
+	private static void addLayers(JP2Header pHeader, long[] pTile, int pComponent, int pResolution, long[] pPosition, List<int[]> pPackets) {
+		int precinct = precinctAt(pHeader, pTile, pComponent, pResolution, pPosition[0], pPosition[1]);
+		if(precinct<0) return;
+		for(int l=0;l<pHeader.layers;l++) {
+			pPackets.add(new int[] { l, pResolution, pComponent, precinct });
+		}
+	}
+
+	/**
+	 * @return the precinct of a resolution that starts at a position of the tile, -1 if none does (B.12.1.3)
+	 */
+	private static int precinctAt(JP2Header pHeader, long[] pTile, int pComponent, int pResolution, long pX, long pY) {
+		int scale = pHeader.levels-pResolution;
+		int ppx = precinctWidth(pHeader, pResolution);
+		int ppy = precinctHeight(pHeader, pResolution);
+		long[] res = resolutionArea(pHeader, pTile, pComponent, pResolution);
+		if(res[0]==res[2]||res[1]==res[3]) return -1;
+		long xr = pHeader.xRsiz[pComponent];
+		long yr = pHeader.yRsiz[pComponent];
+		boolean startY = pY%(yr<<(ppy+scale))==0||(pY==pTile[1]&&(res[1]<<scale)%(1L<<(ppy+scale))!=0);
+		boolean startX = pX%(xr<<(ppx+scale))==0||(pX==pTile[0]&&(res[0]<<scale)%(1L<<(ppx+scale))!=0);
+		if(!startX||!startY) return -1;
+		long across = cells(res[0], res[2], ppx);
+		long i = (ceilDiv(pX, xr<<scale)>>ppx)-(res[0]>>ppx);
+		long j = (ceilDiv(pY, yr<<scale)>>ppy)-(res[1]>>ppy);
+		return (int)(i+j*across);
+	}
+
+	/**
+	 * @return code-blocks across and down in each band of a precinct (B.6, B.7)
+	 */
+	private static int[][] grid(JP2Header pHeader, int pTile, int pComponent, int pResolution, int pPrecinct) {
+		long[] tile = tileArea(pHeader, pTile);
+		long[] res = resolutionArea(pHeader, tile, pComponent, pResolution);
+		int ppx = precinctWidth(pHeader, pResolution);
+		int ppy = precinctHeight(pHeader, pResolution);
+		long across = cells(res[0], res[2], ppx);
+		//precinct index on the whole resolution, not just this tile
+		long kx = (res[0]>>ppx)+pPrecinct%across;
+		long ky = (res[1]>>ppy)+pPrecinct/across;
+		if(pResolution==0) {
+			int cbx = Math.min(pHeader.xcb+2, ppx);
+			int cby = Math.min(pHeader.ycb+2, ppy);
+			long x0 = Math.max(res[0], kx<<ppx);
+			long y0 = Math.max(res[1], ky<<ppy);
+			long x1 = Math.min(res[2], (kx+1)<<ppx);
+			long y1 = Math.min(res[3], (ky+1)<<ppy);
+			return new int[][] { { (int)cells(x0, x1, cbx), (int)cells(y0, y1, cby) } };
+		}
+		//the high pass bands are half the size of the resolution, and so are their precincts
+		int cbx = Math.min(pHeader.xcb+2, ppx-1);
+		int cby = Math.min(pHeader.ycb+2, ppy-1);
+		long tcx0 = ceilDiv(tile[0], pHeader.xRsiz[pComponent]);
+		long tcy0 = ceilDiv(tile[1], pHeader.yRsiz[pComponent]);
+		long tcx1 = ceilDiv(tile[2], pHeader.xRsiz[pComponent]);
+		long tcy1 = ceilDiv(tile[3], pHeader.yRsiz[pComponent]);
+		int nb = pHeader.levels-pResolution+1;
+		long half = 1L<<(nb-1);
+		int[][] grid = new int[3][];
+		//HL, LH, HH
+		int[][] offsets = { { 1, 0 }, { 0, 1 }, { 1, 1 } };
+		for(int b=0;b<3;b++) {
+			long bx0 = ceilDiv(tcx0-half*offsets[b][0], 1L<<nb);
+			long by0 = ceilDiv(tcy0-half*offsets[b][1], 1L<<nb);
+			long bx1 = ceilDiv(tcx1-half*offsets[b][0], 1L<<nb);
+			long by1 = ceilDiv(tcy1-half*offsets[b][1], 1L<<nb);
+			long x0 = Math.max(bx0, kx<<(ppx-1));
+			long y0 = Math.max(by0, ky<<(ppy-1));
+			long x1 = Math.min(bx1, (kx+1)<<(ppx-1));
+			long y1 = Math.min(by1, (ky+1)<<(ppy-1));
+			if(x1<=x0||y1<=y0) grid[b] = new int[] { 0, 0 };
+			else grid[b] = new int[] { (int)cells(x0, x1, cbx), (int)cells(y0, y1, cby) };
+		}
+		return grid;
+	}
+
+	/**
+	 * @return Mb for a band of a resolution, b is 0 for LL or HL, 1 for LH and 2 for HH (E-2, E-5)
+	 */
+	private static int bitPlanes(JP2Header pHeader, int pResolution, int pBand) {
+		int exponent;
+		if(pHeader.qcdStyle==1) {
+			//derived from the LL exponent by the decomposition level of the band
+			int nb = pResolution==0 ? pHeader.levels : pHeader.levels-pResolution+1;
+			exponent = pHeader.qcdExponents[0]-pHeader.levels+nb;
+		} else {
+			exponent = pHeader.qcdExponents[pResolution==0 ? 0 : 3*pResolution-2+pBand];
+		}
+		return pHeader.guardBits+exponent-1;
+	}
+
+	/**
+	 * Plan what each code-block of a precinct puts in each layer
+	 */
+	private Band[] precinct(JP2Header pHeader, int pTile, int pComponent, int pResolution, int pPrecinct) {
+		int[][] grid = grid(pHeader, pTile, pComponent, pResolution, pPrecinct);
+		Band[] bands = new Band[grid.length];
+		for(int b=0;b<grid.length;b++) {
+			int codeBlocks = grid[b][0]*grid[b][1];
+			int bitPlanes = bitPlanes(pHeader, pResolution, b);
+			Band band = new Band();
+			band.zero = new int[codeBlocks];
+			band.passes = new int[codeBlocks][pHeader.layers];
+			band.passesSoFar = new int[codeBlocks];
+			band.lblock = new int[codeBlocks];
+			band.included = new boolean[codeBlocks];
+			Arrays.fill(band.lblock, 3);
+			int[] first = new int[codeBlocks];
+			for(int cb=0;cb<codeBlocks;cb++) {
+				//a few code-blocks start in a later layer, or never
+				first[cb] = random.nextInt(3)==0 ? random.nextInt(pHeader.layers+1) : 0;
+				band.zero[cb] = random.nextInt(bitPlanes);
+				int left = 3*(bitPlanes-band.zero[cb])-2;
+				for(int l=first[cb];l<pHeader.layers&&left>0;l++) {
+					int passes;
+					if(random.nextInt(8)==0) passes = left;
+					else if(l>first[cb]&&random.nextInt(3)==0) passes = 0;
+					else passes = 1+random.nextInt(Math.min(left, 8));
+					band.passes[cb][l] = passes;
+					left -= passes;
+				}
+			}
+			if(codeBlocks>0) {
+				band.inclusion = new TagTree(grid[b][0], grid[b][1], first);
+				band.zeroBitPlanes = new TagTree(grid[b][0], grid[b][1], band.zero);
+			}
+			bands[b] = band;
+		}
+		return bands;
+	}
+
+	/**
+	 * @return the codeword segment a coding pass ends up in (D.4.1)
+	 */
+	private static int segment(JP2Header pHeader, int pPass) {
+		//termination on each pass
+		if((pHeader.cbStyle&4)!=0) return pPass;
+		if((pHeader.cbStyle&1)==0||pPass<10) return 0;
+		//selective arithmetic coding bypass: after 10 passes, 2 raw then 1 MQ
+		int pass = pPass-10;
+		return 1+2*(pass/3)+(pass%3==2 ? 1 : 0);
+	}
+
+	/**
+	 * Encode a packet header, and put random code-block data in pData
+	 * @return the packet header
+	 */
+	private byte[] packetHeader(JP2Header pHeader, Band[] pBands, int pLayer, ByteArrayOutputStream pData) {
+		BitWriter bits = new BitWriter();
+		boolean empty = true;
+		for(Band band:pBands) {
+			for(int[] passes:band.passes) {
+				if(passes[pLayer]>0) empty = false;
+			}
+		}
+		bits.bit(empty ? 0 : 1);
+		if(empty) return bits.finish();
+		for(Band band:pBands) {
+			for(int cb=0;cb<band.passes.length;cb++) {
+				int passes = band.passes[cb][pLayer];
+				if(!band.included[cb]) {
+					band.inclusion.encode(bits, cb, pLayer+1);
+					if(passes==0) continue;
+					band.zeroBitPlanes.encode(bits, cb, band.zero[cb]+1);
+					band.included[cb] = true;
+				} else {
+					bits.bit(passes>0 ? 1 : 0);
+					if(passes==0) continue;
+				}
+
+				//number of coding passes (table B.4)
+				if(passes==1) bits.bit(0);
+				else if(passes==2) bits.bits(2, 2);
+				else if(passes<=5) bits.bits((3<<2)|(passes-3), 4);
+				else if(passes<=36) bits.bits((0xF<<5)|(passes-6), 9);
+				else bits.bits((0x1FF<<7)|(passes-37), 16);
+
+				//split the passes into the codeword segments they fall in
+				List<Integer> segments = new ArrayList<Integer>();
+				int pass = band.passesSoFar[cb];
+				int end = pass+passes;
+				while(pass<end) {
+					int segment = segment(pHeader, pass);
+					int count = 0;
+					while(pass<end&&segment(pHeader, pass)==segment) {
+						pass++;
+						count++;
+					}
+					segments.add(count);
+				}
+				band.passesSoFar[cb] = end;
+
+				//an occasional long segment makes Lblock grow
+				int[] lengths = new int[segments.size()];
+				int increase = 0;
+				for(int i=0;i<lengths.length;i++) {
+					lengths[i] = random.nextInt(16)==0 ? 200+random.nextInt(400) : 1+random.nextInt(20);
+					int needed = 32-Integer.numberOfLeadingZeros(lengths[i]);
+					increase = Math.max(increase, needed-band.lblock[cb]-log2(segments.get(i)));
+				}
+				for(int i=0;i<increase;i++) bits.bit(1);
+				bits.bit(0);
+				band.lblock[cb] += increase;
+				for(int i=0;i<lengths.length;i++) {
+					bits.bits(lengths[i], band.lblock[cb]+log2(segments.get(i)));
+					for(int j=0;j<lengths[i];j++) {
+						//anything but 0xFF so no marker is made by accident
+						pData.write(random.nextInt(0xFF));
+					}
+				}
+			}
+		}
+		return bits.finish();
+	}
+
+	/**
+	 * Write a corpus of generated files
+	 * @param args -profile file.xml, -out directory, -count n, -defectRate fraction, -seed n, -size WxH
+	 */
+	public static void main(String[] args) {
+		JP2Profile jp2Profile = new JP2Profile();
+		String out = "generated";
+		long count = 1000;
+		double defectRate = 0;
+		long seed = 1;
+		int width = 0;
+		int height = 0;
+		try {
+			for(int i=0;i<args.length;i++) {
+				if(args[i].equals("-profile")&&i+1<args.length) {
+					jp2Profile = JP2Check.loadProfile(args[++i]);
+				} else if(args[i].equals("-out")&&i+1<args.length) {
+					out = args[++i];
+				} else if(args[i].equals("-count")&&i+1<args.length) {
+					count = Long.parseLong(args[++i]);
+				} else if(args[i].equals("-defectRate")&&i+1<args.length) {
+					defectRate = Double.parseDouble(args[++i]);
+				} else if(args[i].equals("-seed")&&i+1<args.length) {
+					seed = Long.parseLong(args[++i]);
+				} else if(args[i].equals("-size")&&i+1<args.length) {
+					String[] size = args[++i].split("x");
+					width = Integer.parseInt(size[0]);
+					height = Integer.parseInt(size[1]);
+				}
+			}
+		} catch(IOException e) {
+			System.out.println("Error loading profile: "+e);
+			return;
+		}
+
+		JP2Generator generator = new JP2Generator(jp2Profile, seed);
+		if(width>0&&height>0) generator.setImageSize(width, height);
+		Random random = new Random(seed);
+		Defect[] defects = Defect.values();
+		PrintWriter manifest = null;
+		try {
+			new File(out).mkdirs();
+			//the manifest records which defect each file has
+			manifest = new PrintWriter(new File(out, "manifest.csv"), "UTF-8");
+			manifest.println("file,defect");
+			for(long i=0;i<count;i++) {
+				//keep directories to a manageable size
+				File dir = new File(out, String.format("%06d", i/1000));
+				if(i%1000==0) dir.mkdirs();
+				Defect defect = Defect.NONE;
+				if(random.nextDouble()<defectRate) defect = defects[1+random.nextInt(defects.length-1)];
+				String file = new File(dir, String.format("gen-%09d.jp2", i)).getPath();
+				generator.write(file, defect);
+				manifest.println(file+","+defect);
+			}
+		} catch(IOException e) {
+			e.printStackTrace();
+		} finally {
+			if(manifest!=null) manifest.close();
+		}
+		System.out.println("Generated "+count+" files in "+out);
+	}
+
+}
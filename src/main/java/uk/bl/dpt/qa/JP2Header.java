@@ -0,0 +1,751 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+import uk.bl.dpt.qa.JP2Check.Keys;
+
+/**
+ * The JP2 header boxes and main codestream header of a file, read directly from a stream.
+ *
+ * Reading stops at the first tile-part (SOT marker), so only the first few KB of a file are
+ * needed.  The values are made available with the same keys (and the same formatting) that
+ * JP2Check.loadJpylyzerXML produces, so they can be compared with a profile in the same way.
+ *
+ * NOTE: validity here only covers the structure of the boxes and main header, it is not a
+ * replacement for the full set of jpylyzer tests.
+ * @author wpalmer
+ */
+@SuppressWarnings("javadoc")
+public class JP2Header {
+
+	//box types
+	static final int BOX_SIGNATURE = 0x6A502020;//"jP  "
+	static final int BOX_FILETYPE = 0x66747970;//"ftyp"
+	static final int BOX_HEADER = 0x6A703268;//"jp2h"
+	static final int BOX_IMAGEHEADER = 0x69686472;//"ihdr"
+	static final int BOX_COLOUR = 0x636F6C72;//"colr"
+	static final int BOX_CODESTREAM = 0x6A703263;//"jp2c"
+	static final int BRAND_JP2 = 0x6A703220;//"jp2 "
+	static final int SIGNATURE = 0x0D0A870A;
+
+	//codestream markers
+	static final int SOC = 0xFF4F;
+	static final int SIZ = 0xFF51;
+	static final int COD = 0xFF52;
+	static final int COC = 0xFF53;
+	static final int TLM = 0xFF55;
+	static final int PLM = 0xFF57;
+	static final int PLT = 0xFF58;
+	static final int QCD = 0xFF5C;
+	static final int QCC = 0xFF5D;
+	static final int RGN = 0xFF5E;
+	static final int POC = 0xFF5F;
+	static final int PPM = 0xFF60;
+	static final int COM = 0xFF64;
+	static final int SOT = 0xFF90;
+	static final int SOP = 0xFF91;
+	static final int EPH = 0xFF92;
+	static final int SOD = 0xFF93;
+	static final int EOC = 0xFFD9;
+
+	static final String[] ORDERS = { "LRCP", "RLCP", "RPCL", "PCRL", "CPRL" };
+
+	//name reported as the characterisation tool
+	public static final String TOOL = "jp2check header parser";
+
+	//boxes
+	public boolean signatureBox = false;
+	public boolean fileTypeBox = false;
+	public boolean jp2Compatible = false;
+	public boolean headerBox = false;
+	public boolean imageHeaderBox = false;
+	public boolean colourBox = false;
+	public boolean codestreamBox = false;
+	//image header box
+	public long height = 0;
+	public long width = 0;
+	public int nC = 0;
+	public int bPC = 0;
+
+	//SIZ
+	public boolean siz = false;
+	public int rsiz = 0;
+	public long xsiz = 0;
+	public long ysiz = 0;
+	public long xOsiz = 0;
+	public long yOsiz = 0;
+	public long xTsiz = 0;
+	public long yTsiz = 0;
+	public long xTOsiz = 0;
+	public long yTOsiz = 0;
+	public int csiz = 0;
+	//per component, as stored: bit 7 is the sign, the rest is depth-1
+	public int[] ssiz = new int[0];
+	public int[] xRsiz = new int[0];
+	public int[] yRsiz = new int[0];
+
+	//COD
+	public boolean cod = false;
+	public int scod = 0;
+	public int order = 0;
+	public int layers = 0;
+	public int mct = 0;
+	public int levels = 0;
+	//code-block size exponents, minus 2 as stored
+	public int xcb = 0;
+	public int ycb = 0;
+	public int cbStyle = 0;
+	public int transformation = 0;
+	//precinct size exponents, lowest resolution first (only if bit 0 of scod is set)
+	public int[] precinctX = new int[0];
+	public int[] precinctY = new int[0];
+
+	//QCD
+	public boolean qcd = false;
+	public int qcdStyle = 0;
+	public int guardBits = 0;
+	public int[] qcdExponents = new int[0];
+	public int[] qcdMantissas = new int[0];
+
+	//other main header markers
+	public boolean tlm = false;
+	public boolean plm = false;
+	public boolean ppm = false;
+	public boolean poc = false;
+	//region of interest, max-shift can add bit-planes beyond those in QCD
+	public boolean rgn = false;
+	public boolean componentOverrides = false;
+	public List<String> comments = new LinkedList<String>();
+
+	//offset of SOC, the first SOT, and the codestream length (-1 if unknown, e.g. a box to the end of file)
+	public long codestreamOffset = -1;
+	public long firstTileOffset = -1;
+	public long codestreamLength = -1;
+
+	//structural problems found while reading
+	public List<String> errors = new LinkedList<String>();
+	//the first layer of the lowest resolution, if it was decoded
+	public JP2PacketDecoder decoded = null;
+
+	/**
+	 * Keeps track of the position in the stream
+	 */
+	static final class Reader {
+		private final InputStream in;
+		long position = 0;
+
+		Reader(InputStream pIn) {
+			in = pIn;
+		}
+
+		int u8() throws IOException {
+			int b = in.read();
+			if(b<0) throw new EOFException("unexpected end of file at "+position);
+			position++;
+			return b;
+		}
+
+		int u16() throws IOException {
+			return (u8()<<8)|u8();
+		}
+
+		long u32() throws IOException {
+			return ((long)u16()<<16)|u16();
+		}
+
+		long u64() throws IOException {
+			return (u32()<<32)|u32();
+		}
+
+		byte[] bytes(int pLength) throws IOException {
+			byte[] buffer = new byte[pLength];
+			int read = 0;
+			while(read<pLength) {
+				int count = in.read(buffer, read, pLength-read);
+				if(count<0) throw new EOFException("unexpected end of file at "+position);
+				read += count;
+				position += count;
+			}
+			return buffer;
+		}
+
+		void skip(long pLength) throws IOException {
+			long remaining = pLength;
+			while(remaining>0) {
+				long skipped = in.skip(remaining);
+				if(skipped<=0) {
+					//skip() can return 0 without being at the end, so check with a read
+					if(in.read()<0) throw new EOFException("unexpected end of file at "+position);
+					skipped = 1;
+				}
+				remaining -= skipped;
+				position += skipped;
+			}
+		}
+	}
+
+	/**
+	 * Read the header of a JP2 file (or a raw JPEG 2000 codestream).
+	 * The stream is left positioned after the first SOT marker and is not closed.
+	 * @param pIn stream positioned at the start of the file
+	 * @return the header, check errors to see if it is valid
+	 * @throws IOException on a read error
+	 */
+	public static JP2Header read(InputStream pIn) throws IOException {
+		JP2Header header = new JP2Header();
+		Reader reader = new Reader(pIn);
+		try {
+			header.readBoxes(reader);
+		} catch(EOFException e) {
+			header.errors.add(e.getMessage());
+		}
+		header.validate();
+		return header;
+	}
+
+	private void readBoxes(Reader pReader) throws IOException {
+		int boxIndex = 0;
+		while(true) {
+			long start = pReader.position;
+			long length;
+			int type;
+			try {
+				length = pReader.u32();
+			} catch(EOFException e) {
+				if(boxIndex==0) throw e;
+				errors.add("no contiguous codestream box");
+				return;
+			}
+			if(boxIndex==0&&(length>>>16)==SOC) {
+				//a raw codestream, not a JP2
+				errors.add("not a JP2 file, raw codestream");
+				readCodestream(pReader, (int)(length&0xFFFF));
+				return;
+			}
+			type = (int)pReader.u32();
+			if(length==1) length = pReader.u64();
+			long contentLength = length==0 ? -1 : length-(pReader.position-start);
+
+			switch(type) {
+			case BOX_SIGNATURE:
+				if(boxIndex!=0) errors.add("signature box is not the first box");
+				signatureBox = pReader.u32()==SIGNATURE;
+				if(!signatureBox) errors.add("bad signature");
+				pReader.skip(contentLength-4);
+				break;
+			case BOX_FILETYPE:
+				if(boxIndex!=1) errors.add("file type box is not the second box");
+				fileTypeBox = true;
+				if(pReader.u32()==BRAND_JP2) jp2Compatible = true;
+				pReader.u32();//minor version
+				for(long i=8;i+4<=contentLength;i+=4) {
+					if(pReader.u32()==BRAND_JP2) jp2Compatible = true;
+				}
+				pReader.skip(contentLength%4);
+				break;
+			case BOX_HEADER:
+				headerBox = true;
+				readHeaderBox(pReader, contentLength);
+				break;
+			case BOX_CODESTREAM:
+				codestreamBox = true;
+				codestreamLength = contentLength;
+				readCodestream(pReader, -1);
+				//we don't need anything after the main header
+				return;
+			default:
+				if(contentLength<0) {
+					errors.add("no contiguous codestream box");
+					return;
+				}
+				pReader.skip(contentLength);
+			}
+			boxIndex++;
+		}
+	}
+
+	private void readHeaderBox(Reader pReader, long pLength) throws IOException {
+		long end = pReader.position+pLength;
+		boolean first = true;
+		while(pReader.position<end) {
+			long start = pReader.position;
+			long length = pReader.u32();
+			int type = (int)pReader.u32();
+			if(length==1) length = pReader.u64();
+			long contentLength = length-(pReader.position-start);
+			if(type==BOX_IMAGEHEADER) {
+				if(!first) errors.add("image header box is not the first box in the header box");
+				imageHeaderBox = true;
+				height = pReader.u32();
+				width = pReader.u32();
+				nC = pReader.u16();
+				bPC = pReader.u8();
+				pReader.skip(contentLength-11);
+			} else {
+				if(type==BOX_COLOUR) colourBox = true;
+				pReader.skip(contentLength);
+			}
+			first = false;
+		}
+	}
+
+	/**
+	 * @param pSocRead the marker after SOC if SOC has already been read, -1 otherwise
+	 */
+	private void readCodestream(Reader pReader, int pSocRead) throws IOException {
+		int marker;
+		if(pSocRead!=-1) {
+			codestreamOffset = pReader.position-4;
+			marker = pSocRead;
+		} else {
+			codestreamOffset = pReader.position;
+			if(pReader.u16()!=SOC) {
+				errors.add("codestream does not start with SOC");
+				return;
+			}
+			marker = pReader.u16();
+		}
+		boolean first = true;
+		while(true) {
+			if(!first) marker = pReader.u16();
+			if(marker==SOT) {
+				firstTileOffset = pReader.position-2;
+				return;
+			}
+			if((marker&0xFF00)!=0xFF00||marker==SOD||marker==EOC) {
+				errors.add(String.format("unexpected marker 0x%04X in main header at %d", marker, pReader.position-2));
+				return;
+			}
+			int length = pReader.u16();
+			if(length<2) {
+				errors.add(String.format("marker segment length %d too short at %d", length, pReader.position-2));
+				return;
+			}
+			byte[] segment = pReader.bytes(length-2);
+			if(first&&marker!=SIZ) errors.add("SIZ is not the first marker segment");
+			first = false;
+			switch(marker) {
+			case SIZ: readSIZ(segment); break;
+			case COD: readCOD(segment); break;
+			case QCD: readQCD(segment); break;
+			case COC:
+			case QCC: componentOverrides = true; break;
+			case TLM: tlm = true; break;
+			case PLM: plm = true; break;
+			case PPM: ppm = true; break;
+			case POC: poc = true; break;
+			case RGN: rgn = true; break;
+			case COM: readCOM(segment); break;
+			default: break;
+			}
+		}
+	}
+
+	private static int u8(byte[] pData, int pOffset) {
+		return pData[pOffset]&0xFF;
+	}
+
+	private static int u16(byte[] pData, int pOffset) {
+		return (u8(pData, pOffset)<<8)|u8(pData, pOffset+1);
+	}
+
+	private static long u32(byte[] pData, int pOffset) {
+		return ((long)u16(pData, pOffset)<<16)|u16(pData, pOffset+2);
+	}
+
+	private void readSIZ(byte[] pSegment) {
+		if(pSegment.length<36) {
+			errors.add("SIZ segment too short");
+			return;
+		}
+		siz = true;
+		rsiz = u16(pSegment, 0);
+		xsiz = u32(pSegment, 2);
+		ysiz = u32(pSegment, 6);
+		xOsiz = u32(pSegment, 10);
+		yOsiz = u32(pSegment, 14);
+		xTsiz = u32(pSegment, 18);
+		yTsiz = u32(pSegment, 22);
+		xTOsiz = u32(pSegment, 26);
+		yTOsiz = u32(pSegment, 30);
+		csiz = u16(pSegment, 34);
+		if(pSegment.length<36+3*csiz) {
+			errors.add("SIZ segment too short for "+csiz+" components");
+			csiz = (pSegment.length-36)/3;
+		}
+		ssiz = new int[csiz];
+		xRsiz = new int[csiz];
+		yRsiz = new int[csiz];
+		for(int c=0;c<csiz;c++) {
+			ssiz[c] = u8(pSegment, 36+3*c);
+			xRsiz[c] = u8(pSegment, 37+3*c);
+			yRsiz[c] = u8(pSegment, 38+3*c);
+		}
+	}
+
+	private void readCOD(byte[] pSegment) {
+		if(pSegment.length<10) {
+			errors.add("COD segment too short");
+			return;
+		}
+		cod = true;
+		scod = u8(pSegment, 0);
+		order = u8(pSegment, 1);
+		layers = u16(pSegment, 2);
+		mct = u8(pSegment, 4);
+		levels = u8(pSegment, 5);
+		xcb = u8(pSegment, 6);
+		ycb = u8(pSegment, 7);
+		cbStyle = u8(pSegment, 8);
+		transformation = u8(pSegment, 9);
+		if((scod&1)!=0) {
+			int count = Math.min(levels+1, pSegment.length-10);
+			if(count<levels+1) errors.add("COD segment too short for "+(levels+1)+" precinct sizes");
+			precinctX = new int[count];
+			precinctY = new int[count];
+			for(int r=0;r<count;r++) {
+				int b = u8(pSegment, 10+r);
+				precinctX[r] = b&0x0F;
+				precinctY[r] = b>>4;
+			}
+		}
+	}
+
+	private void readQCD(byte[] pSegment) {
+		if(pSegment.length<1) {
+			errors.add("QCD segment too short");
+			return;
+		}
+		qcd = true;
+		qcdStyle = u8(pSegment, 0)&0x1F;
+		guardBits = u8(pSegment, 0)>>5;
+		if(qcdStyle==0) {
+			qcdExponents = new int[pSegment.length-1];
+			qcdMantissas = new int[pSegment.length-1];
+			for(int i=0;i<qcdExponents.length;i++) {
+				qcdExponents[i] = u8(pSegment, 1+i)>>3;
+			}
+		} else {
+			qcdExponents = new int[(pSegment.length-1)/2];
+			qcdMantissas = new int[qcdExponents.length];
+			for(int i=0;i<qcdExponents.length;i++) {
+				int value = u16(pSegment, 1+2*i);
+				qcdExponents[i] = value>>11;
+				qcdMantissas[i] = value&0x7FF;
+			}
+		}
+	}
+
+	private void readCOM(byte[] pSegment) {
+		if(pSegment.length<2) return;
+		//only keep text comments
+		if(u16(pSegment, 0)==1) {
+			comments.add(new String(pSegment, 2, pSegment.length-2, StandardCharsets.ISO_8859_1));
+		}
+	}
+
+	/**
+	 * Check the values read are consistent
+	 */
+	private void validate() {
+		if(codestreamOffset<0) return;
+		if(!siz) errors.add("no SIZ marker segment");
+		if(!cod) errors.add("no COD marker segment");
+		if(!qcd) errors.add("no QCD marker segment");
+		if(firstTileOffset<0&&errors.isEmpty()) errors.add("no tile-parts");
+		if(!codestreamBox) return;
+
+		if(!signatureBox) errors.add("no signature box");
+		if(!fileTypeBox) errors.add("no file type box");
+		else if(!jp2Compatible) errors.add("file type box does not list jp2 compatibility");
+		if(!headerBox) errors.add("no JP2 header box");
+		if(!imageHeaderBox) errors.add("no image header box");
+		if(!colourBox) errors.add("no colour specification box");
+		if(siz) {
+			if(xTsiz==0||yTsiz==0) errors.add("tile size is zero");
+			if(xsiz<=xOsiz||ysiz<=yOsiz) errors.add("image size is zero");
+			if(imageHeaderBox) {
+				if(width!=xsiz-xOsiz) errors.add("width in image header box does not match SIZ");
+				if(height!=ysiz-yOsiz) errors.add("height in image header box does not match SIZ");
+				if(nC!=csiz) errors.add("number of components in image header box does not match SIZ");
+				//255 means the depth varies by component
+				if(bPC!=255&&csiz>0&&bPC!=ssiz[0]) errors.add("bit depth in image header box does not match SIZ");
+			}
+		}
+		if(cod) {
+			if(order>=ORDERS.length) errors.add("unknown progression order "+order);
+			if(layers==0) errors.add("zero quality layers");
+			if(levels>32) errors.add("more than 32 decomposition levels");
+			if(xcb>8||ycb>8||xcb+ycb>8) errors.add("bad code-block size");
+			if(transformation>1) errors.add("unknown wavelet transformation "+transformation);
+			for(int r=0;r<precinctX.length;r++) {
+				//profiles (and the jpylyzer properties) only describe square precincts
+				if(precinctX[r]!=precinctY[r]) errors.add("precinct size for resolution "+r+" is not square");
+			}
+		}
+	}
+
+	/**
+	 * @return true if the codestream header was read far enough to compare with a profile
+	 */
+	public boolean hasCodestreamHeader() {
+		return siz&&cod;
+	}
+
+	/**
+	 * @return true if no structural problems were found
+	 */
+	public boolean isValid() {
+		return errors.isEmpty();
+	}
+
+	/**
+	 * @return number of tiles in the image
+	 */
+	public long numberOfTiles() {
+		if(xTsiz==0||yTsiz==0) return 0;
+		long across = (xsiz-xTOsiz+xTsiz-1)/xTsiz;
+		long down = (ysiz-yTOsiz+yTsiz-1)/yTsiz;
+		return across*down;
+	}
+
+	private static long ceilDiv(long pValue, long pDivisor) {
+		return (pValue+pDivisor-1)/pDivisor;
+	}
+
+	/**
+	 * @param pTile tile index
+	 * @return x0, y0, x1, y1 of the tile on the reference grid
+	 */
+	public long[] tileBounds(int pTile) {
+		long across = ceilDiv(xsiz-xTOsiz, xTsiz);
+		long p = pTile%across;
+		long q = pTile/across;
+		return new long[] {
+				Math.max(xTOsiz+p*xTsiz, xOsiz), Math.max(yTOsiz+q*yTsiz, yOsiz),
+				Math.min(xTOsiz+(p+1)*xTsiz, xsiz), Math.min(yTOsiz+(q+1)*yTsiz, ysiz) };
+	}
+
+	/**
+	 * @param pTile tile index
+	 * @param pComponent component index
+	 * @param pResolution resolution level, 0 is the lowest
+	 * @return x0, y0, x1, y1 of the resolution level of a tile-component
+	 */
+	public long[] resolutionBounds(int pTile, int pComponent, int pResolution) {
+		long[] tile = tileBounds(pTile);
+		long scale = 1L<<(levels-pResolution);
+		return new long[] {
+				ceilDiv(ceilDiv(tile[0], xRsiz[pComponent]), scale), ceilDiv(ceilDiv(tile[1], yRsiz[pComponent]), scale),
+				ceilDiv(ceilDiv(tile[2], xRsiz[pComponent]), scale), ceilDiv(ceilDiv(tile[3], yRsiz[pComponent]), scale) };
+	}
+
+	/**
+	 * @param pResolution resolution level, 0 is the lowest
+	 * @return precinct width exponent (15 if no precincts are defined)
+	 */
+	public int precinctExponentX(int pResolution) {
+		return pResolution<precinctX.length ? precinctX[pResolution] : 15;
+	}
+
+	/**
+	 * @param pResolution resolution level, 0 is the lowest
+	 * @return precinct height exponent (15 if no precincts are defined)
+	 */
+	public int precinctExponentY(int pResolution) {
+		return pResolution<precinctY.length ? precinctY[pResolution] : 15;
+	}
+
+	/**
+	 * @param pTile tile index
+	 * @param pComponent component index
+	 * @param pResolution resolution level, 0 is the lowest
+	 * @return number of precincts across and down
+	 */
+	public long[] precincts(int pTile, int pComponent, int pResolution) {
+		long[] bounds = resolutionBounds(pTile, pComponent, pResolution);
+		int px = precinctExponentX(pResolution);
+		int py = precinctExponentY(pResolution);
+		long across = bounds[2]>bounds[0] ? ceilDiv(bounds[2], 1L<<px)-(bounds[0]>>px) : 0;
+		long down = bounds[3]>bounds[1] ? ceilDiv(bounds[3], 1L<<py)-(bounds[1]>>py) : 0;
+		return new long[] { across, down };
+	}
+
+	/**
+	 * @param pTile tile index
+	 * @return number of packets in a tile, for all layers
+	 */
+	public long packets(int pTile) {
+		long packets = 0;
+		for(int c=0;c<csiz;c++) {
+			for(int r=0;r<=levels;r++) {
+				long[] count = precincts(pTile, c, r);
+				packets += count[0]*count[1];
+			}
+		}
+		return packets*layers;
+	}
+
+	private static String yesNo(boolean pValue) {
+		return pValue ? "yes" : "no";
+	}
+
+	/**
+	 * @return the order name, as jpylyzer reports it
+	 */
+	public String orderName() {
+		return order<ORDERS.length ? ORDERS[order] : "unknown";
+	}
+
+	/**
+	 * @return the transformation, as jpylyzer reports it
+	 */
+	public String transformationName() {
+		return transformation==0 ? "9-7 irreversible" : "5-3 reversible";
+	}
+
+	/**
+	 * The values that JP2Check.loadJpylyzerXML would have loaded for this file
+	 * @return key/value pairs
+	 */
+	public HashMap<String, String> toProperties() {
+		HashMap<String, String> items = new HashMap<String, String>();
+		items.put(Keys.ISVALID, isValid() ? "True" : "False");
+		items.put(Keys.TOOL, TOOL);
+		items.put(Keys.ENCODER, comments.isEmpty() ? "" : comments.get(0));
+		items.put(Keys.ORDER, orderName());
+		items.put(Keys.PRECINCTS, yesNo((scod&1)!=0));
+		items.put(Keys.SOP, yesNo((scod&2)!=0));
+		items.put(Keys.EPH, yesNo((scod&4)!=0));
+		items.put(Keys.LAYERS, Integer.toString(layers));
+		items.put(Keys.LEVELS, Integer.toString(levels));
+		items.put(Keys.CODEBLOCKWIDTH, Integer.toString(1<<(xcb+2)));
+		items.put(Keys.CODEBLOCKHEIGHT, Integer.toString(1<<(ycb+2)));
+		items.put(Keys.CODINGBYPASS, yesNo((cbStyle&1)!=0));
+		items.put(Keys.TRANSFORMATION, transformationName());
+		if((scod&1)!=0) {
+			items.put(Keys.PRECINCTSIZE, Integer.toString(precinctX.length));
+			for(int i=0;i<precinctX.length;i++) {
+				//as in loadJpylyzerXML only square precincts are stored
+				if(precinctX[i]==precinctY[i]) items.put(Keys.PRECINCTSIZE+i, Integer.toString(1<<precinctX[i]));
+			}
+		}
+		long tiles = numberOfTiles();
+		items.put(Keys.NUMBEROFTILES, Long.toString(tiles));
+		if(tiles>1) {
+			items.put(Keys.TILEXDIM, Long.toString(xTsiz));
+			items.put(Keys.TILEYDIM, Long.toString(yTsiz));
+		}
+		return items;
+	}
+
+	private static void element(StringBuilder pXml, String pName, Object pValue) {
+		String value = String.valueOf(pValue).replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+		pXml.append('<').append(pName).append('>').append(value).append("</").append(pName).append('>');
+	}
+
+	/**
+	 * A jpylyzer style XML document for this header, so that it can be checked with Schematron.
+	 * Only the properties this class reads are included.
+	 * @param pFileName name of the file, for the fileInfo element
+	 * @return XML document
+	 */
+	public String toJpylyzerXML(String pFileName) {
+		StringBuilder xml = new StringBuilder(2048);
+		xml.append("<?xml version='1.0' encoding='UTF-8'?><jpylyzer><toolInfo>");
+		element(xml, "toolName", TOOL);
+		xml.append("</toolInfo><fileInfo>");
+		element(xml, "fileName", pFileName);
+		xml.append("</fileInfo>");
+		element(xml, "isValidJP2", isValid() ? "True" : "False");
+		xml.append("<properties>");
+		if(imageHeaderBox) {
+			xml.append("<jp2HeaderBox><imageHeaderBox>");
+			element(xml, "height", height);
+			element(xml, "width", width);
+			element(xml, "nC", nC);
+			if(bPC!=255) {
+				element(xml, "bPCSign", (bPC&0x80)!=0 ? "signed" : "unsigned");
+				element(xml, "bPCDepth", (bPC&0x7F)+1);
+			}
+			xml.append("</imageHeaderBox></jp2HeaderBox>");
+		}
+		xml.append("<contiguousCodestreamBox>");
+		if(siz) {
+			xml.append("<siz>");
+			element(xml, "rsiz", rsiz==0 ? "ISO/IEC 15444-1" : Integer.toString(rsiz));
+			element(xml, "xsiz", xsiz);
+			element(xml, "ysiz", ysiz);
+			element(xml, "xOsiz", xOsiz);
+			element(xml, "yOsiz", yOsiz);
+			element(xml, "xTsiz", xTsiz);
+			element(xml, "yTsiz", yTsiz);
+			element(xml, "xTOsiz", xTOsiz);
+			element(xml, "yTOsiz", yTOsiz);
+			element(xml, "numberOfTiles", numberOfTiles());
+			element(xml, "csiz", csiz);
+			for(int c=0;c<csiz;c++) {
+				element(xml, "ssizSign", (ssiz[c]&0x80)!=0 ? "signed" : "unsigned");
+				element(xml, "ssizDepth", (ssiz[c]&0x7F)+1);
+				element(xml, "xRsiz", xRsiz[c]);
+				element(xml, "yRsiz", yRsiz[c]);
+			}
+			xml.append("</siz>");
+		}
+		if(cod) {
+			xml.append("<cod>");
+			element(xml, "precincts", yesNo((scod&1)!=0));
+			element(xml, "sop", yesNo((scod&2)!=0));
+			element(xml, "eph", yesNo((scod&4)!=0));
+			element(xml, "order", orderName());
+			element(xml, "layers", layers);
+			element(xml, "multipleComponentTransformation", yesNo(mct!=0));
+			element(xml, "levels", levels);
+			element(xml, "codeBlockWidth", 1<<(xcb+2));
+			element(xml, "codeBlockHeight", 1<<(ycb+2));
+			element(xml, "codingBypass", yesNo((cbStyle&1)!=0));
+			element(xml, "resetOnBoundaries", yesNo((cbStyle&2)!=0));
+			element(xml, "termOnEachPass", yesNo((cbStyle&4)!=0));
+			element(xml, "vertCausalContext", yesNo((cbStyle&8)!=0));
+			element(xml, "predTermination", yesNo((cbStyle&16)!=0));
+			element(xml, "segmentationSymbols", yesNo((cbStyle&32)!=0));
+			element(xml, "transformation", transformationName());
+			for(int r=0;r<precinctX.length;r++) {
+				element(xml, "precinctSizeX", 1<<precinctX[r]);
+				element(xml, "precinctSizeY", 1<<precinctY[r]);
+			}
+			xml.append("</cod>");
+		}
+		for(String comment:comments) {
+			xml.append("<com>");
+			element(xml, "comment", comment);
+			xml.append("</com>");
+		}
+		xml.append("</contiguousCodestreamBox></properties></jpylyzer>");
+		return xml.toString();
+	}
+
+}
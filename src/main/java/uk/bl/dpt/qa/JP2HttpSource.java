@@ -0,0 +1,211 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads ranges of a file over HTTP(S) with Range requests, so only the bytes needed are fetched.
+ * If the server ignores the Range header the one full response is kept open and spooled to a
+ * temporary file as far as reads need it, so nothing is requested twice.
+ * @author wpalmer
+ */
+public class JP2HttpSource implements JP2ByteSource {
+
+	private static final int TIMEOUT = 30*1000;
+
+	private final URL url;
+	private volatile long length = -1;
+	private final AtomicLong requests = new AtomicLong(0);
+	private final AtomicLong bytesFetched = new AtomicLong(0);
+
+	//set once the server has answered a Range request with the whole file
+	private volatile boolean ignoresRange = false;
+	private HttpURLConnection full = null;
+	private InputStream body = null;
+	private File spoolFile = null;
+	private RandomAccessFile spool = null;
+	private long spooled = 0;
+
+	/**
+	 * @param pUrl URL of the file
+	 * @throws IOException if the URL is not valid
+	 */
+	public JP2HttpSource(String pUrl) throws IOException {
+		try {
+			url = URI.create(pUrl).toURL();
+		} catch(IllegalArgumentException e) {
+			//not a valid or absolute URL
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public String getName() {
+		return url.toString();
+	}
+
+	@Override
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * @return number of requests made
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * @return number of bytes read from responses
+	 */
+	public long getBytesFetched() {
+		return bytesFetched.get();
+	}
+
+	@Override
+	public int read(long pPosition, byte[] pBuffer, int pOffset, int pLength) throws IOException {
+		if(pLength==0) return 0;
+		if(length>=0&&pPosition>=length) return -1;
+		if(ignoresRange) return readSpooled(pPosition, pBuffer, pOffset, pLength);
+
+		HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+		connection.setConnectTimeout(TIMEOUT);
+		connection.setReadTimeout(TIMEOUT);
+		connection.setRequestProperty("Range", "bytes="+pPosition+"-"+(pPosition+pLength-1));
+		requests.incrementAndGet();
+		int code = connection.getResponseCode();
+		if(code==416) {
+			//range not satisfiable, i.e. past the end
+			connection.disconnect();
+			return -1;
+		}
+		if(code==200) {
+			spool(connection);
+			return readSpooled(pPosition, pBuffer, pOffset, pLength);
+		}
+		if(code!=206) {
+			connection.disconnect();
+			throw new IOException("HTTP "+code+" reading "+url);
+		}
+
+		InputStream in = connection.getInputStream();
+		boolean complete = false;
+		try {
+			//Content-Range: bytes start-end/total
+			String range = connection.getHeaderField("Content-Range");
+			if(range==null||!range.startsWith("bytes ")||range.indexOf('-')<0||range.lastIndexOf('/')<0) {
+				throw new IOException("bad Content-Range from "+url+": "+range);
+			}
+			long start = Long.parseLong(range.substring("bytes ".length(), range.indexOf('-')).trim());
+			if(start!=pPosition) {
+				throw new IOException("asked "+url+" for bytes from "+pPosition+" but got "+range);
+			}
+			String total = range.substring(range.lastIndexOf('/')+1).trim();
+			if(!total.equals("*")) length = Long.parseLong(total);
+			int read = 0;
+			while(read<pLength) {
+				int count = in.read(pBuffer, pOffset+read, pLength-read);
+				if(count<0) break;
+				read += count;
+			}
+			bytesFetched.addAndGet(read);
+			complete = true;
+			return read==0 ? -1 : read;
+		} catch(NumberFormatException e) {
+			throw new IOException("bad Content-Range from "+url);
+		} finally {
+			in.close();
+			//don't let the connection be reused with the rest of a response pending
+			if(!complete) connection.disconnect();
+		}
+	}
+
+	/**
+	 * Keep a full response to read the file from, unless another thread already has one
+	 */
+	private synchronized void spool(HttpURLConnection pConnection) throws IOException {
+		if(ignoresRange) {
+			pConnection.disconnect();
+			return;
+		}
+		if(pConnection.getContentLengthLong()>=0) length = pConnection.getContentLengthLong();
+		spoolFile = File.createTempFile("jp2check", ".part");
+		spoolFile.deleteOnExit();
+		spool = new RandomAccessFile(spoolFile, "rw");
+		full = pConnection;
+		body = pConnection.getInputStream();
+		ignoresRange = true;
+	}
+
+	/**
+	 * Read from the spooled response, reading more of it first if the range is not there yet
+	 */
+	private synchronized int readSpooled(long pPosition, byte[] pBuffer, int pOffset, int pLength) throws IOException {
+		if(spool==null) throw new IOException(url+" has been closed");
+		long end = pPosition+pLength;
+		byte[] chunk = new byte[8192];
+		while(spooled<end&&body!=null) {
+			int count = body.read(chunk);
+			if(count<0) {
+				body.close();
+				body = null;
+				length = spooled;
+				break;
+			}
+			spool.seek(spooled);
+			spool.write(chunk, 0, count);
+			spooled += count;
+			bytesFetched.addAndGet(count);
+		}
+		if(pPosition>=spooled) return -1;
+		int count = (int)Math.min(pLength, spooled-pPosition);
+		spool.seek(pPosition);
+		spool.readFully(pBuffer, pOffset, count);
+		return count;
+	}
+
+	@Override
+	public synchronized void close() {
+		if(body!=null) {
+			try {
+				body.close();
+			} catch(IOException e) {
+			}
+			body = null;
+		}
+		if(full!=null) full.disconnect();
+		if(spool!=null) {
+			try {
+				spool.close();
+			} catch(IOException e) {
+			}
+			spool = null;
+		}
+		if(spoolFile!=null) spoolFile.delete();
+	}
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import uk.bl.dpt.qa.JP2Check.Keys;
+
+/**
+ * Checks the size of each quality layer against the profile's compression rates.
+ *
+ * The rates are compression ratios against the uncompressed image (the dimensions and bit
+ * depths in SIZ), the highest ratio giving the first layer.  Layers are cumulative, so the
+ * bytes of layers 0..n are compared against the budget for layer n.  An encoder stops a layer
+ * at or just under its budget, so a layer may only fall well short of it if the image ran out
+ * of data, i.e. the whole codestream would not fill the budget either.
+ * @author wpalmer
+ */
+public class JP2LayerBudget {
+
+	//how far over the budget a layer may run, as a fraction of the budget
+	private static double gOver = 0.05;
+	//how far under the budget a layer may fall when there was the data to fill it
+	private static double gUnder = 0.25;
+
+	/**
+	 * Sets the tolerances used when comparing layer sizes with the compression rates
+	 * @param pOver fraction of the budget a layer may run over
+	 * @param pUnder fraction of the budget a layer may fall short when there was the data to fill it
+	 */
+	public static void setTolerance(double pOver, double pUnder) {
+		if(pOver>=0) gOver = pOver;
+		if(pUnder>=0&&pUnder<=1) gUnder = pUnder;
+	}
+
+	/**
+	 * @param pHeader header with SIZ
+	 * @return bytes of the uncompressed image
+	 */
+	static double rawBytes(JP2Header pHeader) {
+		double bits = 0;
+		for(int c=0;c<pHeader.csiz;c++) {
+			long width = ceilDiv(pHeader.xsiz, pHeader.xRsiz[c])-ceilDiv(pHeader.xOsiz, pHeader.xRsiz[c]);
+			long height = ceilDiv(pHeader.ysiz, pHeader.yRsiz[c])-ceilDiv(pHeader.yOsiz, pHeader.yRsiz[c]);
+			bits += (double)width*height*((pHeader.ssiz[c]&0x7F)+1);
+		}
+		return bits/8;
+	}
+
+	private static long ceilDiv(long pValue, long pDivisor) {
+		return -Math.floorDiv(-pValue, pDivisor);
+	}
+
+	/**
+	 * Compare the bytes in each layer with the profile's compression rates
+	 * @param pHeader header with SIZ
+	 * @param pLayerBytes bytes in each layer, as measured by JP2PacketDecoder.measureLayers
+	 * @param pJp2Profile profile to check against
+	 * @return the layers out of budget, as compressionRates[layer] -> the compression ratio found,
+	 * empty if the number of layers does not match as that is reported elsewhere
+	 */
+	static HashMap<String, String> compare(JP2Header pHeader, long[] pLayerBytes, JP2Profile pJp2Profile) {
+		HashMap<String, String> mismatches = new HashMap<String, String>();
+		int layers = pLayerBytes.length;
+		if(layers!=pJp2Profile.compressionRates.length) return mismatches;
+		double raw = rawBytes(pHeader);
+		//highest ratio first, to line up with the layers
+		double[] rates = pJp2Profile.compressionRates.clone();
+		Arrays.sort(rates);
+		long all = 0;
+		for(long bytes:pLayerBytes) {
+			all += bytes;
+		}
+		long total = 0;
+		for(int l=0;l<layers;l++) {
+			total += pLayerBytes[l];
+			double budget = raw/rates[layers-1-l];
+			boolean over = total>budget*(1+gOver);
+			double floor = budget*(1-gUnder);
+			boolean under = total<floor&&all>=floor;
+			if(over||under) {
+				mismatches.put(Keys.COMPRESSIONRATES+"["+l+"]", String.format("%.2f", total==0 ? Double.POSITIVE_INFINITY : raw/total));
+			}
+		}
+		return mismatches;
+	}
+
+}
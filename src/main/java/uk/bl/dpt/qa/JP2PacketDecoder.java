@@ -0,0 +1,811 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A sanity check of the codestream body: the packets of the lowest resolution in the first
+ * quality layer are decoded, following the codestream from the first tile-part.
+ *
+ * Packets are visited in progression order and every packet header on the way is decoded
+ * (tag trees, coding passes, code-block lengths), checked against the limits the main header
+ * sets (zero bit-planes and passes against the band's bit-planes, SOP sequence numbers, EPH
+ * markers) and against the tile-part lengths.  The code-block data of the target packets is
+ * read and checked for marker codes, which the MQ and raw coders never produce; other packet
+ * bodies are skipped.  Reading stops as soon as every target packet has been seen, so for RPCL
+ * and LRCP files only the front of each tile is read.
+ *
+ * measureLayers reads every packet instead, to total the bytes in each quality layer.  Packet
+ * lengths can then be taken from PLT markers, where the encoder wrote them, rather than from the
+ * packet headers.
+ *
+ * NOTE: code-blocks are not entropy decoded.  Without SOP/EPH markers random bytes quite often
+ * make plausible packet headers, so damage is not always caught.  Files that change the coding parameters in
+ * tile-part headers, or that use POC, COC/QCC, RGN or packed packet headers are not checked.
+ * @author wpalmer
+ */
+@SuppressWarnings("javadoc")
+public class JP2PacketDecoder {
+
+	//tile-part header marker not in JP2Header
+	private static final int PPT = 0xFF61;
+	//code-block data is scanned for markers this much at a time
+	private static final int CHUNK = 8192;
+	//more packets than this in a tile is taken to be a corrupt header, the progression is kept in memory
+	private static final long MAX_PACKETS = 1<<22;
+
+	//problems found, decoding stops at the first as the position in the packets is then lost
+	public List<String> errors = new LinkedList<String>();
+	//why the codestream could not be checked, null if it was
+	public String unsupported = null;
+	//packet headers decoded
+	public long packets = 0;
+	//code-blocks with data in the first layer of the lowest resolution
+	public long codeBlocks = 0;
+	//codestream bytes read after the main header
+	public long bytesRead = 0;
+	//bytes in each quality layer (packet headers and bodies), only set by measureLayers
+	public long[] layerBytes = null;
+
+	private final JP2Header header;
+	//read every packet rather than stopping after the first layer of the lowest resolution
+	private final boolean all;
+	//use the packet lengths in PLT markers rather than decoding the packet headers
+	private final boolean usePlt;
+	private final HashMap<Integer, Tile> tiles = new HashMap<Integer, Tile>();
+
+	/**
+	 * A packet header or tile-part does not decode
+	 */
+	private static final class CorruptException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		CorruptException(String pMessage) {
+			super(pMessage);
+		}
+	}
+
+	/**
+	 * The codestream after the main header, with a limit for the current tile-part
+	 */
+	private static final class Input {
+		private final PushbackInputStream in;
+		long position;
+		long remaining = Long.MAX_VALUE;
+
+		Input(InputStream pIn, long pPosition) {
+			in = new PushbackInputStream(pIn, 2);
+			position = pPosition;
+		}
+
+		int u8() throws IOException {
+			if(remaining<=0) throw new CorruptException("packet runs past the end of the tile-part");
+			int b = in.read();
+			if(b<0) throw new EOFException("unexpected end of file at "+position);
+			position++;
+			remaining--;
+			return b;
+		}
+
+		int u16() throws IOException {
+			return (u8()<<8)|u8();
+		}
+
+		long u32() throws IOException {
+			return ((long)u16()<<16)|u16();
+		}
+
+		/**
+		 * @return the next two bytes without reading them, -1 if there are not two left
+		 */
+		int peek16() throws IOException {
+			if(remaining<2) return -1;
+			int a = in.read();
+			if(a<0) return -1;
+			int b = in.read();
+			if(b<0) {
+				in.unread(a);
+				return -1;
+			}
+			in.unread(b);
+			in.unread(a);
+			return (a<<8)|b;
+		}
+
+		/**
+		 * Read code-block data a chunk at a time, so a corrupt length does not allocate it all
+		 * @return the second byte of the first marker code (0xFF90 and above) in the data, -1 if there is none
+		 */
+		int markerIn(long pLength) throws IOException {
+			if(pLength>remaining) throw new CorruptException("code-block data runs past the end of the tile-part");
+			byte[] buffer = new byte[(int)Math.min(pLength, CHUNK)];
+			int previous = 0;
+			long left = pLength;
+			while(left>0) {
+				int count = in.read(buffer, 0, (int)Math.min(left, buffer.length));
+				if(count<0) throw new EOFException("unexpected end of file at "+position);
+				for(int i=0;i<count;i++) {
+					int b = buffer[i]&0xFF;
+					if(previous==0xFF&&b>0x8F) return b;
+					previous = b;
+				}
+				position += count;
+				remaining -= count;
+				left -= count;
+			}
+			return -1;
+		}
+
+		void skip(long pLength) throws IOException {
+			if(pLength<0) throw new CorruptException("negative length at "+position);
+			if(pLength>remaining) throw new CorruptException("code-block data runs past the end of the tile-part");
+			long left = pLength;
+			while(left>0) {
+				long skipped = in.skip(left);
+				if(skipped<=0) {
+					//skip() can return 0 without being at the end, so check with a read
+					if(in.read()<0) throw new EOFException("unexpected end of file at "+position);
+					skipped = 1;
+				}
+				left -= skipped;
+			}
+			position += pLength;
+			remaining -= pLength;
+		}
+	}
+
+	/**
+	 * Reads packet header bits, a byte after 0xFF has only 7
+	 */
+	private static final class Bits {
+		private final Input in;
+		private int buffer = 0;
+		private int count = 0;
+		private boolean afterFF = false;
+
+		Bits(Input pIn) {
+			in = pIn;
+		}
+
+		int bit() throws IOException {
+			if(count==0) {
+				buffer = in.u8();
+				if(afterFF&&buffer>0x7F) throw new CorruptException("marker code in packet header");
+				count = afterFF ? 7 : 8;
+				afterFF = buffer==0xFF;
+			}
+			count--;
+			return (buffer>>count)&1;
+		}
+
+		int bits(int pCount) throws IOException {
+			int value = 0;
+			for(int i=0;i<pCount;i++) {
+				value = (value<<1)|bit();
+			}
+			return value;
+		}
+
+		/**
+		 * Move to the end of the header, which may have a stuffed byte after 0xFF
+		 */
+		void align() throws IOException {
+			count = 0;
+			if(afterFF) {
+				if(in.u8()>0x7F) throw new CorruptException("marker code in packet header");
+				afterFF = false;
+			}
+		}
+	}
+
+	/**
+	 * A tag tree over the code-blocks of a precinct band (B.10.2)
+	 */
+	static final class TagTree {
+		private final int[] value;
+		private final int[] low;
+		//node index of each level's first node, and the width of each level
+		private final int[] offsets;
+		private final int[] widths;
+
+		TagTree(int pWidth, int pHeight) {
+			List<int[]> levels = new ArrayList<int[]>();
+			int w = pWidth;
+			int h = pHeight;
+			int nodes = 0;
+			while(true) {
+				levels.add(new int[] { nodes, w });
+				nodes += w*h;
+				if(w<=1&&h<=1) break;
+				w = (w+1)/2;
+				h = (h+1)/2;
+			}
+			offsets = new int[levels.size()];
+			widths = new int[levels.size()];
+			for(int i=0;i<offsets.length;i++) {
+				offsets[i] = levels.get(i)[0];
+				widths[i] = levels.get(i)[1];
+			}
+			value = new int[nodes];
+			low = new int[nodes];
+			for(int i=0;i<nodes;i++) {
+				value[i] = Integer.MAX_VALUE;
+			}
+		}
+
+		/**
+		 * Decode until the leaf's value is known to be below the threshold, or not
+		 * @return true if the leaf's value is less than the threshold
+		 */
+		boolean decode(Bits pBits, int pLeaf, int pThreshold) throws IOException {
+			int x = pLeaf%widths[0];
+			int y = pLeaf/widths[0];
+			int[] path = new int[offsets.length];
+			for(int level=0;level<offsets.length;level++) {
+				path[level] = offsets[level]+y*widths[level]+x;
+				x /= 2;
+				y /= 2;
+			}
+			int floor = 0;
+			for(int level=offsets.length-1;level>=0;level--) {
+				int node = path[level];
+				if(floor>low[node]) low[node] = floor;
+				else floor = low[node];
+				while(floor<pThreshold&&floor<value[node]) {
+					if(pBits.bit()==1) value[node] = floor;
+					else floor++;
+				}
+				low[node] = floor;
+			}
+			return value[pLeaf]<pThreshold;
+		}
+
+		int value(int pLeaf) {
+			return value[pLeaf];
+		}
+	}
+
+	/**
+	 * The code-blocks of one subband within a precinct
+	 */
+	private static final class Band {
+		//bit-planes of the band, Mb
+		int bitPlanes;
+		int across;
+		int codeBlocks;
+		TagTree inclusion;
+		TagTree zeroBitPlanes;
+		boolean[] included;
+		int[] zero;
+		int[] lblock;
+		int[] passes;
+		//codeword segment being filled, and the passes in it so far
+		int[] segment;
+		int[] segmentPasses;
+	}
+
+	/**
+	 * A packet to visit, with its place in the progression
+	 */
+	static final class Packet {
+		int layer;
+		int resolution;
+		int component;
+		int precinct;
+		//position of the precinct on the reference grid, for the position ordered progressions
+		long x;
+		long y;
+	}
+
+	/**
+	 * Decoding state for one tile, kept across its tile-parts
+	 */
+	private static final class Tile {
+		List<Packet> packets;
+		int next = 0;
+		int targetsLeft = 0;
+		HashMap<Long, Band[]> precincts = new HashMap<Long, Band[]>();
+		//packet lengths have been taken from PLT markers, so the packet headers cannot be decoded
+		boolean plt = false;
+	}
+
+	private JP2PacketDecoder(JP2Header pHeader, boolean pAll, boolean pUsePlt) {
+		header = pHeader;
+		all = pAll;
+		usePlt = pUsePlt;
+	}
+
+	/**
+	 * @return true if no problems were found, including when the codestream could not be checked
+	 */
+	public boolean isValid() {
+		return errors.isEmpty();
+	}
+
+	/**
+	 * @return true if the packets were decoded
+	 */
+	public boolean isChecked() {
+		return unsupported==null;
+	}
+
+	/**
+	 * Decode the first layer of the lowest resolution
+	 * @param pHeader header as read by JP2Header.read
+	 * @param pIn the stream JP2Header.read was given, positioned after the first SOT marker
+	 * @return the outcome, check errors and unsupported
+	 * @throws IOException on a read error
+	 */
+	public static JP2PacketDecoder decode(JP2Header pHeader, InputStream pIn) throws IOException {
+		return decode(new JP2PacketDecoder(pHeader, false, false), pIn);
+	}
+
+	/**
+	 * Read every packet and total the bytes in each quality layer, the first layer of the lowest
+	 * resolution is checked as by decode unless its packet lengths come from PLT markers
+	 * @param pHeader header as read by JP2Header.read
+	 * @param pIn the stream JP2Header.read was given, positioned after the first SOT marker
+	 * @param pUsePlt take packet lengths from PLT markers where present
+	 * @return the outcome, layerBytes is null unless every packet was read without error
+	 * @throws IOException on a read error
+	 */
+	public static JP2PacketDecoder measureLayers(JP2Header pHeader, InputStream pIn, boolean pUsePlt) throws IOException {
+		JP2PacketDecoder decoder = new JP2PacketDecoder(pHeader, true, pUsePlt);
+		decoder.layerBytes = new long[Math.max(pHeader.layers, 0)];
+		decode(decoder, pIn);
+		if(!decoder.isValid()||!decoder.isChecked()) decoder.layerBytes = null;
+		return decoder;
+	}
+
+	private static JP2PacketDecoder decode(JP2PacketDecoder pDecoder, InputStream pIn) throws IOException {
+		JP2Header header = pDecoder.header;
+		if(!header.hasCodestreamHeader()||!header.qcd||header.firstTileOffset<0) {
+			pDecoder.unsupported = "no tile-parts after the main header";
+		} else if(header.poc||header.ppm||header.componentOverrides) {
+			pDecoder.unsupported = "POC, PPM, COC or QCC in the main header";
+		} else if(header.rgn) {
+			//the pass limits do not hold for a region of interest shifted up by Srgn
+			pDecoder.unsupported = "RGN in the main header";
+		} else if(header.order<0||header.order>=JP2Header.ORDERS.length) {
+			pDecoder.unsupported = "unknown progression order";
+		} else if(header.layers<1) {
+			pDecoder.unsupported = "no layers";
+		}
+		if(pDecoder.unsupported!=null) return pDecoder;
+		Input in = new Input(pIn, header.firstTileOffset+2);
+		try {
+			pDecoder.decodeTileParts(in);
+		} catch(CorruptException e) {
+			pDecoder.errors.add(e.getMessage()+" at "+in.position);
+		} catch(EOFException e) {
+			String what = pDecoder.all ? "every packet was read" : "the lowest resolution was decoded";
+			pDecoder.errors.add("codestream ends before "+what+": "+e.getMessage());
+		}
+		pDecoder.bytesRead = in.position-header.firstTileOffset;
+		return pDecoder;
+	}
+
+	private void decodeTileParts(Input pIn) throws IOException {
+		long numberOfTiles = header.numberOfTiles();
+		long tilesLeft = numberOfTiles;
+		boolean first = true;
+		while(tilesLeft>0) {
+			pIn.remaining = Long.MAX_VALUE;
+			int marker = first ? JP2Header.SOT : pIn.u16();
+			first = false;
+			if(marker==JP2Header.EOC) throw new EOFException("EOC with "+tilesLeft+" tiles left");
+			if(marker!=JP2Header.SOT) throw new CorruptException(String.format("expected SOT, found 0x%04X", marker));
+			long start = pIn.position-2;
+			int lsot = pIn.u16();
+			int isot = pIn.u16();
+			long psot = pIn.u32();
+			pIn.skip(lsot-8);
+			if(isot>=numberOfTiles) throw new CorruptException("tile index "+isot+" out of range");
+			List<Long> lengths = new ArrayList<Long>();
+			while(true) {
+				marker = pIn.u16();
+				if(marker==JP2Header.SOD) break;
+				if(marker==JP2Header.PLT&&usePlt) {
+					packetLengths(pIn, pIn.u16(), lengths);
+				} else if(marker==JP2Header.PLT||marker==JP2Header.COM) {
+					pIn.skip(pIn.u16()-2);
+				} else if(marker==JP2Header.COD||marker==JP2Header.COC||marker==JP2Header.QCD||marker==JP2Header.QCC||
+						marker==JP2Header.RGN||marker==JP2Header.POC||marker==PPT) {
+					unsupported = String.format("marker 0x%04X in a tile-part header", marker);
+					return;
+				} else {
+					throw new CorruptException(String.format("unexpected marker 0x%04X in tile-part header", marker));
+				}
+			}
+			//a length of 0 means the tile-part runs to EOC
+			if(psot>0) {
+				long body = psot-(pIn.position-start);
+				if(body<0) throw new CorruptException("tile-part header is longer than the tile-part");
+				pIn.remaining = body;
+			}
+			boolean seen = tiles.containsKey(isot);
+			if(!seen&&header.packets(isot)>MAX_PACKETS) {
+				unsupported = "more than "+MAX_PACKETS+" packets in tile "+isot;
+				return;
+			}
+			Tile tile = tile(isot);
+			boolean wasDone = seen&&tile.targetsLeft==0;
+			if(!lengths.isEmpty()) {
+				if(tile.next>0&&!tile.plt) {
+					unsupported = "PLT markers in only some tile-parts of tile "+isot;
+					return;
+				}
+				tile.plt = true;
+				skipPackets(pIn, tile, lengths);
+				if(psot>0&&pIn.remaining!=0) throw new CorruptException("PLT lengths do not add up to the tile-part length");
+			} else if(tile.plt&&!wasDone) {
+				unsupported = "PLT markers in only some tile-parts of tile "+isot;
+				return;
+			}
+			while(tile.targetsLeft>0&&pIn.remaining>0) {
+				decodePacket(pIn, isot, tile);
+			}
+			if(!wasDone&&tile.targetsLeft==0) {
+				//later tile-parts of the tile are skipped
+				tile.packets = null;
+				tile.precincts = null;
+				tilesLeft--;
+			}
+			if(tilesLeft==0) return;
+			if(psot==0) throw new EOFException("last tile-part ends with "+tilesLeft+" tiles left");
+			pIn.skip(pIn.remaining);
+		}
+	}
+
+	/**
+	 * Read the packet lengths (Iplt) from a PLT marker segment
+	 */
+	private static void packetLengths(Input pIn, int pLength, List<Long> pLengths) throws IOException {
+		//Zplt, the segments are assumed to be in order
+		pIn.u8();
+		long length = 0;
+		boolean more = false;
+		for(int i=3;i<pLength;i++) {
+			int b = pIn.u8();
+			length = (length<<7)|(b&0x7F);
+			more = (b&0x80)!=0;
+			if(!more) {
+				pLengths.add(length);
+				length = 0;
+			}
+		}
+		if(more) throw new CorruptException("PLT marker ends part way through a packet length");
+	}
+
+	/**
+	 * Skip the packets of a tile-part using the lengths from its PLT markers
+	 */
+	private void skipPackets(Input pIn, Tile pState, List<Long> pLengths) throws IOException {
+		for(long length:pLengths) {
+			if(pState.next>=pState.packets.size()) throw new CorruptException("PLT lists more packets than the tile has");
+			Packet packet = pState.packets.get(pState.next++);
+			pIn.skip(length);
+			layerBytes[packet.layer] += length;
+			packets++;
+			pState.targetsLeft--;
+		}
+	}
+
+	private Tile tile(int pTile) {
+		Tile tile = tiles.get(pTile);
+		if(tile!=null) return tile;
+		tile = new Tile();
+		tiles.put(pTile, tile);
+		tile.packets = progression(header, pTile);
+		for(Packet packet:tile.packets) {
+			if(all||(packet.resolution==0&&packet.layer==0)) tile.targetsLeft++;
+		}
+		return tile;
+	}
+
+	/**
+	 * @param pHeader header with SIZ and COD
+	 * @param pTile tile index
+	 * @return the packets of the tile in progression order
+	 */
+	static List<Packet> progression(JP2Header pHeader, int pTile) {
+		long[] bounds = pHeader.tileBounds(pTile);
+		List<Packet> packets = new ArrayList<Packet>();
+		for(int c=0;c<pHeader.csiz;c++) {
+			for(int r=0;r<=pHeader.levels;r++) {
+				long[] count = pHeader.precincts(pTile, c, r);
+				long[] resolution = pHeader.resolutionBounds(pTile, c, r);
+				int px = pHeader.precinctExponentX(r);
+				int py = pHeader.precinctExponentY(r);
+				int scale = pHeader.levels-r;
+				for(int p=0;p<count[0]*count[1];p++) {
+					long kx = (resolution[0]>>px)+p%count[0];
+					long ky = (resolution[1]>>py)+p/count[0];
+					for(int l=0;l<pHeader.layers;l++) {
+						Packet packet = new Packet();
+						packet.layer = l;
+						packet.resolution = r;
+						packet.component = c;
+						packet.precinct = p;
+						//the first precinct is visited at the tile origin
+						packet.x = Math.max(bounds[0], ((kx<<px)<<scale)*pHeader.xRsiz[c]);
+						packet.y = Math.max(bounds[1], ((ky<<py)<<scale)*pHeader.yRsiz[c]);
+						packets.add(packet);
+					}
+				}
+			}
+		}
+		final int order = pHeader.order;
+		Collections.sort(packets, (a, b) -> compare(order, a, b));
+		return packets;
+	}
+
+	private static int compare(int pOrder, Packet pA, Packet pB) {
+		long[] a;
+		long[] b;
+		switch(JP2Header.ORDERS[pOrder]) {
+		case "LRCP":
+			a = new long[] { pA.layer, pA.resolution, pA.component, pA.precinct };
+			b = new long[] { pB.layer, pB.resolution, pB.component, pB.precinct };
+			break;
+		case "RLCP":
+			a = new long[] { pA.resolution, pA.layer, pA.component, pA.precinct };
+			b = new long[] { pB.resolution, pB.layer, pB.component, pB.precinct };
+			break;
+		case "RPCL":
+			a = new long[] { pA.resolution, pA.y, pA.x, pA.component, pA.layer };
+			b = new long[] { pB.resolution, pB.y, pB.x, pB.component, pB.layer };
+			break;
+		case "PCRL":
+			a = new long[] { pA.y, pA.x, pA.component, pA.resolution, pA.layer };
+			b = new long[] { pB.y, pB.x, pB.component, pB.resolution, pB.layer };
+			break;
+		default:
+			a = new long[] { pA.component, pA.y, pA.x, pA.resolution, pA.layer };
+			b = new long[] { pB.component, pB.y, pB.x, pB.resolution, pB.layer };
+			break;
+		}
+		for(int i=0;i<a.length;i++) {
+			if(a[i]!=b[i]) return Long.compare(a[i], b[i]);
+		}
+		return 0;
+	}
+
+	private static long ceilDiv(long pValue, long pDivisor) {
+		return -Math.floorDiv(-pValue, pDivisor);
+	}
+
+	/**
+	 * Work out the code-blocks of each band in a precinct
+	 */
+	private Band[] precinct(int pTile, Tile pState, Packet pPacket) throws IOException {
+		long id = ((long)pPacket.component*(header.levels+1)+pPacket.resolution)*Integer.MAX_VALUE+pPacket.precinct;
+		Band[] bands = pState.precincts.get(id);
+		if(bands!=null) return bands;
+
+		int r = pPacket.resolution;
+		int[][] grid = codeBlocks(header, pTile, pPacket);
+		bands = new Band[grid.length];
+		for(int b=0;b<grid.length;b++) {
+			Band state = new Band();
+			state.across = grid[b][0];
+			state.codeBlocks = grid[b][0]*grid[b][1];
+			if(state.codeBlocks>0) {
+				state.inclusion = new TagTree(grid[b][0], grid[b][1]);
+				state.zeroBitPlanes = new TagTree(grid[b][0], grid[b][1]);
+			}
+			state.included = new boolean[state.codeBlocks];
+			state.zero = new int[state.codeBlocks];
+			state.lblock = new int[state.codeBlocks];
+			state.passes = new int[state.codeBlocks];
+			state.segment = new int[state.codeBlocks];
+			state.segmentPasses = new int[state.codeBlocks];
+			Arrays.fill(state.lblock, 3);
+			state.bitPlanes = bitPlanes(header, r==0 ? 0 : 3*(r-1)+1+b, r);
+			bands[b] = state;
+		}
+		pState.precincts.put(id, bands);
+		return bands;
+	}
+
+	/**
+	 * @param pHeader header with SIZ and COD
+	 * @param pTile tile index
+	 * @param pPacket packet giving the component, resolution and precinct
+	 * @return code-blocks across and down for each band of the precinct
+	 */
+	static int[][] codeBlocks(JP2Header pHeader, int pTile, Packet pPacket) {
+		int c = pPacket.component;
+		int r = pPacket.resolution;
+		long[] resolution = pHeader.resolutionBounds(pTile, c, r);
+		long across = pHeader.precincts(pTile, c, r)[0];
+		long kx = (resolution[0]>>pHeader.precinctExponentX(r))+pPacket.precinct%across;
+		long ky = (resolution[1]>>pHeader.precinctExponentY(r))+pPacket.precinct/across;
+		//precincts and code-blocks of the high pass bands are on a grid half the size
+		int half = r==0 ? 0 : 1;
+		int px = pHeader.precinctExponentX(r)-half;
+		int py = pHeader.precinctExponentY(r)-half;
+		int cbx = Math.min(pHeader.xcb+2, px);
+		int cby = Math.min(pHeader.ycb+2, py);
+
+		long[] tile = pHeader.tileBounds(pTile);
+		long[] component = { ceilDiv(tile[0], pHeader.xRsiz[c]), ceilDiv(tile[1], pHeader.yRsiz[c]),
+				ceilDiv(tile[2], pHeader.xRsiz[c]), ceilDiv(tile[3], pHeader.yRsiz[c]) };
+		int count = r==0 ? 1 : 3;
+		int[][] grid = new int[count][2];
+		for(int b=0;b<count;b++) {
+			long[] band;
+			if(r==0) {
+				band = resolution;
+			} else {
+				//HL, LH, HH
+				int xob = b==1 ? 0 : 1;
+				int yob = b==0 ? 0 : 1;
+				int nb = pHeader.levels-r+1;
+				long shift = 1L<<(nb-1);
+				band = new long[] { ceilDiv(component[0]-xob*shift, 1L<<nb), ceilDiv(component[1]-yob*shift, 1L<<nb),
+						ceilDiv(component[2]-xob*shift, 1L<<nb), ceilDiv(component[3]-yob*shift, 1L<<nb) };
+			}
+			long x0 = Math.max(band[0], kx<<px);
+			long y0 = Math.max(band[1], ky<<py);
+			long x1 = Math.min(band[2], (kx+1)<<px);
+			long y1 = Math.min(band[3], (ky+1)<<py);
+			if(x1>x0&&y1>y0) {
+				grid[b][0] = (int)(ceilDiv(x1, 1L<<cbx)-(x0>>cbx));
+				grid[b][1] = (int)(ceilDiv(y1, 1L<<cby)-(y0>>cby));
+			}
+		}
+		return grid;
+	}
+
+	/**
+	 * @return Mb, the bit-planes of a subband (E.1)
+	 */
+	static int bitPlanes(JP2Header pHeader, int pBand, int pResolution) throws IOException {
+		int exponent;
+		if(pHeader.qcdStyle==1) {
+			//scalar derived: only the LL exponent is signalled
+			if(pHeader.qcdExponents.length<1) throw new CorruptException("QCD has no exponents");
+			exponent = pHeader.qcdExponents[0]-(pResolution==0 ? 0 : pResolution-1);
+		} else {
+			if(pBand>=pHeader.qcdExponents.length) throw new CorruptException("QCD has no exponent for subband "+pBand);
+			exponent = pHeader.qcdExponents[pBand];
+		}
+		return pHeader.guardBits+exponent-1;
+	}
+
+	/**
+	 * @return the most passes the codeword segment can hold (D.4.1)
+	 */
+	private int segmentPasses(int pSegment) {
+		//termination on each pass
+		if((header.cbStyle&4)!=0) return 1;
+		//selective arithmetic coding bypass: 10 passes, then 2 raw, 1 MQ, 2 raw...
+		if((header.cbStyle&1)!=0) return pSegment==0 ? 10 : (pSegment%2==1 ? 2 : 1);
+		return Integer.MAX_VALUE;
+	}
+
+	private static int passes(Bits pBits) throws IOException {
+		if(pBits.bit()==0) return 1;
+		if(pBits.bit()==0) return 2;
+		int n = pBits.bits(2);
+		if(n!=3) return 3+n;
+		n = pBits.bits(5);
+		if(n!=31) return 6+n;
+		return 37+pBits.bits(7);
+	}
+
+	private static int log2(int pValue) {
+		return 31-Integer.numberOfLeadingZeros(pValue);
+	}
+
+	private void decodePacket(Input pIn, int pTile, Tile pState) throws IOException {
+		if(pState.next>=pState.packets.size()) throw new CorruptException("more packets than the tile has");
+		int sequence = pState.next;
+		long start = pIn.position;
+		Packet packet = pState.packets.get(pState.next++);
+		boolean target = packet.resolution==0&&packet.layer==0;
+		Band[] bands = precinct(pTile, pState, packet);
+
+		if((header.scod&2)!=0&&pIn.peek16()==JP2Header.SOP) {
+			pIn.u16();
+			if(pIn.u16()!=4) throw new CorruptException("bad SOP length");
+			int nsop = pIn.u16();
+			if(nsop!=(sequence&0xFFFF)) throw new CorruptException("SOP sequence number "+nsop+", expected "+(sequence&0xFFFF));
+		}
+
+		List<Integer> lengths = new ArrayList<Integer>();
+		Bits bits = new Bits(pIn);
+		if(bits.bit()==1) {
+			for(Band band:bands) {
+				for(int cb=0;cb<band.codeBlocks;cb++) {
+					boolean first = false;
+					if(!band.included[cb]) {
+						if(!band.inclusion.decode(bits, cb, packet.layer+1)) continue;
+						first = true;
+					} else if(bits.bit()==0) {
+						continue;
+					}
+					if(first) {
+						int threshold = 1;
+						while(!band.zeroBitPlanes.decode(bits, cb, threshold)) {
+							threshold++;
+							if(threshold>band.bitPlanes+1) throw new CorruptException("more zero bit-planes than the band has ("+band.bitPlanes+")");
+						}
+						band.zero[cb] = band.zeroBitPlanes.value(cb);
+						band.included[cb] = true;
+					}
+					int passes = passes(bits);
+					band.passes[cb] += passes;
+					if(band.passes[cb]>3*(band.bitPlanes-band.zero[cb])-2) {
+						throw new CorruptException(band.passes[cb]+" coding passes for "+(band.bitPlanes-band.zero[cb])+" bit-planes");
+					}
+					while(bits.bit()==1) {
+						band.lblock[cb]++;
+						if(band.lblock[cb]>32) throw new CorruptException("code-block length indicator too large");
+					}
+					//one length per codeword segment the passes fall in
+					while(passes>0) {
+						if(band.segmentPasses[cb]>=segmentPasses(band.segment[cb])) {
+							band.segment[cb]++;
+							band.segmentPasses[cb] = 0;
+						}
+						int n = Math.min(passes, segmentPasses(band.segment[cb])-band.segmentPasses[cb]);
+						int width = band.lblock[cb]+log2(n);
+						if(width>31) throw new CorruptException("code-block length too large");
+						lengths.add(bits.bits(width));
+						band.segmentPasses[cb] += n;
+						passes -= n;
+					}
+					if(target) codeBlocks++;
+				}
+			}
+		}
+		bits.align();
+		if((header.scod&4)!=0) {
+			if(pIn.peek16()!=JP2Header.EPH) throw new CorruptException("missing EPH marker");
+			pIn.u16();
+		}
+		packets++;
+
+		//the code-block data follows the header in one run, with no marker codes anywhere in it
+		long body = 0;
+		for(int length:lengths) {
+			body += length;
+		}
+		if(target) {
+			int marker = pIn.markerIn(body);
+			if(marker>=0) throw new CorruptException(String.format("marker code 0xFF%02X in code-block data", marker));
+		} else {
+			pIn.skip(body);
+		}
+		if(all||target) pState.targetsLeft--;
+		if(layerBytes!=null) layerBytes[packet.layer] += pIn.position-start;
+	}
+
+}
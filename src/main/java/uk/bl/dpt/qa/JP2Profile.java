@@ -17,6 +17,10 @@
 
 package uk.bl.dpt.qa;
 
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
 /**
  * Represent a JP2 profile
  * The BL jpeg2000 settings loaded as defaults 
@@ -47,4 +51,65 @@ public class JP2Profile {
 		20, 40, 80, 160, 320 };
 	
 	public JP2Profile() {}
+
+	/**
+	 * @return a copy of this profile that shares no state with it
+	 */
+	public JP2Profile copy() {
+		JP2Profile copy = new JP2Profile();
+		copy.irreversible = irreversible;
+		copy.progressionOrder = progressionOrder;
+		copy.tiled = tiled;
+		copy.tileDim = tileDim;
+		copy.levels = levels;
+		copy.SOP = SOP;
+		copy.EPH = EPH;
+		copy.precincts = precincts.clone();
+		copy.codeblockSize = codeblockSize;
+		copy.coderBypass = coderBypass;
+		copy.compressionRates = compressionRates.clone();
+		return copy;
+	}
+
+	/**
+	 * Checks that the settings are ones a JPEG2000 codestream could actually have
+	 * @return list of problems, empty if there are none
+	 */
+	public List<String> validate() {
+		List<String> problems = new LinkedList<String>();
+		if(progressionOrder==null||!Arrays.asList(JP2Header.ORDERS).contains(progressionOrder.toUpperCase())) {
+			problems.add("unknown progression order: "+progressionOrder);
+		}
+		if(levels<0||levels>32) {
+			problems.add("levels out of range: "+levels);
+		}
+		if(tiled&&tileDim<=0) {
+			problems.add("tiled but no tile size");
+		}
+		//code-blocks are 4..1024 samples a side and no more than 4096 samples in total
+		if(codeblockSize<4||codeblockSize>64||Integer.bitCount(codeblockSize)!=1) {
+			problems.add("invalid code-block size: "+codeblockSize);
+		}
+		if(precincts.length>levels+1) {
+			problems.add("more precincts than resolutions: "+precincts.length);
+		}
+		for(int i=0;i<precincts.length;i++) {
+			if(precincts[i]<1||precincts[i]>32768||Integer.bitCount(precincts[i])!=1) {
+				problems.add("precinct size is not a power of two: "+precincts[i]);
+			} else if(i>0&&precincts[i]>precincts[i-1]) {
+				problems.add("precinct sizes not in descending order");
+			}
+		}
+		if(compressionRates.length==0) {
+			problems.add("no compression rates");
+		}
+		for(int i=0;i<compressionRates.length;i++) {
+			if(!(compressionRates[i]>0)) {
+				problems.add("invalid compression rate: "+compressionRates[i]);
+			} else if(i>0&&compressionRates[i]<compressionRates[i-1]) {
+				problems.add("compression rates not in ascending order");
+			}
+		}
+		return problems;
+	}
 }
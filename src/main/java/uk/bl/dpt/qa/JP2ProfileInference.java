@@ -0,0 +1,276 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import uk.bl.dpt.qa.JP2Check.Keys;
+
+/**
+ * Characterises a collection with an unknown encoding history: a profile is derived from the
+ * COD and SIZ values extracted for each file, and files are grouped into clusters that share
+ * exactly the same profile.
+ *
+ * Clusters are indexed by the profile's properties, as written to a profile file, so each file
+ * costs one hash lookup however many clusters there are.  Jpylyzer does not record the
+ * compression rates, only the number of layers, so an inferred profile takes the rates of the
+ * base profile if it has the same number of layers and otherwise placeholder rates; only the
+ * number of layers is compared against files either way.
+ * @author wpalmer
+ */
+public class JP2ProfileInference implements JP2ResultListener {
+
+	//how many file names to keep as examples of each cluster
+	private static final int SAMPLES = 3;
+
+	private final JP2Profile base;
+	private final ConcurrentHashMap<Map<String, String>, Cluster> clusters = new ConcurrentHashMap<Map<String, String>, Cluster>();
+	//files with properties that could not be expressed as a profile
+	private final LongAdder unclassified = new LongAdder();
+
+	/**
+	 * Files sharing one set of encoding parameters
+	 */
+	public static final class Cluster {
+		private final JP2Profile profile;
+		private final LongAdder files = new LongAdder();
+		private final List<String> samples = new ArrayList<String>(SAMPLES);
+
+		Cluster(JP2Profile pProfile) {
+			profile = pProfile;
+		}
+
+		private void add(String pFile) {
+			files.increment();
+			synchronized(samples) {
+				if(samples.size()<SAMPLES) samples.add(pFile);
+			}
+		}
+
+		/**
+		 * @return the profile every file in the cluster matches
+		 */
+		public JP2Profile getProfile() {
+			return profile;
+		}
+
+		/**
+		 * @return number of files in the cluster
+		 */
+		public long getFiles() {
+			return files.sum();
+		}
+
+		/**
+		 * @return the first few files seen in the cluster
+		 */
+		public List<String> getSamples() {
+			synchronized(samples) {
+				return new ArrayList<String>(samples);
+			}
+		}
+	}
+
+	/**
+	 * Create an inference that takes compression rates from the built-in profile
+	 */
+	public JP2ProfileInference() {
+		this(new JP2Profile());
+	}
+
+	/**
+	 * Create an inference
+	 * @param pBase profile to take compression rates from, where it has the same number of layers
+	 */
+	public JP2ProfileInference(JP2Profile pBase) {
+		base = pBase;
+	}
+
+	@Override
+	public void resultReady(JP2CheckResult pResult) {
+		//nothing was extracted for errors and timeouts
+		if(pResult.properties==null) return;
+		JP2Profile profile = infer(pResult.properties, base);
+		if(profile==null) {
+			unclassified.increment();
+			return;
+		}
+		HashMap<String, String> key = new HashMap<String, String>();
+		Properties properties = JP2Check.profileToProperties(profile);
+		for(String name:properties.stringPropertyNames()) {
+			key.put(name, properties.getProperty(name));
+		}
+		Cluster cluster = clusters.get(key);
+		if(cluster==null) cluster = clusters.computeIfAbsent(key, k -> new Cluster(profile));
+		cluster.add(pResult.file);
+	}
+
+	/**
+	 * Derive the profile a file was encoded with from its extracted properties
+	 * @param pItems values as loaded by loadJpylyzerXML
+	 * @param pBase profile to take compression rates from, where it has the same number of layers
+	 * @return the profile, or null if the values are missing or cannot be expressed as a profile
+	 * (e.g. code-blocks or tiles that are not square)
+	 */
+	static JP2Profile infer(Map<String, String> pItems, JP2Profile pBase) {
+		try {
+			JP2Profile profile = new JP2Profile();
+			String order = value(pItems, Keys.ORDER);
+			if(order.isEmpty()) return null;
+			profile.progressionOrder = order.toUpperCase();
+			profile.levels = number(pItems, Keys.LEVELS);
+			profile.SOP = yes(pItems.get(Keys.SOP));
+			profile.EPH = yes(pItems.get(Keys.EPH));
+			profile.coderBypass = yes(pItems.get(Keys.CODINGBYPASS));
+			profile.irreversible = value(pItems, Keys.TRANSFORMATION).toLowerCase().equals("9-7 irreversible");
+
+			int width = number(pItems, Keys.CODEBLOCKWIDTH);
+			int height = number(pItems, Keys.CODEBLOCKHEIGHT);
+			if(width!=height) return null;
+			profile.codeblockSize = width;
+
+			if(number(pItems, Keys.NUMBEROFTILES)>1) {
+				int x = number(pItems, Keys.TILEXDIM);
+				int y = number(pItems, Keys.TILEYDIM);
+				if(x!=y) return null;
+				profile.tiled = true;
+				profile.tileDim = x;
+			}
+
+			profile.precincts = new int[0];
+			if(yes(pItems.get(Keys.PRECINCTS))) {
+				int count = number(pItems, Keys.PRECINCTSIZE);
+				List<Integer> precincts = new LinkedList<Integer>();
+				for(int i=0;i<count;i++) {
+					//rectangular precincts are not recorded
+					String precinct = pItems.get(Keys.PRECINCTSIZE+i);
+					if(precinct==null) return null;
+					precincts.add(Integer.valueOf(precinct));
+				}
+				//profiles list them largest first
+				Collections.sort(precincts, Collections.reverseOrder());
+				profile.precincts = new int[precincts.size()];
+				for(int i=0;i<profile.precincts.length;i++) {
+					profile.precincts[i] = precincts.get(i);
+				}
+			}
+
+			int layers = number(pItems, Keys.LAYERS);
+			if(layers<1) return null;
+			if(pBase.compressionRates.length==layers) {
+				profile.compressionRates = pBase.compressionRates.clone();
+			} else {
+				profile.compressionRates = new double[layers];
+				for(int i=0;i<layers;i++) {
+					profile.compressionRates[i] = i+1;
+				}
+			}
+			return profile;
+		} catch(NumberFormatException e) {
+			//missing or not a number
+			return null;
+		}
+	}
+
+	private static String value(Map<String, String> pItems, String pKey) {
+		String value = pItems.get(pKey);
+		return value==null ? "" : value.trim();
+	}
+
+	private static int number(Map<String, String> pItems, String pKey) {
+		return Integer.parseInt(value(pItems, pKey));
+	}
+
+	private static boolean yes(String pValue) {
+		return pValue!=null&&pValue.trim().toLowerCase().equals("yes");
+	}
+
+	/**
+	 * @return the clusters, largest first
+	 */
+	public List<Cluster> getClusters() {
+		List<Cluster> sorted = new ArrayList<Cluster>(clusters.values());
+		Collections.sort(sorted, (a, b) -> Long.compare(b.getFiles(), a.getFiles()));
+		return sorted;
+	}
+
+	/**
+	 * @return number of files that could not be assigned to a cluster
+	 */
+	public long getUnclassified() {
+		return unclassified.sum();
+	}
+
+	/**
+	 * Write a profile file for each cluster, cluster-1.xml being the largest
+	 * @param pDirectory directory to write to, created if need be
+	 * @return the files written, in the order of getClusters
+	 * @throws IOException on error
+	 */
+	public List<String> writeProfiles(String pDirectory) throws IOException {
+		new File(pDirectory).mkdirs();
+		List<String> written = new ArrayList<String>();
+		int n = 1;
+		for(Cluster cluster:getClusters()) {
+			String file = new File(pDirectory, "cluster-"+n+".xml").getPath();
+			String comment = "Inferred from "+cluster.getFiles()+" files, e.g. "+cluster.getSamples().get(0);
+			if(cluster.profile.compressionRates.length!=base.compressionRates.length) {
+				comment += " (compression rates are placeholders, only the number of layers is checked)";
+			}
+			JP2Check.saveProfile(cluster.profile, file, comment);
+			written.add(file);
+			n++;
+		}
+		return written;
+	}
+
+	/**
+	 * Print the cluster sizes and sample files
+	 * @param pOut stream to print to
+	 */
+	public void printReport(PrintStream pOut) {
+		List<Cluster> sorted = getClusters();
+		pOut.println("Encoding parameter clusters: "+sorted.size());
+		int n = 1;
+		for(Cluster cluster:sorted) {
+			JP2Profile profile = cluster.profile;
+			pOut.println("cluster-"+n+": "+cluster.getFiles()+" files, "+profile.progressionOrder+", "+profile.levels+" levels, "+
+					profile.compressionRates.length+" layers, "+(profile.irreversible ? "irreversible" : "reversible")+
+					(profile.tiled ? ", tiled "+profile.tileDim : ""));
+			for(String sample:cluster.getSamples()) {
+				pOut.println("  e.g. "+sample);
+			}
+			n++;
+		}
+		if(getUnclassified()>0) {
+			pOut.println("Not expressible as a profile: "+getUnclassified()+" files");
+		}
+	}
+
+}
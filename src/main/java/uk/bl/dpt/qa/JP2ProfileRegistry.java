@@ -0,0 +1,207 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A set of named profiles loaded from a directory of profile XML files.
+ *
+ * Each file is parsed and validated once, when it is loaded, and the profile is named after the
+ * file (bl_profile.xml is "bl_profile").  Callers get their own copy of a profile, so nothing
+ * they do to it changes what other callers see.  When the directory is being watched a changed
+ * file is reloaded and replaces the old profile in one step; checks already running carry on
+ * with the profile they started with.  A file that fails to load or validate, or is deleted,
+ * does not remove a good profile, the error is kept until the file is fixed.
+ * @author wpalmer
+ */
+public class JP2ProfileRegistry implements Closeable {
+
+	private static final String SUFFIX = ".xml";
+
+	private final File directory;
+	private final ConcurrentHashMap<String, JP2Profile> profiles = new ConcurrentHashMap<String, JP2Profile>();
+	private final ConcurrentHashMap<String, String> errors = new ConcurrentHashMap<String, String>();
+	private final AtomicInteger loads = new AtomicInteger(0);
+
+	private WatchService watcher = null;
+	private Thread watchThread = null;
+
+	/**
+	 * Load all the profiles in a directory
+	 * @param pDirectory directory containing profile XML files
+	 * @throws IOException if the directory cannot be read
+	 */
+	public JP2ProfileRegistry(String pDirectory) throws IOException {
+		directory = new File(pDirectory);
+		if(!directory.isDirectory()) throw new IOException("Not a profile directory: "+pDirectory);
+		reloadAll();
+	}
+
+	/**
+	 * @param pFile profile file
+	 * @return the name of the profile in the file
+	 */
+	private static String name(File pFile) {
+		String name = pFile.getName();
+		return name.substring(0, name.length()-SUFFIX.length());
+	}
+
+	/**
+	 * Load, validate and (if it is good) publish the profile in a file
+	 * @param pFile profile file
+	 * @return true if the profile was replaced
+	 */
+	private boolean load(File pFile) {
+		String name = name(pFile);
+		JP2Profile profile;
+		try {
+			profile = JP2Check.loadProfile(pFile.getPath());
+		} catch(IOException e) {
+			errors.put(name, e.toString());
+			return false;
+		} catch(RuntimeException e) {
+			//missing keys and bad numbers surface as NullPointerException/NumberFormatException
+			errors.put(name, "Invalid profile: "+e);
+			return false;
+		}
+		List<String> problems = profile.validate();
+		if(!problems.isEmpty()) {
+			errors.put(name, "Invalid profile: "+problems);
+			return false;
+		}
+		profiles.put(name, profile);
+		errors.remove(name);
+		loads.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * @param pName profile name
+	 * @return a copy of the named profile, or null if there is no valid profile with that name
+	 */
+	public JP2Profile get(String pName) {
+		JP2Profile profile = profiles.get(pName);
+		if(profile==null) return null;
+		return profile.copy();
+	}
+
+	/**
+	 * @return the names of the valid profiles
+	 */
+	public Set<String> getNames() {
+		return Collections.unmodifiableSet(new TreeSet<String>(profiles.keySet()));
+	}
+
+	/**
+	 * @return profile name -> error, for files that did not load or validate
+	 */
+	public Map<String, String> getErrors() {
+		return Collections.unmodifiableMap(new HashMap<String, String>(errors));
+	}
+
+	/**
+	 * @return number of times a profile has been (re)loaded successfully
+	 */
+	public int getLoads() {
+		return loads.get();
+	}
+
+	/**
+	 * Start watching the directory for changed profiles
+	 * @throws IOException on error
+	 */
+	public synchronized void watch() throws IOException {
+		if(watcher!=null) return;
+		watcher = FileSystems.getDefault().newWatchService();
+		final Path path = directory.toPath();
+		path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+		final WatchService service = watcher;
+		watchThread = new JP2BatchScheduler.NamedThreadFactory("jp2check-profiles").newThread(new Runnable() {
+			public void run() {
+				try {
+					while(true) {
+						WatchKey key = service.take();
+						for(WatchEvent<?> event:key.pollEvents()) {
+							if(event.kind()==StandardWatchEventKinds.OVERFLOW) {
+								//events were lost, look at everything again
+								reloadAll();
+								continue;
+							}
+							File file = path.resolve((Path)event.context()).toFile();
+							if(!file.getName().endsWith(SUFFIX)) continue;
+							if(file.exists()) {
+								load(file);
+							} else if(profiles.containsKey(name(file))) {
+								//copying over a file can delete it first, so keep serving the old profile
+								errors.put(name(file), "Profile file deleted");
+							}
+						}
+						if(!key.reset()) return;
+					}
+				} catch(InterruptedException e) {
+					//closed
+				} catch(ClosedWatchServiceException e) {
+					//closed
+				}
+			}
+		});
+		watchThread.start();
+	}
+
+	/**
+	 * Reload every profile file in the directory
+	 */
+	private void reloadAll() {
+		File[] files = directory.listFiles();
+		if(files==null) return;
+		for(File file:files) {
+			if(file.getName().endsWith(SUFFIX)) load(file);
+		}
+	}
+
+	/**
+	 * Stop watching the directory
+	 */
+	public synchronized void close() throws IOException {
+		if(watcher==null) return;
+		watcher.close();
+		watchThread.interrupt();
+		watcher = null;
+		watchThread = null;
+	}
+
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.bl.dpt.qa.JP2Check.Keys;
+
+/**
+ * A compact binary store of the properties extracted from jpylyzer outputs, so that a changed
+ * profile can be evaluated against a whole collection without rerunning jpylyzer.
+ *
+ * The file is a header followed by row groups.  Within a row group the file names are front
+ * coded (length of the prefix shared with the previous name, then the rest) and every key is
+ * stored as a column: a dictionary of the distinct values in the group followed by one code
+ * per row, where code 0 means the key was not present for that row.  Jpylyzer values repeat
+ * heavily across a collection so most columns take one byte per file.
+ * @author wpalmer
+ */
+public class JP2PropertyStore {
+
+	private static final int MAGIC = 0x4A503250;//"JP2P"
+	private static final int VERSION = 1;
+	//rows buffered before a row group is written
+	private static final int ROWS_PER_GROUP = 65536;
+
+	/**
+	 * Called for each row read from a store
+	 */
+	public interface RowVisitor {
+		/**
+		 * @param pFile file the properties were extracted from
+		 * @param pProperties properties as loaded from the jpylyzer output
+		 */
+		void row(String pFile, HashMap<String, String> pProperties);
+	}
+
+	/**
+	 * Writes results to a store as they arrive, appending to the store if it already exists
+	 */
+	public static class Writer implements JP2ResultListener, Closeable {
+
+		private final DataOutputStream out;
+		private final int rowsPerGroup;
+		//set once a group fails to write, nothing more can be appended after a partial group
+		private IOException error = null;
+		private final List<String> files = new ArrayList<String>();
+		private final List<HashMap<String, String>> rows = new ArrayList<HashMap<String, String>>();
+
+		/**
+		 * Open a store for writing
+		 * @param pStoreFile file to write to
+		 * @throws IOException on error
+		 */
+		public Writer(String pStoreFile) throws IOException {
+			this(pStoreFile, ROWS_PER_GROUP);
+		}
+
+		/**
+		 * Open a store for writing
+		 * @param pStoreFile file to write to
+		 * @param pRowsPerGroup rows buffered before a row group is written
+		 * @throws IOException on error
+		 */
+		Writer(String pStoreFile, int pRowsPerGroup) throws IOException {
+			rowsPerGroup = pRowsPerGroup;
+			File store = new File(pStoreFile);
+			boolean empty = !store.exists()||store.length()==0;
+			if(!empty) {
+				//a killed run can leave part of a group at the end, groups appended after it could not be read
+				long complete = completeLength(pStoreFile);
+				if(complete<store.length()) {
+					RandomAccessFile file = new RandomAccessFile(store, "rw");
+					try {
+						file.setLength(complete);
+					} finally {
+						file.close();
+					}
+				}
+				empty = complete==0;
+			}
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(store, true)));
+			if(empty) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+			}
+		}
+
+		@Override
+		public synchronized void resultReady(JP2CheckResult pResult) {
+			//nothing was extracted for errors and timeouts
+			if(pResult.properties==null||error!=null) return;
+			files.add(pResult.file);
+			rows.add(pResult.properties);
+			if(rows.size()>=rowsPerGroup) {
+				try {
+					writeGroup();
+				} catch(IOException e) {
+					//the caller gets the error from flush() or close()
+					System.out.println("WARNING: could not write property store: "+e);
+				}
+			}
+		}
+
+		/**
+		 * Write out any buffered rows
+		 * @throws IOException on error, including an earlier failure to write a row group
+		 */
+		public synchronized void flush() throws IOException {
+			if(error!=null) throw error;
+			if(rows.size()>0) writeGroup();
+			out.flush();
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			try {
+				flush();
+			} finally {
+				out.close();
+			}
+		}
+
+		private void writeGroup() throws IOException {
+			try {
+				writeRows();
+				//so a completed group is on disk, and any error is seen now
+				out.flush();
+			} catch(IOException e) {
+				//part of the group may already be written so the rows are dropped, not retried
+				error = e;
+				throw e;
+			} finally {
+				files.clear();
+				rows.clear();
+			}
+		}
+
+		private void writeRows() throws IOException {
+			int count = rows.size();
+			out.writeInt(count);
+
+			//file names, front coded
+			String previous = "";
+			for(String file:files) {
+				int shared = 0;
+				int max = Math.min(Math.min(previous.length(), file.length()), 0xFFFF);
+				while(shared<max&&previous.charAt(shared)==file.charAt(shared)) shared++;
+				out.writeShort(shared);
+				out.writeUTF(file.substring(shared));
+				previous = file;
+			}
+
+			//one dictionary encoded column per key
+			LinkedHashMap<String, LinkedHashMap<String, Integer>> dictionaries = new LinkedHashMap<String, LinkedHashMap<String, Integer>>();
+			for(HashMap<String, String> row:rows) {
+				for(Map.Entry<String, String> e:row.entrySet()) {
+					LinkedHashMap<String, Integer> dictionary = dictionaries.get(e.getKey());
+					if(dictionary==null) {
+						dictionary = new LinkedHashMap<String, Integer>();
+						dictionaries.put(e.getKey(), dictionary);
+					}
+					if(!dictionary.containsKey(e.getValue())) {
+						//0 is kept for missing values
+						dictionary.put(e.getValue(), dictionary.size()+1);
+					}
+				}
+			}
+			out.writeInt(dictionaries.size());
+			for(Map.Entry<String, LinkedHashMap<String, Integer>> column:dictionaries.entrySet()) {
+				LinkedHashMap<String, Integer> dictionary = column.getValue();
+				out.writeUTF(column.getKey());
+				out.writeInt(dictionary.size());
+				for(String value:dictionary.keySet()) {
+					out.writeUTF(value);
+				}
+				int width = codeWidth(dictionary.size());
+				out.writeByte(width);
+				for(HashMap<String, String> row:rows) {
+					String value = row.get(column.getKey());
+					writeCode(out, width, value==null ? 0 : dictionary.get(value));
+				}
+			}
+		}
+	}
+
+	private static int codeWidth(int pDictionarySize) {
+		if(pDictionarySize<0xFF) return 1;
+		if(pDictionarySize<0xFFFF) return 2;
+		return 4;
+	}
+
+	private static void writeCode(DataOutputStream pOut, int pWidth, int pCode) throws IOException {
+		switch(pWidth) {
+		case 1: pOut.writeByte(pCode); break;
+		case 2: pOut.writeShort(pCode); break;
+		default: pOut.writeInt(pCode);
+		}
+	}
+
+	private static int readCode(DataInputStream pIn, int pWidth) throws IOException {
+		switch(pWidth) {
+		case 1: return pIn.readUnsignedByte();
+		case 2: return pIn.readUnsignedShort();
+		default: return pIn.readInt();
+		}
+	}
+
+	/**
+	 * Read every row in a store
+	 * @param pStoreFile store to read
+	 * @param pVisitor called for each row
+	 * @return number of rows read
+	 * @throws IOException on error
+	 */
+	public static long read(String pStoreFile, RowVisitor pVisitor) throws IOException {
+		return read(pStoreFile, pVisitor, new long[1]);
+	}
+
+	/**
+	 * @param pStoreFile store to check
+	 * @return length of the store up to the end of its last complete row group, 0 if the header is incomplete
+	 * @throws IOException if the file is not a store
+	 */
+	static long completeLength(String pStoreFile) throws IOException {
+		long[] complete = new long[1];
+		read(pStoreFile, new RowVisitor() {
+			public void row(String pFile, HashMap<String, String> pProperties) {
+			}
+		}, complete);
+		return complete[0];
+	}
+
+	private static long read(String pStoreFile, RowVisitor pVisitor, long[] pComplete) throws IOException {
+		CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(pStoreFile)));
+		DataInputStream in = new DataInputStream(counter);
+		long total = 0;
+		try {
+			if(in.readInt()!=MAGIC) throw new IOException(pStoreFile+" is not a property store");
+			int version = in.readInt();
+			if(version!=VERSION) throw new IOException("unsupported property store version: "+version);
+			pComplete[0] = counter.count;
+
+			while(true) {
+				int count;
+				try {
+					count = in.readInt();
+				} catch(EOFException e) {
+					break;
+				}
+				String[] files = new String[count];
+				String previous = "";
+				for(int i=0;i<count;i++) {
+					int shared = in.readUnsignedShort();
+					files[i] = previous.substring(0, shared)+in.readUTF();
+					previous = files[i];
+				}
+
+				List<HashMap<String, String>> rows = new ArrayList<HashMap<String, String>>(count);
+				for(int i=0;i<count;i++) {
+					rows.add(new HashMap<String, String>());
+				}
+				int columns = in.readInt();
+				for(int c=0;c<columns;c++) {
+					String key = in.readUTF();
+					//values are interned per group so identical rows share their strings
+					String[] dictionary = new String[in.readInt()+1];
+					for(int d=1;d<dictionary.length;d++) {
+						dictionary[d] = in.readUTF();
+					}
+					int width = in.readUnsignedByte();
+					for(int i=0;i<count;i++) {
+						int code = readCode(in, width);
+						if(code>0) rows.get(i).put(key, dictionary[code]);
+					}
+				}
+
+				for(int i=0;i<count;i++) {
+					pVisitor.row(files[i], rows.get(i));
+				}
+				total += count;
+				pComplete[0] = counter.count;
+			}
+		} catch(EOFException e) {
+			//the last group was not finished, e.g. the run that wrote it was killed
+			System.out.println("WARNING: "+pStoreFile+" is truncated, read "+total+" rows");
+		} finally {
+			in.close();
+		}
+		return total;
+	}
+
+	/**
+	 * Counts the bytes read, so the end of each row group is known
+	 */
+	private static final class CountingInputStream extends FilterInputStream {
+		long count = 0;
+
+		CountingInputStream(InputStream pIn) {
+			super(pIn);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if(b>=0) count++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] pBuffer, int pOffset, int pLength) throws IOException {
+			int read = super.read(pBuffer, pOffset, pLength);
+			if(read>0) count += read;
+			return read;
+		}
+
+		@Override
+		public long skip(long pBytes) throws IOException {
+			long skipped = super.skip(pBytes);
+			count += skipped;
+			return skipped;
+		}
+	}
+
+	/**
+	 * Evaluate a profile against every file in a store, without rerunning jpylyzer.
+	 * Schematron is not rerun so the results only cover jpylyzer validity and the profile.
+	 * @param pStoreFile store to read
+	 * @param pJp2Profile profile to evaluate
+	 * @param pListener receives a result for each file
+	 * @return number of files evaluated
+	 * @throws IOException on error
+	 */
+	public static long reprofile(String pStoreFile, final JP2Profile pJp2Profile, final JP2ResultListener pListener) throws IOException {
+		//most of a collection shares a handful of parameter sets, so only compare each one once
+		final HashMap<HashMap<String, String>, HashMap<String, String>> verdicts = new HashMap<HashMap<String, String>, HashMap<String, String>>();
+		return read(pStoreFile, new RowVisitor() {
+			public void row(String pFile, HashMap<String, String> pProperties) {
+				//validity, tool and encoder comment differ from file to file but are not compared
+				HashMap<String, String> parameters = new HashMap<String, String>(pProperties);
+				parameters.remove(Keys.ISVALID);
+				parameters.remove(Keys.TOOL);
+				parameters.remove(Keys.ENCODER);
+				HashMap<String, String> mismatches = verdicts.get(parameters);
+				if(mismatches==null) {
+					mismatches = JP2Check.compareJpylyzerProfile(pProperties, pJp2Profile);
+					verdicts.put(parameters, mismatches);
+				}
+				JP2CheckResult result = new JP2CheckResult(pFile);
+				result.properties = pProperties;
+				//each result gets its own copy, as listeners may change it
+				result.mismatches = new HashMap<String, String>(mismatches);
+				result.jpylyzerValid = "true".equalsIgnoreCase(pProperties.get(Keys.ISVALID));
+				result.profileMatch = mismatches.isEmpty();
+				result.updateStatus();
+				pListener.resultReady(result);
+			}
+		});
+	}
+
+}
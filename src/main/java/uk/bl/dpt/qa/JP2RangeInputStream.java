@@ -0,0 +1,130 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A stream over a JP2ByteSource that turns the many small reads made while parsing a header
+ * into a few ranged reads.
+ *
+ * Reads are served from a buffer that is filled one range at a time, and each range fetched
+ * is twice the size of the one before (up to a limit), so a typical header comes back in one
+ * or two ranges.  skip() only moves the position, so boxes that are skipped over are never
+ * fetched unless they are smaller than the read ahead.
+ * @author wpalmer
+ */
+public class JP2RangeInputStream extends InputStream {
+
+	//first range fetched, enough for the header of most files
+	private static final int FIRST_FETCH = 16*1024;
+	private static final int MAX_FETCH = 1024*1024;
+
+	private final JP2ByteSource source;
+	private byte[] buffer = new byte[0];
+	//file offset of buffer[0], and the number of valid bytes in the buffer
+	private long bufferStart = 0;
+	private int bufferLength = 0;
+	private long position = 0;
+	private int fetchSize;
+	private int fetches = 0;
+
+	/**
+	 * @param pSource source to read from, not closed when this stream is closed
+	 */
+	public JP2RangeInputStream(JP2ByteSource pSource) {
+		this(pSource, FIRST_FETCH);
+	}
+
+	/**
+	 * @param pSource source to read from, not closed when this stream is closed
+	 * @param pFirstFetch size of the first range to fetch
+	 */
+	public JP2RangeInputStream(JP2ByteSource pSource, int pFirstFetch) {
+		source = pSource;
+		fetchSize = Math.max(1, pFirstFetch);
+	}
+
+	/**
+	 * @return current offset in the file
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * @return number of ranges fetched from the source
+	 */
+	public int getFetches() {
+		return fetches;
+	}
+
+	/**
+	 * Make sure the byte at the current position is buffered
+	 * @return false at the end of the file
+	 */
+	private boolean fill() throws IOException {
+		if(position>=bufferStart&&position<bufferStart+bufferLength) return true;
+		if(buffer.length<fetchSize) buffer = new byte[fetchSize];
+		int read = source.read(position, buffer, 0, fetchSize);
+		fetches++;
+		if(read<=0) {
+			bufferLength = 0;
+			return false;
+		}
+		bufferStart = position;
+		bufferLength = read;
+		//read further ahead next time
+		fetchSize = Math.min(fetchSize*2, MAX_FETCH);
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if(!fill()) return -1;
+		return buffer[(int)(position++-bufferStart)]&0xFF;
+	}
+
+	@Override
+	public int read(byte[] pBuffer, int pOffset, int pLength) throws IOException {
+		if(pLength==0) return 0;
+		if(!fill()) return -1;
+		int count = (int)Math.min(pLength, bufferStart+bufferLength-position);
+		System.arraycopy(buffer, (int)(position-bufferStart), pBuffer, pOffset, count);
+		position += count;
+		return count;
+	}
+
+	@Override
+	public long skip(long pCount) throws IOException {
+		if(pCount<=0) return 0;
+		long skip = pCount;
+		long length = source.length();
+		if(length>=0) skip = Math.max(0, Math.min(skip, length-position));
+		position += skip;
+		return skip;
+	}
+
+	@Override
+	public int available() {
+		long buffered = bufferStart+bufferLength-position;
+		return buffered>0&&position>=bufferStart ? (int)buffered : 0;
+	}
+
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+import uk.bl.dpt.qa.JP2Check.Keys;
+
+/**
+ * Checks the results in an existing jpylyzer report, without running jpylyzer again.
+ *
+ * Reports are read with SAX, so memory use does not depend on how many results a report holds,
+ * and each result is checked against the profile and the Schematron as soon as its end tag is
+ * read.  Results are reported against the fileInfo/filePath recorded by jpylyzer.  The layouts
+ * read are:
+ * - a single jpylyzer document, as written for each file by JP2Check
+ * - any root element holding one jpylyzer element per file (jpylyzer 1.x with several files)
+ * - a jpylyzer root holding a shared toolInfo and one file element per file (jpylyzer 2.x)
+ * The last is presented to the checks as the 1.x layout: each file becomes a jpylyzer element
+ * with the toolInfo copied in, isValid becomes isValidJP2 and namespaces are dropped.
+ * @author wpalmer
+ */
+public class JP2ReportReader {
+
+	private JP2ReportReader() {}
+
+	/**
+	 * Check every result in a jpylyzer report
+	 * @param pReport report file
+	 * @param pJp2Profile profile to check against
+	 * @param pListener receives a result for each file in the report
+	 * @return number of results checked
+	 * @throws IOException if the report could not be read, results before the error are still reported
+	 */
+	public static long check(String pReport, JP2Profile pJp2Profile, JP2ResultListener pListener) throws IOException {
+		InputStream in = new FileInputStream(pReport);
+		try {
+			return check(pReport, in, pJp2Profile, pListener);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Check every result in a jpylyzer report stream
+	 * @param pReport name of the report, used for results with no file name
+	 * @param pIn report stream, not closed
+	 * @param pJp2Profile profile to check against
+	 * @param pListener receives a result for each file in the report
+	 * @return number of results checked
+	 * @throws IOException if the report could not be read, results before the error are still reported
+	 */
+	public static long check(String pReport, InputStream pIn, JP2Profile pJp2Profile, JP2ResultListener pListener) throws IOException {
+		Handler handler = new Handler(pReport, pJp2Profile, pListener);
+		try {
+			JP2Xml.saxParser().parse(new InputSource(pIn), handler);
+		} catch(ParserConfigurationException e) {
+			throw new IOException(e);
+		} catch(SAXException e) {
+			throw new IOException(pReport+": "+e.getMessage()+" after "+handler.count+" results", e);
+		}
+		return handler.count;
+	}
+
+	private static final class Handler extends DefaultHandler {
+		private static final String JPYLYZER = "jpylyzer";
+
+		private final String report;
+		private final JP2Profile profile;
+		private final JP2ResultListener listener;
+		private final boolean schematron = JP2Check.isSchematron();
+		private final JP2SchematronRules rules = schematron ? JpylyzerSchematron.defaultRules() : null;
+		long count = 0;
+
+		private String[] names = new String[16];
+		private int depth = 0;
+		private final StringBuilder text = new StringBuilder();
+		//jpylyzer 2.x: results are file elements sharing one toolInfo
+		private boolean fileResults = false;
+		private String toolName = null;
+		private String toolVersion = null;
+
+		//the result being read
+		private int resultDepth = -1;
+		private JpylyzerOutputParser parser;
+		private JP2SchematronRules.Checker checker;
+		//a copy of the result for any rules that could not be compiled
+		private TransformerHandler copy;
+		private ByteArrayOutputStream copyBytes;
+		private String fileName;
+		private String filePath;
+
+		Handler(String pReport, JP2Profile pJp2Profile, JP2ResultListener pListener) {
+			report = pReport;
+			profile = pJp2Profile;
+			listener = pListener;
+		}
+
+		@Override
+		public void startElement(String pUri, String pLocalName, String pQName, Attributes pAttributes) throws SAXException {
+			if(depth==names.length) {
+				String[] bigger = new String[depth*2];
+				System.arraycopy(names, 0, bigger, 0, depth);
+				names = bigger;
+			}
+			names[depth++] = pLocalName;
+			text.setLength(0);
+			boolean jpylyzerRoot = JPYLYZER.equals(names[0]);
+			if(depth==1&&jpylyzerRoot) {
+				//a single result, unless file elements turn up
+				beginResult();
+			} else if(depth==2&&jpylyzerRoot&&pLocalName.equals("file")) {
+				//only the toolInfo has been passed on so far
+				fileResults = true;
+				resultDepth = -1;
+				beginResult();
+			} else if(depth==2&&!jpylyzerRoot&&pLocalName.equals(JPYLYZER)) {
+				beginResult();
+			}
+			if(resultDepth>0) forwardStart(map(pLocalName), pAttributes);
+			if(fileResults&&depth==resultDepth) {
+				//each file gets a copy of the shared toolInfo, as in 1.x
+				forwardStart("toolInfo", new AttributesImpl());
+				forwardElement("toolName", toolName);
+				forwardElement("toolVersion", toolVersion);
+				forwardEnd("toolInfo");
+			}
+		}
+
+		@Override
+		public void characters(char[] pCh, int pStart, int pLength) throws SAXException {
+			text.append(pCh, pStart, pLength);
+			if(resultDepth>0) forwardCharacters(pCh, pStart, pLength);
+		}
+
+		@Override
+		public void endElement(String pUri, String pLocalName, String pQName) throws SAXException {
+			if(depth==3&&JPYLYZER.equals(names[0])&&names[1].equals("toolInfo")) {
+				if(pLocalName.equals("toolName")) toolName = text.toString();
+				if(pLocalName.equals("toolVersion")) toolVersion = text.toString();
+			}
+			if(resultDepth>0) {
+				if(depth==resultDepth+2&&names[resultDepth].equals("fileInfo")) {
+					if(pLocalName.equals("fileName")) fileName = text.toString().trim();
+					if(pLocalName.equals("filePath")) filePath = text.toString().trim();
+				}
+				forwardEnd(map(pLocalName));
+				if(depth==resultDepth) endResult();
+			}
+			text.setLength(0);
+			depth--;
+		}
+
+		/**
+		 * @return the name a result element is passed on as
+		 */
+		private String map(String pLocalName) {
+			if(depth==resultDepth) return JPYLYZER;
+			if(fileResults&&depth==resultDepth+1&&pLocalName.equals("isValid")) return "isValidJP2";
+			return pLocalName;
+		}
+
+		private void beginResult() throws SAXException {
+			resultDepth = depth;
+			fileName = null;
+			filePath = null;
+			checker = rules!=null ? rules.newChecker() : null;
+			parser = new JpylyzerOutputParser(checker);
+			copy = null;
+			if(schematron&&(rules==null||!rules.isComplete())) {
+				try {
+					copy = ((SAXTransformerFactory)JP2Xml.transformerFactory()).newTransformerHandler();
+				} catch(TransformerConfigurationException e) {
+					throw new SAXException(e);
+				}
+				copyBytes = new ByteArrayOutputStream();
+				copy.setResult(new StreamResult(copyBytes));
+				copy.startDocument();
+			}
+		}
+
+		private void endResult() throws SAXException {
+			resultDepth = -1;
+			String name = !isEmpty(filePath) ? filePath : !isEmpty(fileName) ? fileName : report+"#"+count;
+			JP2CheckResult result = new JP2CheckResult(name);
+			result.properties = parser.getItems();
+			if(!parser.getErrors().isEmpty()) result.message = parser.getErrors().toString();
+			result.jpylyzerValid = "true".equalsIgnoreCase(result.properties.get(Keys.ISVALID));
+			result.mismatches = JP2Check.compareJpylyzerProfile(result.properties, profile);
+			result.profileMatch = result.mismatches.isEmpty();
+			if(schematron) {
+				boolean valid = checker==null||checker.passed();
+				if(valid&&copy!=null) {
+					copy.endDocument();
+					InputStream in = new ByteArrayInputStream(copyBytes.toByteArray());
+					valid = rules!=null ? rules.validateResidual(in) : JpylyzerSchematron.checkJpylyzerOutput(in);
+				}
+				result.schematronValid = valid;
+			}
+			result.updateStatus();
+			parser = null;
+			checker = null;
+			copy = null;
+			copyBytes = null;
+			count++;
+			listener.resultReady(result);
+		}
+
+		private static boolean isEmpty(String pValue) {
+			return pValue==null||pValue.isEmpty();
+		}
+
+		private void forwardStart(String pName, Attributes pAttributes) throws SAXException {
+			parser.startElement("", pName, pName, pAttributes);
+			if(copy!=null) copy.startElement("", pName, pName, pAttributes);
+		}
+
+		private void forwardCharacters(char[] pCh, int pStart, int pLength) throws SAXException {
+			parser.characters(pCh, pStart, pLength);
+			if(copy!=null) copy.characters(pCh, pStart, pLength);
+		}
+
+		private void forwardEnd(String pName) throws SAXException {
+			parser.endElement("", pName, pName);
+			if(copy!=null) copy.endElement("", pName, pName);
+		}
+
+		private void forwardElement(String pName, String pText) throws SAXException {
+			forwardStart(pName, new AttributesImpl());
+			if(pText!=null) forwardCharacters(pText.toCharArray(), 0, pText.length());
+			forwardEnd(pName);
+		}
+	}
+
+}
@@ -0,0 +1,505 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import uk.bl.dpt.qa.JP2CheckResult.Status;
+
+/**
+ * Estimates failure rates across a collection by checking a random sample of it.
+ *
+ * The files are listed in a manifest, one per line, optionally followed by a tab and the file
+ * size in bytes and another tab and the modification date (yyyy-MM-dd or milliseconds since
+ * 1970).  The collection can be split into strata (by directory, by size band or by month) and
+ * each stratum is sampled in proportion to its size, which gives tighter estimates than a
+ * simple random sample when failure rates differ between strata.
+ *
+ * The manifest is read twice: once to count the strata, then to keep the files with the lowest
+ * random keys in each stratum, up to that stratum's share of the largest sample allowed.  So
+ * memory depends on the sample size and the number of strata, not the collection size.  Shares
+ * are given out by largest remainder, so they add up to the sample size; strata too small to
+ * get a whole file of the largest sample are pooled and sampled as one.
+ *
+ * The sample is checked in rounds; after each round the 95% interval of every rate is worked
+ * out and, if any is wider than the target precision, the sample is grown to the size the
+ * widest one needs and checked again.
+ *
+ * Rates are stratified estimates.  Intervals are Wilson score intervals on the total sample size
+ * with a finite population correction, which for proportional allocation is slightly conservative.
+ * @author wpalmer
+ */
+public class JP2Sampler {
+
+	/**
+	 * How the collection is split before sampling
+	 */
+	public enum Strata { NONE, DIRECTORY, SIZE, DATE }
+
+	//95% confidence
+	private static final double Z = 1.96;
+	//rates reported alongside the mismatch keys
+	static final String FAILED = "(not passed)";
+	static final String ERROR = "(error or timeout)";
+	static final String JPYLYZER = "(jpylyzer invalid)";
+	static final String SCHEMATRON = "(schematron invalid)";
+
+	private static final long MB = 1024*1024;
+
+	private final JP2BatchScheduler scheduler;
+	private Strata strata = Strata.NONE;
+	private long seed = 0;
+	private double precision = 0.01;
+	private int initialSample = 384;
+	private int maxSample = 100000;
+
+	/**
+	 * One file in the sample, ordered by its random key
+	 */
+	private static final class Draw {
+		final double key;
+		final String file;
+		Draw(double pKey, String pFile) {
+			key = pKey;
+			file = pFile;
+		}
+	}
+
+	private static final Comparator<Draw> LARGEST_KEY_FIRST = new Comparator<Draw>() {
+		public int compare(Draw pA, Draw pB) {
+			return Double.compare(pB.key, pA.key);
+		}
+	};
+
+	/**
+	 * A stratum, its population and the files drawn from it
+	 */
+	private static final class Stratum {
+		long population = 0;
+		int capacity = 0;
+		PriorityQueue<Draw> reservoir = null;
+		List<String> drawn = null;
+		//files submitted, and results back
+		int taken = 0;
+		int checked = 0;
+		final HashMap<String, Integer> failures = new HashMap<String, Integer>();
+	}
+
+	/**
+	 * An estimated rate and its confidence interval
+	 */
+	@SuppressWarnings("javadoc")
+	public static final class Rate {
+		public final long failures;
+		public final double estimate;
+		public final double low;
+		public final double high;
+		Rate(long pFailures, double pEstimate, double pLow, double pHigh) {
+			failures = pFailures;
+			estimate = pEstimate;
+			low = pLow;
+			high = pHigh;
+		}
+		public double halfWidth() {
+			return (high-low)/2;
+		}
+	}
+
+	/**
+	 * The outcome of sampling a collection
+	 */
+	@SuppressWarnings("javadoc")
+	public static final class Estimate {
+		public long population = 0;
+		public int strata = 0;
+		public int sampled = 0;
+		public int rounds = 0;
+		//rate name (mismatch key or one of the status rates) -> rate, highest first
+		public LinkedHashMap<String, Rate> rates = new LinkedHashMap<String, Rate>();
+
+		/**
+		 * Print the estimates
+		 * @param pOut stream to print to
+		 */
+		public void printReport(PrintStream pOut) {
+			pOut.println("Sampled "+sampled+" of "+population+" files in "+strata+" strata, "+rounds+" rounds");
+			pOut.println("Estimated rates (95% interval):");
+			for(Map.Entry<String, Rate> e:rates.entrySet()) {
+				Rate rate = e.getValue();
+				pOut.println(String.format("  %-24s %7.3f%%  [%.3f%%, %.3f%%]  ~%d files  (%d in sample)", e.getKey(),
+						rate.estimate*100, rate.low*100, rate.high*100, Math.round(rate.estimate*population), rate.failures));
+			}
+		}
+	}
+
+	/**
+	 * Create a sampler that checks files with the given scheduler
+	 * @param pScheduler scheduler to check files with
+	 */
+	public JP2Sampler(JP2BatchScheduler pScheduler) {
+		scheduler = pScheduler;
+	}
+
+	/**
+	 * @param pStrata how to split the collection
+	 */
+	public void setStrata(Strata pStrata) {
+		strata = pStrata;
+	}
+
+	/**
+	 * @param pSeed random seed, so a sample can be repeated
+	 */
+	public void setSeed(long pSeed) {
+		seed = pSeed;
+	}
+
+	/**
+	 * @param pPrecision largest acceptable half-width of a 95% interval, e.g. 0.01 for +/-1%
+	 */
+	public void setPrecision(double pPrecision) {
+		if(pPrecision>0) precision = pPrecision;
+	}
+
+	/**
+	 * @param pSize number of files checked in the first round
+	 */
+	public void setInitialSample(int pSize) {
+		if(pSize>0) initialSample = pSize;
+	}
+
+	/**
+	 * @param pSize most files that will be checked
+	 */
+	public void setMaxSample(int pSize) {
+		if(pSize>0) maxSample = pSize;
+	}
+
+	/**
+	 * Sample a collection and estimate its failure rates
+	 * @param pManifest manifest listing the files in the collection
+	 * @return the estimates
+	 * @throws IOException if the manifest cannot be read
+	 */
+	public Estimate sample(String pManifest) throws IOException {
+		//first pass: stratum sizes
+		final TreeMap<String, Stratum> strataMap = new TreeMap<String, Stratum>();
+		long population = readManifest(pManifest, new LineVisitor() {
+			public void line(String pFile, String pStratum) {
+				Stratum stratum = strataMap.get(pStratum);
+				if(stratum==null) {
+					stratum = new Stratum();
+					strataMap.put(pStratum, stratum);
+				}
+				stratum.population++;
+			}
+		});
+		Estimate estimate = new Estimate();
+		estimate.population = population;
+		if(population==0) {
+			estimate.strata = strataMap.size();
+			return estimate;
+		}
+
+		//pool the strata that would not get a file of the maximum sample
+		int cap = (int)Math.min(maxSample, population);
+		List<Stratum> strataList = new ArrayList<Stratum>();
+		Stratum pooled = new Stratum();
+		for(Map.Entry<String, Stratum> e:strataMap.entrySet()) {
+			Stratum stratum = e.getValue();
+			if((double)cap*stratum.population/population<1) {
+				pooled.population += stratum.population;
+				e.setValue(pooled);
+			} else {
+				strataList.add(stratum);
+			}
+		}
+		if(pooled.population>0) strataList.add(pooled);
+		estimate.strata = strataList.size();
+
+		//second pass: the lowest keys in each stratum, up to its share of the maximum sample
+		//ties between remainders are broken at random so no stratum is favoured by its name
+		Random shuffle = new Random(seed);
+		int[] capacities = allocate(strataList, population, cap, shuffle);
+		for(int i=0;i<capacities.length;i++) {
+			Stratum stratum = strataList.get(i);
+			stratum.capacity = capacities[i];
+			stratum.reservoir = new PriorityQueue<Draw>(Math.max(1, Math.min(stratum.capacity, 1024)), LARGEST_KEY_FIRST);
+		}
+		final Random random = new Random(seed);
+		readManifest(pManifest, new LineVisitor() {
+			public void line(String pFile, String pStratum) {
+				Stratum stratum = strataMap.get(pStratum);
+				double key = random.nextDouble();
+				if(stratum==null||stratum.capacity==0) return;
+				if(stratum.reservoir.size()<stratum.capacity) {
+					stratum.reservoir.add(new Draw(key, pFile));
+				} else if(key<stratum.reservoir.peek().key) {
+					stratum.reservoir.poll();
+					stratum.reservoir.add(new Draw(key, pFile));
+				}
+			}
+		});
+		for(Stratum stratum:strataList) {
+			List<Draw> draws = new ArrayList<Draw>(stratum.reservoir);
+			Collections.sort(draws, Collections.reverseOrder(LARGEST_KEY_FIRST));
+			stratum.drawn = new ArrayList<String>(draws.size());
+			for(Draw draw:draws) {
+				stratum.drawn.add(draw.file);
+			}
+			stratum.reservoir = null;
+		}
+
+		//check in rounds until the widest interval is narrow enough
+		int target = Math.min(initialSample, cap);
+		while(true) {
+			List<String> batch = new ArrayList<String>();
+			Map<String, Stratum> owner = new HashMap<String, Stratum>();
+			int[] shares = allocate(strataList, population, target, shuffle);
+			for(int s=0;s<shares.length;s++) {
+				Stratum stratum = strataList.get(s);
+				int want = Math.min(stratum.drawn.size(), shares[s]);
+				for(int i=stratum.taken;i<want;i++) {
+					batch.add(stratum.drawn.get(i));
+					owner.put(stratum.drawn.get(i), stratum);
+				}
+				stratum.taken = Math.max(stratum.taken, want);
+			}
+			if(batch.isEmpty()) break;
+			for(JP2CheckResult result:scheduler.check(batch)) {
+				Stratum stratum = owner.get(result.file);
+				if(stratum==null) continue;
+				stratum.checked++;
+				for(String failure:failures(result)) {
+					Integer count = stratum.failures.get(failure);
+					stratum.failures.put(failure, count==null ? 1 : count+1);
+				}
+			}
+			estimate.rounds++;
+			estimate(strataList, population, estimate);
+			if(estimate.sampled>=cap) break;
+
+			//grow the sample to what the widest interval needs
+			Rate widest = null;
+			for(Rate rate:estimate.rates.values()) {
+				if(widest==null||rate.halfWidth()>widest.halfWidth()) widest = rate;
+			}
+			if(widest==null||widest.halfWidth()<=precision) break;
+			double p = Math.max(widest.estimate, 1.0/estimate.sampled);
+			long needed = (long)Math.ceil(Z*Z*p*(1-p)/(precision*precision));
+			//finite population correction
+			needed = (long)Math.ceil(needed/(1+(double)(needed-1)/population));
+			target = (int)Math.min(cap, Math.max(needed, (long)(estimate.sampled*1.5)));
+		}
+		return estimate;
+	}
+
+	/**
+	 * Share out a sample between strata in proportion to their populations, by largest remainder
+	 * @param pStrata strata to share between
+	 * @param pPopulation total population of the strata
+	 * @param pTotal sample size, no more than the population
+	 * @param pRandom breaks ties between equal remainders
+	 * @return files for each stratum, adding up to pTotal
+	 */
+	private static int[] allocate(List<Stratum> pStrata, long pPopulation, int pTotal, Random pRandom) {
+		int[] shares = new int[pStrata.size()];
+		final double[] remainders = new double[shares.length];
+		List<Integer> order = new ArrayList<Integer>(shares.length);
+		int left = pTotal;
+		for(int i=0;i<shares.length;i++) {
+			long stratumPopulation = pStrata.get(i).population;
+			double quota = (double)pTotal*stratumPopulation/pPopulation;
+			shares[i] = (int)Math.min(stratumPopulation, (long)Math.floor(quota));
+			remainders[i] = quota-shares[i];
+			left -= shares[i];
+			order.add(i);
+		}
+		Collections.shuffle(order, pRandom);
+		//stable, so the shuffle decides between equal remainders
+		Collections.sort(order, (a, b) -> Double.compare(remainders[b], remainders[a]));
+		for(int i=0;i<order.size()&&left>0;i++) {
+			int stratum = order.get(i);
+			if(shares[stratum]<pStrata.get(stratum).population) {
+				shares[stratum]++;
+				left--;
+			}
+		}
+		return shares;
+	}
+
+	/**
+	 * @param pResult result of a check
+	 * @return the names of the rates this result counts against
+	 */
+	static List<String> failures(JP2CheckResult pResult) {
+		List<String> failures = new ArrayList<String>();
+		if(pResult.status!=Status.PASSED) failures.add(FAILED);
+		if(pResult.status==Status.ERROR||pResult.status==Status.TIMEOUT) failures.add(ERROR);
+		if(Boolean.FALSE.equals(pResult.jpylyzerValid)) failures.add(JPYLYZER);
+		if(Boolean.FALSE.equals(pResult.schematronValid)) failures.add(SCHEMATRON);
+		if(pResult.mismatches!=null) failures.addAll(pResult.mismatches.keySet());
+		return failures;
+	}
+
+	/**
+	 * Work out the stratified rates from what has been checked so far
+	 */
+	private static void estimate(List<Stratum> pStrata, long pPopulation, Estimate pEstimate) {
+		int sampled = 0;
+		long covered = 0;
+		HashMap<String, Long> totals = new HashMap<String, Long>();
+		for(Stratum stratum:pStrata) {
+			if(stratum.checked==0) continue;
+			sampled += stratum.checked;
+			covered += stratum.population;
+			for(Map.Entry<String, Integer> e:stratum.failures.entrySet()) {
+				Long total = totals.get(e.getKey());
+				totals.put(e.getKey(), (total==null ? 0 : total)+e.getValue());
+			}
+		}
+		pEstimate.sampled = sampled;
+		pEstimate.rates.clear();
+		if(sampled==0) return;
+		//the overall failure rate always gets an interval, even if nothing failed
+		if(!totals.containsKey(FAILED)) totals.put(FAILED, 0L);
+
+		List<Map.Entry<String, Rate>> rates = new ArrayList<Map.Entry<String, Rate>>();
+		for(Map.Entry<String, Long> e:totals.entrySet()) {
+			//strata with nothing checked yet are left out and the rest reweighted
+			double p = 0;
+			for(Stratum stratum:pStrata) {
+				if(stratum.checked==0) continue;
+				Integer failures = stratum.failures.get(e.getKey());
+				if(failures!=null) p += ((double)stratum.population/covered)*failures/stratum.checked;
+			}
+			double[] interval = wilson(p, sampled, pPopulation);
+			rates.add(new AbstractMap.SimpleEntry<String, Rate>(e.getKey(), new Rate(e.getValue(), p, interval[0], interval[1])));
+		}
+		Collections.sort(rates, (a, b) -> Double.compare(b.getValue().estimate, a.getValue().estimate));
+		for(Map.Entry<String, Rate> e:rates) {
+			pEstimate.rates.put(e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * Wilson score interval with a finite population correction
+	 * @param pRate observed rate
+	 * @param pSample sample size
+	 * @param pPopulation population size
+	 * @return {low, high}
+	 */
+	static double[] wilson(double pRate, long pSample, long pPopulation) {
+		double fpc = pPopulation>1 ? Math.sqrt(Math.max(0, (double)(pPopulation-pSample)/(pPopulation-1))) : 0;
+		//with the whole population checked the rate is exact
+		if(fpc==0) return new double[] { pRate, pRate };
+		double n = pSample;
+		double z2 = Z*Z;
+		double centre = (pRate+z2/(2*n))/(1+z2/n);
+		double half = Z/(1+z2/n)*Math.sqrt(pRate*(1-pRate)/n+z2/(4*n*n))*fpc;
+		return new double[] { Math.max(0, centre-half), Math.min(1, centre+half) };
+	}
+
+	/**
+	 * Called for each file in the manifest
+	 */
+	private interface LineVisitor {
+		void line(String pFile, String pStratum);
+	}
+
+	private long readManifest(String pManifest, LineVisitor pVisitor) throws IOException {
+		SimpleDateFormat day = new SimpleDateFormat("yyyy-MM-dd");
+		SimpleDateFormat month = new SimpleDateFormat("yyyy-MM");
+		day.setTimeZone(TimeZone.getTimeZone("UTC"));
+		month.setTimeZone(TimeZone.getTimeZone("UTC"));
+		long count = 0;
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(pManifest), StandardCharsets.UTF_8));
+		try {
+			String line;
+			while((line=in.readLine())!=null) {
+				if(line.isEmpty()) continue;
+				String[] fields = line.split("\t");
+				String file = fields[0];
+				String stratum;
+				switch(strata) {
+				case DIRECTORY:
+					String parent = new File(file).getParent();
+					stratum = parent==null ? "" : parent;
+					break;
+				case SIZE:
+					long size = fields.length>1&&!fields[1].isEmpty() ? Long.parseLong(fields[1]) : new File(file).length();
+					stratum = sizeBand(size);
+					break;
+				case DATE:
+					long modified;
+					if(fields.length>2&&!fields[2].isEmpty()) {
+						try {
+							modified = fields[2].indexOf('-')>0 ? day.parse(fields[2]).getTime() : Long.parseLong(fields[2]);
+						} catch(ParseException e) {
+							throw new IOException("Bad date in manifest: "+line);
+						}
+					} else {
+						modified = new File(file).lastModified();
+					}
+					stratum = month.format(modified);
+					break;
+				default:
+					stratum = "";
+				}
+				pVisitor.line(file, stratum);
+				count++;
+			}
+		} catch(NumberFormatException e) {
+			throw new IOException("Bad size in manifest: "+e.getMessage());
+		} finally {
+			in.close();
+		}
+		return count;
+	}
+
+	/**
+	 * @param pSize file size in bytes
+	 * @return the power of two band (in MB) the size falls in
+	 */
+	static String sizeBand(long pSize) {
+		if(pSize<MB) return "<1MB";
+		long band = Long.highestOneBit(pSize/MB);
+		return band+"-"+(band*2)+"MB";
+	}
+
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXSource;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Validates many documents against a Schematron XSLT in one transform.
+ *
+ * The documents are streamed into the transform as the children of a synthetic collection
+ * document, and the SVRL is read as it is produced, each failed assert being counted against
+ * the document its location falls in.  This saves the per transform set up and SVRL parsing
+ * that dominates when each report is only a few KB.
+ *
+ * Rule contexts must be relative (e.g. jpylyzer/isValidJP2, as in the bundled schema) as
+ * absolute contexts will not match below the collection element, and tests must stay within
+ * the document, as an absolute or // path would see every document in the batch.  Use
+ * isBatchable to check a schema first, and validateEach for one that isn't.  A document that is
+ * not well formed is reported as invalid, as it would be when checked on its own, and the rest
+ * of the batch is run again without it.
+ * @author wpalmer
+ */
+final class JP2SchematronBatch {
+
+	private JP2SchematronBatch() {}
+
+	private static final String COLLECTION = "jp2check-collection";
+	private static final String DOCUMENT = "jp2check-document";
+	//the skeleton's full path locator: /collection/document[n]/..., no index if there is only one,
+	//and it may be laid out over several lines
+	private static final Pattern LOCATION = Pattern.compile("/"+COLLECTION+"/"+DOCUMENT+"\\s*(?:\\[\\s*(\\d+)\\s*\\])?\\s*(?:/.*)?", Pattern.DOTALL);
+	private static final String SCH = "http://purl.oclc.org/dsdl/schematron";
+	//a path from the root (at the start, or after an operator, bracket or comma), //, root() or
+	//an ancestor axis, any of which can reach above the document into the collection
+	private static final Pattern OUTSIDE = Pattern.compile(
+			"(?:^|[(\\[,=<>|!+-]|\\b(?:and|or|div|mod)\\s)\\s*/|//|\\broot\\s*\\(|\\bancestor(?:-or-self)?\\s*::");
+	private static final Pattern LITERAL = Pattern.compile("'[^']*'|\"[^\"]*\"");
+	//attributes holding XPath in a Schematron schema
+	private static final String[] XPATHS = { "context", "test", "value", "select", "path" };
+
+	/**
+	 * Number of documents put in one transform, the transform holds them all in memory
+	 */
+	static final int BATCH = 200;
+
+	/**
+	 * @param pSchema Schematron schema
+	 * @return true if the schema gives the same verdicts in a batch as for each document alone
+	 */
+	static boolean isBatchable(Document pSchema) {
+		NodeList elements = pSchema.getElementsByTagNameNS(SCH, "*");
+		for(int i=0;i<elements.getLength();i++) {
+			Element element = (Element)elements.item(i);
+			for(String attribute:XPATHS) {
+				if(!element.hasAttribute(attribute)) continue;
+				String xpath = element.getAttribute(attribute);
+				if(OUTSIDE.matcher(LITERAL.matcher(xpath).replaceAll("''")).find()) return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Validate files one at a time, for a schema that is not batchable
+	 * @param pFiles files to check
+	 * @param pSchematronXSL compiled XSLT to use
+	 * @return whether each file is valid, in the same order
+	 */
+	static boolean[] validateEach(List<String> pFiles, Templates pSchematronXSL) {
+		boolean[] valid = new boolean[pFiles.size()];
+		if(pSchematronXSL==null) return valid;
+		for(int i=0;i<pFiles.size();i++) {
+			valid[i] = validateOne(pFiles.get(i), pSchematronXSL);
+		}
+		return valid;
+	}
+
+	/**
+	 * Validate files against a compiled Schematron XSLT
+	 * @param pFiles files to check
+	 * @param pSchematronXSL compiled XSLT to use
+	 * @return whether each file is valid, in the same order
+	 */
+	static boolean[] validate(List<String> pFiles, Templates pSchematronXSL) {
+		boolean[] valid = new boolean[pFiles.size()];
+		if(pSchematronXSL==null) return valid;
+		for(int start=0;start<pFiles.size();start+=BATCH) {
+			List<Integer> batch = new ArrayList<Integer>();
+			for(int i=start;i<Math.min(start+BATCH, pFiles.size());i++) {
+				batch.add(Integer.valueOf(i));
+			}
+			validateBatch(pFiles, batch, pSchematronXSL, valid);
+		}
+		return valid;
+	}
+
+	private static void validateBatch(List<String> pFiles, List<Integer> pBatch, Templates pSchematronXSL, boolean[] pValid) {
+		while(!pBatch.isEmpty()) {
+			List<String> files = new ArrayList<String>();
+			for(Integer i:pBatch) {
+				files.add(pFiles.get(i));
+			}
+			Collection collection;
+			try {
+				collection = new Collection(files);
+			} catch(ParserConfigurationException e) {
+				e.printStackTrace();
+				return;
+			} catch(SAXException e) {
+				e.printStackTrace();
+				return;
+			}
+			Svrl svrl = new Svrl(files.size());
+			try {
+				pSchematronXSL.newTransformer().transform(new SAXSource(collection, new InputSource()), new SAXResult(svrl));
+			} catch(TransformerException e) {
+				if(collection.failed<0) {
+					e.printStackTrace();
+					return;
+				}
+				//that document is invalid, try again without it
+				pBatch.remove(collection.failed);
+				continue;
+			}
+			if(svrl.unattributed) {
+				//an assert fired outside the documents, fall back to checking them one by one
+				for(Integer i:pBatch) {
+					pValid[i] = validateOne(pFiles.get(i), pSchematronXSL);
+				}
+				return;
+			}
+			for(int i=0;i<pBatch.size();i++) {
+				pValid[pBatch.get(i)] = svrl.failures[i]==0;
+			}
+			return;
+		}
+	}
+
+	private static boolean validateOne(String pFile, Templates pSchematronXSL) {
+		try {
+			InputStream in = new FileInputStream(pFile);
+			try {
+				return JpylyzerSchematron.validateSchematron(in, pSchematronXSL);
+			} finally {
+				in.close();
+			}
+		} catch(IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Produces the collection document, parsing each file in turn and passing on its events
+	 * inside a document element
+	 */
+	private static final class Collection extends XMLFilterImpl {
+		private final List<String> files;
+		private boolean inDocument = false;
+		//index of the document that could not be read, if any
+		int failed = -1;
+
+		Collection(List<String> pFiles) throws ParserConfigurationException, SAXException {
+			super(JP2Xml.saxParser().getXMLReader());
+			files = pFiles;
+		}
+
+		@Override
+		public void parse(InputSource pInput) throws SAXException, IOException {
+			getParent().setContentHandler(this);
+			getParent().setErrorHandler(this);
+			AttributesImpl none = new AttributesImpl();
+			startDocument();
+			startElement("", COLLECTION, COLLECTION, none);
+			for(int i=0;i<files.size();i++) {
+				AttributesImpl attributes = new AttributesImpl();
+				attributes.addAttribute("", "file", "file", "CDATA", files.get(i));
+				startElement("", DOCUMENT, DOCUMENT, attributes);
+				inDocument = true;
+				try {
+					InputStream in = new FileInputStream(files.get(i));
+					try {
+						getParent().parse(new InputSource(in));
+					} finally {
+						in.close();
+					}
+				} catch(IOException e) {
+					failed = i;
+					throw e;
+				} catch(SAXException e) {
+					failed = i;
+					throw e;
+				}
+				inDocument = false;
+				endElement("", DOCUMENT, DOCUMENT);
+			}
+			endElement("", COLLECTION, COLLECTION);
+			endDocument();
+		}
+
+		@Override
+		public void parse(String pSystemId) throws SAXException, IOException {
+			parse(new InputSource(pSystemId));
+		}
+
+		@Override
+		public void startDocument() throws SAXException {
+			if(!inDocument) super.startDocument();
+		}
+
+		@Override
+		public void endDocument() throws SAXException {
+			if(!inDocument) super.endDocument();
+		}
+	}
+
+	/**
+	 * Counts the failed asserts in SVRL against each document
+	 */
+	private static final class Svrl extends DefaultHandler {
+		final int[] failures;
+		boolean unattributed = false;
+
+		Svrl(int pDocuments) {
+			failures = new int[pDocuments];
+		}
+
+		@Override
+		public void startElement(String pUri, String pLocalName, String pQName, Attributes pAttributes) {
+			String name = pLocalName==null||pLocalName.isEmpty() ? pQName.substring(pQName.indexOf(':')+1) : pLocalName;
+			if(!name.equals("failed-assert")) return;
+			String location = pAttributes.getValue("location");
+			Matcher m = location==null ? null : LOCATION.matcher(location.trim());
+			if(m==null||!m.matches()) {
+				unattributed = true;
+				return;
+			}
+			int document = m.group(1)==null ? 0 : Integer.parseInt(m.group(1))-1;
+			if(document<failures.length) {
+				failures[document]++;
+			} else {
+				unattributed = true;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,460 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * A Schematron schema compiled to plain Java checks where it can be.
+ *
+ * Most rules used against jpylyzer output are of the form "the element at this path has this
+ * text".  Running those through the ISO skeleton XSLT, then parsing the SVRL it produces, costs
+ * far more than the comparisons themselves, so patterns made only of such rules are turned into
+ * predicates that are checked as the document is parsed.  The subset is:
+ * - rule contexts that are element paths (a/b/c or /a/b/c) with no predicates or wildcards
+ * - asserts whose test is text()='literal', text()!='literal', .='literal' or .!='literal'
+ * - reports, which never fail a document and so are ignored
+ * and within a pattern no two rule contexts may match the same element (Schematron only fires
+ * the first matching rule in a pattern).  Any pattern outside the subset is kept in a residual
+ * schema that is run through XSLT as before.  A schema with lets, phases, includes, namespaces
+ * or abstract patterns is left to XSLT altogether.
+ *
+ * NOTE: text split by a comment counts as one text node here, and as two in XPath.
+ * @author wpalmer
+ */
+public final class JP2SchematronRules {
+
+	private static final String SCH = "http://purl.oclc.org/dsdl/schematron";
+	private static final Pattern STEP = Pattern.compile("[A-Za-z_][\\w.-]*");
+	private static final Pattern TEST = Pattern.compile("\\s*(text\\(\\)|\\.)\\s*(!?=)\\s*(?:'([^']*)'|\"([^\"]*)\")\\s*");
+
+	/**
+	 * A compiled assert
+	 */
+	private static final class Rule {
+		final String[] steps;
+		final boolean absolute;
+		//compare the whole string value rather than each text node
+		final boolean stringValue;
+		final boolean equal;
+		final String literal;
+		final String message;
+
+		Rule(String[] pSteps, boolean pAbsolute, boolean pStringValue, boolean pEqual, String pLiteral, String pMessage) {
+			steps = pSteps;
+			absolute = pAbsolute;
+			stringValue = pStringValue;
+			equal = pEqual;
+			literal = pLiteral;
+			message = pMessage;
+		}
+
+		/**
+		 * @param pStack names of the open elements, root first
+		 * @param pDepth number of open elements
+		 * @return true if this rule's context is the innermost open element
+		 */
+		boolean matches(String[] pStack, int pDepth) {
+			if(pDepth<steps.length||(absolute&&pDepth!=steps.length)) return false;
+			for(int i=0;i<steps.length;i++) {
+				if(!steps[steps.length-1-i].equals(pStack[pDepth-1-i])) return false;
+			}
+			return true;
+		}
+
+		/**
+		 * @param pOther rule from the same pattern
+		 * @return true if some element could match both rules
+		 */
+		boolean overlaps(Rule pOther) {
+			Rule shorter = steps.length<=pOther.steps.length ? this : pOther;
+			Rule longer = shorter==this ? pOther : this;
+			if(shorter.absolute&&(!longer.absolute||shorter.steps.length!=longer.steps.length)) return false;
+			for(int i=0;i<shorter.steps.length;i++) {
+				if(!shorter.steps[shorter.steps.length-1-i].equals(longer.steps[longer.steps.length-1-i])) return false;
+			}
+			return true;
+		}
+	}
+
+	private final List<Rule> rules;
+	//only keep the string values of elements if a rule needs them
+	private final boolean stringValues;
+	//the patterns that could not be compiled, as a schema, or null if there are none
+	private final byte[] residual;
+	//whether the residual can be run over many files in one transform
+	private final boolean batchable;
+	private Templates residualTemplates = null;
+
+	private JP2SchematronRules(List<Rule> pRules, Document pResidual) throws IOException {
+		rules = pRules;
+		residual = pResidual==null ? null : serialise(pResidual);
+		batchable = pResidual==null||JP2SchematronBatch.isBatchable(pResidual);
+		boolean needed = false;
+		for(Rule rule:pRules) {
+			needed |= rule.stringValue;
+		}
+		stringValues = needed;
+	}
+
+	/**
+	 * Compile a Schematron schema
+	 * @param pSchema schema to compile
+	 * @return compiled rules
+	 * @throws IOException if the schema cannot be read or parsed
+	 */
+	public static JP2SchematronRules compile(InputStream pSchema) throws IOException {
+		Document schema;
+		try {
+			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+			factory.setNamespaceAware(true);
+			DocumentBuilder builder = factory.newDocumentBuilder();
+			schema = builder.parse(pSchema);
+		} catch(ParserConfigurationException e) {
+			throw new IOException(e);
+		} catch(SAXException e) {
+			throw new IOException(e);
+		}
+		Element root = schema.getDocumentElement();
+		List<Rule> compiled = new ArrayList<Rule>();
+		if(!SCH.equals(root.getNamespaceURI())||!"schema".equals(root.getLocalName())) {
+			throw new IOException("Not an ISO Schematron schema");
+		}
+		for(Node child=root.getFirstChild();child!=null;child=child.getNextSibling()) {
+			if(child.getNodeType()!=Node.ELEMENT_NODE) continue;
+			String name = child.getLocalName();
+			if(!SCH.equals(child.getNamespaceURI())) continue;
+			if(!name.equals("pattern")&&!name.equals("title")&&!name.equals("p")) {
+				//lets, phases, includes and namespaces change how everything is evaluated
+				return new JP2SchematronRules(new ArrayList<Rule>(), schema);
+			}
+		}
+		List<Node> compiledPatterns = new LinkedList<Node>();
+		for(Node child=root.getFirstChild();child!=null;child=child.getNextSibling()) {
+			if(child.getNodeType()!=Node.ELEMENT_NODE||!"pattern".equals(child.getLocalName())) continue;
+			List<Rule> pattern = compilePattern((Element)child);
+			if(pattern!=null) {
+				compiled.addAll(pattern);
+				compiledPatterns.add(child);
+			}
+		}
+		for(Node pattern:compiledPatterns) {
+			root.removeChild(pattern);
+		}
+		boolean anyLeft = false;
+		for(Node child=root.getFirstChild();child!=null;child=child.getNextSibling()) {
+			if(child.getNodeType()==Node.ELEMENT_NODE&&"pattern".equals(child.getLocalName())) anyLeft = true;
+		}
+		return new JP2SchematronRules(compiled, anyLeft ? schema : null);
+	}
+
+	/**
+	 * @return the rules in a pattern, or null if the pattern is outside the subset
+	 */
+	private static List<Rule> compilePattern(Element pPattern) {
+		if(pPattern.hasAttribute("abstract")||pPattern.hasAttribute("is-a")) return null;
+		List<Rule> compiled = new ArrayList<Rule>();
+		List<Rule> contexts = new ArrayList<Rule>();
+		for(Node child=pPattern.getFirstChild();child!=null;child=child.getNextSibling()) {
+			if(child.getNodeType()!=Node.ELEMENT_NODE) continue;
+			String name = child.getLocalName();
+			if(name.equals("title")||name.equals("p")) continue;
+			if(!name.equals("rule")) return null;
+			Element rule = (Element)child;
+			if(rule.hasAttribute("abstract")) return null;
+			String context = rule.getAttribute("context").trim();
+			boolean absolute = context.startsWith("/");
+			String[] steps = (absolute ? context.substring(1) : context).split("/", -1);
+			for(String step:steps) {
+				if(!STEP.matcher(step).matches()) return null;
+			}
+			Rule contextRule = new Rule(steps, absolute, false, true, null, null);
+			for(Rule other:contexts) {
+				if(other.overlaps(contextRule)) return null;
+			}
+			contexts.add(contextRule);
+			for(Node test=rule.getFirstChild();test!=null;test=test.getNextSibling()) {
+				if(test.getNodeType()!=Node.ELEMENT_NODE) continue;
+				if(test.getLocalName().equals("report")) continue;
+				if(!test.getLocalName().equals("assert")) return null;
+				Matcher m = TEST.matcher(((Element)test).getAttribute("test"));
+				if(!m.matches()) return null;
+				String literal = m.group(3)!=null ? m.group(3) : m.group(4);
+				compiled.add(new Rule(steps, absolute, m.group(1).equals("."), m.group(2).equals("="),
+						literal, test.getTextContent().trim()));
+			}
+		}
+		return compiled;
+	}
+
+	private static byte[] serialise(Document pSchema) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			JP2Xml.transformerFactory().newTransformer().transform(new DOMSource(pSchema), new StreamResult(out));
+		} catch(TransformerException e) {
+			throw new IOException(e);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return number of asserts compiled to Java
+	 */
+	public int getCompiledAsserts() {
+		return rules.size();
+	}
+
+	/**
+	 * @return true if every pattern was compiled, so no XSLT is needed
+	 */
+	public boolean isComplete() {
+		return residual==null;
+	}
+
+	/**
+	 * @return a matcher to feed one document through
+	 */
+	public Checker newChecker() {
+		return new Checker();
+	}
+
+	/**
+	 * Validate a document against the whole schema
+	 * @param pDocument document to validate
+	 * @return true if no assert failed
+	 * @throws IOException on error
+	 */
+	public boolean validate(InputStream pDocument) throws IOException {
+		byte[] document = null;
+		InputStream in = pDocument;
+		if(residual!=null) {
+			//read it twice, once here and once by the XSLT
+			document = readAll(pDocument);
+			in = new ByteArrayInputStream(document);
+		}
+		Checker checker = newChecker();
+		try {
+			JP2Xml.saxParser().parse(new InputSource(in), checker);
+		} catch(ParserConfigurationException e) {
+			throw new IOException(e);
+		} catch(SAXException e) {
+			return false;
+		}
+		if(!checker.passed()) return false;
+		if(residual==null) return true;
+		return validateResidual(new ByteArrayInputStream(document));
+	}
+
+	/**
+	 * Validate many files against the whole schema, running any patterns that were not compiled
+	 * over all of the files in one transform (see JP2SchematronBatch), or over each file in turn
+	 * if they look outside the document
+	 * @param pFiles files to validate
+	 * @return whether each file is valid, in the same order
+	 */
+	public boolean[] validate(List<String> pFiles) {
+		boolean[] valid = new boolean[pFiles.size()];
+		List<String> rest = new ArrayList<String>();
+		List<Integer> restIndex = new ArrayList<Integer>();
+		for(int i=0;i<pFiles.size();i++) {
+			Checker checker = newChecker();
+			try {
+				InputStream in = new FileInputStream(pFiles.get(i));
+				try {
+					JP2Xml.saxParser().parse(new InputSource(in), checker);
+				} finally {
+					in.close();
+				}
+			} catch(ParserConfigurationException e) {
+				e.printStackTrace();
+				continue;
+			} catch(SAXException e) {
+				continue;
+			} catch(IOException e) {
+				continue;
+			}
+			valid[i] = checker.passed();
+			if(valid[i]&&residual!=null) {
+				rest.add(pFiles.get(i));
+				restIndex.add(Integer.valueOf(i));
+			}
+		}
+		if(!rest.isEmpty()) {
+			boolean[] residualValid = batchable ? JP2SchematronBatch.validate(rest, residualTemplates()) :
+					JP2SchematronBatch.validateEach(rest, residualTemplates());
+			for(int i=0;i<rest.size();i++) {
+				valid[restIndex.get(i)] = residualValid[i];
+			}
+		}
+		return valid;
+	}
+
+	/**
+	 * Run the patterns that were not compiled
+	 * @param pDocument document to validate
+	 * @return true if no assert failed, or there is nothing left to run
+	 */
+	boolean validateResidual(InputStream pDocument) {
+		if(residual==null) return true;
+		return JpylyzerSchematron.validateSchematron(pDocument, residualTemplates());
+	}
+
+	/**
+	 * @return the patterns that were not compiled as an XSLT, compiled on first use, or null on error
+	 */
+	private synchronized Templates residualTemplates() {
+		if(residualTemplates==null) {
+			ByteArrayOutputStream xslt = new ByteArrayOutputStream();
+			if(!JpylyzerSchematron.schematronToXSLT(new ByteArrayInputStream(residual), xslt)) return null;
+			try {
+				residualTemplates = JP2Xml.transformerFactory().newTemplates(new StreamSource(new ByteArrayInputStream(xslt.toByteArray())));
+			} catch(TransformerException e) {
+				e.printStackTrace();
+			}
+		}
+		return residualTemplates;
+	}
+
+	private static byte[] readAll(InputStream pIn) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while((read=pIn.read(buffer))!=-1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Evaluates the compiled rules over one document, as SAX events.  Can be used as a handler in
+	 * its own right or fed from another handler that is doing other work in the same pass.
+	 */
+	public final class Checker extends DefaultHandler {
+		private String[] stack = new String[16];
+		//text nodes of each open element, and their string values
+		private final List<List<String>> texts = new ArrayList<List<String>>();
+		private final List<StringBuilder> values = new ArrayList<StringBuilder>();
+		private final List<StringBuilder> current = new ArrayList<StringBuilder>();
+		private int depth = 0;
+		private final List<String> failures = new ArrayList<String>();
+
+		private Checker() {}
+
+		@Override
+		public void startElement(String pUri, String pLocalName, String pQName, Attributes pAttributes) {
+			if(depth>0) endText(depth-1);
+			if(depth==stack.length) {
+				String[] bigger = new String[depth*2];
+				System.arraycopy(stack, 0, bigger, 0, depth);
+				stack = bigger;
+			}
+			//unprefixed contexts only match elements in no namespace
+			stack[depth] = (pUri==null||pUri.isEmpty()) ? pLocalName : null;
+			if(texts.size()==depth) {
+				texts.add(new ArrayList<String>());
+				values.add(new StringBuilder());
+				current.add(new StringBuilder());
+			}
+			texts.get(depth).clear();
+			values.get(depth).setLength(0);
+			current.get(depth).setLength(0);
+			depth++;
+		}
+
+		@Override
+		public void characters(char[] pCh, int pStart, int pLength) {
+			if(depth==0) return;
+			current.get(depth-1).append(pCh, pStart, pLength);
+			if(!stringValues) return;
+			for(int i=0;i<depth;i++) {
+				values.get(i).append(pCh, pStart, pLength);
+			}
+		}
+
+		private void endText(int pLevel) {
+			StringBuilder text = current.get(pLevel);
+			if(text.length()>0) {
+				texts.get(pLevel).add(text.toString());
+				text.setLength(0);
+			}
+		}
+
+		@Override
+		public void endElement(String pUri, String pLocalName, String pQName) {
+			endText(depth-1);
+			if(stack[depth-1]!=null) {
+				for(Rule rule:rules) {
+					if(rule.matches(stack, depth)&&!test(rule, depth-1)) failures.add(rule.message);
+				}
+			}
+			depth--;
+		}
+
+		private boolean test(Rule pRule, int pLevel) {
+			if(pRule.stringValue) {
+				return values.get(pLevel).toString().equals(pRule.literal)==pRule.equal;
+			}
+			//a node-set comparison is true if it is true for any node
+			for(String text:texts.get(pLevel)) {
+				if(text.equals(pRule.literal)==pRule.equal) return true;
+			}
+			return false;
+		}
+
+		/**
+		 * @return true if no compiled assert failed
+		 */
+		public boolean passed() {
+			return failures.isEmpty();
+		}
+
+		/**
+		 * @return messages of the asserts that failed
+		 */
+		public List<String> getFailures() {
+			return failures;
+		}
+	}
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathFactory;
+
+import org.xml.sax.SAXException;
+
+/**
+ * The JAXP factories, looked up the first time they are needed and then reused.
+ *
+ * Factory lookup goes through the service loader and is a large part of the start up time,
+ * so the parsers and the XSLT stack are held separately and neither is touched unless a run
+ * needs it.  Builders, XPaths and transformer factories are not thread safe, so each platform
+ * thread keeps its own.  Virtual threads are made per file and never reuse one, so they get a new
+ * one each time instead of filling thread locals that are thrown away.
+ * @author wpalmer
+ */
+final class JP2Xml {
+
+	private JP2Xml() {}
+
+	private static final class Parsers {
+		static final DocumentBuilderFactory DOCUMENTS = DocumentBuilderFactory.newInstance();
+		static final XPathFactory XPATHS = XPathFactory.newInstance();
+		static final ThreadLocal<DocumentBuilder> BUILDER = new ThreadLocal<DocumentBuilder>();
+		static final ThreadLocal<XPath> XPATH = new ThreadLocal<XPath>();
+	}
+
+	private static final class Sax {
+		static final SAXParserFactory PARSERS = SAXParserFactory.newInstance();
+		static final ThreadLocal<SAXParser> PARSER = new ThreadLocal<SAXParser>();
+		static {
+			PARSERS.setNamespaceAware(true);
+		}
+	}
+
+	private static final class Transformers {
+		static final ThreadLocal<TransformerFactory> FACTORY = new ThreadLocal<TransformerFactory>();
+		//found once, so later factories are made directly rather than through the service loader
+		static final Class<? extends TransformerFactory> CLASS = TransformerFactory.newInstance().getClass();
+	}
+
+	/**
+	 * @return true if this thread should keep its own instances
+	 */
+	private static boolean cached() {
+		return !Thread.currentThread().isVirtual();
+	}
+
+	/**
+	 * @return a DocumentBuilder for this thread
+	 * @throws ParserConfigurationException on error
+	 */
+	static DocumentBuilder documentBuilder() throws ParserConfigurationException {
+		DocumentBuilder builder = Parsers.BUILDER.get();
+		if(builder==null) {
+			synchronized(Parsers.DOCUMENTS) {
+				builder = Parsers.DOCUMENTS.newDocumentBuilder();
+			}
+			if(cached()) Parsers.BUILDER.set(builder);
+		} else {
+			builder.reset();
+		}
+		return builder;
+	}
+
+	/**
+	 * @return an XPath for this thread
+	 */
+	static XPath xpath() {
+		XPath xpath = Parsers.XPATH.get();
+		if(xpath==null) {
+			synchronized(Parsers.XPATHS) {
+				xpath = Parsers.XPATHS.newXPath();
+			}
+			if(cached()) Parsers.XPATH.set(xpath);
+		} else {
+			xpath.reset();
+		}
+		return xpath;
+	}
+
+	/**
+	 * @return a namespace aware SAXParser for this thread
+	 * @throws ParserConfigurationException on error
+	 * @throws SAXException on error
+	 */
+	static SAXParser saxParser() throws ParserConfigurationException, SAXException {
+		SAXParser parser = Sax.PARSER.get();
+		if(parser==null) {
+			synchronized(Sax.PARSERS) {
+				parser = Sax.PARSERS.newSAXParser();
+			}
+			if(cached()) Sax.PARSER.set(parser);
+		} else {
+			parser.reset();
+		}
+		return parser;
+	}
+
+	/**
+	 * @return a TransformerFactory for this thread, with no URIResolver set
+	 */
+	static TransformerFactory transformerFactory() {
+		TransformerFactory factory = Transformers.FACTORY.get();
+		if(factory==null) {
+			factory = TransformerFactory.newInstance(Transformers.CLASS.getName(), Transformers.CLASS.getClassLoader());
+			if(cached()) Transformers.FACTORY.set(factory);
+		} else {
+			factory.setURIResolver(null);
+		}
+		return factory;
+	}
+
+}
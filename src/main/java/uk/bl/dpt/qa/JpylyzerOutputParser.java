@@ -0,0 +1,203 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import uk.bl.dpt.qa.JP2Check.Keys;
+
+/**
+ * Reads the values JP2Check compares against a profile from jpylyzer output in one SAX pass,
+ * optionally passing the same events to a compiled Schematron checker so that the output is
+ * only parsed once.  The values are the same as the XPath lookups this replaced: the first
+ * matching element, or an empty string if there is none.
+ * @author wpalmer
+ */
+final class JpylyzerOutputParser extends DefaultHandler {
+
+	private static final String CCB = "/jpylyzer/properties/contiguousCodestreamBox/";
+	private static final String COD = CCB+"cod/";
+	private static final String SIZ = CCB+"siz/";
+
+	//element path -> key, for the values that are stored as they are
+	private static final HashMap<String, String> PATHS = new HashMap<String, String>();
+	static {
+		PATHS.put("/jpylyzer/isValidJP2", Keys.ISVALID);
+		PATHS.put(CCB+"com/comment", Keys.ENCODER);
+		for(String key:new String[] { Keys.ORDER, Keys.PRECINCTS, Keys.SOP, Keys.EPH, Keys.LAYERS, Keys.LEVELS,
+				Keys.CODEBLOCKWIDTH, Keys.CODEBLOCKHEIGHT, Keys.CODINGBYPASS, Keys.TRANSFORMATION }) {
+			PATHS.put(COD+key, key);
+		}
+		PATHS.put(SIZ+Keys.NUMBEROFTILES, Keys.NUMBEROFTILES);
+		PATHS.put(SIZ+Keys.TILEXDIM, Keys.TILEXDIM);
+		PATHS.put(SIZ+Keys.TILEYDIM, Keys.TILEYDIM);
+	}
+	private static final String TOOLNAME = "/jpylyzer/toolInfo/toolName";
+	private static final String TOOLVERSION = "/jpylyzer/toolInfo/toolVersion";
+	private static final String PRECINCTX = COD+Keys.PRECINCTSIZE+"X";
+	private static final String PRECINCTY = COD+Keys.PRECINCTSIZE+"Y";
+
+	private final DefaultHandler checker;
+	private final StringBuilder path = new StringBuilder();
+	private int[] lengths = new int[16];
+	private int depth = 0;
+	private final StringBuilder text = new StringBuilder();
+
+	private final HashMap<String, String> found = new HashMap<String, String>();
+	private String toolName = null;
+	private String toolVersion = null;
+	private final List<String> precinctX = new ArrayList<String>();
+	private final List<String> precinctY = new ArrayList<String>();
+	//values that could not be turned into items
+	private final List<String> errors = new ArrayList<String>();
+
+	/**
+	 * @param pChecker handler to pass every event on to, e.g. a JP2SchematronRules.Checker, or null
+	 */
+	JpylyzerOutputParser(DefaultHandler pChecker) {
+		checker = pChecker;
+	}
+
+	/**
+	 * Parse a document
+	 * @param pJpylyzerOutput jpylyzer output
+	 * @return true if the document was well formed
+	 * @throws IOException if it could not be read
+	 */
+	boolean parse(InputStream pJpylyzerOutput) throws IOException {
+		try {
+			JP2Xml.saxParser().parse(new InputSource(pJpylyzerOutput), this);
+			return true;
+		} catch(ParserConfigurationException e) {
+			throw new IOException(e);
+		} catch(SAXException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	@Override
+	public void startElement(String pUri, String pLocalName, String pQName, Attributes pAttributes) throws SAXException {
+		if(checker!=null) checker.startElement(pUri, pLocalName, pQName, pAttributes);
+		if(depth==lengths.length) {
+			int[] bigger = new int[depth*2];
+			System.arraycopy(lengths, 0, bigger, 0, depth);
+			lengths = bigger;
+		}
+		lengths[depth++] = path.length();
+		path.append('/').append(pLocalName);
+		text.setLength(0);
+	}
+
+	@Override
+	public void characters(char[] pCh, int pStart, int pLength) throws SAXException {
+		if(checker!=null) checker.characters(pCh, pStart, pLength);
+		text.append(pCh, pStart, pLength);
+	}
+
+	@Override
+	public void endElement(String pUri, String pLocalName, String pQName) throws SAXException {
+		if(checker!=null) checker.endElement(pUri, pLocalName, pQName);
+		//all the values read are in leaf elements, so the text since the start tag is the value
+		String current = path.toString();
+		String key = PATHS.get(current);
+		if(key!=null) {
+			if(!found.containsKey(key)) found.put(key, text.toString());
+		} else if(current.equals(PRECINCTX)) {
+			precinctX.add(text.toString());
+		} else if(current.equals(PRECINCTY)) {
+			precinctY.add(text.toString());
+		} else if(toolName==null&&current.equals(TOOLNAME)) {
+			toolName = text.toString();
+		} else if(toolVersion==null&&current.equals(TOOLVERSION)) {
+			toolVersion = text.toString();
+		}
+		path.setLength(lengths[--depth]);
+		text.setLength(0);
+	}
+
+	private String get(String pKey) {
+		String value = found.get(pKey);
+		return value==null ? "" : value;
+	}
+
+	/**
+	 * @return problems found by the last getItems, for the result message
+	 */
+	List<String> getErrors() {
+		return errors;
+	}
+
+	/**
+	 * @return Pairs of relevant key/values as read, as JP2Check.loadJpylyzerXML
+	 */
+	HashMap<String, String> getItems() {
+		HashMap<String, String> items = new HashMap<String, String>();
+		errors.clear();
+		items.put(Keys.ISVALID, get(Keys.ISVALID));
+		items.put(Keys.TOOL, ((toolName==null ? "" : toolName)+" "+(toolVersion==null ? "" : toolVersion)).trim());
+		//the first codestream comment usually names the encoder
+		items.put(Keys.ENCODER, get(Keys.ENCODER));
+		for(String key:new String[] { Keys.ORDER, Keys.PRECINCTS, Keys.SOP, Keys.EPH, Keys.LAYERS, Keys.LEVELS,
+				Keys.CODEBLOCKWIDTH, Keys.CODEBLOCKHEIGHT, Keys.CODINGBYPASS, Keys.TRANSFORMATION }) {
+			items.put(key, get(key));
+		}
+
+		if(items.get(Keys.PRECINCTS).toLowerCase().equals("yes")) {
+			int count = precinctX.size();
+			items.put(Keys.PRECINCTSIZE, Integer.toString(count));
+			for(int i=0;i<count;i++) {
+				String x = precinctX.get(i).trim();
+				String y = i<precinctY.size() ? precinctY.get(i).trim() : "";
+				//HACK: this is a slightly funny way of saving this data, but it works
+				if(!x.isEmpty()&&x.equals(y)) {
+					try {
+						items.put(Keys.PRECINCTSIZE+i, Integer.toString(Integer.parseInt(x)));
+					} catch(NumberFormatException e) {
+						errors.add("precinct size "+i+" is not a number: "+x);
+					}
+				} else {
+					errors.add("precinct size "+i+" is not square ("+x+" x "+y+")");
+				}
+			}
+		}
+
+		items.put(Keys.NUMBEROFTILES, get(Keys.NUMBEROFTILES));
+		try {
+			if(Integer.parseInt(items.get(Keys.NUMBEROFTILES).trim())>1) {
+				items.put(Keys.TILEXDIM, get(Keys.TILEXDIM));
+				items.put(Keys.TILEYDIM, get(Keys.TILEYDIM));
+			}
+		} catch(NumberFormatException e) {
+			//missing or not a number, compareJpylyzerProfile reports it
+		}
+		return items;
+	}
+
+}
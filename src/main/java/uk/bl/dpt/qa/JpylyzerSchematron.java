@@ -25,10 +25,12 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
 
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
@@ -38,7 +40,6 @@ import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
@@ -53,6 +54,12 @@ public class JpylyzerSchematron {
 
 	private final static String SCHEMATRONSCHEMA = "jpylyzer-schematron.sch";
 	private final static String SCHEMATRONXSLT = SCHEMATRONSCHEMA+".xsl"; 
+	//the default schema is compiled to this resource by the build
+	private final static String PRECOMPILEDXSLT = SCHEMATRONXSLT;
+	//compiled stylesheet for the default schema, loaded on first use
+	private static volatile Templates gDefaultTemplates = null;
+	//the default schema compiled to Java checks, loaded on first use
+	private static volatile JP2SchematronRules gDefaultRules = null;
 	
 	private final static class ISOFiles {
 		final static String ISO_DSDL="iso-schematron/iso_dsdl_include.xsl";
@@ -84,10 +91,25 @@ public class JpylyzerSchematron {
 	 * @param pSchematronXSL Name of output XSLT file
 	 * @return true or false based on succes or otherwise of transformation
 	 */
-	private static boolean schematronToXSLT(InputStream pSchematronFile, String pSchematronXSL) {
+	private static synchronized boolean schematronToXSLT(InputStream pSchematronFile, String pSchematronXSL) {
+		try {
+			return schematronToXSLT(pSchematronFile, new FileOutputStream(pSchematronXSL));
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+
+	/**
+	 * Convert a Schematron .sch to an XSLT
+	 * @param pSchematronFile Schematron file
+	 * @param pSchematronXSL stream to write the XSLT to, closed when done
+	 * @return true or false based on succes or otherwise of transformation
+	 */
+	static boolean schematronToXSLT(InputStream pSchematronFile, OutputStream pSchematronXSL) {
 		try {
 			//generate an xsl from the schematron sch
-			TransformerFactory factory = TransformerFactory.newInstance();
+			TransformerFactory factory = JP2Xml.transformerFactory();
 			factory.setURIResolver(new ResourceResolver());
 			Transformer transformer1 = factory.newTransformer(new StreamSource(JpylyzerSchematron.class.getClassLoader().getResourceAsStream(ISOFiles.ISO_DSDL)));
 			Transformer transformer2 = factory.newTransformer(new StreamSource(JpylyzerSchematron.class.getClassLoader().getResourceAsStream(ISOFiles.ISO_ABSTRACT)));
@@ -101,19 +123,75 @@ public class JpylyzerSchematron {
 			transformer2.transform(new StreamSource(new ByteArrayInputStream(tempOutput1.toByteArray())), 
 					new StreamResult(tempOutput2));
 			transformer3.transform(new StreamSource(new ByteArrayInputStream(tempOutput2.toByteArray())), 
-					new StreamResult(new FileOutputStream(pSchematronXSL)));
+					new StreamResult(pSchematronXSL));
 			
 			return true;
 			
 		} catch (TransformerException e) {
 			e.printStackTrace();
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
+		} finally {
+			try {
+				pSchematronXSL.close();
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
 		}
 		
 		return false;
 	}
 
+	/**
+	 * The compiled stylesheet for the default schema.  This is the XSLT generated by the build
+	 * if it is on the class path, otherwise (e.g. running from unbuilt sources) it is generated
+	 * in memory from the schema.
+	 * @return compiled stylesheet, or null on error
+	 */
+	static Templates defaultTemplates() {
+		Templates templates = gDefaultTemplates;
+		if(templates!=null) return templates;
+		synchronized(JpylyzerSchematron.class) {
+			if(gDefaultTemplates!=null) return gDefaultTemplates;
+			try {
+				InputStream xslt = JpylyzerSchematron.class.getClassLoader().getResourceAsStream(PRECOMPILEDXSLT);
+				if(xslt==null) {
+					ByteArrayOutputStream generated = new ByteArrayOutputStream();
+					InputStream schema = JpylyzerSchematron.class.getClassLoader().getResourceAsStream(SCHEMATRONSCHEMA);
+					if(!schematronToXSLT(schema, generated)) return null;
+					xslt = new ByteArrayInputStream(generated.toByteArray());
+				}
+				gDefaultTemplates = JP2Xml.transformerFactory().newTemplates(new StreamSource(xslt));
+			} catch(TransformerConfigurationException e) {
+				e.printStackTrace();
+			}
+			return gDefaultTemplates;
+		}
+	}
+
+	/**
+	 * The default schema compiled to Java checks, any patterns that could not be compiled are
+	 * still run through XSLT
+	 * @return compiled rules, or null on error
+	 */
+	static JP2SchematronRules defaultRules() {
+		JP2SchematronRules rules = gDefaultRules;
+		if(rules!=null) return rules;
+		synchronized(JpylyzerSchematron.class) {
+			if(gDefaultRules!=null) return gDefaultRules;
+			InputStream schema = JpylyzerSchematron.class.getClassLoader().getResourceAsStream(SCHEMATRONSCHEMA);
+			try {
+				gDefaultRules = JP2SchematronRules.compile(schema);
+			} catch(IOException e) {
+				e.printStackTrace();
+			} finally {
+				try {
+					schema.close();
+				} catch(IOException e) {
+				}
+			}
+			return gDefaultRules;
+		}
+	}
+
 	/**
 	 * Validate a file against a Schematron XSLT
 	 * @param pInputFile input file to check
@@ -124,15 +202,15 @@ public class JpylyzerSchematron {
 	private static boolean validateSchematron(String pInputFile, String pSchematronXSL, String pResultsFile) {
 		try {
 			//use the generated xsl to validate the outputs
-			TransformerFactory factory = TransformerFactory.newInstance();
+			TransformerFactory factory = JP2Xml.transformerFactory();
 			Transformer transformer4 = factory.newTransformer(new StreamSource(pSchematronXSL));
 			transformer4.transform(new StreamSource(pInputFile), new StreamResult(new FileOutputStream(pResultsFile)));
 
 			try {
-				DocumentBuilder docB = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+				DocumentBuilder docB = JP2Xml.documentBuilder();
 				Document doc = docB.parse(pResultsFile);
 				Node root = doc.getFirstChild();		
-				XPath xpath = XPathFactory.newInstance().newXPath();
+				XPath xpath = JP2Xml.xpath();
 				String path = "count(/schematron-output/failed-assert)";
 				String result = xpath.evaluate(path, root);
 				int count = new Integer(result);
@@ -165,19 +243,34 @@ public class JpylyzerSchematron {
 	 * @return true or false based on success or otherwise of validation
 	 */
 	private static boolean validateSchematron(InputStream pInputFile, String pSchematronXSL) {
+		try {
+			return validateSchematron(pInputFile, JP2Xml.transformerFactory().newTemplates(new StreamSource(pSchematronXSL)));
+		} catch (TransformerConfigurationException e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+
+	/**
+	 * Validate a file against a compiled Schematron XSLT
+	 * @param pInputFile input file to check
+	 * @param pSchematronXSL compiled XSLT to use
+	 * @return true or false based on success or otherwise of validation
+	 */
+	static boolean validateSchematron(InputStream pInputFile, Templates pSchematronXSL) {
+		if(pSchematronXSL==null) return false;
 		try {
 			//use the generated xsl to validate the outputs
-			TransformerFactory factory = TransformerFactory.newInstance();
 			ByteArrayOutputStream tempOutput1 = new ByteArrayOutputStream();
 
-			Transformer transformer4 = factory.newTransformer(new StreamSource(pSchematronXSL));
+			Transformer transformer4 = pSchematronXSL.newTransformer();
 			transformer4.transform(new StreamSource(pInputFile), new StreamResult(tempOutput1));
 
 			try {
-				DocumentBuilder docB = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+				DocumentBuilder docB = JP2Xml.documentBuilder();
 				Document doc = docB.parse(new ByteArrayInputStream(tempOutput1.toByteArray()));
 				Node root = doc.getFirstChild();		
-				XPath xpath = XPathFactory.newInstance().newXPath();
+				XPath xpath = JP2Xml.xpath();
 				String path = "count(/schematron-output/failed-assert)";
 				String result = xpath.evaluate(path, root);
 				int count = new Integer(result);
@@ -204,34 +297,73 @@ public class JpylyzerSchematron {
 	}
 	
 	/**
-	 * Validate a file against a Schematron XSLT
-	 * @param pInputFile input file to check
-	 * @param pSchematronXSL XSLT file to use
+	 * Checks jpylyzer outputs against the default schema
+	 * @param pJpylyzerOutput file to check
 	 * @return true or false based on success or otherwise of validation
 	 */
-	private static boolean validateSchematron(String pInputFile, String pSchematronXSL) {
+	public static boolean checkJpylyzerOutput(String pJpylyzerOutput) {
 		try {
-			return validateSchematron(new FileInputStream(pInputFile), pSchematronXSL);
-		} catch(FileNotFoundException e) {
+			InputStream in = new FileInputStream(pJpylyzerOutput);
+			try {
+				return checkJpylyzerOutput(in);
+			} finally {
+				in.close();
+			}
+		} catch(IOException e) {
 		}
 		return false;
 	}
-	
+
 	/**
 	 * Checks jpylyzer outputs against the default schema
-	 * @param pJpylyzerOutput file to check
+	 * @param pJpylyzerOutput stream to check
 	 * @return true or false based on success or otherwise of validation
 	 */
-	public static boolean checkJpylyzerOutput(String pJpylyzerOutput) {
-		InputStream schema = JpylyzerSchematron.class.getClassLoader().getResourceAsStream(SCHEMATRONSCHEMA); 
-		//File schema = new File(SCHEMATRONSCHEMA);
-		File xslt = new File(SCHEMATRONXSLT); 
-		//check schematron file exists
-		//if xslt is generated then don't regenerate
-		if(!xslt.exists()) schematronToXSLT(schema, SCHEMATRONXSLT);
-		return validateSchematron(pJpylyzerOutput, SCHEMATRONXSLT);
+	public static boolean checkJpylyzerOutput(InputStream pJpylyzerOutput) {
+		JP2SchematronRules rules = defaultRules();
+		if(rules!=null) {
+			try {
+				return rules.validate(pJpylyzerOutput);
+			} catch(IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+		}
+		return validateSchematron(pJpylyzerOutput, defaultTemplates());
 	}
-	
+
+	/**
+	 * Checks many jpylyzer outputs against the default schema
+	 * @param pJpylyzerOutputs files to check
+	 * @return whether each file is valid, in the same order
+	 */
+	public static boolean[] checkJpylyzerOutputs(List<String> pJpylyzerOutputs) {
+		JP2SchematronRules rules = defaultRules();
+		if(rules!=null) return rules.validate(pJpylyzerOutputs);
+		return JP2SchematronBatch.validate(pJpylyzerOutputs, defaultTemplates());
+	}
+
+	/**
+	 * Checks many jpylyzer outputs against a schema, any rules that cannot be compiled to Java
+	 * are run over all the files in one transform rather than once per file
+	 * @param pSchemaFile schema file to use, its rule contexts should be relative
+	 * @param pJpylyzerOutputs files to check
+	 * @return whether each file is valid, in the same order, or null if the schema could not be read
+	 */
+	public static boolean[] checkJpylyzerOutputs(String pSchemaFile, List<String> pJpylyzerOutputs) {
+		try {
+			InputStream schema = new FileInputStream(pSchemaFile);
+			try {
+				return JP2SchematronRules.compile(schema).validate(pJpylyzerOutputs);
+			} finally {
+				schema.close();
+			}
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
 	/**
 	 * Checks jpylyzer outputs against the default schema
 	 * @param pSchemaFile schema file to use
@@ -320,6 +452,27 @@ public class JpylyzerSchematron {
 		return validateSchematron(pJpylyzerOutput, SCHEMATRONXSLT, pOutputFile);
 	}
 	
+	/**
+	 * Compiles the default schema to XSLT, run by the build so the XSLT can be shipped in the jar
+	 */
+	public static final class Precompiler {
+		private Precompiler() {}
+
+		/**
+		 * @param args file to write the XSLT to
+		 */
+		public static void main(String[] args) {
+			if(args.length!=1) {
+				System.out.println("Usage: Precompiler output.xsl");
+				return;
+			}
+			InputStream schema = JpylyzerSchematron.class.getClassLoader().getResourceAsStream(SCHEMATRONSCHEMA);
+			if(schema==null||!schematronToXSLT(schema, args[0])) {
+				throw new IllegalStateException("could not compile "+SCHEMATRONSCHEMA);
+			}
+		}
+	}
+
 	/**
 	 * Test main method
 	 * @param args command line arguments
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import java.io.IOException;
+
+/**
+ * Thrown when jpylyzer does not finish within the allowed time
+ * @author wpalmer
+ */
+public class JpylyzerTimeoutException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @param pJp2File file jpylyzer was run on
+	 * @param pTimeout timeout in milliseconds
+	 */
+	public JpylyzerTimeoutException(String pJp2File, long pTimeout) {
+		super("jpylyzer did not finish within "+pTimeout+"ms on "+pJp2File);
+	}
+
+}
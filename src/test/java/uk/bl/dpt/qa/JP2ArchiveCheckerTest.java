@@ -0,0 +1,296 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+import uk.bl.dpt.qa.JP2Check.Keys;
+
+/**
+ * @author wpalmer
+ *
+ */
+public class JP2ArchiveCheckerTest {
+
+	private static final String TESTDIR = "target/test-archive/";
+	private static final String KAKADU_BL = "src/test/resources/images/kakadu_blprofile/WO1_BNER_1882_02_22-0012.tif.pgm.kakadu.cb.jp2.jpylyzer.xml";
+
+	/**
+	 * Build the header of a JP2 with the same parameters as the kakadu_blprofile image,
+	 * followed by a single (empty) tile-part
+	 * @param pLevels number of decomposition levels
+	 * @return JP2 file contents
+	 * @throws IOException on error
+	 */
+	static byte[] jp2(int pLevels) throws IOException {
+		ByteArrayOutputStream codestream = new ByteArrayOutputStream();
+		DataOutputStream cs = new DataOutputStream(codestream);
+		cs.writeShort(0xFF4F);
+		//SIZ
+		cs.writeShort(0xFF51);
+		cs.writeShort(41);
+		cs.writeShort(0);
+		for(int v:new int[] { 4480, 6016, 0, 0, 4480, 6016, 0, 0 }) cs.writeInt(v);
+		cs.writeShort(1);
+		cs.writeByte(7);
+		cs.writeByte(1);
+		cs.writeByte(1);
+		//COD: precincts, RPCL, 12 layers, 64x64 code-blocks, bypass, 9-7
+		cs.writeShort(0xFF52);
+		cs.writeShort(12+pLevels+1);
+		cs.writeByte(1);
+		cs.writeByte(2);
+		cs.writeShort(12);
+		cs.writeByte(0);
+		cs.writeByte(pLevels);
+		cs.writeByte(4);
+		cs.writeByte(4);
+		cs.writeByte(1);
+		cs.writeByte(0);
+		for(int r=0;r<=pLevels;r++) cs.writeByte(r<pLevels-1 ? 0x77 : 0x88);
+		//QCD: scalar expounded
+		cs.writeShort(0xFF5C);
+		cs.writeShort(3+2*(3*pLevels+1));
+		cs.writeByte(0x22);
+		for(int i=0;i<3*pLevels+1;i++) cs.writeShort((15<<11)|1770);
+		//COM
+		byte[] comment = "Kakadu-v7.1".getBytes(StandardCharsets.ISO_8859_1);
+		cs.writeShort(0xFF64);
+		cs.writeShort(4+comment.length);
+		cs.writeShort(1);
+		cs.write(comment);
+		//SOT, SOD, EOC
+		cs.writeShort(0xFF90);
+		cs.writeShort(10);
+		cs.writeShort(0);
+		cs.writeInt(14);
+		cs.writeByte(0);
+		cs.writeByte(1);
+		cs.writeShort(0xFF93);
+		cs.writeShort(0xFFD9);
+
+		ByteArrayOutputStream file = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(file);
+		out.writeInt(12);
+		out.writeInt(0x6A502020);
+		out.writeInt(0x0D0A870A);
+		out.writeInt(20);
+		out.writeInt(0x66747970);
+		out.writeInt(0x6A703220);
+		out.writeInt(0);
+		out.writeInt(0x6A703220);
+		out.writeInt(8+22+15);
+		out.writeInt(0x6A703268);
+		out.writeInt(22);
+		out.writeInt(0x69686472);
+		out.writeInt(6016);
+		out.writeInt(4480);
+		out.writeShort(1);
+		out.writeByte(7);
+		out.writeByte(7);
+		out.writeByte(1);
+		out.writeByte(0);
+		out.writeInt(15);
+		out.writeInt(0x636F6C72);
+		out.writeByte(1);
+		out.writeByte(0);
+		out.writeByte(0);
+		out.writeInt(17);
+		out.writeInt(8+codestream.size());
+		out.writeInt(0x6A703263);
+		out.write(codestream.toByteArray());
+		return file.toByteArray();
+	}
+
+	private static void tarEntry(OutputStream pOut, String pName, char pType, byte[] pData) throws IOException {
+		tarEntry(pOut, pName, pType, pData.length, pData);
+	}
+
+	private static void tarEntry(OutputStream pOut, String pName, char pType, long pSize, byte[] pData) throws IOException {
+		byte[] header = new byte[512];
+		byte[] name = pName.getBytes(StandardCharsets.UTF_8);
+		System.arraycopy(name, 0, header, 0, Math.min(100, name.length));
+		System.arraycopy(String.format("%07o\0", 0644).getBytes(StandardCharsets.US_ASCII), 0, header, 100, 8);
+		System.arraycopy(String.format("%011o\0", pSize).getBytes(StandardCharsets.US_ASCII), 0, header, 124, 12);
+		System.arraycopy(String.format("%011o\0", 0).getBytes(StandardCharsets.US_ASCII), 0, header, 136, 12);
+		header[156] = (byte)pType;
+		System.arraycopy("ustar\00000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+		for(int i=148;i<156;i++) header[i] = ' ';
+		int checksum = 0;
+		for(byte b:header) checksum += b&0xFF;
+		System.arraycopy(String.format("%06o\0 ", checksum).getBytes(StandardCharsets.US_ASCII), 0, header, 148, 8);
+		pOut.write(header);
+		pOut.write(pData);
+		pOut.write(new byte[(512-pData.length%512)%512]);
+	}
+
+	private static List<JP2CheckResult> check(String pArchive) throws IOException {
+		final List<JP2CheckResult> results = new LinkedList<JP2CheckResult>();
+		JP2ArchiveChecker.check(pArchive, JP2Check.loadProfile("src/test/resources/profiles/bl_profile.xml"), new JP2ResultListener() {
+			public void resultReady(JP2CheckResult pResult) {
+				results.add(pResult);
+			}
+		});
+		return results;
+	}
+
+	/**
+	 * Test that the header parser reads the same values as jpylyzer
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testHeader() throws IOException {
+		JP2Header header = JP2Header.read(new ByteArrayInputStream(jp2(6)));
+		assertTrue(header.errors.toString(), header.isValid());
+		HashMap<String, String> properties = header.toProperties();
+		HashMap<String, String> jpylyzer = JP2Check.loadJpylyzerXML(KAKADU_BL);
+		properties.remove(Keys.TOOL);
+		jpylyzer.remove(Keys.TOOL);
+		assertEquals(jpylyzer, properties);
+	}
+
+	/**
+	 * Test method for {@link uk.bl.dpt.qa.JP2ArchiveChecker#check(String, JP2Profile, JP2ResultListener)}.
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testZip() throws IOException {
+		new File(TESTDIR).mkdirs();
+		String archive = TESTDIR+"delivery.zip";
+		ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(archive));
+		zip.putNextEntry(new ZipEntry("readme.txt"));
+		zip.write("not a jp2".getBytes(StandardCharsets.US_ASCII));
+		zip.putNextEntry(new ZipEntry("images/good.jp2"));
+		zip.write(jp2(6));
+		zip.putNextEntry(new ZipEntry("images/bad.jp2"));
+		zip.write(jp2(5));
+		zip.close();
+
+		List<JP2CheckResult> results = check(archive);
+		assertEquals(2, results.size());
+		assertEquals(archive+"!/images/good.jp2", results.get(0).file);
+		assertEquals(JP2CheckResult.Status.PASSED, results.get(0).status);
+		assertEquals(Boolean.TRUE, results.get(0).schematronValid);
+		assertEquals(archive+"!/images/bad.jp2", results.get(1).file);
+		assertEquals(JP2CheckResult.Status.FAILED, results.get(1).status);
+		assertEquals("5", results.get(1).mismatches.get(Keys.LEVELS));
+	}
+
+	/**
+	 * Test a gzipped tar, including a GNU long name
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testTar() throws IOException {
+		new File(TESTDIR).mkdirs();
+		String archive = TESTDIR+"delivery.tar.gz";
+		StringBuilder longName = new StringBuilder("batch/");
+		while(longName.length()<120) longName.append("long-directory-name/");
+		longName.append("good.jp2");
+		OutputStream tar = new GZIPOutputStream(new FileOutputStream(archive));
+		tarEntry(tar, "batch/", '5', new byte[0]);
+		tarEntry(tar, "././@LongLink", 'L', (longName+"\0").getBytes(StandardCharsets.UTF_8));
+		tarEntry(tar, longName.substring(0, 100), '0', jp2(6));
+		byte[] truncated = jp2(6);
+		tarEntry(tar, "batch/truncated.jp2", '0', Arrays.copyOf(truncated, 60));
+		tar.write(new byte[1024]);
+		tar.close();
+
+		List<JP2CheckResult> results = check(archive);
+		assertEquals(2, results.size());
+		assertEquals(archive+"!/"+longName, results.get(0).file);
+		assertEquals(JP2CheckResult.Status.PASSED, results.get(0).status);
+		assertEquals(archive+"!/batch/truncated.jp2", results.get(1).file);
+		assertEquals(JP2CheckResult.Status.ERROR, results.get(1).status);
+	}
+
+	/**
+	 * Test that a marker segment shorter than its own length field is an error, not an exception,
+	 * and that the rest of the archive is still checked
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testShortSegment() throws IOException {
+		//SOC then SIZ with a length of 0
+		JP2Header header = JP2Header.read(new ByteArrayInputStream(new byte[] { (byte)0xFF, 0x4F, (byte)0xFF, 0x51, 0, 0 }));
+		assertFalse(header.isValid());
+		assertTrue(header.errors.toString(), header.errors.toString().contains("too short"));
+
+		new File(TESTDIR).mkdirs();
+		String archive = TESTDIR+"short.zip";
+		byte[] bad = jp2(6);
+		//the SIZ length field follows SOC and SIZ at the start of the codestream
+		for(int i=0;i<bad.length-4;i++) {
+			if((bad[i]&0xFF)==0xFF&&bad[i+1]==0x4F&&(bad[i+2]&0xFF)==0xFF&&bad[i+3]==0x51) {
+				bad[i+4] = 0;
+				bad[i+5] = 1;
+				break;
+			}
+		}
+		ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(archive));
+		zip.putNextEntry(new ZipEntry("bad.jp2"));
+		zip.write(bad);
+		zip.putNextEntry(new ZipEntry("good.jp2"));
+		zip.write(jp2(6));
+		zip.close();
+
+		List<JP2CheckResult> results = check(archive);
+		assertEquals(2, results.size());
+		assertNotSame(JP2CheckResult.Status.PASSED, results.get(0).status);
+		assertEquals(JP2CheckResult.Status.PASSED, results.get(1).status);
+	}
+
+	/**
+	 * Test that a long name entry claiming a huge size is rejected rather than allocated
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testLongNameSize() throws IOException {
+		new File(TESTDIR).mkdirs();
+		String archive = TESTDIR+"longname.tar";
+		OutputStream tar = new FileOutputStream(archive);
+		tarEntry(tar, "././@LongLink", 'L', 077777777777L, new byte[512]);
+		tar.write(new byte[1024]);
+		tar.close();
+		try {
+			check(archive);
+			fail("oversized long name should be rejected");
+		} catch(IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("too large"));
+		}
+	}
+
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author wpalmer
+ *
+ */
+public class JP2BatchSchedulerTest {
+
+	private static final String TESTDIR = "target/test-batch/";
+
+	/**
+	 * Copy the stored jpylyzer outputs to fake jp2 files, the fake jpylyzer just echoes them back
+	 * @throws IOException on error
+	 */
+	@Before
+	public void setUp() throws IOException {
+		//the fake jpylyzer is a shell script
+		Assume.assumeTrue(!System.getProperty("os.name").startsWith("Windows"));
+		JP2Check.setJpylyzerBinary("src/test/resources/bin/fake-jpylyzer.sh");
+		new File(TESTDIR).mkdirs();
+		String path = "src/test/resources/images/";
+		copy(path+"kakadu_blprofile/WO1_BNER_1882_02_22-0012.tif.pgm.kakadu.cb.jp2.jpylyzer.xml", "kakadu_bl.jp2");
+		copy(path+"kakadu_notblprofile/WO1_ANJO_1847_09_15-0004.tif.pgm.0.jp2.jpylyzer.xml", "kakadu_notbl.jp2");
+		copy(path+"openjpeg_notblprofile/WO1_ANJO_1847_09_15-0004.tif.0.jp2.jpylyzer.xml", "openjpeg_notbl.jp2");
+		copy(path+"openjpeg_notblprofile/WO1_ANJO_1847_09_15-0004.tif.0.opj2.jp2.jpylyzer.xml", "openjpeg2_notbl.jp2");
+	}
+
+	private static void copy(String pFrom, String pTo) throws IOException {
+		Files.copy(new File(pFrom).toPath(), new File(TESTDIR+pTo).toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Test method for {@link uk.bl.dpt.qa.JP2BatchScheduler#check(java.util.Collection)}.
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testCheck() throws IOException {
+		JP2BatchScheduler scheduler = new JP2BatchScheduler(JP2Check.loadProfile("src/test/resources/profiles/bl_profile.xml"));
+		//one reader and one checker, so results come back in the order the files were read
+		scheduler.setReadsPerDevice(1);
+		scheduler.setCpuThreads(1);
+
+		List<String> files = new LinkedList<String>();
+		files.add(TESTDIR+"openjpeg_notbl.jp2");
+		files.add(TESTDIR+"kakadu_notbl.jp2");
+		files.add(TESTDIR+"openjpeg2_notbl.jp2");
+		files.add(TESTDIR+"kakadu_bl.jp2");
+
+		List<JP2CheckResult> results = scheduler.check(files);
+		scheduler.shutdown();
+
+		assertEquals(files.size(), results.size());
+		for(int i=1;i<results.size();i++) {
+			if(new File(results.get(i-1).file).length()<new File(results.get(i).file).length()) {
+				fail("files not read largest first");
+			}
+		}
+		for(JP2CheckResult result:results) {
+			if(result.file.endsWith("kakadu_bl.jp2")) {
+				assertEquals(JP2CheckResult.Status.PASSED, result.status);
+			} else {
+				assertEquals(JP2CheckResult.Status.FAILED, result.status);
+			}
+		}
+	}
+
+	/**
+	 * Test checking on virtual threads with a cap on the number of jpylyzer processes
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testVirtualThreads() throws IOException {
+		String[] names = { "kakadu_bl", "kakadu_notbl", "openjpeg_notbl", "openjpeg2_notbl" };
+		List<String> files = new LinkedList<String>();
+		for(int i=0;i<25;i++) {
+			for(String name:names) {
+				String file = "virtual-"+i+"-"+name+".jp2";
+				copy(TESTDIR+name+".jp2", file);
+				files.add(TESTDIR+file);
+			}
+		}
+		JP2BatchScheduler scheduler = new JP2BatchScheduler(JP2Check.loadProfile("src/test/resources/profiles/bl_profile.xml"));
+		scheduler.setVirtualThreads(true);
+		scheduler.setMaxProcesses(3);
+		scheduler.setAdaptive(true);
+		List<JP2CheckResult> results;
+		try {
+			results = scheduler.check(files);
+		} finally {
+			scheduler.shutdown();
+		}
+
+		assertEquals(files.size(), results.size());
+		for(JP2CheckResult result:results) {
+			if(result.file.endsWith("-kakadu_bl.jp2")) {
+				assertEquals(JP2CheckResult.Status.PASSED, result.status);
+			} else {
+				assertEquals(JP2CheckResult.Status.FAILED, result.status);
+			}
+		}
+		assertTrue(scheduler.getPeakProcesses()>=1);
+		assertTrue(scheduler.getPeakProcesses()<=3);
+	}
+
+	/**
+	 * Test that reading headers on virtual threads keeps to the reads allowed per device.  The
+	 * files are FIFOs, so each read holds its file open until the test writes to it.
+	 * @throws Exception on error
+	 */
+	@Test
+	public final void testVirtualThreadHeaders() throws Exception {
+		final List<String> files = new LinkedList<String>();
+		for(int i=0;i<8;i++) {
+			String file = TESTDIR+"fifo"+i+".jp2";
+			new File(file).delete();
+			Process mkfifo = new ProcessBuilder("mkfifo", file).start();
+			Assume.assumeTrue(mkfifo.waitFor()==0);
+			files.add(file);
+		}
+		final JP2BatchScheduler scheduler = new JP2BatchScheduler(new JP2Profile());
+		scheduler.setVirtualThreads(true);
+		scheduler.setHeadersOnly(true);
+		scheduler.setReadsPerDevice(2);
+		final List<JP2CheckResult> results = new LinkedList<JP2CheckResult>();
+		Thread check = new Thread(new Runnable() {
+			public void run() {
+				results.addAll(scheduler.check(files));
+			}
+		});
+		check.start();
+		try {
+			//every file has been submitted by now, but only two may be open
+			Thread.sleep(1000);
+			assertEquals(2, scheduler.getPeakReads());
+
+			//opening a FIFO to write waits for its reader, which may not have its slot yet
+			for(final String file:files) {
+				Thread writer = new Thread(new Runnable() {
+					public void run() {
+						try {
+							new FileOutputStream(file).close();
+						} catch(IOException e) {
+						}
+					}
+				});
+				writer.setDaemon(true);
+				writer.start();
+			}
+			check.join(20000);
+			assertEquals(files.size(), results.size());
+			assertEquals(2, scheduler.getPeakReads());
+		} finally {
+			scheduler.shutdown();
+			for(String file:files) {
+				new File(file).delete();
+			}
+		}
+	}
+
+	/**
+	 * Test that a file whose header read throws a runtime exception is reported as an error,
+	 * rather than leaving the batch waiting for it
+	 * @throws Exception on error
+	 */
+	@Test
+	public final void testHeaderReadException() throws Exception {
+		Files.write(new File(TESTDIR+"header-good.jp2").toPath(), JP2ArchiveCheckerTest.jp2(6));
+		final List<String> files = new LinkedList<String>();
+		//not a valid path, so opening it throws InvalidPathException
+		files.add(TESTDIR+"header-bad\0.jp2");
+		files.add(TESTDIR+"header-good.jp2");
+		final JP2BatchScheduler scheduler = new JP2BatchScheduler(JP2Check.loadProfile("src/test/resources/profiles/bl_profile.xml"));
+		scheduler.setHeadersOnly(true);
+		scheduler.setReadsPerDevice(1);
+		final List<JP2CheckResult> results = new LinkedList<JP2CheckResult>();
+		Thread checker = new Thread() {
+			public void run() {
+				results.addAll(scheduler.check(files));
+			}
+		};
+		try {
+			checker.start();
+			checker.join(30*1000);
+			assertFalse("batch did not complete", checker.isAlive());
+		} finally {
+			scheduler.shutdown();
+		}
+		assertEquals(2, results.size());
+		for(JP2CheckResult result:results) {
+			if(result.file.endsWith("header-good.jp2")) {
+				assertEquals(JP2CheckResult.Status.PASSED, result.status);
+			} else {
+				assertEquals(JP2CheckResult.Status.ERROR, result.status);
+			}
+		}
+	}
+
+	/**
+	 * Test that a hung jpylyzer is killed and reported as timed out
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testTimeout() throws IOException {
+		copy("src/test/resources/jpylyzer/isvalid_true.xml", "hang.jp2");
+		JP2BatchScheduler scheduler = new JP2BatchScheduler(new JP2Profile());
+		List<String> files = new LinkedList<String>();
+		files.add(TESTDIR+"hang.jp2");
+
+		JP2Check.setJpylyzerTimeout(500);
+		JP2Check.setJpylyzerRetries(1);
+		long start = System.currentTimeMillis();
+		List<JP2CheckResult> results;
+		try {
+			results = scheduler.check(files);
+		} finally {
+			JP2Check.setJpylyzerTimeout(10*60*1000);
+			scheduler.shutdown();
+		}
+
+		assertEquals(1, results.size());
+		assertEquals(JP2CheckResult.Status.TIMEOUT, results.get(0).status);
+		//two attempts of 500ms each, the fake jpylyzer would otherwise sleep for a minute
+		if(System.currentTimeMillis()-start>20*1000) {
+			fail("jpylyzer was not killed");
+		}
+		if(new File(TESTDIR+"hang.jp2.jpylyzer.xml").exists()) {
+			fail("partial jpylyzer output left behind");
+		}
+	}
+
+	/**
+	 * Test that cancelling kills jpylyzer, leaves no sidecars behind and returns promptly
+	 * @throws Exception on error
+	 */
+	@Test
+	public final void testCancel() throws Exception {
+		JP2BatchScheduler scheduler = new JP2BatchScheduler(new JP2Profile());
+		scheduler.setReadsPerDevice(2);
+		final List<JP2CheckResult> results = new LinkedList<JP2CheckResult>();
+		scheduler.addListener(new JP2ResultListener() {
+			public void resultReady(JP2CheckResult pResult) {
+				synchronized(results) {
+					results.add(pResult);
+				}
+			}
+		});
+		for(int i=0;i<6;i++) {
+			copy("src/test/resources/jpylyzer/isvalid_true.xml", "hang-cancel-"+i+".jp2");
+			new File(TESTDIR+"hang-cancel-"+i+".jp2.jpylyzer.xml").delete();
+			scheduler.submit(TESTDIR+"hang-cancel-"+i+".jp2");
+		}
+		//let the first two jpylyzers start
+		Thread.sleep(500);
+		long start = System.currentTimeMillis();
+		try {
+			assertTrue(scheduler.cancel(10*1000));
+			scheduler.awaitCompletion();
+		} finally {
+			scheduler.shutdown();
+		}
+		if(System.currentTimeMillis()-start>10*1000) {
+			fail("cancel did not return in time");
+		}
+		assertTrue(scheduler.isCancelled());
+		assertEquals(6, scheduler.getCancelled());
+		assertEquals(0, results.size());
+		for(int i=0;i<6;i++) {
+			assertFalse(new File(TESTDIR+"hang-cancel-"+i+".jp2.jpylyzer.xml").exists());
+			assertFalse(new File(TESTDIR+"hang-cancel-"+i+".jp2.jpylyzer.xml.part").exists());
+		}
+		//later files are ignored
+		scheduler.submit(TESTDIR+"kakadu_bl.jp2");
+		assertEquals(7, scheduler.getCancelled());
+	}
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * @author wpalmer
+ *
+ */
+public class JP2ByteSourceTest {
+
+	private static final String TESTDIR = "target/test-source/";
+	//size of an XML box put in front of the codestream, which should not be fetched
+	private static final int XML_BOX = 4*1024*1024;
+
+	private byte[] jp2;
+	private HttpServer server;
+	private String url;
+
+	/**
+	 * Build a JP2 with a large box before the codestream and serve it over HTTP
+	 * @throws IOException on error
+	 */
+	@Before
+	public void setUp() throws IOException {
+		byte[] plain = JP2ArchiveCheckerTest.jp2(6);
+		//signature, file type and header boxes come before the codestream
+		int insert = 12+20+45;
+		ByteArrayOutputStream file = new ByteArrayOutputStream();
+		file.write(plain, 0, insert);
+		DataOutputStream out = new DataOutputStream(file);
+		out.writeInt(8+XML_BOX);
+		out.writeInt(0x786D6C20);//"xml "
+		out.write(new byte[XML_BOX]);
+		file.write(plain, insert, plain.length-insert);
+		jp2 = file.toByteArray();
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange pExchange) throws IOException {
+				//norange.jp2 ignores Range, shifted.jp2 answers with the range one byte on
+				String path = pExchange.getRequestURI().getPath();
+				if(!path.equals("/image.jp2")&&!path.equals("/norange.jp2")&&!path.equals("/shifted.jp2")) {
+					pExchange.sendResponseHeaders(404, -1);
+					pExchange.close();
+					return;
+				}
+				String range = path.equals("/norange.jp2") ? null : pExchange.getRequestHeaders().getFirst("Range");
+				Matcher m = range==null ? null : Pattern.compile("bytes=(\\d+)-(\\d+)").matcher(range);
+				OutputStream body;
+				if(m!=null&&m.matches()) {
+					int start = Integer.parseInt(m.group(1))+(path.equals("/shifted.jp2") ? 1 : 0);
+					int end = Math.min(Integer.parseInt(m.group(2)), jp2.length-1);
+					if(start>=jp2.length) {
+						pExchange.getResponseHeaders().set("Content-Range", "bytes */"+jp2.length);
+						pExchange.sendResponseHeaders(416, -1);
+						pExchange.close();
+						return;
+					}
+					pExchange.getResponseHeaders().set("Content-Range", "bytes "+start+"-"+end+"/"+jp2.length);
+					pExchange.sendResponseHeaders(206, end-start+1);
+					body = pExchange.getResponseBody();
+					body.write(jp2, start, end-start+1);
+				} else {
+					pExchange.sendResponseHeaders(200, jp2.length);
+					body = pExchange.getResponseBody();
+					body.write(jp2);
+				}
+				body.close();
+			}
+		});
+		server.start();
+		url = "http://127.0.0.1:"+server.getAddress().getPort()+"/";
+	}
+
+	/**
+	 * Stop the server
+	 */
+	@After
+	public void tearDown() {
+		if(server!=null) server.stop(0);
+	}
+
+	/**
+	 * Test method for {@link uk.bl.dpt.qa.JP2Check#checkJP2Source(JP2ByteSource, JP2Profile)} over HTTP.
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testHttp() throws IOException {
+		JP2HttpSource source = new JP2HttpSource(url+"image.jp2");
+		JP2CheckResult result = JP2Check.checkJP2Source(source, new JP2Profile());
+		assertEquals(Boolean.TRUE, result.jpylyzerValid);
+		assertEquals("6", result.properties.get(JP2Check.Keys.LEVELS));
+		assertEquals(jp2.length, source.length());
+		//the xml box is skipped, not downloaded
+		if(source.getBytesFetched()>64*1024) {
+			fail("fetched "+source.getBytesFetched()+" bytes");
+		}
+		if(source.getRequests()>3) {
+			fail("made "+source.getRequests()+" requests");
+		}
+
+		result = JP2Check.checkJP2Source(new JP2HttpSource(url+"missing.jp2"), new JP2Profile());
+		assertEquals(JP2CheckResult.Status.ERROR, result.status);
+
+		//a range that doesn't start where it was asked for is an error, not misplaced bytes
+		source = new JP2HttpSource(url+"shifted.jp2");
+		result = JP2Check.checkJP2Source(source, new JP2Profile());
+		source.close();
+		assertEquals(JP2CheckResult.Status.ERROR, result.status);
+		assertTrue(result.message.contains("but got bytes 1-"));
+	}
+
+	/**
+	 * Test a server that ignores Range is only asked once, with its response reused
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testHttpNoRange() throws IOException {
+		JP2HttpSource source = new JP2HttpSource(url+"norange.jp2");
+		JP2CheckResult result = JP2Check.checkJP2Source(source, new JP2Profile());
+		assertEquals(Boolean.TRUE, result.jpylyzerValid);
+		assertEquals("6", result.properties.get(JP2Check.Keys.LEVELS));
+		assertEquals(1, source.getRequests());
+		if(source.getBytesFetched()>jp2.length) {
+			fail("fetched "+source.getBytesFetched()+" bytes");
+		}
+		//reads behind what has been fetched come from the spool
+		byte[] start = new byte[12];
+		assertEquals(12, source.read(0, start, 0, 12));
+		assertArrayEquals(Arrays.copyOf(jp2, 12), start);
+		assertEquals(-1, source.read(jp2.length, start, 0, 12));
+		assertEquals(1, source.getRequests());
+		source.close();
+	}
+
+	/**
+	 * Test method for {@link uk.bl.dpt.qa.JP2Check#checkJP2Source(JP2ByteSource, JP2Profile)} with a local file.
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testFile() throws IOException {
+		new File(TESTDIR).mkdirs();
+		File file = new File(TESTDIR+"image.jp2");
+		Files.write(file.toPath(), jp2);
+		JP2FileSource source = new JP2FileSource(file.getPath());
+		try {
+			JP2RangeInputStream in = new JP2RangeInputStream(source);
+			JP2Header header = JP2Header.read(in);
+			assertTrue(header.errors.toString(), header.isValid());
+			assertEquals(2, in.getFetches());
+			//SOT segment, SOD and EOC follow the main header
+			assertEquals(12+2+2, jp2.length-header.firstTileOffset);
+		} finally {
+			source.close();
+		}
+	}
+
+}
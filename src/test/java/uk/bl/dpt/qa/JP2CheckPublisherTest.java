@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author wpalmer
+ *
+ */
+public class JP2CheckPublisherTest {
+
+	private static final String TESTDIR = "target/test-publisher/";
+	private static final int FILES = 6;
+
+	/**
+	 * Set up the fake jpylyzer and its inputs
+	 * @throws IOException on error
+	 */
+	@Before
+	public void setUp() throws IOException {
+		//the fake jpylyzer is a shell script
+		Assume.assumeTrue(!System.getProperty("os.name").startsWith("Windows"));
+		JP2Check.setJpylyzerBinary("src/test/resources/bin/fake-jpylyzer.sh");
+		new File(TESTDIR).mkdirs();
+		for(int i=0;i<FILES;i++) {
+			Files.copy(new File("src/test/resources/jpylyzer/isvalid_true.xml").toPath(),
+					new File(TESTDIR+i+".jp2").toPath(), StandardCopyOption.REPLACE_EXISTING);
+			new File(TESTDIR+i+".jp2.jpylyzer.xml").delete();
+		}
+	}
+
+	/**
+	 * Test that checks are only started when there is demand
+	 * @throws Exception on error
+	 */
+	@Test
+	public final void testDemand() throws Exception {
+		List<String> paths = new LinkedList<String>();
+		for(int i=0;i<FILES;i++) {
+			paths.add(TESTDIR+i+".jp2");
+		}
+		JP2Checker checker = new JP2Checker(new JP2Profile());
+		final LinkedBlockingQueue<JP2CheckResult> results = new LinkedBlockingQueue<JP2CheckResult>();
+		final CountDownLatch complete = new CountDownLatch(1);
+		final Flow.Subscription[] subscription = new Flow.Subscription[1];
+		try {
+			new JP2CheckPublisher(checker, paths, 4).subscribe(new Flow.Subscriber<JP2CheckResult>() {
+				public void onSubscribe(Flow.Subscription pSubscription) {
+					subscription[0] = pSubscription;
+				}
+				public void onNext(JP2CheckResult pItem) {
+					results.add(pItem);
+				}
+				public void onError(Throwable pError) {
+					pError.printStackTrace();
+				}
+				public void onComplete() {
+					complete.countDown();
+				}
+			});
+
+			//nothing is checked until asked for
+			Thread.sleep(200);
+			assertEquals(0, jpylyzerRuns());
+
+			subscription[0].request(2);
+			assertNotNull(results.poll(20, TimeUnit.SECONDS));
+			assertNotNull(results.poll(20, TimeUnit.SECONDS));
+			Thread.sleep(200);
+			assertEquals(2, jpylyzerRuns());
+
+			subscription[0].request(Long.MAX_VALUE);
+			assertTrue(complete.await(20, TimeUnit.SECONDS));
+			assertEquals(FILES-2, results.size());
+			assertEquals(FILES, jpylyzerRuns());
+		} finally {
+			checker.shutdown();
+		}
+	}
+
+	private static int jpylyzerRuns() {
+		int count = 0;
+		for(int i=0;i<FILES;i++) {
+			if(new File(TESTDIR+i+".jp2.jpylyzer.xml").exists()) count++;
+		}
+		return count;
+	}
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.bl.dpt.qa.JP2CheckService.Lane;
+
+/**
+ * @author wpalmer
+ *
+ */
+public class JP2CheckServiceTest {
+
+	private static final String TESTDIR = "target/test-service/";
+
+	/**
+	 * Set up the fake jpylyzer and its inputs
+	 * @throws IOException on error
+	 */
+	@Before
+	public void setUp() throws IOException {
+		//the fake jpylyzer is a shell script
+		Assume.assumeTrue(!System.getProperty("os.name").startsWith("Windows"));
+		JP2Check.setJpylyzerBinary("src/test/resources/bin/fake-jpylyzer.sh");
+		new File(TESTDIR).mkdirs();
+		Files.copy(new File("src/test/resources/images/kakadu_blprofile/WO1_BNER_1882_02_22-0012.tif.pgm.kakadu.cb.jp2.jpylyzer.xml").toPath(),
+				new File(TESTDIR+"kakadu_bl.jp2").toPath(), StandardCopyOption.REPLACE_EXISTING);
+		for(int i=0;i<4;i++) {
+			Files.copy(new File("src/test/resources/jpylyzer/isvalid_true.xml").toPath(),
+					new File(TESTDIR+"hang"+i+".jp2").toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Poll a lane's stats until they reach the counts given, or 30 seconds have passed
+	 */
+	private static JP2CheckService.LaneStats waitFor(JP2CheckService pService, Lane pLane, long pCompleted, int pRunning, int pQueued) throws InterruptedException {
+		JP2CheckService.LaneStats stats = pService.getStats(pLane);
+		for(int i=0;i<300;i++) {
+			if(stats.completed==pCompleted&&stats.running==pRunning&&stats.queued==pQueued) break;
+			Thread.sleep(100);
+			stats = pService.getStats(pLane);
+		}
+		return stats;
+	}
+
+	/**
+	 * Test that an interactive check is not held up by bulk work and that a full lane rejects
+	 * @throws Exception on error
+	 */
+	@Test
+	public final void testLanes() throws Exception {
+		JP2CheckService service = new JP2CheckService(JP2Check.loadProfile("src/test/resources/profiles/bl_profile.xml"), 2);
+		service.setQueueCapacity(Lane.BULK, 2);
+		try {
+			//one bulk check hangs on the only worker bulk may use, two more wait behind it
+			CompletableFuture<?>[] bulk = new CompletableFuture<?>[3];
+			bulk[0] = service.check(TESTDIR+"hang0.jp2", Lane.BULK);
+			//the queue only holds two, so wait for the first to leave it
+			JP2CheckService.LaneStats stats = waitFor(service, Lane.BULK, 0, 1, 0);
+			assertEquals(1, stats.running);
+			for(int i=1;i<bulk.length;i++) {
+				bulk[i] = service.check(TESTDIR+"hang"+i+".jp2", Lane.BULK);
+			}
+			stats = waitFor(service, Lane.BULK, 0, 1, 2);
+			assertEquals("completed "+stats.completed, 1, stats.running);
+			assertEquals(2, stats.queued);
+			//rejected at once, not queued
+			CompletableFuture<JP2CheckResult> rejected = service.check(TESTDIR+"hang3.jp2", Lane.BULK);
+			assertTrue(rejected.isCompletedExceptionally());
+			try {
+				rejected.get();
+				fail("bulk lane should be full");
+			} catch(ExecutionException e) {
+				JP2CheckService.RejectedException cause = (JP2CheckService.RejectedException)e.getCause();
+				assertEquals(Lane.BULK, cause.getLane());
+				assertTrue(cause.getRetryAfterMillis()>0);
+			}
+
+			for(int i=0;i<3;i++) {
+				JP2CheckResult result = service.check(TESTDIR+"kakadu_bl.jp2", Lane.INTERACTIVE).get(20, TimeUnit.SECONDS);
+				assertEquals(JP2CheckResult.Status.PASSED, result.status);
+			}
+			assertFalse(bulk[0].isDone());
+
+			//the latency is recorded just after the future completes
+			JP2CheckService.LaneStats interactive = waitFor(service, Lane.INTERACTIVE, 3, 0, 0);
+			assertEquals(3, interactive.completed);
+			assertTrue(interactive.p99Millis>0);
+			assertTrue(interactive.p99Millis>=interactive.p50Millis);
+			stats = service.getStats(Lane.BULK);
+			assertEquals(3, stats.submitted);
+			assertEquals(1, stats.rejected);
+			assertEquals(1, stats.running);
+			assertEquals(2, stats.queued);
+		} finally {
+			//interrupting the worker kills its jpylyzer, make sure of it
+			service.shutdown(20, TimeUnit.SECONDS);
+			JP2Check.killJpylyzers();
+		}
+		assertEquals(0, service.getStats(Lane.BULK).queued);
+	}
+
+}
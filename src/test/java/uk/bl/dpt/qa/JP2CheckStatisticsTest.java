@@ -0,0 +1,67 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.Test;
+
+import uk.bl.dpt.qa.JP2Check.Keys;
+
+/**
+ * @author wpalmer
+ *
+ */
+public class JP2CheckStatisticsTest {
+
+	/**
+	 * Test method for {@link uk.bl.dpt.qa.JP2CheckStatistics#resultReady(uk.bl.dpt.qa.JP2CheckResult)}.
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testResultReady() throws IOException {
+		JP2Profile blProfile = JP2Check.loadProfile("src/test/resources/profiles/bl_profile.xml");
+		//checkJpylyzerXML adds the .jpylyzer.xml extension
+		String path = "src/test/resources/images/";
+		String[] files = { path+"kakadu_blprofile/WO1_BNER_1882_02_22-0012.tif.pgm.kakadu.cb.jp2",
+							path+"kakadu_notblprofile/WO1_ANJO_1847_09_15-0004.tif.pgm.0.jp2",
+							path+"openjpeg_notblprofile/WO1_ANJO_1847_09_15-0004.tif.0.jp2",
+							path+"openjpeg_notblprofile/WO1_ANJO_1847_09_15-0004.tif.0.opj2.jp2" };
+
+		JP2CheckStatistics statistics = new JP2CheckStatistics();
+		for(String file:files) {
+			statistics.resultReady(JP2Check.checkJpylyzerXML(file, blProfile));
+		}
+		statistics.resultReady(new JP2CheckResult("missing.jp2").timedOut("test"));
+
+		assertEquals(5, statistics.getFiles());
+		assertEquals(1, statistics.getCount(JP2CheckResult.Status.PASSED));
+		assertEquals(1, statistics.getCount(JP2CheckResult.Status.TIMEOUT));
+		//only the kakadu bl profile file has 12 layers
+		assertEquals(3, statistics.getMismatches(Keys.LAYERS));
+		assertEquals(0.75, statistics.getMismatchRate(Keys.LAYERS), 0.0001);
+		Map<String, Long> layers = statistics.getValues(Keys.LAYERS);
+		assertEquals(Long.valueOf(1), layers.get("12"));
+		assertEquals(Long.valueOf(3), statistics.getMismatchedValues(Keys.LAYERS).get("1"));
+		assertEquals(0, statistics.getMismatches(Keys.ORDER));
+	}
+
+}
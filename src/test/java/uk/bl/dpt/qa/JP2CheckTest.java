@@ -19,7 +19,10 @@ package uk.bl.dpt.qa;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.InvalidPropertiesFormatException;
 
 import org.junit.Test;
@@ -112,4 +115,28 @@ public class JP2CheckTest {
 		
 	}
 
+	/**
+	 * Test that a precinct size jpylyzer reports as not square is given in the result message
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testNonSquarePrecinct() throws IOException {
+		String xml = new String(Files.readAllBytes(new File("src/test/resources/jpylyzer/isvalid_true.xml").toPath()), StandardCharsets.US_ASCII);
+		xml = xml.replaceFirst("<precinctSizeY>128</precinctSizeY>", "<precinctSizeY>64</precinctSizeY>");
+		new File("target/test-check").mkdirs();
+		String file = "target/test-check/nonsquare.jp2";
+		Files.write(new File(file+".jpylyzer.xml").toPath(), xml.getBytes(StandardCharsets.US_ASCII));
+
+		JP2Check.setSchematron(false);
+		try {
+			JP2CheckResult result = JP2Check.checkJpylyzerXML(file, new JP2Profile());
+			assertNotNull(result.message);
+			assertTrue(result.message, result.message.contains("precinct size 0 is not square (128 x 64)"));
+			assertNull(result.properties.get(JP2Check.Keys.PRECINCTSIZE+"0"));
+			assertEquals("128", result.properties.get(JP2Check.Keys.PRECINCTSIZE+"1"));
+		} finally {
+			JP2Check.setSchematron(true);
+		}
+	}
+
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author wpalmer
+ *
+ */
+public class JP2CheckerTest {
+
+	private static final String TESTDIR = "target/test-checker/";
+
+	/**
+	 * Set up the fake jpylyzer and its inputs
+	 * @throws IOException on error
+	 */
+	@Before
+	public void setUp() throws IOException {
+		//the fake jpylyzer is a shell script
+		Assume.assumeTrue(!System.getProperty("os.name").startsWith("Windows"));
+		JP2Check.setJpylyzerBinary("src/test/resources/bin/fake-jpylyzer.sh");
+		new File(TESTDIR).mkdirs();
+		Files.copy(new File("src/test/resources/images/kakadu_blprofile/WO1_BNER_1882_02_22-0012.tif.pgm.kakadu.cb.jp2.jpylyzer.xml").toPath(),
+				new File(TESTDIR+"kakadu_bl.jp2").toPath(), StandardCopyOption.REPLACE_EXISTING);
+		Files.copy(new File("src/test/resources/jpylyzer/isvalid_true.xml").toPath(),
+				new File(TESTDIR+"hang.jp2").toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Test method for {@link uk.bl.dpt.qa.JP2Checker#checkAsync(java.lang.String)}.
+	 * @throws Exception on error
+	 */
+	@Test
+	public final void testCheckAsync() throws Exception {
+		JP2Checker checker = new JP2Checker(JP2Check.loadProfile("src/test/resources/profiles/bl_profile.xml"));
+		try {
+			JP2CheckResult result = checker.checkAsync(TESTDIR+"kakadu_bl.jp2").get(30, TimeUnit.SECONDS);
+			assertEquals(JP2CheckResult.Status.PASSED, result.status);
+			assertTrue(result.mismatches.isEmpty());
+			assertTrue(checker.compareProfileAsync(TESTDIR+"kakadu_bl.jp2.jpylyzer.xml").get(30, TimeUnit.SECONDS).isEmpty());
+		} finally {
+			checker.shutdown();
+		}
+	}
+
+	/**
+	 * Test that cancelling a check kills jpylyzer and frees the thread
+	 * @throws Exception on error
+	 */
+	@Test
+	public final void testCancel() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		JP2Checker checker = new JP2Checker(new JP2Profile(), executor);
+		try {
+			CompletableFuture<JP2CheckResult> hung = checker.checkAsync(TESTDIR+"hang.jp2");
+			//the next check can only run once the hung one has stopped
+			CompletableFuture<JP2CheckResult> next = checker.checkJpylyzerXMLAsync("src/test/resources/images/kakadu_blprofile/WO1_BNER_1882_02_22-0012.tif.pgm.kakadu.cb.jp2");
+			Thread.sleep(500);
+			assertTrue(hung.cancel(true));
+			assertTrue(hung.isCancelled());
+			assertEquals(JP2CheckResult.Status.FAILED, next.get(20, TimeUnit.SECONDS).status);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+}
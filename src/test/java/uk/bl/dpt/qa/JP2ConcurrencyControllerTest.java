@@ -0,0 +1,157 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * @author wpalmer
+ *
+ */
+public class JP2ConcurrencyControllerTest {
+
+	private static JP2ConcurrencyController.Sample sample(double pThroughput, double pLatency) {
+		JP2ConcurrencyController.Sample sample = new JP2ConcurrencyController.Sample();
+		sample.throughput = pThroughput;
+		sample.latencyMillis = pLatency;
+		sample.cpuUsed = 1;
+		sample.cpus = 4;
+		sample.gcFraction = 0;
+		sample.heapFree = 0.5;
+		return sample;
+	}
+
+	/**
+	 * Test the limit climbs while throughput improves and backs off under pressure
+	 */
+	@Test
+	public final void testAdjust() {
+		JP2ConcurrencyController controller = new JP2ConcurrencyController();
+		controller.setRange(8, 8);
+		controller.setRange(8, 100);
+		assertEquals(8, controller.getLimit());
+
+		//throughput rising, latency steady: keep climbing
+		for(int i=0;i<4;i++) {
+			controller.apply(sample(10+i, 100));
+		}
+		assertEquals(12, controller.getLimit());
+
+		//throughput falls: turn round
+		controller.apply(sample(8, 100));
+		assertEquals(11, controller.getLimit());
+		controller.apply(sample(8, 100));
+		assertEquals(10, controller.getLimit());
+
+		//latency has more than doubled: back off a quarter, to the floor
+		controller.apply(sample(8, 250));
+		assertEquals(8, controller.getLimit());
+
+		//GC is taking a fifth of the time, but the range floor holds
+		JP2ConcurrencyController.Sample gc = sample(8, 100);
+		gc.gcFraction = 0.2;
+		controller.apply(gc);
+		assertEquals(8, controller.getLimit());
+
+		//CPU use up against the quota
+		controller.setRange(1, 100);
+		controller.apply(sample(8, 100));
+		assertEquals(9, controller.getLimit());
+		JP2ConcurrencyController.Sample cpu = sample(8, 100);
+		cpu.cpuUsed = 3.9;
+		controller.apply(cpu);
+		assertEquals(6, controller.getLimit());
+		JP2ConcurrencyController.Sample heap = sample(8, 100);
+		heap.heapFree = 0.05;
+		controller.apply(heap);
+		assertEquals(4, controller.getLimit());
+
+		assertTrue(JP2ConcurrencyController.cpuQuota()>0);
+		assertTrue(JP2ConcurrencyController.cpuNanos()>0);
+	}
+
+	/**
+	 * Test that acquire waits at the limit and is let through when it is raised
+	 * @throws InterruptedException on error
+	 */
+	@Test
+	public final void testAcquire() throws InterruptedException {
+		final JP2ConcurrencyController controller = new JP2ConcurrencyController();
+		controller.setRange(1, 1);
+		controller.acquire();
+		final AtomicBoolean acquired = new AtomicBoolean(false);
+		Thread waiter = new Thread(new Runnable() {
+			public void run() {
+				try {
+					controller.acquire();
+					acquired.set(true);
+				} catch(InterruptedException e) {
+				}
+			}
+		});
+		waiter.start();
+		Thread.sleep(200);
+		assertFalse(acquired.get());
+		controller.setRange(1, 2);
+		controller.apply(sample(1, 1));
+		waiter.join(5000);
+		assertTrue(acquired.get());
+	}
+
+	/**
+	 * Test the process's own cgroup is found under the mount for its hierarchy
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testCgroupDir() throws IOException {
+		Path root = Paths.get("target/test-cgroup").toAbsolutePath();
+		Path unified = root.resolve("unified");
+		Path cpu = root.resolve("cpu,cpuacct");
+		Files.createDirectories(unified.resolve("batch/jp2check"));
+		Files.createDirectories(cpu.resolve("batch/jp2check"));
+		Files.createDirectories(unified.resolve("jp2check"));
+
+		List<String> cgroups = Arrays.asList("4:memory:/batch/jp2check", "2:cpu,cpuacct:/batch/jp2check", "0::/batch/jp2check");
+		List<String> mounts = Arrays.asList(
+				"30 25 0:26 / "+unified+" rw,nosuid shared:9 - cgroup2 cgroup2 rw",
+				"31 25 0:27 / "+root.resolve("memory")+" rw,nosuid shared:10 - cgroup cgroup rw,memory",
+				"32 25 0:28 / "+cpu+" rw,nosuid shared:11 - cgroup cgroup rw,cpu,cpuacct");
+		assertEquals(unified.resolve("batch/jp2check"), JP2ConcurrencyController.cgroupDir(cgroups, mounts, null));
+		assertEquals(cpu.resolve("batch/jp2check"), JP2ConcurrencyController.cgroupDir(cgroups, mounts, "cpuacct"));
+		assertEquals(cpu.resolve("batch/jp2check"), JP2ConcurrencyController.cgroupDir(cgroups, mounts, "cpu"));
+		assertNull(JP2ConcurrencyController.cgroupDir(cgroups, mounts, "pids"));
+
+		//in a container the mount shows only the container's part of the hierarchy
+		mounts = Arrays.asList("30 25 0:26 /batch "+unified+" ro,nosuid - cgroup2 cgroup2 rw");
+		assertEquals(unified.resolve("jp2check"), JP2ConcurrencyController.cgroupDir(cgroups, mounts, null));
+		mounts = Arrays.asList("30 25 0:26 /batch/jp2check "+unified+" ro,nosuid - cgroup2 cgroup2 rw");
+		assertEquals(unified, JP2ConcurrencyController.cgroupDir(cgroups, mounts, null));
+		assertNull(JP2ConcurrencyController.cgroupDir(Arrays.asList("0::/"), Arrays.<String>asList(), null));
+	}
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * @author wpalmer
+ *
+ */
+public class JP2DirectoryWalkerTest {
+
+	private static Set<String> walk(JP2DirectoryWalker pWalker, final String pRoot) {
+		final Set<String> found = Collections.synchronizedSet(new TreeSet<String>());
+		pWalker.walk(pRoot, new JP2DirectoryWalker.Visitor() {
+			public void file(String pFile) {
+				found.add(pFile.substring(pRoot.length()+1).replace(File.separatorChar, '/'));
+			}
+		});
+		return found;
+	}
+
+	/**
+	 * Test the default filter and include/exclude patterns over a tree
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testWalk() throws IOException {
+		String root = "target/test-walk";
+		String[] files = { "a.jp2", "b.JP2", "c.tif", "box1/d.jp2", "box1/tmp/e.jp2", "box1/f1/g.jp2",
+				"box2/h.jp2", "box2/h.jp2.jpylyzer.xml", "box2/f2/f3/i.jp2" };
+		for(String file:files) {
+			File f = new File(root, file);
+			f.getParentFile().mkdirs();
+			f.createNewFile();
+		}
+		for(int i=0;i<50;i++) {
+			File f = new File(root, "wide/"+i+"/j.jp2");
+			f.getParentFile().mkdirs();
+			f.createNewFile();
+		}
+
+		JP2DirectoryWalker walker = new JP2DirectoryWalker();
+		walker.setThreads(4);
+		Set<String> found = walk(walker, root);
+		assertEquals(7+50, found.size());
+		assertTrue(found.contains("b.JP2"));
+		assertTrue(found.contains("box2/f2/f3/i.jp2"));
+		assertFalse(found.contains("c.tif"));
+		assertEquals(57, walker.getFiles());
+		assertTrue(walker.getErrors().isEmpty());
+
+		walker = new JP2DirectoryWalker();
+		walker.addInclude("*.jp2");
+		walker.addExclude("tmp");
+		walker.addExclude("wide");
+		walker.addExclude("box2/f2/**");
+		assertEquals(new HashSet<String>(Arrays.asList("a.jp2", "box1/d.jp2", "box1/f1/g.jp2", "box2/h.jp2")),
+				walk(walker, root));
+
+		walker = new JP2DirectoryWalker();
+		walker.addInclude("box1/**");
+		walker.addExclude("f1");
+		assertEquals(new HashSet<String>(Arrays.asList("box1/d.jp2", "box1/tmp/e.jp2")), walk(walker, root));
+	}
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import uk.bl.dpt.qa.JP2Generator.Defect;
+
+/**
+ * @author wpalmer
+ *
+ */
+public class JP2FolderWatcherTest {
+
+	private static void waitFor(List<JP2CheckResult> pResults, int pCount) throws InterruptedException {
+		for(int i=0;i<300&&pResults.size()<pCount;i++) Thread.sleep(100);
+	}
+
+	/**
+	 * Test that files are checked once when they have settled, and not again after a restart
+	 * @throws IOException on error
+	 * @throws InterruptedException on error
+	 */
+	@Test
+	public final void testWatch() throws IOException, InterruptedException {
+		File dir = new File("target/test-watch");
+		File sub = new File(dir, "scanner1");
+		if(sub.exists()) {
+			for(File file:sub.listFiles()) file.delete();
+		}
+		sub.mkdirs();
+		String state = "target/test-watch.state";
+		new File(state).delete();
+
+		JP2Profile profile = new JP2Profile();
+		JP2Generator generator = new JP2Generator(profile);
+		generator.setImageSize(512, 512);
+		JP2Check.setSchematron(false);
+		final List<JP2CheckResult> results = Collections.synchronizedList(new ArrayList<JP2CheckResult>());
+		JP2BatchScheduler scheduler = new JP2BatchScheduler(profile);
+		scheduler.setHeadersOnly(true);
+		scheduler.addListener(new JP2ResultListener() {
+			public void resultReady(JP2CheckResult pResult) {
+				results.add(pResult);
+			}
+		});
+		try {
+			//already there when the watcher starts
+			generator.write(new File(sub, "a.jp2").getPath(), Defect.NONE);
+
+			JP2FolderWatcher watcher = new JP2FolderWatcher(dir.getPath(), scheduler);
+			watcher.setSettleTime(500);
+			watcher.setStateFile(state);
+			watcher.start();
+			assertFalse(watcher.isPolling());
+			waitFor(results, 1);
+			assertEquals(1, results.size());
+
+			//written slowly, it should only be checked once it is complete
+			byte[] jp2 = generator.generate(Defect.NONE);
+			FileOutputStream out = new FileOutputStream(new File(sub, "b.jp2"));
+			for(int i=0;i<jp2.length;i+=jp2.length/4+1) {
+				out.write(jp2, i, Math.min(jp2.length/4+1, jp2.length-i));
+				out.flush();
+				Thread.sleep(150);
+			}
+			out.close();
+			waitFor(results, 2);
+			Thread.sleep(1000);
+			assertEquals(2, results.size());
+			assertFalse(results.get(1).message, results.get(1).status==JP2CheckResult.Status.ERROR);
+			assertTrue(results.get(1).profileMatch);
+			watcher.close();
+
+			//restarted with the same state, nothing has changed so nothing is checked
+			watcher = new JP2FolderWatcher(dir.getPath(), scheduler);
+			watcher.setSettleTime(100);
+			watcher.setPollInterval(200);
+			watcher.setStateFile(state);
+			watcher.start();
+			assertTrue(watcher.isPolling());
+			Thread.sleep(1000);
+			assertEquals(0, watcher.getSubmitted());
+
+			//changed in place, found by the next scan
+			generator.write(new File(sub, "a.jp2").getPath(), Defect.LEVELS);
+			waitFor(results, 3);
+			assertEquals(3, results.size());
+			assertFalse(results.get(2).profileMatch);
+			watcher.close();
+
+			//the state file is rewritten on start, with one line per file that is still there
+			assertEquals(3, Files.readAllLines(new File(state).toPath(), StandardCharsets.UTF_8).size());
+			new File(sub, "b.jp2").delete();
+			watcher = new JP2FolderWatcher(dir.getPath(), scheduler);
+			watcher.setStateFile(state);
+			watcher.start();
+			watcher.close();
+			List<String> lines = Files.readAllLines(new File(state).toPath(), StandardCharsets.UTF_8);
+			assertEquals(1, lines.size());
+			assertTrue(lines.get(0), lines.get(0).endsWith("a.jp2"));
+		} finally {
+			JP2Check.setSchematron(true);
+			scheduler.shutdown();
+		}
+	}
+
+	/**
+	 * Test that a polling watcher without a state file does not check files again on each scan
+	 * @throws IOException on error
+	 * @throws InterruptedException on error
+	 */
+	@Test
+	public final void testPollWithoutState() throws IOException, InterruptedException {
+		File dir = new File("target/test-watch-nostate");
+		if(dir.exists()) {
+			for(File file:dir.listFiles()) file.delete();
+		}
+		dir.mkdirs();
+
+		JP2Profile profile = new JP2Profile();
+		JP2Generator generator = new JP2Generator(profile);
+		generator.setImageSize(512, 512);
+		generator.write(new File(dir, "a.jp2").getPath(), Defect.NONE);
+		generator.write(new File(dir, "b.jp2").getPath(), Defect.NONE);
+		JP2Check.setSchematron(false);
+		final List<JP2CheckResult> results = Collections.synchronizedList(new ArrayList<JP2CheckResult>());
+		JP2BatchScheduler scheduler = new JP2BatchScheduler(profile);
+		scheduler.setHeadersOnly(true);
+		scheduler.addListener(new JP2ResultListener() {
+			public void resultReady(JP2CheckResult pResult) {
+				results.add(pResult);
+			}
+		});
+		JP2FolderWatcher watcher = new JP2FolderWatcher(dir.getPath(), scheduler);
+		try {
+			watcher.setSettleTime(100);
+			watcher.setPollInterval(200);
+			watcher.start();
+			waitFor(results, 2);
+			//several more scans
+			Thread.sleep(1500);
+			assertEquals(2, results.size());
+			assertEquals(2, watcher.getSubmitted());
+		} finally {
+			watcher.close();
+			JP2Check.setSchematron(true);
+			scheduler.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import uk.bl.dpt.qa.JP2Check.Keys;
+import uk.bl.dpt.qa.JP2Generator.Defect;
+
+/**
+ * @author wpalmer
+ *
+ */
+public class JP2GeneratorTest {
+
+	/**
+	 * Test that generated files match the profile unless a defect was injected
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testGenerate() throws IOException {
+		JP2Profile profile = JP2Check.loadProfile("src/test/resources/profiles/bl_profile.xml");
+		JP2Generator generator = new JP2Generator(profile);
+		for(Defect defect:Defect.values()) {
+			byte[] jp2 = generator.generate(defect);
+			JP2Header header = JP2Header.read(new ByteArrayInputStream(jp2));
+			if(defect.isCorruption()&&defect!=Defect.CORRUPT_PACKETS) {
+				assertFalse(defect.toString(), header.isValid());
+				continue;
+			}
+			//the main header of a file with corrupt packets is fine
+			assertTrue(defect+": "+header.errors, header.isValid());
+			HashMap<String, String> mismatches = JP2Check.compareJpylyzerProfile(header.toProperties(), profile);
+			if(defect==Defect.NONE||defect==Defect.CORRUPT_PACKETS) {
+				assertTrue(defect+": "+mismatches, mismatches.isEmpty());
+			} else {
+				assertFalse(defect.toString(), mismatches.isEmpty());
+			}
+		}
+	}
+
+	/**
+	 * Test that the tile-part lengths add up, i.e. the packet count is right
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testTiled() throws IOException {
+		JP2Profile profile = new JP2Profile();
+		profile.tiled = true;
+		profile.tileDim = 1024;
+		profile.SOP = true;
+		profile.EPH = true;
+		JP2Generator generator = new JP2Generator(profile);
+		generator.setImageSize(3000, 2000);
+		byte[] jp2 = generator.generate(Defect.NONE);
+		JP2Header header = JP2Header.read(new ByteArrayInputStream(jp2));
+		assertTrue(header.errors.toString(), header.isValid());
+		assertEquals("6", header.toProperties().get(Keys.NUMBEROFTILES));
+
+		//walk the tile-parts using Psot
+		long offset = header.firstTileOffset;
+		for(int t=0;t<6;t++) {
+			assertEquals(0xFF90, ((jp2[(int)offset]&0xFF)<<8)|(jp2[(int)offset+1]&0xFF));
+			long psot = 0;
+			for(int i=0;i<4;i++) psot = (psot<<8)|(jp2[(int)offset+6+i]&0xFF);
+			offset += psot;
+		}
+		assertEquals(jp2.length-2, offset);
+	}
+
+	/**
+	 * Test that a raw codestream (.j2k) is read, and only reported as not being a JP2
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testRawCodestream() throws IOException {
+		JP2Profile profile = new JP2Profile();
+		JP2Generator generator = new JP2Generator(profile);
+		generator.setImageSize(1000, 800);
+		byte[] jp2 = generator.generate(Defect.NONE);
+		JP2Header boxed = JP2Header.read(new ByteArrayInputStream(jp2));
+		byte[] j2k = Arrays.copyOfRange(jp2, (int)boxed.codestreamOffset, jp2.length);
+
+		JP2Header header = JP2Header.read(new ByteArrayInputStream(j2k));
+		assertEquals(Arrays.asList("not a JP2 file, raw codestream"), header.errors);
+		assertTrue(header.hasCodestreamHeader());
+		assertEquals(0, header.codestreamOffset);
+		assertEquals(boxed.firstTileOffset-boxed.codestreamOffset, header.firstTileOffset);
+		HashMap<String, String> properties = header.toProperties();
+		properties.remove(Keys.ISVALID);
+		HashMap<String, String> expected = boxed.toProperties();
+		expected.remove(Keys.ISVALID);
+		assertEquals(expected, properties);
+	}
+
+}
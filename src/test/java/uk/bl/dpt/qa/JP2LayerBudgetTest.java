@@ -0,0 +1,146 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import uk.bl.dpt.qa.JP2Check.Keys;
+import uk.bl.dpt.qa.JP2Generator.Defect;
+
+/**
+ * @author wpalmer
+ *
+ */
+public class JP2LayerBudgetTest {
+
+	private static JP2PacketDecoder measure(byte[] pJp2, boolean pUsePlt) throws IOException {
+		InputStream in = new ByteArrayInputStream(pJp2);
+		return JP2PacketDecoder.measureLayers(JP2Header.read(in), in, pUsePlt);
+	}
+
+	/**
+	 * Test the layer sizes are the same from the packet headers and from PLT markers
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testMeasure() throws IOException {
+		JP2Profile profile = JP2Check.loadProfile("src/test/resources/profiles/bl_profile.xml");
+		profile.SOP = true;
+		profile.EPH = true;
+		JP2Generator generator = new JP2Generator(profile);
+		generator.setImageSize(1500, 1000);
+		byte[] jp2 = generator.generate(Defect.NONE);
+		JP2PacketDecoder headers = measure(jp2, true);
+		assertTrue(headers.errors.toString(), headers.isValid());
+		long packets = generator.parameters().packets(0);
+		assertEquals(packets, headers.packets);
+		//every packet is empty: SOP, one byte and EPH
+		for(long bytes:headers.layerBytes) {
+			assertEquals(packets/profile.compressionRates.length*9, bytes);
+		}
+
+		generator.setPacketLengths(true);
+		JP2PacketDecoder plt = measure(generator.generate(Defect.NONE), true);
+		assertTrue(plt.errors.toString(), plt.isValid());
+		assertArrayEquals(headers.layerBytes, plt.layerBytes);
+
+		//packets with code-blocks in them, the same seed gives the same packets with PLT
+		JP2Generator data = new JP2Generator(profile, 7);
+		data.setImageSize(1500, 1000);
+		data.setCodeBlockData(true);
+		headers = measure(data.generate(Defect.NONE), true);
+		assertTrue(headers.errors.toString(), headers.isValid());
+		data = new JP2Generator(profile, 7);
+		data.setImageSize(1500, 1000);
+		data.setCodeBlockData(true);
+		data.setPacketLengths(true);
+		plt = measure(data.generate(Defect.NONE), true);
+		assertTrue(plt.errors.toString(), plt.isValid());
+		assertArrayEquals(headers.layerBytes, plt.layerBytes);
+		//lengths too long for one Iplt byte
+		assertTrue(plt.layerBytes[0]>packets/profile.compressionRates.length*128);
+
+		//the packets are still decoded if PLT is not used
+		JP2PacketDecoder decoded = measure(generator.generate(Defect.CORRUPT_PACKETS), false);
+		assertFalse(decoded.isValid());
+		assertNull(decoded.layerBytes);
+	}
+
+	/**
+	 * Test layers are checked against the compression rates
+	 */
+	@Test
+	public final void testCompare() {
+		JP2Profile profile = new JP2Profile();
+		profile.compressionRates = new double[] { 1, 2, 4, 10 };
+		JP2Generator generator = new JP2Generator(profile);
+		generator.setImageSize(1000, 1000);
+		JP2Header header = generator.parameters();
+		assertEquals(1000000, JP2LayerBudget.rawBytes(header), 0);
+
+		//cumulative budgets of 100000, 250000, 500000 and 1000000 bytes
+		assertTrue(JP2LayerBudget.compare(header, new long[] { 100000, 150000, 250000, 300000 }, profile).isEmpty());
+		//ran out of data after the second layer
+		assertTrue(JP2LayerBudget.compare(header, new long[] { 100000, 100000, 4, 4 }, profile).isEmpty());
+
+		HashMap<String, String> over = JP2LayerBudget.compare(header, new long[] { 120000, 130000, 250000, 300000 }, profile);
+		assertEquals(1, over.size());
+		assertEquals("8.33", over.get(Keys.COMPRESSIONRATES+"[0]"));
+
+		//encoded at lower rates than the profile asks for
+		HashMap<String, String> under = JP2LayerBudget.compare(header, new long[] { 50000, 50000, 100000, 600000 }, profile);
+		assertEquals(3, under.size());
+		assertFalse(under.containsKey(Keys.COMPRESSIONRATES+"[3]"));
+
+		//a different number of layers is reported by the profile comparison
+		assertTrue(JP2LayerBudget.compare(header, new long[] { 1, 2, 3 }, profile).isEmpty());
+	}
+
+	/**
+	 * Test the layer check is wired into the header checks
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testCheck() throws IOException {
+		JP2Profile profile = new JP2Profile();
+		JP2Generator generator = new JP2Generator(profile);
+		generator.setImageSize(1000, 800);
+		generator.setPacketLengths(true);
+		JP2Check.setLayerBudgetCheck(true);
+		JP2Check.setSchematron(false);
+		try {
+			JP2Header header = JP2Check.readHeader(new ByteArrayInputStream(generator.generate(Defect.NONE)));
+			assertNotNull(header.decoded.layerBytes);
+			JP2CheckResult result = JP2Check.checkJP2Header("generated.jp2", header, profile);
+			//nothing like the budget, but there is no data to fill it
+			assertEquals(JP2CheckResult.Status.PASSED, result.status);
+			assertNull(result.decodeValid);
+		} finally {
+			JP2Check.setLayerBudgetCheck(false);
+			JP2Check.setSchematron(true);
+		}
+	}
+
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import uk.bl.dpt.qa.JP2Generator.Defect;
+
+/**
+ * @author wpalmer
+ *
+ */
+public class JP2PacketDecoderTest {
+
+	private static JP2PacketDecoder decode(byte[] pJp2) throws IOException {
+		InputStream in = new ByteArrayInputStream(pJp2);
+		return JP2PacketDecoder.decode(JP2Header.read(in), in);
+	}
+
+	/**
+	 * Test that generated files decode, whatever the progression order and markers
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testDecode() throws IOException {
+		for(String order:JP2Header.ORDERS) {
+			for(boolean markers:new boolean[] { false, true }) {
+				JP2Profile profile = JP2Check.loadProfile("src/test/resources/profiles/bl_profile.xml");
+				profile.progressionOrder = order;
+				profile.SOP = markers;
+				profile.EPH = markers;
+				JP2Generator generator = new JP2Generator(profile);
+				generator.setImageSize(1500, 1000);
+				JP2PacketDecoder decoder = decode(generator.generate(Defect.NONE));
+				String name = order+(markers ? " SOP/EPH" : "");
+				assertTrue(name+": "+decoder.unsupported, decoder.isChecked());
+				assertTrue(name+": "+decoder.errors, decoder.isValid());
+				assertTrue(name, decoder.packets>0);
+			}
+		}
+	}
+
+	/**
+	 * Test that packets with code-blocks in them decode, with and without the coding options
+	 * that change how passes are split into codeword segments
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testCodeBlockData() throws IOException {
+		for(String order:JP2Header.ORDERS) {
+			for(int options=0;options<4;options++) {
+				JP2Profile profile = JP2Check.loadProfile("src/test/resources/profiles/bl_profile.xml");
+				profile.progressionOrder = order;
+				profile.SOP = (options&1)!=0;
+				profile.EPH = (options&1)!=0;
+				profile.coderBypass = (options&2)!=0;
+				//a few code-blocks in the lowest resolution
+				profile.levels = 3;
+				JP2Generator generator = new JP2Generator(profile, options);
+				generator.setImageSize(1500, 1000);
+				generator.setCodeBlockData(true);
+				//16 bits allows more than 36 passes in a code-block
+				if(options==3) generator.setComponents(1, 16);
+				byte[] jp2 = generator.generate(Defect.NONE);
+				String name = order+" options "+options;
+				JP2PacketDecoder decoder = decode(jp2);
+				assertTrue(name+": "+decoder.unsupported, decoder.isChecked());
+				assertTrue(name+": "+decoder.errors, decoder.isValid());
+				assertTrue(name, decoder.codeBlocks>0);
+
+				//every packet header and the lengths in it
+				InputStream in = new ByteArrayInputStream(jp2);
+				decoder = JP2PacketDecoder.measureLayers(JP2Header.read(in), in, false);
+				assertTrue(name+": "+decoder.errors, decoder.isValid());
+				assertEquals(name, generator.parameters().packets(0), decoder.packets);
+			}
+		}
+	}
+
+	/**
+	 * Test code-block data in tiles that do not line up with the precincts, with three components
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testTiledCodeBlockData() throws IOException {
+		for(String order:JP2Header.ORDERS) {
+			JP2Profile profile = JP2Check.loadProfile("src/test/resources/profiles/bl_profile.xml");
+			profile.progressionOrder = order;
+			profile.tiled = true;
+			profile.tileDim = 384;
+			profile.levels = 3;
+			JP2Generator generator = new JP2Generator(profile, 1);
+			//the right and bottom tiles are partial
+			generator.setImageSize(1000, 700);
+			generator.setComponents(3, 8);
+			generator.setCodeBlockData(true);
+			byte[] jp2 = generator.generate(Defect.NONE);
+			InputStream in = new ByteArrayInputStream(jp2);
+			JP2Header header = JP2Header.read(in);
+			JP2PacketDecoder decoder = JP2PacketDecoder.measureLayers(header, in, false);
+			assertTrue(order+": "+decoder.unsupported, decoder.isChecked());
+			assertTrue(order+": "+decoder.errors, decoder.isValid());
+			long packets = 0;
+			for(int t=0;t<header.numberOfTiles();t++) {
+				packets += header.packets(t);
+			}
+			assertEquals(order, packets, decoder.packets);
+		}
+	}
+
+	/**
+	 * Test that a marker code in the code-block data of a target packet is found
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testMarkerInData() throws IOException {
+		JP2Profile profile = JP2Check.loadProfile("src/test/resources/profiles/bl_profile.xml");
+		profile.progressionOrder = "LRCP";
+		profile.levels = 3;
+		JP2Generator generator = new JP2Generator(profile, 2);
+		generator.setImageSize(1500, 1000);
+		generator.setCodeBlockData(true);
+		generator.setPacketLengths(true);
+		byte[] jp2 = generator.generate(Defect.NONE);
+		assertTrue(decode(jp2).isValid());
+
+		//the first packet is the lowest resolution of the first layer, its length is the first in the PLT
+		int position = (int)JP2Header.read(new ByteArrayInputStream(jp2)).firstTileOffset+12;
+		assertEquals(JP2Header.PLT, ((jp2[position]&0xFF)<<8)|(jp2[position+1]&0xFF));
+		int length = 0;
+		int i = position+5;
+		do {
+			length = (length<<7)|(jp2[i]&0x7F);
+		} while((jp2[i++]&0x80)!=0);
+		while(((jp2[position]&0xFF)<<8|(jp2[position+1]&0xFF))!=JP2Header.SOD) {
+			position += 2+(((jp2[position+2]&0xFF)<<8)|(jp2[position+3]&0xFF));
+		}
+		//the packet ends with its code-block data
+		int end = position+2+length;
+		jp2[end-2] = (byte)0xFF;
+		jp2[end-1] = (byte)0x91;
+		JP2PacketDecoder decoder = decode(jp2);
+		assertFalse(decoder.isValid());
+		assertTrue(decoder.errors.toString(), decoder.errors.toString().contains("0xFF91"));
+	}
+
+	/**
+	 * Test that a region of interest in the main header is not checked, as max-shift can
+	 * add bit-planes beyond those the quantization allows for
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testRegionOfInterest() throws IOException {
+		JP2Generator generator = new JP2Generator(new JP2Profile());
+		generator.setImageSize(1000, 800);
+		generator.setCodeBlockData(true);
+		byte[] jp2 = generator.generate(Defect.NONE);
+		JP2Header header = JP2Header.read(new ByteArrayInputStream(jp2));
+
+		//RGN for component 0, max-shift by 7, before the first tile-part
+		int sot = (int)header.firstTileOffset;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(jp2, 0, sot);
+		out.write(new byte[] { (byte)0xFF, 0x5E, 0x00, 0x05, 0x00, 0x00, 0x07 });
+		out.write(jp2, sot, jp2.length-sot);
+		byte[] codestream = Arrays.copyOfRange(out.toByteArray(), (int)header.codestreamOffset, out.size());
+
+		InputStream in = new ByteArrayInputStream(codestream);
+		header = JP2Header.read(in);
+		assertTrue(header.rgn);
+		JP2PacketDecoder decoder = JP2PacketDecoder.decode(header, in);
+		assertFalse(decoder.isChecked());
+		assertTrue(decoder.unsupported, decoder.unsupported.contains("RGN"));
+		assertTrue(decoder.isValid());
+	}
+
+	/**
+	 * Test that a tiled file decodes, and that random packet data does not.  Without SOP/EPH random
+	 * bits often make a plausible packet header, with them the header has to end at the EPH.
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testCorrupt() throws IOException {
+		JP2Profile profile = new JP2Profile();
+		profile.tiled = true;
+		profile.tileDim = 256;
+		profile.SOP = true;
+		profile.EPH = true;
+		JP2Generator generator = new JP2Generator(profile, 1);
+		generator.setImageSize(3000, 2000);
+		JP2PacketDecoder decoder = decode(generator.generate(Defect.NONE));
+		assertTrue(decoder.errors.toString(), decoder.isValid());
+
+		decoder = decode(generator.generate(Defect.CORRUPT_PACKETS));
+		assertTrue(decoder.isChecked());
+		assertFalse(decoder.isValid());
+
+		//check the decode is wired into the header checks
+		JP2Check.setDecodeCheck(true);
+		try {
+			byte[] jp2 = generator.generate(Defect.CORRUPT_PACKETS);
+			JP2Header header = JP2Check.readHeader(new ByteArrayInputStream(jp2));
+			JP2CheckResult result = JP2Check.checkJP2Header("corrupt.jp2", header, profile);
+			assertEquals(Boolean.FALSE, result.decodeValid);
+			assertEquals(JP2CheckResult.Status.FAILED, result.status);
+		} finally {
+			JP2Check.setDecodeCheck(false);
+		}
+	}
+
+}
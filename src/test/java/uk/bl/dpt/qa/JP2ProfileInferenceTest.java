@@ -0,0 +1,104 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+import uk.bl.dpt.qa.JP2Check.Keys;
+
+/**
+ * @author wpalmer
+ *
+ */
+public class JP2ProfileInferenceTest {
+
+	private static final String PATH = "src/test/resources/images/";
+	private static final String[] FILES = { PATH+"kakadu_blprofile/WO1_BNER_1882_02_22-0012.tif.pgm.kakadu.cb.jp2",
+			PATH+"kakadu_notblprofile/WO1_ANJO_1847_09_15-0004.tif.pgm.0.jp2",
+			PATH+"openjpeg_notblprofile/WO1_ANJO_1847_09_15-0004.tif.0.jp2",
+			PATH+"openjpeg_notblprofile/WO1_ANJO_1847_09_15-0004.tif.0.opj2.jp2",
+			PATH+"openjpeg_blprofile/openjpeg_coderbypass.jp2" };
+
+	/**
+	 * Test that files are clustered by their parameters and that each cluster's profile, once
+	 * written and loaded again, matches the files in it
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testClusters() throws IOException {
+		JP2Profile blProfile = JP2Check.loadProfile("src/test/resources/profiles/bl_profile.xml");
+		JP2ProfileInference inference = new JP2ProfileInference(blProfile);
+		//the bl profile file three times over, the others once
+		for(int copy=0;copy<3;copy++) {
+			JP2CheckResult result = JP2Check.checkJpylyzerXML(FILES[0], blProfile);
+			result.file = FILES[0]+"#"+copy;
+			inference.resultReady(result);
+		}
+		for(int i=1;i<FILES.length;i++) {
+			inference.resultReady(JP2Check.checkJpylyzerXML(FILES[i], blProfile));
+		}
+		//errors have nothing to cluster on
+		inference.resultReady(new JP2CheckResult("missing.jp2").error("not found"));
+
+		List<JP2ProfileInference.Cluster> clusters = inference.getClusters();
+		assertTrue(clusters.size()>1);
+		assertTrue(clusters.size()<=FILES.length);
+		assertEquals(3, clusters.get(0).getFiles());
+		assertEquals(FILES[0]+"#0", clusters.get(0).getSamples().get(0));
+		long files = 0;
+		for(JP2ProfileInference.Cluster cluster:clusters) {
+			files += cluster.getFiles();
+		}
+		assertEquals(FILES.length+2, files);
+		assertEquals(0, inference.getUnclassified());
+
+		List<String> written = inference.writeProfiles("target/test-infer");
+		assertEquals(clusters.size(), written.size());
+		for(int i=0;i<written.size();i++) {
+			JP2Profile profile = JP2Check.loadProfile(written.get(i));
+			for(String sample:clusters.get(i).getSamples()) {
+				String file = sample.contains("#") ? sample.substring(0, sample.indexOf('#')) : sample;
+				assertTrue(sample, JP2Check.compareJpylyzerProfile(JP2Check.loadJpylyzerXML(file+".jpylyzer.xml"), profile).isEmpty());
+			}
+		}
+		//same number of layers as the bl profile, so its rates are kept
+		JP2Profile first = JP2Check.loadProfile(written.get(0));
+		assertArrayEquals(blProfile.compressionRates, first.compressionRates, 0);
+		assertTrue(first.validate().isEmpty());
+	}
+
+	/**
+	 * Test that parameters a profile cannot express are not clustered
+	 */
+	@Test
+	public final void testUnclassified() {
+		HashMap<String, String> items = JP2Check.loadJpylyzerXML(FILES[0]+".jpylyzer.xml");
+		assertNotNull(JP2ProfileInference.infer(items, new JP2Profile()));
+		items.put(Keys.CODEBLOCKHEIGHT, "32");
+		assertNull(JP2ProfileInference.infer(items, new JP2Profile()));
+		items.remove(Keys.LEVELS);
+		assertNull(JP2ProfileInference.infer(items, new JP2Profile()));
+	}
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.junit.Test;
+
+/**
+ * @author wpalmer
+ *
+ */
+public class JP2ProfileRegistryTest {
+
+	/**
+	 * Test loading, validation and hot reload of a directory of profiles
+	 * @throws IOException on error
+	 * @throws InterruptedException on error
+	 */
+	@Test
+	public final void testRegistry() throws IOException, InterruptedException {
+		File dir = new File("target/test-registry");
+		dir.mkdirs();
+		for(File file:dir.listFiles()) file.delete();
+		File profiles = new File("src/test/resources/profiles");
+		for(File file:profiles.listFiles()) {
+			Files.copy(file.toPath(), new File(dir, file.getName()).toPath());
+		}
+
+		JP2ProfileRegistry registry = new JP2ProfileRegistry(dir.getPath());
+		try {
+			//PRCL is not a progression order
+			assertTrue(registry.getErrors().containsKey("bad_profile_1"));
+			assertNull(registry.get("bad_profile_1"));
+			//128x128 code-blocks are more than 4096 samples
+			assertTrue(registry.getErrors().containsKey("bl_profile_change_codeblocksize"));
+			assertEquals(2, registry.getErrors().size());
+			assertEquals(profiles.listFiles().length-2, registry.getNames().size());
+
+			JP2Profile bl = registry.get("bl_profile");
+			assertEquals(6, bl.levels);
+			//callers get their own copy
+			bl.levels = 1;
+			bl.precincts[0] = 1;
+			assertEquals(6, registry.get("bl_profile").levels);
+			assertEquals(256, registry.get("bl_profile").precincts[0]);
+
+			registry.watch();
+			int loads = registry.getLoads();
+
+			//a broken edit leaves the good profile in place
+			File broken = new File(dir, "broken.tmp");
+			Files.write(broken.toPath(), "<properties>".getBytes("UTF-8"));
+			Files.move(broken.toPath(), new File(dir, "bl_profile.xml").toPath(), StandardCopyOption.REPLACE_EXISTING);
+			for(int i=0;i<300&&!registry.getErrors().containsKey("bl_profile");i++) Thread.sleep(100);
+			assertTrue(registry.getErrors().containsKey("bl_profile"));
+			assertEquals(6, registry.get("bl_profile").levels);
+
+			//a good edit replaces it
+			Files.copy(new File(profiles, "bl_profile_change_levels.xml").toPath(), new File(dir, "bl_profile.xml").toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+			for(int i=0;i<300&&registry.get("bl_profile").levels!=10;i++) {
+				//the old profile is served until the new one is ready
+				assertNotNull(registry.get("bl_profile"));
+				Thread.sleep(100);
+			}
+			assertEquals(10, registry.get("bl_profile").levels);
+			assertFalse(registry.getErrors().containsKey("bl_profile"));
+			assertTrue(registry.getLoads()>loads);
+
+			//deleting the file is reported but the last good profile is kept
+			new File(dir, "bl_profile_change_sop.xml").delete();
+			for(int i=0;i<300&&!registry.getErrors().containsKey("bl_profile_change_sop");i++) Thread.sleep(100);
+			assertTrue(registry.getErrors().containsKey("bl_profile_change_sop"));
+			assertTrue(registry.get("bl_profile_change_sop").SOP);
+		} finally {
+			registry.close();
+		}
+	}
+
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import uk.bl.dpt.qa.JP2Check.Keys;
+
+/**
+ * @author wpalmer
+ *
+ */
+public class JP2PropertyStoreTest {
+
+	/**
+	 * Test method for {@link uk.bl.dpt.qa.JP2PropertyStore#reprofile(java.lang.String, uk.bl.dpt.qa.JP2Profile, uk.bl.dpt.qa.JP2ResultListener)}.
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testReprofile() throws IOException {
+		JP2Profile blProfile = JP2Check.loadProfile("src/test/resources/profiles/bl_profile.xml");
+		JP2Profile levelsProfile = JP2Check.loadProfile("src/test/resources/profiles/bl_profile_change_levels.xml");
+		String path = "src/test/resources/images/";
+		String[] files = { path+"kakadu_blprofile/WO1_BNER_1882_02_22-0012.tif.pgm.kakadu.cb.jp2",
+							path+"kakadu_notblprofile/WO1_ANJO_1847_09_15-0004.tif.pgm.0.jp2",
+							path+"openjpeg_notblprofile/WO1_ANJO_1847_09_15-0004.tif.0.jp2",
+							path+"openjpeg_notblprofile/WO1_ANJO_1847_09_15-0004.tif.0.opj2.jp2" };
+
+		new File("target").mkdirs();
+		String storeFile = "target/test-properties.store";
+		new File(storeFile).delete();
+		JP2PropertyStore.Writer writer = new JP2PropertyStore.Writer(storeFile);
+		//write the store as two groups, to check appending works
+		for(int i=0;i<files.length;i++) {
+			writer.resultReady(JP2Check.checkJpylyzerXML(files[i], blProfile));
+			if(i==1) {
+				writer.close();
+				writer = new JP2PropertyStore.Writer(storeFile);
+			}
+		}
+		writer.close();
+
+		final HashMap<String, HashMap<String, String>> stored = new HashMap<String, HashMap<String, String>>();
+		long rows = JP2PropertyStore.read(storeFile, new JP2PropertyStore.RowVisitor() {
+			public void row(String pFile, HashMap<String, String> pProperties) {
+				stored.put(pFile, pProperties);
+			}
+		});
+		assertEquals(files.length, rows);
+		assertEquals(JP2Check.checkJpylyzerXML(files[0], blProfile).properties, stored.get(files[0]));
+		assertEquals("12", stored.get(files[0]).get(Keys.LAYERS));
+
+		JP2CheckStatistics statistics = new JP2CheckStatistics();
+		JP2PropertyStore.reprofile(storeFile, blProfile, statistics);
+		assertEquals(1, statistics.getCount(JP2CheckResult.Status.PASSED));
+		assertEquals(3, statistics.getCount(JP2CheckResult.Status.FAILED));
+
+		//the bl profile file fails once the profile changes
+		statistics = new JP2CheckStatistics();
+		JP2PropertyStore.reprofile(storeFile, levelsProfile, statistics);
+		assertEquals(0, statistics.getCount(JP2CheckResult.Status.PASSED));
+		assertEquals(4, statistics.getMismatches(Keys.LEVELS));
+	}
+
+	/**
+	 * Test that a store left with a partial group by a killed run can be appended to
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testTruncated() throws IOException {
+		JP2Profile blProfile = JP2Check.loadProfile("src/test/resources/profiles/bl_profile.xml");
+		String path = "src/test/resources/images/";
+		String[] files = { path+"kakadu_blprofile/WO1_BNER_1882_02_22-0012.tif.pgm.kakadu.cb.jp2",
+							path+"kakadu_notblprofile/WO1_ANJO_1847_09_15-0004.tif.pgm.0.jp2" };
+
+		new File("target").mkdirs();
+		String storeFile = "target/test-truncated.store";
+		new File(storeFile).delete();
+		JP2PropertyStore.Writer writer = new JP2PropertyStore.Writer(storeFile);
+		writer.resultReady(JP2Check.checkJpylyzerXML(files[0], blProfile));
+		writer.close();
+		long complete = new File(storeFile).length();
+		assertEquals(complete, JP2PropertyStore.completeLength(storeFile));
+
+		//cut the second group short
+		writer = new JP2PropertyStore.Writer(storeFile);
+		writer.resultReady(JP2Check.checkJpylyzerXML(files[1], blProfile));
+		writer.close();
+		RandomAccessFile file = new RandomAccessFile(storeFile, "rw");
+		file.setLength((complete+file.length())/2);
+		file.close();
+		assertEquals(complete, JP2PropertyStore.completeLength(storeFile));
+
+		//resuming drops the partial group before appending
+		writer = new JP2PropertyStore.Writer(storeFile);
+		writer.resultReady(JP2Check.checkJpylyzerXML(files[1], blProfile));
+		writer.close();
+		final List<String> stored = new ArrayList<String>();
+		JP2PropertyStore.read(storeFile, new JP2PropertyStore.RowVisitor() {
+			public void row(String pFile, HashMap<String, String> pProperties) {
+				stored.add(pFile);
+			}
+		});
+		assertEquals(Arrays.asList(files), stored);
+	}
+
+	/**
+	 * Test that a row group that cannot be written is reported when the store is closed
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testWriteError() throws IOException {
+		//writes to /dev/full always fail with no space left
+		Assume.assumeTrue(new File("/dev/full").canWrite());
+		JP2Profile blProfile = JP2Check.loadProfile("src/test/resources/profiles/bl_profile.xml");
+		String file = "src/test/resources/images/kakadu_blprofile/WO1_BNER_1882_02_22-0012.tif.pgm.kakadu.cb.jp2";
+
+		JP2PropertyStore.Writer writer = new JP2PropertyStore.Writer("/dev/full", 1);
+		writer.resultReady(JP2Check.checkJpylyzerXML(file, blProfile));
+		//later rows are dropped rather than appended after the partial group
+		writer.resultReady(JP2Check.checkJpylyzerXML(file, blProfile));
+		try {
+			writer.flush();
+			fail("flush should report the failed row group");
+		} catch(IOException e) {
+		}
+		try {
+			writer.close();
+			fail("close should report the failed row group");
+		} catch(IOException e) {
+		}
+	}
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author wpalmer
+ *
+ */
+public class JP2ReportReaderTest {
+
+	private static final String PATH = "src/test/resources/images/";
+	private static final String[] FILES = { PATH+"openjpeg_notblprofile/WO1_ANJO_1847_09_15-0004.tif.0.jp2",
+			PATH+"kakadu_blprofile/WO1_BNER_1882_02_22-0012.tif.pgm.kakadu.cb.jp2",
+			PATH+"openjpeg_blprofile/openjpeg_coderbypass.jp2",
+			PATH+"kakadu_notblprofile/WO1_ANJO_1847_09_15-0004.tif.pgm.0.jp2" };
+	private static final String EXT = ".jpylyzer.xml";
+	private static final int COPIES = 500;
+
+	private static String body(String pJp2File) throws IOException {
+		String xml = new String(Files.readAllBytes(Paths.get(pJp2File+EXT)), StandardCharsets.US_ASCII);
+		//drop the XML declaration
+		return xml.substring(xml.indexOf("?>")+2).trim();
+	}
+
+	private static List<JP2CheckResult> read(String pReport, JP2Profile pProfile) throws IOException {
+		final List<JP2CheckResult> results = new ArrayList<JP2CheckResult>();
+		long count = JP2ReportReader.check(pReport, pProfile, new JP2ResultListener() {
+			public void resultReady(JP2CheckResult pResult) {
+				results.add(pResult);
+			}
+		});
+		assertEquals(results.size(), count);
+		return results;
+	}
+
+	private static void compare(List<JP2CheckResult> pResults, JP2Profile pProfile) {
+		assertEquals(FILES.length*COPIES, pResults.size());
+		for(int i=0;i<FILES.length;i++) {
+			JP2CheckResult expected = JP2Check.checkJpylyzerXML(FILES[i], pProfile);
+			for(int c=0;c<COPIES;c++) {
+				JP2CheckResult result = pResults.get(c*FILES.length+i);
+				assertEquals(expected.properties, result.properties);
+				assertEquals(expected.mismatches, result.mismatches);
+				assertEquals(expected.schematronValid, result.schematronValid);
+				assertEquals(expected.status, result.status);
+			}
+		}
+	}
+
+	/**
+	 * Test that each result in a jpylyzer 1.x style multi-file report is checked as if it were a
+	 * file on its own
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testResults() throws IOException {
+		String root = "target/test-report";
+		new File(root).mkdirs();
+		String report = root+"/results.xml";
+		PrintWriter out = new PrintWriter(report, "UTF-8");
+		out.print("<?xml version='1.0' encoding='UTF-8'?><results>");
+		for(int c=0;c<COPIES;c++) {
+			for(String file:FILES) {
+				out.println(body(file));
+			}
+		}
+		out.print("</results>");
+		out.close();
+
+		JP2Profile profile = new JP2Profile();
+		List<JP2CheckResult> results = read(report, profile);
+		compare(results, profile);
+		assertTrue(results.get(0).file.endsWith("WO1_ANJO_1847_09_15-0004.tif.0.jp2"));
+
+		//a single per-file document is read as a report of one
+		assertEquals(1, read(FILES[1]+EXT, profile).size());
+
+		//a result without a validity verdict is not valid, rather than stopping the report
+		String invalid = root+"/noverdict.xml";
+		out = new PrintWriter(invalid, "UTF-8");
+		out.print("<results>"+body(FILES[1]).replaceAll("<isValidJP2>[^<]*</isValidJP2>", "")+"</results>");
+		out.close();
+		results = read(invalid, profile);
+		assertEquals(1, results.size());
+		assertFalse(results.get(0).jpylyzerValid);
+	}
+
+	/**
+	 * Test a jpylyzer 2.x style report, with file elements sharing one toolInfo
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testFiles() throws IOException {
+		String root = "target/test-report";
+		new File(root).mkdirs();
+		String report = root+"/files.xml";
+		PrintWriter out = new PrintWriter(report, "UTF-8");
+		out.print("<?xml version='1.0' encoding='UTF-8'?><jpylyzer xmlns=\"http://openpreservation.org/ns/jpylyzer/v2/\">"+
+				"<toolInfo><toolName>jpylyzer.exe</toolName><toolVersion>1.6.3</toolVersion></toolInfo>");
+		for(int c=0;c<COPIES;c++) {
+			for(String file:FILES) {
+				String body = body(file);
+				body = body.substring(body.indexOf("</toolInfo>")+"</toolInfo>".length(), body.lastIndexOf("</jpylyzer>"));
+				body = body.replace("isValidJP2>", "isValid>");
+				out.println("<file>"+body+"</file>");
+			}
+		}
+		out.print("</jpylyzer>");
+		out.close();
+
+		JP2Profile profile = new JP2Profile();
+		compare(read(report, profile), profile);
+
+		//a broken report still reports what came before the error
+		String broken = root+"/broken.xml";
+		out = new PrintWriter(broken, "UTF-8");
+		out.print("<results>"+body(FILES[0])+body(FILES[1])+"<jpylyzer><isValid");
+		out.close();
+		final List<JP2CheckResult> results = new ArrayList<JP2CheckResult>();
+		try {
+			JP2ReportReader.check(broken, profile, new JP2ResultListener() {
+				public void resultReady(JP2CheckResult pResult) {
+					results.add(pResult);
+				}
+			});
+			fail("broken report was read");
+		} catch(IOException e) {
+			assertTrue(e.getMessage().contains("after 2 results"));
+		}
+		assertEquals(2, results.size());
+	}
+
+}
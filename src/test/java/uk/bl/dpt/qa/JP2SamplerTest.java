@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import org.junit.Test;
+
+import uk.bl.dpt.qa.JP2Check.Keys;
+import uk.bl.dpt.qa.JP2Generator.Defect;
+
+/**
+ * @author wpalmer
+ *
+ */
+public class JP2SamplerTest {
+
+	/**
+	 * Test that a stratified sample estimates a known mismatch rate
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testSample() throws IOException {
+		//two boxes, one clean and one where a third of the files have the wrong number of levels
+		String root = "target/test-sample";
+		String manifest = root+"/manifest.txt";
+		new File(root+"/box1").mkdirs();
+		new File(root+"/box2").mkdirs();
+		JP2Profile profile = new JP2Profile();
+		JP2Generator generator = new JP2Generator(profile);
+		generator.setImageSize(256, 256);
+		PrintWriter out = new PrintWriter(manifest, "UTF-8");
+		int bad = 0;
+		for(int i=0;i<600;i++) {
+			String file = root+"/box"+(i%2+1)+"/"+i+".jp2";
+			Defect defect = Defect.NONE;
+			if(i%2==1&&i%3==0) {
+				defect = Defect.LEVELS;
+				bad++;
+			}
+			generator.write(file, defect);
+			out.println(file);
+		}
+		out.close();
+		double rate = bad/600.0;
+
+		JP2Check.setSchematron(false);
+		JP2BatchScheduler scheduler = new JP2BatchScheduler(profile);
+		scheduler.setHeadersOnly(true);
+		try {
+			JP2Sampler sampler = new JP2Sampler(scheduler);
+			sampler.setStrata(JP2Sampler.Strata.DIRECTORY);
+			sampler.setSeed(1);
+			sampler.setInitialSample(50);
+			sampler.setPrecision(0.05);
+			JP2Sampler.Estimate estimate = sampler.sample(manifest);
+			assertEquals(600, estimate.population);
+			assertEquals(2, estimate.strata);
+			//50 is not enough for +/-5%, so there should have been another round
+			assertTrue(estimate.rounds>1);
+			assertTrue(estimate.sampled<600);
+			JP2Sampler.Rate levels = estimate.rates.get(Keys.LEVELS);
+			assertTrue(levels.halfWidth()<=0.05);
+			assertTrue(levels.low<=rate&&rate<=levels.high);
+			assertEquals(levels.estimate, estimate.rates.get(JP2Sampler.FAILED).estimate, 0.0001);
+			assertNull(estimate.rates.get(JP2Sampler.ERROR));
+
+			//checking everything gives the exact rate
+			sampler.setPrecision(0.0001);
+			estimate = sampler.sample(manifest);
+			assertEquals(600, estimate.sampled);
+			assertEquals(rate, estimate.rates.get(Keys.LEVELS).estimate, 0.0001);
+			assertEquals(rate, estimate.rates.get(Keys.LEVELS).low, 0.0001);
+		} finally {
+			JP2Check.setSchematron(true);
+			scheduler.shutdown();
+		}
+	}
+
+	/**
+	 * Test that more strata than the maximum sample does not take the sample past the maximum
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testManyStrata() throws IOException {
+		//a folder per file, plus one large folder; the files do not exist so every check is an error
+		String root = "target/test-sample-strata";
+		String manifest = root+"/manifest.txt";
+		new File(root).mkdirs();
+		PrintWriter out = new PrintWriter(manifest, "UTF-8");
+		for(int i=0;i<2000;i++) {
+			out.println(root+"/folder"+i+"/"+i+".jp2");
+		}
+		for(int i=0;i<1000;i++) {
+			out.println(root+"/large/"+i+".jp2");
+		}
+		out.close();
+
+		JP2BatchScheduler scheduler = new JP2BatchScheduler(new JP2Profile());
+		scheduler.setHeadersOnly(true);
+		try {
+			JP2Sampler sampler = new JP2Sampler(scheduler);
+			sampler.setStrata(JP2Sampler.Strata.DIRECTORY);
+			sampler.setSeed(1);
+			sampler.setInitialSample(50);
+			sampler.setMaxSample(100);
+			sampler.setPrecision(0.0001);
+			JP2Sampler.Estimate estimate = sampler.sample(manifest);
+			assertEquals(3000, estimate.population);
+			//the single file folders are pooled
+			assertEquals(2, estimate.strata);
+			assertTrue(estimate.rounds>1);
+			assertTrue(String.valueOf(estimate.sampled), estimate.sampled<=100);
+			assertEquals(1.0, estimate.rates.get(JP2Sampler.ERROR).estimate, 0.0001);
+		} finally {
+			scheduler.shutdown();
+		}
+	}
+
+	/**
+	 * Test the interval calculation against a known value
+	 */
+	@Test
+	public final void testWilson() {
+		//10 out of 100, from a very large population
+		double[] interval = JP2Sampler.wilson(0.1, 100, Long.MAX_VALUE/2);
+		assertEquals(0.0552, interval[0], 0.0005);
+		assertEquals(0.1744, interval[1], 0.0005);
+		assertEquals("1-2MB", JP2Sampler.sizeBand(1500000));
+		assertEquals("<1MB", JP2Sampler.sizeBand(1000));
+		assertEquals("32-64MB", JP2Sampler.sizeBand(40*1024*1024));
+	}
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.Test;
+import org.xml.sax.InputSource;
+
+/**
+ * @author wpalmer
+ *
+ */
+public class JP2SchematronBatchTest {
+
+	private static final String PATH = "src/test/resources/images/";
+	private static final String[] FILES = { PATH+"openjpeg_notblprofile/WO1_ANJO_1847_09_15-0004.tif.0.jp2.jpylyzer.xml",
+			PATH+"kakadu_blprofile/WO1_BNER_1882_02_22-0012.tif.pgm.kakadu.cb.jp2.jpylyzer.xml",
+			PATH+"openjpeg_notblprofile/WO1_ANJO_1847_09_15-0004.tif.0.opj2.jp2.jpylyzer.xml",
+			PATH+"openjpeg_blprofile/openjpeg_coderbypass.jp2.jpylyzer.xml",
+			PATH+"kakadu_notblprofile/WO1_ANJO_1847_09_15-0004.tif.pgm.0.jp2.jpylyzer.xml",
+			"src/test/resources/jpylyzer/isvalid_false.xml",
+			"src/test/resources/jpylyzer/isvalid_null.xml",
+			"src/test/resources/jpylyzer/isvalid_true.xml" };
+
+	private static boolean one(String pFile, Templates pTemplates) throws IOException {
+		InputStream in = new FileInputStream(pFile);
+		try {
+			return JpylyzerSchematron.validateSchematron(in, pTemplates);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Test that a batch gives the same verdicts as checking each file on its own
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testBatch() throws IOException {
+		String root = "target/test-batch";
+		new File(root).mkdirs();
+		String broken = root+"/broken.xml";
+		PrintWriter out = new PrintWriter(broken, "UTF-8");
+		out.print("<jpylyzer><isValidJP2>True</isValidJP2>");
+		out.close();
+
+		List<String> files = new ArrayList<String>(Arrays.asList(FILES));
+		files.add(3, broken);
+		//more than one batch
+		List<String> many = new ArrayList<String>();
+		while(many.size()<=JP2SchematronBatch.BATCH) {
+			many.addAll(files);
+		}
+
+		Templates templates = JpylyzerSchematron.defaultTemplates();
+		boolean[] valid = JP2SchematronBatch.validate(many, templates);
+		assertEquals(many.size(), valid.length);
+		int passed = 0;
+		for(int i=0;i<many.size();i++) {
+			boolean expected = i<files.size() ? one(many.get(i), templates) : valid[i%files.size()];
+			assertEquals(many.get(i), expected, valid[i]);
+			if(valid[i]) passed++;
+		}
+		assertTrue(passed>0);
+		assertFalse(valid[3]);
+
+		//a batch of one has no index in the SVRL locations
+		assertFalse(JP2SchematronBatch.validate(Arrays.asList(FILES[0]), templates)[0]);
+		assertTrue(JP2SchematronBatch.validate(Arrays.asList(FILES[1]), templates)[0]);
+
+		//the default schema is all compiled, so this does not use XSLT, but should agree
+		boolean[] compiled = JpylyzerSchematron.checkJpylyzerOutputs(files);
+		for(int i=0;i<files.size();i++) {
+			assertEquals(files.get(i), valid[i], compiled[i]);
+		}
+	}
+
+	/**
+	 * Test a schema where only part of it is run as XSLT
+	 * @throws IOException on error
+	 * @throws TransformerConfigurationException on error
+	 */
+	@Test
+	public final void testResidualBatch() throws IOException, TransformerConfigurationException {
+		String root = "target/test-batch";
+		new File(root).mkdirs();
+		String schema = root+"/levels.sch";
+		PrintWriter out = new PrintWriter(schema, "UTF-8");
+		out.print("<schema xmlns=\"http://purl.oclc.org/dsdl/schematron\">"+
+				"<pattern><rule context=\"jpylyzer/isValidJP2\"><assert test=\"text()='True'\">valid</assert></rule></pattern>"+
+				"<pattern><rule context=\"cod/levels\"><assert test=\"number(text()) &gt;= 5\">levels</assert></rule></pattern>"+
+				"</schema>");
+		out.close();
+		String[] levels = new String[] { "5", "4", "6" };
+		List<String> files = new ArrayList<String>();
+		for(int i=0;i<levels.length;i++) {
+			String file = root+"/levels"+i+".xml";
+			out = new PrintWriter(file, "UTF-8");
+			out.print("<jpylyzer><isValidJP2>True</isValidJP2><properties><cod><levels>"+levels[i]+"</levels></cod></properties></jpylyzer>");
+			out.close();
+			files.add(file);
+		}
+		boolean[] valid = JpylyzerSchematron.checkJpylyzerOutputs(schema, files);
+		assertTrue(valid[0]);
+		assertFalse(valid[1]);
+		assertTrue(valid[2]);
+		assertNull(JpylyzerSchematron.checkJpylyzerOutputs(root+"/missing.sch", files));
+
+		//in one transform // would find the 4 in every document
+		String outside = root+"/outside.sch";
+		out = new PrintWriter(outside, "UTF-8");
+		out.print("<schema xmlns=\"http://purl.oclc.org/dsdl/schematron\">"+
+				"<pattern><rule context=\"jpylyzer\"><assert test=\"count(//levels[number(.) &lt; 5])=0\">levels</assert></rule></pattern>"+
+				"</schema>");
+		out.close();
+		valid = JpylyzerSchematron.checkJpylyzerOutputs(outside, files);
+		assertTrue(valid[0]);
+		assertFalse(valid[1]);
+		assertTrue(valid[2]);
+		//which is what happens if it is batched anyway
+		ByteArrayOutputStream xslt = new ByteArrayOutputStream();
+		assertTrue(JpylyzerSchematron.schematronToXSLT(new FileInputStream(outside), xslt));
+		Templates templates = JP2Xml.transformerFactory().newTemplates(new StreamSource(new ByteArrayInputStream(xslt.toByteArray())));
+		assertEquals("[false, false, false]", Arrays.toString(JP2SchematronBatch.validate(files, templates)));
+	}
+
+	/**
+	 * Test which XPath is taken to look outside the document
+	 * @throws Exception on error
+	 */
+	@Test
+	public final void testBatchable() throws Exception {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		String[] inside = { "jpylyzer/isValidJP2", "text()='a/b'", "number(.) div 2 &gt; 1", "../levels = 5", "count(a/b|c)" };
+		String[] outside = { "/jpylyzer", "count(/jpylyzer/x)", "//levels", "a = //b", "root()/x", "ancestor::jpylyzer", "a or /b" };
+		for(String xpath:inside) {
+			String schema = "<schema xmlns=\"http://purl.oclc.org/dsdl/schematron\"><pattern><rule context=\"a\"><assert test=\""+xpath+"\"/></rule></pattern></schema>";
+			assertTrue(xpath, JP2SchematronBatch.isBatchable(factory.newDocumentBuilder().parse(new InputSource(new StringReader(schema)))));
+		}
+		for(String xpath:outside) {
+			String schema = "<schema xmlns=\"http://purl.oclc.org/dsdl/schematron\"><pattern><rule context=\"a\"><assert test=\""+xpath+"\"/></rule></pattern></schema>";
+			assertFalse(xpath, JP2SchematronBatch.isBatchable(factory.newDocumentBuilder().parse(new InputSource(new StringReader(schema)))));
+		}
+	}
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2013 The British Library / The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package uk.bl.dpt.qa;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+import uk.bl.dpt.qa.JP2Generator.Defect;
+
+/**
+ * @author wpalmer
+ *
+ */
+public class JP2SchematronRulesTest {
+
+	private static final String SCHEMA = "<schema xmlns=\"http://purl.oclc.org/dsdl/schematron\">"+
+			"<pattern><rule context=\"jpylyzer/isValidJP2\"><assert test=\"text()='True'\">valid</assert></rule></pattern>"+
+			"<pattern><rule context=\"cod/levels\"><assert test=\"number(text()) &gt;= 5\">levels</assert></rule></pattern>"+
+			"</schema>";
+
+	private static boolean xslt(byte[] pDocument) {
+		return JpylyzerSchematron.validateSchematron(new ByteArrayInputStream(pDocument), JpylyzerSchematron.defaultTemplates());
+	}
+
+	private static boolean compiled(byte[] pDocument) throws IOException {
+		return JpylyzerSchematron.defaultRules().validate(new ByteArrayInputStream(pDocument));
+	}
+
+	/**
+	 * Test that the bundled schema is compiled completely and agrees with the XSLT
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testDefaultRules() throws IOException {
+		JP2SchematronRules rules = JpylyzerSchematron.defaultRules();
+		assertTrue(rules.isComplete());
+		assertTrue(rules.getCompiledAsserts()>10);
+
+		String path = "src/test/resources/images/";
+		String[] files = { path+"openjpeg_notblprofile/WO1_ANJO_1847_09_15-0004.tif.0.jp2.jpylyzer.xml",
+				path+"openjpeg_notblprofile/WO1_ANJO_1847_09_15-0004.tif.0.opj2.jp2.jpylyzer.xml",
+				path+"kakadu_notblprofile/WO1_ANJO_1847_09_15-0004.tif.pgm.0.jp2.jpylyzer.xml",
+				path+"openjpeg_blprofile/openjpeg_coderbypass.jp2.jpylyzer.xml",
+				path+"kakadu_blprofile/WO1_BNER_1882_02_22-0012.tif.pgm.kakadu.cb.jp2.jpylyzer.xml",
+				"src/test/resources/jpylyzer/isvalid_false.xml",
+				"src/test/resources/jpylyzer/isvalid_null.xml",
+				"src/test/resources/jpylyzer/isvalid_true.xml" };
+		for(String file:files) {
+			byte[] xml = Files.readAllBytes(Paths.get(file));
+			assertEquals(file, xslt(xml), compiled(xml));
+		}
+
+		//documents built from generated headers, one per defect
+		String root = "target/test-rules";
+		new File(root).mkdirs();
+		JP2Generator generator = new JP2Generator(new JP2Profile());
+		generator.setImageSize(256, 256);
+		int passed = 0;
+		for(Defect defect:Defect.values()) {
+			if(defect.isCorruption()) continue;
+			String file = root+"/"+defect+".jp2";
+			generator.write(file, defect);
+			InputStream in = new FileInputStream(file);
+			JP2Header header;
+			try {
+				header = JP2Header.read(in);
+			} finally {
+				in.close();
+			}
+			byte[] xml = header.toJpylyzerXML(file).getBytes(StandardCharsets.UTF_8);
+			boolean expected = xslt(xml);
+			assertEquals(defect.toString(), expected, compiled(xml));
+			if(expected) passed++;
+		}
+		//the clean file passes and at least some defects fail
+		assertTrue(passed>0);
+		assertTrue(passed<Defect.values().length);
+
+		assertFalse(compiled("<jpylyzer><isValidJP2>True</isValidJP2>".getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Test that a rule outside the subset is left to XSLT
+	 * @throws IOException on error
+	 */
+	@Test
+	public final void testResidual() throws IOException {
+		JP2SchematronRules rules = JP2SchematronRules.compile(new ByteArrayInputStream(SCHEMA.getBytes(StandardCharsets.UTF_8)));
+		assertEquals(1, rules.getCompiledAsserts());
+		assertFalse(rules.isComplete());
+
+		String doc = "<jpylyzer><isValidJP2>%s</isValidJP2><cod><levels>%d</levels></cod></jpylyzer>";
+		assertTrue(rules.validate(new ByteArrayInputStream(String.format(doc, "True", 5).getBytes(StandardCharsets.UTF_8))));
+		//fails in the compiled rule
+		assertFalse(rules.validate(new ByteArrayInputStream(String.format(doc, "False", 5).getBytes(StandardCharsets.UTF_8))));
+		//fails in the residual
+		assertFalse(rules.validate(new ByteArrayInputStream(String.format(doc, "True", 4).getBytes(StandardCharsets.UTF_8))));
+
+		//node-set semantics: one matching text node is enough
+		JP2SchematronRules.Checker checker = rules.newChecker();
+		try {
+			JP2Xml.saxParser().parse(new ByteArrayInputStream("<jpylyzer><isValidJP2>x<b/>True</isValidJP2></jpylyzer>".getBytes(StandardCharsets.UTF_8)), checker);
+		} catch(Exception e) {
+			fail(e.toString());
+		}
+		assertTrue(checker.passed());
+	}
+
+}
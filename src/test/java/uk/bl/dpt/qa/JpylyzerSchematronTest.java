@@ -57,4 +57,12 @@ public class JpylyzerSchematronTest {
 
 	}
 
+	/**
+	 * Test that the build compiled the bundled schema, so it isn't compiled at run time
+	 */
+	@Test
+	public final void testPrecompiled() {
+		assertNotNull(JpylyzerSchematron.class.getClassLoader().getResource("jpylyzer-schematron.sch.xsl"));
+	}
+
 }